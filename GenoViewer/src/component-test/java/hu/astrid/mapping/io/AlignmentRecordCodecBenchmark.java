@@ -0,0 +1,110 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.OptionalTag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmark of {@link AlignmentRecordCodec#decode(byte[], int, int)}. A
+ * set of synthetic records with CIGAR operations and optional tags is encoded
+ * once, then decoded repeatedly and the mean decode time is printed, both for
+ * full decoding and for lazy decoding of the CIGAR string only.
+ * <p>
+ * Usage: {@code AlignmentRecordCodecBenchmark [decoded records] [rounds]}
+ */
+public class AlignmentRecordCodecBenchmark {
+
+	private static final int DISTINCT_RECORDS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		AlignmentRecordCodec codec = new AlignmentRecordCodec(Arrays.asList(IndexedBamReaderBenchmark.REFERENCE_NAME));
+		List<byte[]> records = new ArrayList<byte[]>(DISTINCT_RECORDS);
+		Random random = new Random(11);
+		for (int i = 0; i < DISTINCT_RECORDS; ++i) {
+			records.add(codec.code(createRecord(i, random)));
+		}
+
+		long checksum = 0;
+		for (int round = 0; round <= rounds; ++round) {
+			long begin = System.nanoTime();
+			for (int i = 0; i < recordCount; ++i) {
+				byte[] record = records.get(i % DISTINCT_RECORDS);
+				checksum += codec.decode(record, 0, record.length).getSequence().length();
+			}
+			long decodeTime = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			for (int i = 0; i < recordCount; ++i) {
+				byte[] record = records.get(i % DISTINCT_RECORDS);
+				checksum += codec.decodeLazy(record, 0, record.length).getCigar().length();
+			}
+			long lazyTime = System.nanoTime() - begin;
+
+			// round 0 is the warm-up
+			if (round > 0) {
+				System.out.println("Round " + round + ": " + recordCount + " records, full decode "
+					+ (decodeTime / recordCount) + " ns/record, lazy decode of the cigar "
+					+ (lazyTime / recordCount) + " ns/record");
+			}
+		}
+		System.out.println("Checksum: " + checksum);
+	}
+
+	static AlignmentRecord createRecord(int index, Random random) {
+		int readLength = IndexedBamReaderBenchmark.READ_LENGTH;
+		StringBuilder bases = new StringBuilder(readLength);
+		StringBuilder qualities = new StringBuilder(readLength);
+		for (int j = 0; j < readLength; ++j) {
+			bases.append("ACGTN".charAt(random.nextInt(5)));
+			qualities.append((char) ('!' + random.nextInt(40)));
+		}
+		AlignmentRecord record = new AlignmentRecord();
+		record.setQueryName("read" + index);
+		record.setFlag((short) 0);
+		record.setReferenceName(IndexedBamReaderBenchmark.REFERENCE_NAME);
+		record.setPosition(1 + random.nextInt(1000000));
+		record.setMappingQuality((byte) 60);
+		record.setCigar("10S40M2I3D48M");
+		record.setMateReferenceName("*");
+		record.setMatePosition(0);
+		record.setInsertSize(0);
+		record.setSequence(bases.toString());
+		record.setQuality(qualities.toString());
+		record.addOptionalTag(createTag("NM", 'i', "5"));
+		record.addOptionalTag(createTag("MD", 'Z', "20A19^CGT48"));
+		record.addOptionalTag(createTag("RG", 'Z', "group1"));
+		return record;
+	}
+
+	private static OptionalTag createTag(String name, char type, String value) {
+		OptionalTag tag = new OptionalTag();
+		tag.setTagName(name);
+		tag.setValueType(type);
+		tag.setValue(value);
+		return tag;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.util.BamIndexer;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+/**
+ * Microbenchmark for whole-file BAM scans with different numbers of inflater
+ * threads. A synthetic BAM file is generated into the temp directory, then it
+ * is read record by record with {@link BamReader} and indexed with
+ * {@link BamIndexer}.
+ * <p>
+ * Usage: {@code BgzfScanBenchmark [records] [max threads]}
+ */
+public class BgzfScanBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		File bamFile = File.createTempFile("benchmark-", ".bam");
+		bamFile.deleteOnExit();
+		IndexedBamReaderBenchmark.writeSyntheticBam(bamFile, recordCount, recordCount * IndexedBamReaderBenchmark.READ_STEP
+			+ IndexedBamReaderBenchmark.READ_LENGTH);
+		System.out.println("Generated " + recordCount + " records, " + bamFile.length() + " bytes");
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			scan(bamFile, threads);
+			long begin = System.nanoTime();
+			int count = scan(bamFile, threads);
+			long scanTime = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			new BamIndexer(bamFile.getPath(), threads).index();
+			long indexTime = System.nanoTime() - begin;
+
+			System.out.println(threads + " threads: scan of " + count + " records " + (scanTime / 1000000) + " ms, index "
+				+ (indexTime / 1000000) + " ms");
+		}
+	}
+
+	private static int scan(File bamFile, int threads) throws Exception {
+		BamReader reader = new BamReader(new FileInputStream(bamFile), threads);
+		try {
+			reader.readHeader();
+			int count = 0;
+			while (reader.nextRecord() != null) {
+				++count;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.BamHeader;
+import hu.astrid.mapping.model.HeaderRecord;
+import hu.astrid.mapping.model.HeaderRecordType;
+import hu.astrid.mapping.model.HeaderTag;
+import hu.astrid.mapping.model.HeaderTagType;
+import hu.astrid.mapping.util.BamIndexer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Microbenchmark for region queries of {@link IndexedBamReader}. A synthetic,
+ * coordinate sorted and indexed BAM file is generated into the temp
+ * directory, then random 1 kbp windows are queried and the mean latency is
+ * printed.
+ * <p>
+ * Usage: {@code IndexedBamReaderBenchmark [records] [queries]}
+ */
+public class IndexedBamReaderBenchmark {
+
+	static final String REFERENCE_NAME = "chr1";
+	static final int READ_LENGTH = 100;
+	static final int READ_STEP = 20;
+	private static final int WINDOW = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		File bamFile = File.createTempFile("benchmark-", ".bam");
+		File baiFile = new File(bamFile.getPath() + ".bai");
+		bamFile.deleteOnExit();
+		baiFile.deleteOnExit();
+
+		int referenceLength = recordCount * READ_STEP + READ_LENGTH;
+		writeSyntheticBam(bamFile, recordCount, referenceLength);
+		new BaiWriter(new FileOutputStream(baiFile)).write(new BamIndexer(bamFile.getPath()).index());
+		System.out.println("Generated " + recordCount + " records, " + bamFile.length() + " bytes");
+
+		IndexedBamReader reader = new IndexedBamReader(bamFile.getPath());
+		try {
+			Random random = new Random(42);
+			int loaded = 0;
+			for (int i = 0; i < queryCount / 5; ++i) {
+				int start = random.nextInt(referenceLength - WINDOW);
+				loaded += reader.loadRecords(REFERENCE_NAME, start, start + WINDOW).size();
+			}
+
+			long begin = System.nanoTime();
+			for (int i = 0; i < queryCount; ++i) {
+				int start = random.nextInt(referenceLength - WINDOW);
+				loaded += reader.loadRecords(REFERENCE_NAME, start, start + WINDOW).size();
+			}
+			long elapsed = System.nanoTime() - begin;
+
+			System.out.println(queryCount + " region queries, " + loaded + " records loaded");
+			System.out.println("Mean region query latency: " + (elapsed / queryCount / 1000) + " us");
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes a sorted BAM file with evenly spaced, perfectly matching reads.
+	 */
+	static void writeSyntheticBam(File file, int recordCount, int referenceLength) throws Exception {
+		writeSyntheticBam(file, recordCount, referenceLength, false);
+	}
+
+	/**
+	 * Writes a BAM file with perfectly matching reads, which are evenly spaced
+	 * and sorted, or placed randomly if {@code shuffled} is set.
+	 */
+	public static void writeSyntheticBam(File file, int recordCount, int referenceLength, boolean shuffled) throws Exception {
+		BamHeader header = new BamHeader();
+		HeaderRecord hd = new HeaderRecord(HeaderRecordType.HD);
+		hd.addTag(new HeaderTag(HeaderTagType.VN, "1.0"));
+		hd.addTag(new HeaderTag(HeaderTagType.SO, "coordinate"));
+		header.addRecord(hd);
+		HeaderRecord sq = new HeaderRecord(HeaderRecordType.SQ);
+		sq.addTag(new HeaderTag(HeaderTagType.SN, REFERENCE_NAME));
+		sq.addTag(new HeaderTag(HeaderTagType.LN, String.valueOf(referenceLength)));
+		header.addRecord(sq);
+		header.addReference(REFERENCE_NAME, referenceLength);
+
+		char[] bases = new char[READ_LENGTH];
+		char[] qualities = new char[READ_LENGTH];
+		Arrays.fill(qualities, 'I');
+		Random random = new Random(7);
+
+		BamWriter writer = new BamWriter(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		try {
+			writer.writeHeader(header);
+			for (int i = 0; i < recordCount; ++i) {
+				for (int j = 0; j < READ_LENGTH; ++j) {
+					bases[j] = "ACGT".charAt(random.nextInt(4));
+				}
+				AlignmentRecord record = new AlignmentRecord();
+				record.setQueryName("read" + i);
+				record.setFlag((short) 0);
+				record.setReferenceName(REFERENCE_NAME);
+				record.setPosition(1 + (shuffled ? random.nextInt(referenceLength - READ_LENGTH) : i * READ_STEP));
+				record.setMappingQuality((byte) 60);
+				record.setCigar(READ_LENGTH + "M");
+				record.setMateReferenceName("*");
+				record.setMatePosition(0);
+				record.setInsertSize(0);
+				record.setSequence(new String(bases));
+				record.setQuality(new String(qualities));
+				writer.writeRecord(record);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.BamHeader;
+import hu.astrid.mapping.model.BamIndex;
+import hu.astrid.mapping.model.Bin;
+import hu.astrid.mapping.model.Chunk;
+import hu.astrid.mapping.model.HeaderRecord;
+import hu.astrid.mapping.model.HeaderRecordType;
+import hu.astrid.mapping.model.HeaderTag;
+import hu.astrid.mapping.model.HeaderTagType;
+import hu.astrid.mapping.model.ReferenceIndex;
+import hu.astrid.mapping.model.VirtualFileOffset;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks random access beyond 4 GB with a sparse BAM file: the header block is
+ * at the beginning of the file, the only alignment block is at 5 GB. The file
+ * really takes 5 GB on file systems without sparse files, so it is not a unit
+ * test; the 64-bit offsets of the cursor and the block cache are unit tested
+ * with stub blocks.
+ */
+public class IndexedBamReaderHighOffsetTest {
+
+	private static final String TEMP_DIR = System.getProperty("java.io.tmpdir");
+	private static final String REFERENCE_NAME = "chr1";
+	private static final int REFERENCE_LENGTH = 100000;
+	private static final long RECORD_BLOCK_OFFSET = 5L * 1024 * 1024 * 1024;
+
+	private File bamFile;
+	private File baiFile;
+
+	@Before
+	public void setUp() throws Exception {
+		bamFile = File.createTempFile("high-offset-", ".bam", new File(TEMP_DIR));
+		baiFile = new File(bamFile.getPath() + ".bai");
+
+		BamHeader header = new BamHeader();
+		HeaderRecord sq = new HeaderRecord(HeaderRecordType.SQ);
+		sq.addTag(new HeaderTag(HeaderTagType.SN, REFERENCE_NAME));
+		sq.addTag(new HeaderTag(HeaderTagType.LN, String.valueOf(REFERENCE_LENGTH)));
+		header.addRecord(sq);
+		header.addReference(REFERENCE_NAME, REFERENCE_LENGTH);
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		byte[] text = BamUtil.toByteArray(header.toString().toCharArray());
+		headerBytes.write(BamUtil.BAM_MAGIC_BYTES);
+		headerBytes.write(BamUtil.toByteArray(text.length));
+		headerBytes.write(text);
+		headerBytes.write(BamUtil.toByteArray(1));
+		headerBytes.write(BamUtil.toByteArray(REFERENCE_NAME.length() + 1));
+		headerBytes.write(BamUtil.toByteArray(REFERENCE_NAME.toCharArray()));
+		headerBytes.write(0);
+		headerBytes.write(BamUtil.toByteArray(REFERENCE_LENGTH));
+
+		AlignmentRecordCodec codec = new AlignmentRecordCodec(header.getReferenceNames());
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+		for (int i = 0; i < 3; ++i) {
+			byte[] data = codec.code(record("read" + i, 40000 + i * 10));
+			recordBytes.write(BamUtil.toByteArray(data.length));
+			recordBytes.write(data);
+		}
+
+		byte[] headerBlock = block(headerBytes.toByteArray());
+		byte[] recordBlock = block(recordBytes.toByteArray());
+		RandomAccessFile file = new RandomAccessFile(bamFile, "rw");
+		try {
+			file.write(headerBlock);
+			file.seek(RECORD_BLOCK_OFFSET);
+			file.write(recordBlock);
+			file.write(block(new byte[0]));
+		} finally {
+			file.close();
+		}
+
+		ReferenceIndex referenceIndex = new ReferenceIndex();
+		Bin bin = new Bin(BamUtil.regToBin(40000, 40040));
+		bin.addChunk(new Chunk(new VirtualFileOffset(RECORD_BLOCK_OFFSET << 16),
+			new VirtualFileOffset((RECORD_BLOCK_OFFSET + recordBlock.length) << 16)));
+		referenceIndex.addBin(bin);
+		for (int i = 0; i <= 40040 >>> 14; ++i) {
+			referenceIndex.addLinearIndex(new VirtualFileOffset(RECORD_BLOCK_OFFSET << 16));
+		}
+		BamIndex bamIndex = new BamIndex();
+		bamIndex.addReferenceIndex(referenceIndex);
+		new BaiWriter(new FileOutputStream(baiFile)).write(bamIndex);
+	}
+
+	@After
+	public void tearDown() {
+		bamFile.delete();
+		baiFile.delete();
+	}
+
+	@Test
+	public void testLoadRecordsBeyond4Gb() throws Exception {
+		IndexedBamReader reader = new IndexedBamReader(bamFile.getPath());
+		try {
+			List<AlignmentRecord> records = reader.loadRecords(REFERENCE_NAME, 40005, 40100);
+			assertEquals(2, records.size());
+			assertEquals("read1", records.get(0).getQueryName());
+			assertEquals(40010, records.get(0).getPosition());
+			assertEquals("read2", records.get(1).getQueryName());
+
+			AlignmentRecord record = reader.loadRecord(REFERENCE_NAME, "read0", 40000, 20);
+			assertNotNull(record);
+			assertEquals(40000, record.getPosition());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static AlignmentRecord record(String name, int position) {
+		AlignmentRecord record = new AlignmentRecord();
+		record.setQueryName(name);
+		record.setFlag((short) 0);
+		record.setReferenceName(REFERENCE_NAME);
+		record.setPosition(position);
+		record.setMappingQuality((byte) 60);
+		record.setCigar("20M");
+		record.setMateReferenceName("*");
+		record.setMatePosition(0);
+		record.setInsertSize(0);
+		record.setSequence("ACGTACGTACGTACGTACGT");
+		record.setQuality("IIIIIIIIIIIIIIIIIIII");
+		return record;
+	}
+
+	/**
+	 * Compresses the given data into a single BGZF block.
+	 */
+	private static byte[] block(byte[] data) throws IOException {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] compressed = new byte[data.length + 1024];
+		int compressedLength = deflater.deflate(compressed);
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		block.write(new byte[]{31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0});
+		block.write(BamUtil.toByteArray((short) (compressedLength + 25)));
+		block.write(compressed, 0, compressedLength);
+		block.write(BamUtil.toByteArray((int) crc.getValue()));
+		block.write(BamUtil.toByteArray(data.length));
+		return block.toByteArray();
+	}
+}
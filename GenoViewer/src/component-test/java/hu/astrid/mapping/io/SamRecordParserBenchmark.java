@@ -0,0 +1,122 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the string based SAM parsing of {@link SamReader} created from a
+ * character stream with the byte-level {@link SamRecordParser} used by readers
+ * created from a file. A synthetic SAM file is generated into the temp
+ * directory and read repeatedly with both readers.
+ * <p>
+ * Usage: {@code SamRecordParserBenchmark [records] [rounds]}
+ */
+public class SamRecordParserBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		File samFile = File.createTempFile("benchmark-", ".sam");
+		samFile.deleteOnExit();
+		writeSyntheticSam(samFile, recordCount);
+		System.out.println("Generated " + recordCount + " records, " + samFile.length() + " bytes");
+
+		for (int round = 0; round <= rounds; ++round) {
+			long begin = System.nanoTime();
+			long checksum = readWithStringParser(samFile);
+			long stringTime = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			checksum -= readWithByteParser(samFile);
+			long byteTime = System.nanoTime() - begin;
+
+			if (checksum != 0) {
+				throw new IllegalStateException("The parsers returned different records");
+			}
+			// round 0 is the warm-up
+			if (round > 0) {
+				System.out.println("Round " + round + ": string parser " + (stringTime / 1000000) + " ms, "
+					+ (stringTime / recordCount) + " ns/record; byte parser " + (byteTime / 1000000) + " ms, "
+					+ (byteTime / recordCount) + " ns/record");
+			}
+		}
+	}
+
+	private static long readWithStringParser(File samFile) throws Exception {
+		SamReader reader = new SamReader(new BufferedReader(new FileReader(samFile)));
+		long checksum = 0;
+		reader.readHeader();
+		AlignmentRecord record;
+		while ((record = reader.nextRecord()) != null) {
+			checksum += record.getPosition() + record.getSequence().length() + record.listOptionalTags().size();
+		}
+		reader.close();
+		return checksum;
+	}
+
+	private static long readWithByteParser(File samFile) throws Exception {
+		SamReader reader = new SamReader(samFile);
+		long checksum = 0;
+		reader.readHeader();
+		AlignmentRecord record = new AlignmentRecord();
+		while (reader.nextRecord(record) != null) {
+			checksum += record.getPosition() + record.getSequence().length() + record.listOptionalTags().size();
+		}
+		reader.close();
+		return checksum;
+	}
+
+	public static void writeSyntheticSam(File samFile, int recordCount) throws IOException {
+		int readLength = IndexedBamReaderBenchmark.READ_LENGTH;
+		Random random = new Random(13);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(samFile), 1 << 16);
+		try {
+			writer.write("@HD\tVN:1.0\tSO:coordinate\n");
+			writer.write("@SQ\tSN:" + IndexedBamReaderBenchmark.REFERENCE_NAME + "\tLN:"
+				+ (recordCount * IndexedBamReaderBenchmark.READ_STEP + readLength) + "\n");
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < recordCount; ++i) {
+				line.setLength(0);
+				line.append("read").append(i).append("\t0\t").append(IndexedBamReaderBenchmark.REFERENCE_NAME)
+					.append('\t').append(1 + i * IndexedBamReaderBenchmark.READ_STEP).append("\t60\t")
+					.append(readLength).append("M\t*\t0\t0\t");
+				for (int j = 0; j < readLength; ++j) {
+					line.append("ACGT".charAt(random.nextInt(4)));
+				}
+				line.append('\t');
+				for (int j = 0; j < readLength; ++j) {
+					line.append((char) ('!' + random.nextInt(40)));
+				}
+				line.append("\tNM:i:").append(random.nextInt(3)).append("\tRG:Z:group1\n");
+				writer.write(line.toString());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.io.SamRecordParserBenchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.OutputStream;
+
+/**
+ * Measures the SAM to BAM and BAM to SAM conversion of a synthetic file with
+ * an increasing number of threads. BAM to SAM is measured both with a
+ * character writer and with the byte formatting output stream path.
+ * <p>
+ * Usage: {@code MappingFileConverterBenchmark [records] [max threads]}
+ */
+public class MappingFileConverterBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		File samFile = File.createTempFile("benchmark-", ".sam");
+		File bamFile = File.createTempFile("benchmark-", ".bam");
+		File outFile = File.createTempFile("benchmark-", ".sam");
+		samFile.deleteOnExit();
+		bamFile.deleteOnExit();
+		outFile.deleteOnExit();
+		SamRecordParserBenchmark.writeSyntheticSam(samFile, recordCount);
+		System.out.println("Generated " + recordCount + " records, " + samFile.length() + " bytes");
+
+		for (int threadCount = 1; threadCount <= maxThreads; threadCount *= 2) {
+			long begin = System.nanoTime();
+			OutputStream bam = new FileOutputStream(bamFile);
+			new SamToBamConverter(new FileInputStream(samFile), bam, null, threadCount).convert();
+			long samToBam = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			new BamToSamConverter(new BufferedInputStream(new FileInputStream(bamFile), 1 << 16),
+				new BufferedWriter(new FileWriter(outFile), 1 << 16), true, threadCount).convert();
+			long bamToSamText = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			new BamToSamConverter(new BufferedInputStream(new FileInputStream(bamFile), 1 << 16),
+				new FileOutputStream(outFile), true, threadCount).convert();
+			long bamToSam = System.nanoTime() - begin;
+
+			System.out.println(threadCount + " threads: SAM->BAM " + (samToBam / 1000000) + " ms, BAM->SAM "
+				+ (bamToSamText / 1000000) + " ms through a Writer, " + (bamToSam / 1000000)
+				+ " ms through a FileChannel");
+		}
+	}
+}
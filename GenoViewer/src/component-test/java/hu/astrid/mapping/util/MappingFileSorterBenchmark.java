@@ -0,0 +1,63 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.io.IndexedBamReaderBenchmark;
+
+import java.io.File;
+
+/**
+ * Benchmark of {@link BamSorter} with different numbers of threads. A
+ * synthetic BAM file with randomly placed reads is generated into the temp
+ * directory and sorted with the given memory budget, with uncompressed and
+ * with compressed temp files, then in key-only mode.
+ * <p>
+ * Usage: {@code MappingFileSorterBenchmark [records] [memory MB] [max threads]}
+ */
+public class MappingFileSorterBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long memoryBudget = (args.length > 1 ? Long.parseLong(args[1]) : 64) << 20;
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		File unsortedFile = File.createTempFile("benchmark-", ".bam");
+		File sortedFile = File.createTempFile("benchmark-sorted-", ".bam");
+		unsortedFile.deleteOnExit();
+		sortedFile.deleteOnExit();
+		IndexedBamReaderBenchmark.writeSyntheticBam(unsortedFile, recordCount, 100000000, true);
+		System.out.println("Generated " + recordCount + " records, " + unsortedFile.length() + " bytes");
+
+		for (int mode = 0; mode < 3; ++mode) {
+			boolean compressed = mode == 1;
+			boolean keyOnly = mode == 2;
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				BamSorter sorter = new BamSorter(unsortedFile, sortedFile);
+				sorter.setMemoryBudget(memoryBudget);
+				sorter.setThreadCount(threads);
+				sorter.setCompressTempFiles(compressed);
+				sorter.setKeyOnly(keyOnly);
+				long begin = System.nanoTime();
+				sorter.sort();
+				long elapsed = System.nanoTime() - begin;
+				System.out.println(threads + " threads" + (compressed ? ", compressed" : "") + (keyOnly ? ", key-only" : "")
+					+ ": " + (elapsed / 1000000) + " ms, " + (recordCount * 1000000000L / elapsed) + " records/s");
+			}
+		}
+	}
+}
@@ -18,6 +18,7 @@
 package hu.astrid.mapping.io;
 
 import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.model.AlignmentFlag;
 import hu.astrid.mapping.model.AlignmentPosition;
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.OptionalTag;
@@ -27,9 +28,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -61,15 +60,17 @@ public class AlignmentRecordCodec {
     private static Map<Character, Integer> nucleotidesToCodes = new HashMap<Character, Integer>();
     
     /**
-     * Map which defines how to interpret nucleotide codes.
+     * Decoded nucleotide pairs of packed sequence bytes. The characters of a
+     * byte {@code b} are stored at {@code 2 * (b & 0xFF)} and the following
+     * index, pairs which contain an invalid code are left {@code 0}.
      */
-    private static final Map<Integer, Character> codesToNucleotides = new HashMap<Integer, Character>();
-    
+    private static final char[] NUCLEOTIDE_PAIRS = new char[512];
+
     /**
-     * Map which defines how to interpret numbers as cigar operators.
+     * Cigar operators indexed by their BAM code, invalid codes are {@code 0}.
      */
-    private static final Map<Integer, Character> codesToCigarOperators = new HashMap<Integer, Character>();
-    
+    private static final char[] CIGAR_OPERATORS = new char[16];
+
     static {
     	nucleotidesToCodes.put('=', 0);
     	nucleotidesToCodes.put('A', 1);
@@ -77,21 +78,23 @@ public class AlignmentRecordCodec {
     	nucleotidesToCodes.put('G', 4);
     	nucleotidesToCodes.put('T', 8);
     	nucleotidesToCodes.put('N', 15);
-    	
-    	codesToNucleotides.put(0, '=');
-    	codesToNucleotides.put(1, 'A');
-    	codesToNucleotides.put(2, 'C');
-    	codesToNucleotides.put(4, 'G');
-    	codesToNucleotides.put(8, 'T');
-    	codesToNucleotides.put(15, 'N');
-    	
-    	codesToCigarOperators.put(0, 'M');
-    	codesToCigarOperators.put(1, 'I');
-    	codesToCigarOperators.put(2, 'D');
-    	codesToCigarOperators.put(3, 'N');
-    	codesToCigarOperators.put(4, 'S');
-    	codesToCigarOperators.put(5, 'H');
-    	codesToCigarOperators.put(6, 'P');
+
+    	char[] nucleotides = new char[16];
+    	for (Map.Entry<Character, Integer> entry : nucleotidesToCodes.entrySet()) {
+    		nucleotides[entry.getValue()] = entry.getKey();
+    	}
+    	for (int i = 0; i < 256; ++i) {
+    		char high = nucleotides[i >>> 4];
+    		char low = nucleotides[i & 0x0F];
+    		if (high != 0 && low != 0) {
+    			NUCLEOTIDE_PAIRS[2 * i] = high;
+    			NUCLEOTIDE_PAIRS[2 * i + 1] = low;
+    		}
+    	}
+
+    	for (int i = 0; i < CIGAR_REGEX.length(); ++i) {
+    		CIGAR_OPERATORS[i] = CIGAR_REGEX.charAt(i);
+    	}
     }
 
     /**
@@ -383,151 +386,226 @@ public class AlignmentRecordCodec {
     /*<- code*/
 
     /*decode ->*/
-    private char numberToCigarOperator(int number)
+    String parseCigarData(byte[] record, int offset, int cigarLength)
             throws MappingFileFormatException {
-    	Character c = codesToCigarOperators.get(number);
-    	if (c != null) {
-    		return c.charValue();
-    	}
-    	throw new MappingFileFormatException("Invalid BAM operator!");
-    }
 
-    private String bamCigarByteToString(byte [] bamCigarByteArray) 
-            throws MappingFileFormatException {
+        StringBuilder result = new StringBuilder(4 * cigarLength);
+
+        for (int i = offset, end = offset + 4 * cigarLength; i < end; i += 4) {
+            int bamCigar = BamUtil.toInt(record, i);
+            char operator = CIGAR_OPERATORS[bamCigar & 0x0000000F];
+            if (operator == 0) {
+                throw new MappingFileFormatException("Invalid BAM operator!");
+            }
+            result.append(bamCigar >>> 4).append(operator);
+        }
 
-            int operatorLength = BamUtil.toInt(bamCigarByteArray) >>4;
-            int operator = BamUtil.toInt(bamCigarByteArray) & 0x0000000F;
-            return "" + operatorLength + numberToCigarOperator(operator);
+        return result.toString();
     }
 
-    private String parseCigarData(byte[] cigarArray)
+    String parseByteAlignmentSequence(byte [] record, int offset, int readLength)
             throws MappingFileFormatException {
-        
-            StringBuilder result = new StringBuilder();
 
-            for (int i = 0; i + 3 < cigarArray.length; i+=4) {
-                    result.append(bamCigarByteToString(Arrays.copyOfRange(cigarArray, i, i + 4)));
+        char[] result = new char[readLength + 1];
+
+        for (int i = 0, j = offset; i < readLength; i += 2, ++j) {
+            int pair = (record[j] & 0xFF) << 1;
+            char high = NUCLEOTIDE_PAIRS[pair];
+            if (high == 0) {
+                throw new MappingFileFormatException("Invalid BAM nucleotide!");
             }
+            result[i] = high;
+            result[i + 1] = NUCLEOTIDE_PAIRS[pair + 1];
+        }
 
-            return result.toString();
+        return new String(result, 0, readLength);
     }
 
-    private char numberToNucleotide(int number) 
-            throws MappingFileFormatException {
+    String parseSequenceQuality(byte [] record, int offset, int readLength) {
+        if (readLength > 0 && record[offset] == -1) {
+            return "*";
+        }
 
-    	Character c = codesToNucleotides.get(number);
-    	if (c != null) {
-    		return c.charValue();
-    	}
-    	throw new MappingFileFormatException("Invalid BAM nucleotide!");
+        char[] quality = new char[readLength];
+
+        for (int i = 0; i < readLength; ++i) {
+            byte value = record[offset + i];
+            if (value == -1) {
+                return "*";
+            }
+            quality[i] = (char) ((value + 33) & 0xFF);
+        }
+
+        return new String(quality);
     }
 
-    private String bamByteToNucleotidePairString(byte bamNucleotidePair) throws MappingFileFormatException {
-            int high = (bamNucleotidePair & 0xF0) >>> 4;
+    /**
+     * Returns the index of the first byte after the optional tag which starts
+     * at the given index.
+     */
+    int skipOptionalTag(byte[] data, int position) throws MappingFileFormatException {
+    	switch ((char) data[position + 2]) {
+    	case 'A':
+    	case 'c':
+    	case 'C':
+    		return position + 4;
+    	case 's':
+    	case 'S':
+    		return position + 5;
+    	case 'i':
+    	case 'I':
+    	case 'f':
+    		return position + 7;
+    	case 'Z':
+    	case 'H':
+    		int end = position + 3;
+    		while (data[end] != 0) {
+    			++end;
+    		}
+    		return end + 1;
+    	default:
+    		throw new MappingFileFormatException("Invalid optional tag type!");
+    	}
+    }
 
-            int low = bamNucleotidePair & 0x0F;
+    /**
+     * Decodes the optional tag stored between the given indices.
+     */
+    OptionalTag parseOptionalTag(byte[] data, int position, int next) {
+    	OptionalTag optionalTag = new OptionalTag();
+    	optionalTag.setTagName(new String(data, position, 2, ASCII_CHARSET));
+    	char tagType = (char) data[position + 2];
+    	int valuePosition = position + 3;
+
+    	switch (tagType) {
+    	case 'A':
+    		optionalTag.setValueType(tagType);
+    		optionalTag.setValue(new String(data, valuePosition, 1, ASCII_CHARSET));
+    		break;
+    	case 'Z':
+    	case 'H':
+    		optionalTag.setValueType(tagType);
+    		optionalTag.setValue(new String(data, valuePosition, next - valuePosition - 1, ASCII_CHARSET));
+    		break;
+    	case 'c':
+    	case 'C':
+    		optionalTag.setValueType('i');
+    		optionalTag.setValue(String.valueOf(data[valuePosition]));
+    		break;
+    	case 's':
+    	case 'S':
+    		optionalTag.setValueType('i');
+    		optionalTag.setValue(String.valueOf(BamUtil.toShort(data, valuePosition)));
+    		break;
+    	case 'f':
+    		optionalTag.setValueType('f');
+    		optionalTag.setValue(String.valueOf(Float.intBitsToFloat(BamUtil.toInt(data, valuePosition))));
+    		break;
+    	default:
+    		optionalTag.setValueType('i');
+    		optionalTag.setValue(String.valueOf(BamUtil.toInt(data, valuePosition)));
+    		break;
+    	}
 
-            String result =
-                    String.valueOf(numberToNucleotide(high)) +
-                    String.valueOf(numberToNucleotide(low));
-            return result;
+    	return optionalTag;
     }
 
-    private String parseByteAlignmentSequence(byte [] byteArray, int readLength) 
+    void parseOptionalTags(byte[] data, int offset, int end, AlignmentRecord record)
             throws MappingFileFormatException {
+    	int position = offset;
 
-        StringBuilder result = new StringBuilder(readLength + 1);
+    	while (position < end) {
+    		int next = skipOptionalTag(data, position);
+    		record.addOptionalTag(parseOptionalTag(data, position, next));
+    		position = next;
+    	}
+    }
 
-        for (byte byteValue : byteArray) {
-            result.append(bamByteToNucleotidePairString(byteValue));
-        }
+    /**
+     * Looks up an optional tag in the tag area of a binary record without
+     * decoding the other tags.
+     *
+     * @return the tag or {@code null} if the record has no such tag
+     */
+    OptionalTag findOptionalTag(byte[] data, int offset, int end, String tagName)
+            throws MappingFileFormatException {
+    	char first = tagName.charAt(0);
+    	char second = tagName.charAt(1);
+    	int position = offset;
+
+    	while (position < end) {
+    		int next = skipOptionalTag(data, position);
+    		if (data[position] == first && data[position + 1] == second) {
+    			return parseOptionalTag(data, position, next);
+    		}
+    		position = next;
+    	}
 
-        result.setLength(readLength);
-        return result.toString();
+    	return null;
     }
 
-    private String parseSequenceQuality(byte [] sequenceQualityByteArray) {
-            String qualityString = null;
-            boolean noQuality = false;
-
-            for (int i = 0; i < sequenceQualityByteArray.length; ++i) {
-                    if (sequenceQualityByteArray[i] == -1) {
-                            noQuality = true;
-                            break;
-                    }
-                    sequenceQualityByteArray[i] += 33;
-            }
+    /**
+     * Decodes only the 1-based alignment position of a binary alignment record.
+     *
+     * @param record array of bytes
+     * @return the position of the alignment record
+     */
+    public int getPosition(byte[] record) {
+    	return getPosition(record, 0);
+    }
 
-            if (!noQuality) {
-                    qualityString = new String(sequenceQualityByteArray, MappingFileParser.ASCII_CHARSET);
-            } else {
-                    qualityString = "*";
-            }
+    /**
+     * Decodes only the 1-based alignment position of a binary alignment record
+     * stored in a part of an array.
+     *
+     * @param data array which contains the binary record
+     * @param offset index of the first byte of the record
+     * @return the position of the alignment record
+     */
+    public int getPosition(byte[] data, int offset) {
+    	return BamUtil.toInt(data, offset + 4) + 1;
+    }
 
-            return qualityString;
+    /**
+     * Decodes only the unmapped flag of a binary alignment record stored in a
+     * part of an array.
+     *
+     * @param data array which contains the binary record
+     * @param offset index of the first byte of the record
+     * @return {@code true} if the record is unmapped
+     */
+    public boolean isUnmapped(byte[] data, int offset) {
+    	return (BamUtil.toShort(data, offset + 14) & AlignmentFlag.UNMAPPED.getValue()) != 0;
     }
 
-    private List<OptionalTag> parseOptionalTags(byte [] byteArrayOfTag) {
-    	List<OptionalTag> result = new LinkedList<OptionalTag>();
-    	byte byteArrayPosition = 0;
-
-    	while (byteArrayPosition < byteArrayOfTag.length) {
-	    	String tagName = new String(Arrays.copyOfRange(byteArrayOfTag, byteArrayPosition, byteArrayPosition + 2), ASCII_CHARSET);
-	    	char tagType = (char) byteArrayOfTag[byteArrayPosition + 2];
-	    	byteArrayPosition += 3;
-
-	    	String stringValue = null;
-	    	int intValue = 0;
-	    	float floatValue = Float.NaN;
-	    	if (tagType == 'A' || tagType == 'Z') {
-	    		if (tagType == 'A') {
-	    			stringValue = new String(Arrays.copyOfRange(byteArrayOfTag, byteArrayPosition, byteArrayPosition + 1), ASCII_CHARSET);
-	    			byteArrayPosition += 1;
-	    		} else {
-	    			StringBuilder stringValueBuilder = new StringBuilder();
-	    			int l = 0;
-	    			while (byteArrayOfTag[byteArrayPosition + l] != 0) {
-	    				l++;
-	    			}
-    				stringValueBuilder.append(new String(Arrays.copyOfRange(byteArrayOfTag, byteArrayPosition, byteArrayPosition + l), ASCII_CHARSET));
-    				byteArrayPosition += l + 1;
-
-	    			stringValue = stringValueBuilder.toString();
-	    		}
-	    	} else if (tagType == 'c' || tagType == 'C') {
-    			intValue = byteArrayOfTag[byteArrayPosition];
-    			byteArrayPosition += 1;
-	    	} else if (tagType == 's' || tagType == 'S') {
-    			intValue = BamUtil.toShort(Arrays.copyOfRange(byteArrayOfTag, byteArrayPosition, byteArrayPosition + 2));//(byteArrayOfTag[byteArrayPosition + 1] << 8) | byteArrayOfTag[byteArrayPosition];
-    			byteArrayPosition += 2;
-	    	} else if (tagType == 'i' || tagType == 'I') {
-    			intValue = BamUtil.toInt(Arrays.copyOfRange(byteArrayOfTag, byteArrayPosition, byteArrayPosition + 4));
-    			byteArrayPosition += 4;
-	    	} else if (tagType == 'f') {
-	    		floatValue = Float.intBitsToFloat(BamUtil.toInt(Arrays.copyOfRange(byteArrayOfTag, byteArrayPosition, byteArrayPosition + 4)));
-	    		byteArrayPosition += 4;
-	    	}
-
-    		OptionalTag newOptionalTag = new OptionalTag();
-    		newOptionalTag.setTagName(tagName);
-	    	if (stringValue != null) {
-	    		newOptionalTag.setValueType(tagType);
-	    		newOptionalTag.setValue(stringValue);
-	    	} else if (Float.compare(floatValue, Float.NaN) != 0) {
-	    		newOptionalTag.setValueType('f');
-	    		newOptionalTag.setValue(String.valueOf(floatValue));
-	    	} else {
-	    		newOptionalTag.setValueType('i');
-	    		newOptionalTag.setValue(String.valueOf(intValue));
-	    	}
-    		result.add(newOptionalTag);
+    /**
+     * Decodes the length of the reference region covered by a binary alignment
+     * record from its CIGAR operations.
+     *
+     * @param data array which contains the binary record
+     * @param offset index of the first byte of the record
+     * @return the covered reference length, 0 if the record has no CIGAR
+     */
+    public int getReferenceLength(byte[] data, int offset) {
+    	int readNameLength = data[offset + 8] & 0x000000FF;
+    	int cigarLength = BamUtil.toShort(data, offset + 12) & 0xFFFF;
+    	int cigarOffset = offset + 32 + readNameLength;
+    	int length = 0;
+    	for (int i = 0; i < cigarLength; ++i) {
+    		int cigar = BamUtil.toInt(data, cigarOffset + 4 * i);
+    		switch (cigar & 0x0000000F) {
+    			case 0: // M
+    			case 2: // D
+    			case 3: // N
+    			case 7: // =
+    			case 8: // X
+    				length += cigar >>> 4;
+    				break;
+    			default:
+    				break;
+    		}
     	}
-
-    	return result;
-    }
-    
-    public int getPosition(byte[] record) {
-    	return BamUtil.toInt(Arrays.copyOfRange(record, 4, 8)) + 1;
+    	return length;
     }
 
     /**
@@ -540,42 +618,119 @@ public class AlignmentRecordCodec {
      */
     public AlignmentRecord decode( byte[] record )
             throws MappingFileFormatException {
-    	
+        return decode(record, 0, record.length);
+    }
+
+    /**
+     * This method decode a part of a byte array to alignment record. The
+     * array is not modified.
+     *
+     * @param record array which contains the binary record
+     * @param offset index of the first byte of the record
+     * @param length length of the record
+     *
+     * @throws AlignmentRecordFormatException
+     *              if the reference name is invalid
+     */
+    public AlignmentRecord decode( byte[] record, int offset, int length )
+            throws MappingFileFormatException {
+
         AlignmentRecord result = new AlignmentRecord();
+        decodeFixedFields(record, offset, result);
+
+    	/* Getting read name length. [8]*/
+    	int readNameLength = record[offset + 8] & 0x000000FF;
+
+    	/* Getting CIGAR length. [13,12] */
+    	int cigarLength = BamUtil.toShort(record, offset + 12) & 0xFFFF;
+
+    	/* Getting read length. [16-19] */
+    	int readLength = BamUtil.toInt(record, offset + 16);
+
+    	/* Setting read name. [32-readNameLength]*/
+    	result.setQueryName(new String(record, offset + 32, readNameLength - 1, ASCII_CHARSET));
+
+    	int recordPosition = offset + 32 + readNameLength;
+
+    	/* Setting CIGAR string. [32 + readNameLength, 4*cigarLength*/
+    	result.setCigar(parseCigarData(record, recordPosition, cigarLength));
+
+    	recordPosition += (cigarLength * 4);
+
+    	/* Setting query sequence. */
+    	result.setSequence(parseByteAlignmentSequence(record, recordPosition, readLength));
+
+    	recordPosition += ((readLength + 1) / 2);
+
+    	/* Setting quality string of the query sequence. */
+    	result.setQuality(parseSequenceQuality(record, recordPosition, readLength));
+
+    	recordPosition += readLength;
+
+    	parseOptionalTags(record, recordPosition, offset + length, result);
+
+        return result;
+
+    }
+
+    /**
+     * Decodes a part of a byte array to an alignment record which keeps a copy
+     * of the binary record and decodes the query name, the CIGAR string, the
+     * sequence, the quality string and the optional tags only when they are
+     * first accessed. The fixed-size fields are decoded immediately.
+     *
+     * @param record array which contains the binary record
+     * @param offset index of the first byte of the record
+     * @param length length of the record
+     * @return the lazily decoded record
+     *
+     * @throws MappingFileFormatException
+     *              if the reference name is invalid
+     */
+    public LazyAlignmentRecord decodeLazy( byte[] record, int offset, int length )
+            throws MappingFileFormatException {
+
+        byte[] data = new byte[length];
+        System.arraycopy(record, offset, data, 0, length);
+
+        LazyAlignmentRecord result = new LazyAlignmentRecord(this, data);
+        decodeFixedFields(data, 0, result);
+        result.setReadLength(BamUtil.toInt(data, 16));
+
+        return result;
+
+    }
+
+    /**
+     * Decodes the reference names, positions, flag, mapping quality and insert
+     * size of a binary record.
+     */
+    private void decodeFixedFields( byte[] record, int offset, AlignmentRecord result )
+            throws MappingFileFormatException {
 
     	/* Setting reference sequence. [0,1,2,3] */
-    	int referenceReadID = BamUtil.toInt(Arrays.copyOfRange(record, 0, 4));
-    	result.setReferenceName(referenceSequences.get(referenceReadID));
+    	int referenceReadID = BamUtil.toInt(record, offset);
+    	result.setReferenceName(referenceReadID == -1 ? "*" : referenceSequences.get(referenceReadID));
 
     	/* Setting query position. [4,5,6,7] */
-    	result.setPosition(BamUtil.toInt(Arrays.copyOfRange(record, 4, 8)) + 1);
+    	result.setPosition(BamUtil.toInt(record, offset + 4) + 1);
 
     	/* Skipping 2 byte (bin value). [11,10]*/
     	//int bin = (record[11] <<8) | record[10];
 
     	/* Setting mapping quality. record[9] */
-    	byte mappingQuality = (byte)((record[9]) & 0x000000FF);
+    	byte mappingQuality = (byte)((record[offset + 9]) & 0x000000FF);
     	if (mappingQuality == 0) {
     		mappingQuality = (byte) 255;
     	}
     	result.setMappingQuality(mappingQuality);
 
-    	/* Getting read name length. [8]*/
-    	int readNameLength = record[8] & 0x000000FF;
-
     	/* Setting flag. [15,14] */
-    	int flag = BamUtil.toShort(Arrays.copyOfRange(record, 14, 16));
-    		//(record[15] <<8) | ((record[14] & 0x000000FF));
+    	int flag = BamUtil.toShort(record, offset + 14);
     	result.setFlag((short) flag);
 
-    	/* Getting CIGAR length. [13,12] */
-    	int cigarLength = (record[13] <<8) | (record[12] & 0x000000FF);
-
-    	/* Getting read length. [16-19] */
-    	int readLength = BamUtil.toInt(Arrays.copyOfRange(record, 16, 20));
-
     	/* Setting mate reference sequence ID. [20-23] */
-    	int mateReadID = BamUtil.toInt(Arrays.copyOfRange(record, 20, 24));
+    	int mateReadID = BamUtil.toInt(record, offset + 20);
         if( mateReadID == -1 )
             result.setMateReferenceName("*");  // '=' replaced to '*'
         else if (mateReadID == referenceReadID) {
@@ -585,41 +740,11 @@ public class AlignmentRecordCodec {
     	}
 
     	/* Setting mate position. [24-27] */
-    	result.setMatePosition(BamUtil.toInt(Arrays.copyOfRange(record, 24, 28)) + 1);
+    	result.setMatePosition(BamUtil.toInt(record, offset + 24) + 1);
 
     	/* Setting insert size of the mate paired. [28-31] */
-    	int insertOfSize = BamUtil.toInt(Arrays.copyOfRange(record, 28, 32));
+    	int insertOfSize = BamUtil.toInt(record, offset + 28);
     	result.setInsertSize(insertOfSize);
-
-    	/* Setting read name. [32-readNameLength]*/
-    	byte [] readNameArray = Arrays.copyOfRange(record, 32, 32 + readNameLength - 1);
-    	result.setQueryName(new String(readNameArray, ASCII_CHARSET));
-
-    	int recordPosition = 32 + readNameLength;
-
-    	/* Setting CIGAR string. [32 + readNameLength, 4*cigarLength*/
-    	byte [] cigarArray = Arrays.copyOfRange(record, recordPosition, recordPosition + (cigarLength * 4));
-    	result.setCigar(parseCigarData(cigarArray));
-
-    	recordPosition += (cigarLength * 4);
-
-    	/* Setting query sequence. */
-    	byte [] readSequenceArray = Arrays.copyOfRange(record, recordPosition, recordPosition + ((readLength + 1)/2));
-    	result.setSequence(parseByteAlignmentSequence(readSequenceArray, readLength));
-
-    	recordPosition += ((readLength + 1) / 2);
-
-    	/* Setting quality string of the query sequence. */
-    	result.setQuality(parseSequenceQuality(Arrays.copyOfRange(record, recordPosition, recordPosition + readLength)));
-
-    	recordPosition += readLength;
-
-    	for (OptionalTag optionalTag : parseOptionalTags(Arrays.copyOfRange(record, recordPosition, record.length))) {
-    		result.addOptionalTag(optionalTag);
-    	}
-
-        return result;
-
     }
     /*<- decode*/
 
@@ -635,25 +760,38 @@ public class AlignmentRecordCodec {
 	 */
     public AlignmentPosition decodePosition( byte[] record )
             throws MappingFileFormatException {
+        return decodePosition(record, 0);
+    }
+
+	/**
+	 * Decodes only the alignment position of a binary alignment record stored
+	 * in a part of an array.
+	 * 
+	 * @param record
+	 *            array which contains the binary record
+	 * @param offset
+	 *            index of the first byte of the record
+	 * @return the position of the alignment record
+	 * @throws MappingFileFormatException
+	 *             if the format of the binary record is incorrect
+	 */
+    public AlignmentPosition decodePosition( byte[] record, int offset )
+            throws MappingFileFormatException {
 
         AlignmentPosition result = new AlignmentPosition();
 
     	/* Setting reference sequence. [0,1,2,3] */
-    	int referenceReadID = BamUtil.toInt(Arrays.copyOfRange(record, 0, 4));
-    	result.setReferenceName(referenceSequences.get(referenceReadID));
+    	int referenceReadID = BamUtil.toInt(record, offset);
+    	result.setReferenceName(referenceReadID == -1 ? "*" : referenceSequences.get(referenceReadID));
 
     	/* Setting query position. [4,5,6,7] */
-    	result.setPosition(BamUtil.toInt(Arrays.copyOfRange(record, 4, 8)) + 1);
-
-    	/* Getting read name length. [8]*/
-    	int readNameLength = record[8] & 0x000000FF;
+    	result.setPosition(BamUtil.toInt(record, offset + 4) + 1);
 
     	/* Setting read name. [32-readNameLength]*/
-    	byte [] readNameArray = Arrays.copyOfRange(record, 32, 32 + readNameLength - 1);
-    	result.setQueryName(new String(readNameArray, ASCII_CHARSET));
+    	result.setQueryName(decodeQueryName(record, offset));
     	
     	/* Getting read length. [16-19] */
-    	result.setReadLength(BamUtil.toInt(Arrays.copyOfRange(record, 16, 20)));
+    	result.setReadLength(BamUtil.toInt(record, offset + 16));
 
         return result;
 
@@ -703,10 +841,22 @@ public class AlignmentRecordCodec {
 	 * @return the decoded query name
 	 */
     public String decodeQueryName(byte[] binaryRecord) {
-    	int readNameLength = binaryRecord[8] & 0x000000FF;
-    	byte [] readNameArray = Arrays.copyOfRange(binaryRecord, 32, 32 + readNameLength - 1);
-    	
-    	return new String(readNameArray, ASCII_CHARSET);
+    	return decodeQueryName(binaryRecord, 0);
+    }
+
+	/**
+	 * Decodes only the query name of an alignment record stored in a part of
+	 * an array.
+	 * 
+	 * @param data
+	 *            array which contains the binary record
+	 * @param offset
+	 *            index of the first byte of the record
+	 * @return the decoded query name
+	 */
+    public String decodeQueryName(byte[] data, int offset) {
+    	int readNameLength = data[offset + 8] & 0x000000FF;
+    	return new String(data, offset + 32, readNameLength - 1, ASCII_CHARSET);
     }
 
 }
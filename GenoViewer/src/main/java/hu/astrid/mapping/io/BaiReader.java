@@ -19,48 +19,44 @@ package hu.astrid.mapping.io;
 
 import hu.astrid.mapping.exception.IndexFileFormatException;
 import hu.astrid.mapping.model.BamIndex;
-import hu.astrid.mapping.model.Bin;
-import hu.astrid.mapping.model.Chunk;
-import hu.astrid.mapping.model.ReferenceIndex;
-import hu.astrid.mapping.model.VirtualFileOffset;
+import hu.astrid.mapping.model.BinningScheme;
+import hu.astrid.mapping.model.PackedReferenceIndex;
 import hu.astrid.mapping.util.BamUtil;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.Arrays;
 
 /**
- * Reader implementation for BAM index files.
+ * Reader implementation for BAM index files. The file is memory-mapped and
+ * only the boundaries of the reference sections are read when it is loaded;
+ * the bins, chunks and linear index of a reference are parsed into packed
+ * arrays when the reference is first queried.
  */
 public class BaiReader {
 
-    /**
-     * The mapped byte buffer to read from.
-     */
-    private MappedByteBuffer reader;
-
     /**
      * Creates a new reader instance.
      */
     public BaiReader() {
-    	this.reader = null;
     }
 
     /**
      *
      * Validates the magic string.
      *
+     * @param reader the mapped index file
      * @return true, if the magic string is valid, otherwise false
-     *
-     * @throws IOException
-     *              if the magic string is invalid
      */
-    private boolean validateMagicString() throws IOException {
+    private boolean validateMagicString(ByteBuffer reader) {
+        if (reader.limit() < 4) {
+            return false;
+        }
         byte[] magic = new byte[4];
         reader.get(magic);
         return Arrays.equals(magic, BamUtil.BAI_MAGIC_BYTES);
@@ -75,54 +71,20 @@ public class BaiReader {
     * @throws IOException
     *              if an I/O error occurs
     * @throws IndexFileFormatException
-    *              if the magic string is incorrect
+    *              if the magic string or the structure of the file is incorrect
     */
 	public BamIndex load(File baiFile) throws IOException,
 			IndexFileFormatException {
 
-		BamIndex result = new BamIndex();
         FileInputStream stream = null;
         FileChannel channel = null;
-	MappedByteBuffer reader=null;
+        ByteBuffer reader;
         try {
             stream = new FileInputStream(baiFile);
             channel = stream.getChannel();
+            // the mapping stays valid after the channel is closed
             reader = channel.map(MapMode.READ_ONLY, 0L, channel.size());
-	    this.reader=reader;
-            reader.order(ByteOrder.LITTLE_ENDIAN);
-
-            if (!validateMagicString()) {
-                throw new IndexFileFormatException("Invalid Magic String!");
-            }
-
-            int nRef = reader.getInt();
-            for (int i = 0; i < nRef; i++) {
-                ReferenceIndex refIndex = new ReferenceIndex();
-                int nBin = reader.getInt();
-
-                for (int j = 0; j < nBin; j++) {
-                    Bin bin = new Bin(reader.getInt());
-                    int nChunk = reader.getInt();
-
-                    for (int k = 0; k < nChunk; k++) {
-                        VirtualFileOffset start = new VirtualFileOffset(reader.getLong());
-                        VirtualFileOffset end = new VirtualFileOffset(reader.getLong());
-                        Chunk chunk = new Chunk(start, end);
-                        bin.addChunk(chunk);
-                    }
-                    
-                    refIndex.addBin(bin);
-                }
-
-                int nIntv = reader.getInt();
-                for (int m = 0; m < nIntv; m++) {
-                    VirtualFileOffset ioffset = new VirtualFileOffset(reader.getLong());
-                    refIndex.addLinearIndex(ioffset);
-                }
-                result.addReferenceIndex(refIndex);
-            }
         } finally {
-            reader = null;
             if (channel != null) {
                 channel.close();
             }
@@ -130,8 +92,13 @@ public class BaiReader {
                 stream.close();
             }
         }
+        reader.order(ByteOrder.LITTLE_ENDIAN);
 
-        return result;
+        if (!validateMagicString(reader)) {
+            throw new IndexFileFormatException("Invalid Magic String!");
+        }
+
+        return new BamIndex(new MappedReferenceIndexSource(reader));
 	}
 
     /**
@@ -149,4 +116,96 @@ public class BaiReader {
 			IndexFileFormatException {
         return this.load(new File(baiFile));
     }
+
+    /**
+     * Parses the reference sections of a mapped BAI file. The sections are
+     * located when the source is created, skipping the chunks and the linear
+     * index, so a section can be parsed independently of the others. Only
+     * absolute reads are used, the buffer position is never modified.
+     */
+    private static class MappedReferenceIndexSource implements BamIndex.ReferenceIndexSource {
+
+        private final ByteBuffer buffer;
+
+        /**
+         * Start of the section of each reference sequence in the file.
+         */
+        private final int[] sectionOffsets;
+
+        /**
+         * Number of chunks in the section of each reference sequence.
+         */
+        private final int[] chunkCounts;
+
+        MappedReferenceIndexSource(ByteBuffer buffer) throws IndexFileFormatException {
+            this.buffer = buffer;
+            try {
+                int referenceCount = buffer.getInt(4);
+                if (referenceCount < 0) {
+                    throw new IndexFileFormatException("Invalid number of references: " + referenceCount);
+                }
+                sectionOffsets = new int[referenceCount];
+                chunkCounts = new int[referenceCount];
+                int position = 8;
+                for (int i = 0; i < referenceCount; ++i) {
+                    sectionOffsets[i] = position;
+                    int binCount = buffer.getInt(position);
+                    position += 4;
+                    for (int j = 0; j < binCount; ++j) {
+                        int chunkCount = buffer.getInt(position + 4);
+                        chunkCounts[i] += chunkCount;
+                        position += 8 + 16 * chunkCount;
+                    }
+                    int intervalCount = buffer.getInt(position);
+                    position += 4 + 8 * intervalCount;
+                }
+                if (position > buffer.limit()) {
+                    throw new IndexOutOfBoundsException();
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IndexFileFormatException("Unexpected end of index file");
+            }
+        }
+
+        @Override
+        public int getReferenceCount() {
+            return sectionOffsets.length;
+        }
+
+        @Override
+        public PackedReferenceIndex load(int referenceIndex) {
+            int position = sectionOffsets[referenceIndex];
+            int binCount = buffer.getInt(position);
+            position += 4;
+
+            int[] binIds = new int[binCount];
+            int[] binChunks = new int[binCount + 1];
+            long[] chunkStarts = new long[chunkCounts[referenceIndex]];
+            long[] chunkEnds = new long[chunkCounts[referenceIndex]];
+            int chunkIndex = 0;
+            for (int i = 0; i < binCount; ++i) {
+                binIds[i] = buffer.getInt(position);
+                binChunks[i] = chunkIndex;
+                int chunkCount = buffer.getInt(position + 4);
+                position += 8;
+                for (int j = 0; j < chunkCount; ++j) {
+                    chunkStarts[chunkIndex] = buffer.getLong(position);
+                    chunkEnds[chunkIndex] = buffer.getLong(position + 8);
+                    position += 16;
+                    ++chunkIndex;
+                }
+            }
+            binChunks[binCount] = chunkIndex;
+
+            long[] linearIndex = new long[buffer.getInt(position)];
+            position += 4;
+            for (int i = 0; i < linearIndex.length; ++i) {
+                linearIndex[i] = buffer.getLong(position);
+                position += 8;
+            }
+
+            return PackedReferenceIndex.fromFileOrder(BinningScheme.BAI, binIds, null, binChunks, chunkStarts,
+                    chunkEnds, linearIndex);
+        }
+    }
 }
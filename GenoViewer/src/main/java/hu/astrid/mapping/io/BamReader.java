@@ -25,13 +25,26 @@ import hu.astrid.mapping.util.BamUtil;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Sequential BAM reader implementation.
+ * Sequential BAM reader implementation. BGZF-compressed input is inflated on
+ * several threads by a {@link ParallelBgzfInputStream}, other gzip streams
+ * are read by a {@link GzipReader}.
  */
-public class BamReader extends GzipReader implements MappingFileReader {
+public class BamReader implements MappingFileReader {
+
+    /**
+     * The uncompressed content of the BAM file.
+     */
+    private final InputStream in;
+
+    /**
+     * Reusable buffer of the binary alignment records.
+     */
+    private byte[] recordBuffer = new byte[1024];
 
     /**
      * Flag which indicates whether the header was already loaded or not.
@@ -51,7 +64,36 @@ public class BamReader extends GzipReader implements MappingFileReader {
      *             if an I/O error occurs
      */
     public BamReader(InputStream in) throws IOException {
-        super(in);
+        this(in, ParallelBgzfInputStream.DEFAULT_THREAD_COUNT);
+    }
+
+    /**
+     * Creates a new reader which is able to load alignment records using the
+     * given input stream and the given number of inflater threads.
+     *
+     * @param in
+     *            the input stream
+     * @param threadCount
+     *            number of threads inflating BGZF blocks
+     *
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public BamReader(InputStream in, int threadCount) throws IOException {
+        PushbackInputStream pushbackIn = new PushbackInputStream(in, 18);
+        byte[] blockHeader = new byte[18];
+        int count = 0;
+        int n;
+        while (count < blockHeader.length && (n = pushbackIn.read(blockHeader, count, blockHeader.length - count)) != -1) {
+            count += n;
+        }
+        pushbackIn.unread(blockHeader, 0, count);
+
+        if (ParallelBgzfInputStream.isBgzfHeader(blockHeader)) {
+            this.in = new ParallelBgzfInputStream(pushbackIn, threadCount, 2 * threadCount);
+        } else {
+            this.in = new GzipReader(pushbackIn);
+        }
         this.headerLoaded = false;
         this.alignmentRecordCodec = null;
     }
@@ -121,9 +163,13 @@ public class BamReader extends GzipReader implements MappingFileReader {
         }
 
         try {
-            int blockSize = BamUtil.toInt(read(4));
-            byte[] block = read(blockSize);
-            result = alignmentRecordCodec.decode(block);
+            readFully(recordBuffer, 0, 4);
+            int blockSize = BamUtil.toInt(recordBuffer);
+            if (recordBuffer.length < blockSize) {
+                recordBuffer = new byte[Math.max(blockSize, 2 * recordBuffer.length)];
+            }
+            readFully(recordBuffer, 0, blockSize);
+            result = alignmentRecordCodec.decode(recordBuffer, 0, blockSize);
         } catch (EOFException eofe) {
             result = null;
         }
@@ -131,8 +177,101 @@ public class BamReader extends GzipReader implements MappingFileReader {
         return result;
     }
 
+    /**
+     * Reads the length of the next binary alignment record. The record itself
+     * has to be read with {@link #readRawRecord(byte[], int, int)} before
+     * reading the next one. Lets records be copied or compared without
+     * decoding them.
+     *
+     * @return length of the next record without the block size field, or -1
+     *         at the end of the file
+     * @throws MappingFileFormatException
+     *             if the header or the record length is invalid
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public int nextRawRecordLength()
+            throws MappingFileFormatException, IOException {
+
+        if (!headerLoaded && (readHeader() == null)) {
+            return -1;
+        }
+
+        try {
+            readFully(recordBuffer, 0, 4);
+        } catch (EOFException eofe) {
+            return -1;
+        }
+        int blockSize = BamUtil.toInt(recordBuffer);
+        if (blockSize < 32) {
+            throw new MappingFileFormatException("Invalid alignment record length: " + blockSize);
+        }
+        return blockSize;
+    }
+
+    /**
+     * Reads the binary alignment record whose length was returned by
+     * {@link #nextRawRecordLength()}.
+     *
+     * @param b
+     *            the array the record is read into
+     * @param offset
+     *            offset of the record in the array
+     * @param length
+     *            length of the record
+     * @throws EOFException
+     *             if the file ends inside the record
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void readRawRecord(byte[] b, int offset, int length) throws IOException {
+        readFully(b, offset, length);
+    }
+
     @Override
     public void close() throws IOException {
-        super.close();
+        in.close();
+    }
+
+    /**
+     * Reads exactly len bytes of the uncompressed stream.
+     *
+     * @param len
+     *            count of bytes which will read
+     * @return the bytes read
+     * @throws EOFException
+     *             if the end of the stream has been reached
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    private byte[] read(int len) throws IOException {
+        byte[] b = new byte[len];
+        readFully(b, 0, len);
+        return b;
+    }
+
+    /**
+     * Fills a range of the given array from the uncompressed stream.
+     *
+     * @param b
+     *            the array to be filled
+     * @param off
+     *            offset of the first byte in the array
+     * @param len
+     *            count of bytes which will read
+     * @throws EOFException
+     *             if the end of the stream has been reached
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        int r = 0;
+        while (r < len) {
+            int n = in.read(b, off + r, len - r);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            r += n;
+        }
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.exception.IndexFileFormatException;
+import hu.astrid.mapping.model.BamSummary;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Reader implementation for BAM summary files written by
+ * {@link BamSummaryWriter}.
+ */
+public class BamSummaryReader {
+
+	/**
+	 * Creates a new reader instance.
+	 */
+	public BamSummaryReader() {
+	}
+
+	/**
+	 * Loads a summary file's content.
+	 * 
+	 * @param summaryFile
+	 *            the summary file to be loaded
+	 * @return the summary
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IndexFileFormatException
+	 *             if the magic string or the structure of the file is
+	 *             incorrect
+	 */
+	public BamSummary load(File summaryFile) throws IOException, IndexFileFormatException {
+		ByteBuffer reader = ByteBuffer.wrap(readFile(summaryFile));
+		reader.order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+			byte[] magic = new byte[4];
+			reader.get(magic);
+			if (!Arrays.equals(magic, BamUtil.SUMMARY_MAGIC_BYTES)) {
+				throw new IndexFileFormatException("Invalid Magic String!");
+			}
+
+			long bamLength = reader.getLong();
+			long bamModified = reader.getLong();
+			long unplacedCount = reader.getLong();
+			int referenceCount = checkCount(reader.getInt());
+			long[] readCounts = new long[referenceCount];
+			long[] unmappedCounts = new long[referenceCount];
+			int[] maxReadLengths = new int[referenceCount];
+			int[] firstPositions = new int[referenceCount];
+			int[] endPositions = new int[referenceCount];
+			for (int i = 0; i < referenceCount; ++i) {
+				readCounts[i] = reader.getLong();
+				unmappedCounts[i] = reader.getLong();
+				maxReadLengths[i] = reader.getInt();
+				firstPositions[i] = reader.getInt();
+				endPositions[i] = reader.getInt();
+			}
+			return new BamSummary(bamLength, bamModified, unplacedCount, readCounts, unmappedCounts, maxReadLengths,
+				firstPositions, endPositions);
+		} catch (BufferUnderflowException e) {
+			throw new IndexFileFormatException("Unexpected end of summary file");
+		}
+	}
+
+	/**
+	 * Loads a summary file's content, which must belong to a BAM file with the
+	 * given number of reference sequences.
+	 * 
+	 * @param summaryFile
+	 *            the summary file to be loaded
+	 * @param referenceCount
+	 *            number of references in the header of the BAM file
+	 * @return the summary
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IndexFileFormatException
+	 *             if the file is incorrect, or it summarizes a different
+	 *             number of references
+	 */
+	public BamSummary load(File summaryFile, int referenceCount) throws IOException, IndexFileFormatException {
+		BamSummary summary = load(summaryFile);
+		if (summary.getReferenceCount() != referenceCount) {
+			throw new IndexFileFormatException("Summary file has " + summary.getReferenceCount()
+				+ " references instead of " + referenceCount);
+		}
+		return summary;
+	}
+
+	private static int checkCount(int count) throws IndexFileFormatException {
+		if (count < 0) {
+			throw new IndexFileFormatException("Invalid count in summary file: " + count);
+		}
+		return count;
+	}
+
+	private static byte[] readFile(File summaryFile) throws IOException {
+		InputStream in = new MultiMemberGZIPInputStream(new FileInputStream(summaryFile));
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				content.write(buffer, 0, count);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
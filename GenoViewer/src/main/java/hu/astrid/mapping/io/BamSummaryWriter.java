@@ -0,0 +1,102 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.model.BamSummary;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * BAM summary file writer implementation. The summary is written
+ * BGZF-compressed.
+ */
+public class BamSummaryWriter {
+
+	/**
+	 * The compressing stream in which the summary is written.
+	 */
+	private OutputStream outputStream;
+
+	/**
+	 * Creates a new writer instance using the given output stream.
+	 * 
+	 * @param outputStream
+	 *            the stream in which the compressed summary shall be written
+	 */
+	public BamSummaryWriter(OutputStream outputStream) {
+		this.outputStream = new BgzfOutputStream(outputStream);
+	}
+
+	/**
+	 * Writes a summary to the output stream and closes the stream.
+	 * 
+	 * @param summary
+	 *            the summary to be written to the output stream
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(BamSummary summary) throws IOException {
+		try {
+			this.outputStream.write(BamUtil.SUMMARY_MAGIC_BYTES);
+			this.outputStream.write(BamUtil.toByteArray(summary.getBamLength()));
+			this.outputStream.write(BamUtil.toByteArray(summary.getBamModified()));
+			this.outputStream.write(BamUtil.toByteArray(summary.getUnplacedCount()));
+			this.outputStream.write(BamUtil.toByteArray(summary.getReferenceCount()));
+			for (int i = 0; i < summary.getReferenceCount(); ++i) {
+				this.outputStream.write(BamUtil.toByteArray(summary.getReadCount(i)));
+				this.outputStream.write(BamUtil.toByteArray(summary.getUnmappedCount(i)));
+				this.outputStream.write(BamUtil.toByteArray(summary.getMaxReadLength(i)));
+				this.outputStream.write(BamUtil.toByteArray(summary.getFirstPosition(i)));
+				this.outputStream.write(BamUtil.toByteArray(summary.getEndPosition(i)));
+			}
+
+			this.outputStream.flush();
+		} finally {
+			this.outputStream.close();
+		}
+	}
+
+	/**
+	 * Writes a summary to a file. It is written to a temporary file in the
+	 * same directory and renamed when it is complete, so a failed or
+	 * concurrent save never leaves a partial summary file.
+	 * 
+	 * @param summary
+	 *            the summary to be saved
+	 * @param summaryFile
+	 *            the file in which the summary shall be saved
+	 * @throws IOException
+	 *             if the directory is not writable or an I/O error occurs
+	 */
+	public static void save(BamSummary summary, File summaryFile) throws IOException {
+		File tempFile = File.createTempFile(summaryFile.getName(), ".tmp", summaryFile.getAbsoluteFile().getParentFile());
+		try {
+			new BamSummaryWriter(new FileOutputStream(tempFile)).write(summary);
+			// renaming over an existing file fails on some platforms
+			if (!tempFile.renameTo(summaryFile) && !(summaryFile.delete() && tempFile.renameTo(summaryFile))) {
+				throw new IOException("Cannot rename " + tempFile + " to " + summaryFile);
+			}
+		} finally {
+			tempFile.delete();
+		}
+	}
+}
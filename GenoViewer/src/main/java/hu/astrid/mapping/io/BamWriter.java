@@ -17,24 +17,50 @@
 
 package hu.astrid.mapping.io;
 
+import hu.astrid.mapping.exception.IndexFileFormatException;
 import hu.astrid.mapping.exception.MappingFileFormatException;
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.BamHeader;
 import hu.astrid.mapping.model.MappingHeader;
+import hu.astrid.mapping.util.BamIndexBuilder;
 import hu.astrid.mapping.util.BamUtil;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
- * This class implements a GZIPOutputStream for writes BAM records.
+ * This class implements a BGZF output stream for writes BAM records. The header
+ * is written into its own blocks, and a record never spans two blocks unless
+ * it is longer than a block.
+ * <p>
+ * If an index output is set with {@link #setIndexOutput(OutputStream)}, the
+ * BAI index of the written file is built while the records are written and it
+ * is written to the index output on {@link #close()}. The records must be
+ * sorted by coordinate in this case.
  */
-public class BamWriter extends GZIPOutputStream implements MappingFileWriter {
+public class BamWriter extends BgzfOutputStream implements MappingFileWriter {
 
     private AlignmentRecordCodec alignmentRecordCodec;
 
+    private OutputStream indexOutput;
+
+    private BamIndexBuilder indexBuilder;
+
+    /**
+     * Converts the provisional pointers of the index builder to virtual file
+     * offsets.
+     */
+    private final BamIndexBuilder.OffsetResolver resolver = new BamIndexBuilder.OffsetResolver() {
+
+        @Override
+        public long resolve(long offset) {
+            return resolveFilePointer(offset);
+        }
+    };
+
     /**
      * Creates a new BAM file writer.
      *
@@ -57,7 +83,35 @@ public class BamWriter extends GZIPOutputStream implements MappingFileWriter {
      *              If an I/O error has occurred.
      */
     public BamWriter(OutputStream out, int size) throws IOException {
-        super(out, size);
+        super(new BufferedOutputStream(out, size));
+    }
+
+    /**
+     * Creates a new BAM file writer with the given compression level and
+     * number of compressing threads.
+     *
+     * @param out the output stream
+     * @param compressionLevel the compression level (0-9) or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param threadCount number of threads compressing the BGZF blocks
+     *
+     * @throws IOException
+     *              If an I/O error has occurred.
+     */
+    public BamWriter(OutputStream out, int compressionLevel, int threadCount) throws IOException {
+        super(out, compressionLevel, threadCount);
+    }
+
+    /**
+     * Sets the stream the BAI index of the written file is written to on
+     * close. Must be called before the header is written.
+     *
+     * @param indexOutput the index output stream, it is closed by {@link #close()}
+     */
+    public void setIndexOutput(OutputStream indexOutput) {
+        if (alignmentRecordCodec != null) {
+            throw new IllegalStateException("Header already written!");
+        }
+        this.indexOutput = indexOutput;
     }
 
     @Override
@@ -113,6 +167,9 @@ public class BamWriter extends GZIPOutputStream implements MappingFileWriter {
         flush();
         
         alignmentRecordCodec = new AlignmentRecordCodec(refNames);
+        if (indexOutput != null) {
+            indexBuilder = new BamIndexBuilder(n_ref);
+        }
     }
 
     @Override
@@ -124,17 +181,74 @@ public class BamWriter extends GZIPOutputStream implements MappingFileWriter {
         }
 
         byte[] record = alignmentRecordCodec.code(alignmentRecord);
-        write( BamUtil.toByteArray(record.length));
-        write( record );
+        writeRawRecord(record, 0, record.length);
+    }
+
+    /**
+     * Writes an alignment record already in binary form, without the leading
+     * block size field. Lets records read by {@link BamReader#readRawRecord(byte[], int, int)}
+     * be copied without decoding and encoding them.
+     *
+     * @param data the array holding the record
+     * @param offset offset of the record in the array
+     * @param length length of the record
+     *
+     * @throws MappingFileFormatException
+     *              if the header is missing, or the index is built and the
+     *              records are not sorted
+     * @throws IOException
+     *              If an I/O error has occurred.
+     */
+    public void writeRawRecord(byte[] data, int offset, int length)
+            throws MappingFileFormatException, IOException {
+
+        if (alignmentRecordCodec == null) {
+            throw new MappingFileFormatException("Missing header!");
+        }
 
+        if (length + 4 > getBlockRemaining() && length + 4 <= BLOCK_DATA_SIZE) {
+            finishBlock();
+        }
+        long start = getFilePointer();
+        write( BamUtil.toByteArray(length));
+        write( data, offset, length );
+
+        if (indexBuilder != null) {
+            try {
+                indexBuilder.addPendingRecord(BamUtil.toInt(data, offset), BamUtil.toInt(data, offset + 4) + 1,
+                        alignmentRecordCodec.getReferenceLength(data, offset),
+                        alignmentRecordCodec.isUnmapped(data, offset), start, getFilePointer());
+            } catch (IllegalStateException e) {
+                throw new MappingFileFormatException(e.getMessage());
+            }
+            // the records are indexed once their blocks are written, the older blocks are not needed any more
+            long firstPending = indexBuilder.resolvePending(resolver, getResolvableLimit());
+            releaseFilePointers(firstPending != -1L ? firstPending : getFilePointer());
+        } else {
+            releaseFilePointers(getFilePointer());
+        }
     }
 
     /**
-     * It flushes data to output stream, then closes it.
+     * Writes the remaining blocks and the EOF marker, then the index if an
+     * index output was set.
      */
     @Override
     public void close() throws IOException {
-        flush();
         super.close();
+        if (indexOutput != null) {
+            OutputStream out = indexOutput;
+            indexOutput = null;
+            if (indexBuilder == null) {
+                out.close();
+                return;
+            }
+            try {
+                indexBuilder.resolvePending(resolver, getResolvableLimit());
+                new BaiWriter(out).write(indexBuilder.build());
+            } catch (IndexFileFormatException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
     }
 }
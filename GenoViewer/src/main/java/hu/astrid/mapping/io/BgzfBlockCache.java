@@ -0,0 +1,195 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of uncompressed BGZF blocks keyed by the offset of the
+ * compressed block. When the total size of the cached data exceeds the byte
+ * budget, the least recently used blocks are evicted. The cache is thread
+ * safe.
+ */
+public class BgzfBlockCache {
+
+	/**
+	 * Default byte budget of the cache.
+	 */
+	public static final int DEFAULT_CAPACITY = 32 * 1024 * 1024;
+
+	/**
+	 * Blocks in access order, the eldest entry is the least recently used one.
+	 */
+	private final LinkedHashMap<Long, InflatedBgzfBlock> blocks = new LinkedHashMap<Long, InflatedBgzfBlock>(64, 0.75f, true);
+
+	/**
+	 * Maximum number of uncompressed bytes kept in the cache.
+	 */
+	private long capacity;
+
+	/**
+	 * Number of uncompressed bytes currently kept in the cache.
+	 */
+	private long size;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * Creates a new cache with the {@link #DEFAULT_CAPACITY default} byte
+	 * budget.
+	 */
+	public BgzfBlockCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new cache with the given byte budget.
+	 *
+	 * @param capacity
+	 *            maximum number of uncompressed bytes kept in the cache, 0
+	 *            disables caching
+	 */
+	public BgzfBlockCache(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative cache capacity: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the cached block starting at the given compressed offset and
+	 * marks it as recently used.
+	 *
+	 * @param offset
+	 *            offset of the compressed block
+	 * @return the cached block or {@code null} if it is not in the cache
+	 */
+	public synchronized InflatedBgzfBlock get(long offset) {
+		InflatedBgzfBlock block = blocks.get(offset);
+		if (block != null) {
+			++hitCount;
+		} else {
+			++missCount;
+		}
+		return block;
+	}
+
+	/**
+	 * Puts a block into the cache, evicting the least recently used blocks if
+	 * the budget is exceeded. Blocks larger than the whole budget are not
+	 * cached.
+	 *
+	 * @param block
+	 *            the uncompressed block
+	 */
+	public synchronized void put(InflatedBgzfBlock block) {
+		int blockSize = block.getData().length;
+		if (blockSize > capacity) {
+			return;
+		}
+		InflatedBgzfBlock previous = blocks.put(block.getOffset(), block);
+		if (previous != null) {
+			size -= previous.getData().length;
+		}
+		size += blockSize;
+		evict();
+	}
+
+	/**
+	 * Removes every block from the cache. The counters are not reset.
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return maximum number of uncompressed bytes kept in the cache
+	 */
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes the byte budget of the cache, evicting blocks if needed.
+	 *
+	 * @param capacity
+	 *            maximum number of uncompressed bytes kept in the cache
+	 */
+	public synchronized void setCapacity(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative cache capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * @return number of uncompressed bytes currently kept in the cache
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of cached blocks
+	 */
+	public synchronized int getBlockCount() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return number of lookups which found the block in the cache
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return number of lookups which did not find the block in the cache
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return number of blocks removed because of the byte budget
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BgzfBlockCache[blocks=" + blocks.size() + ", size=" + size + "/" + capacity + ", hits=" + hitCount
+			+ ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Long, InflatedBgzfBlock>> iterator = blocks.entrySet().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			size -= iterator.next().getValue().getData().length;
+			iterator.remove();
+			++evictionCount;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.model.VirtualFileOffset;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.io.IOException;
+
+/**
+ * Walks the binary alignment records of a BGZF-compressed BAM file starting at
+ * a virtual file offset. The records are not copied out of the uncompressed
+ * blocks: each record is given as an array, an offset and a length. Only the
+ * records which span block boundaries are assembled in a carry buffer, which
+ * is reused for the whole walk.
+ * <p>
+ * The returned array views are valid until the next call of {@link #next()}
+ * and must not be modified.
+ */
+public class BgzfBlockCursor {
+
+	/**
+	 * Supplies the uncompressed blocks of a BGZF file.
+	 */
+	public interface BlockSource {
+
+		/**
+		 * Returns the uncompressed block starting at the given file offset.
+		 *
+		 * @param offset
+		 *            offset of the compressed block in the file
+		 * @return the uncompressed block or {@code null} at the end of the file
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 * @throws MappingFileFormatException
+		 *             if the block cannot be decompressed
+		 */
+		InflatedBgzfBlock inflateBlock(long offset) throws IOException, MappingFileFormatException;
+	}
+
+	private final BlockSource source;
+
+	/**
+	 * The current block, {@code null} at the end of the file.
+	 */
+	private InflatedBgzfBlock block;
+
+	/**
+	 * Index of the next unread byte in the current block.
+	 */
+	private int blockPosition;
+
+	/**
+	 * Buffer of records which span block boundaries.
+	 */
+	private byte[] carry = new byte[1024];
+
+	private byte[] recordData;
+	private int recordOffset;
+	private int recordLength;
+	private long recordVirtualOffset = -1;
+
+	/**
+	 * Longer records are rejected without reading them.
+	 */
+	private int maxRecordLength = Integer.MAX_VALUE;
+
+	/**
+	 * Creates a new cursor positioned before the record at the given virtual
+	 * file offset.
+	 *
+	 * @param source
+	 *            supplier of the uncompressed blocks
+	 * @param from
+	 *            virtual file offset of the first record
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws MappingFileFormatException
+	 *             if the first block cannot be decompressed
+	 */
+	public BgzfBlockCursor(BlockSource source, VirtualFileOffset from) throws IOException, MappingFileFormatException {
+		this.source = source;
+		this.block = source.inflateBlock(from.getBlockOffset());
+		this.blockPosition = from.getDataOffset();
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return {@code false} if there are no more records
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws MappingFileFormatException
+	 *             if a block cannot be decompressed, the record is longer
+	 *             than the {@link #setMaxRecordLength(int) maximum} or the
+	 *             last record is truncated
+	 */
+	public boolean next() throws IOException, MappingFileFormatException {
+		recordData = null;
+		if (!ensureBlock()) {
+			return false;
+		}
+		recordVirtualOffset = getVirtualOffset();
+
+		byte[] data = block.getData();
+		int length;
+		if (data.length - blockPosition >= 4) {
+			length = BamUtil.toInt(data, blockPosition);
+			blockPosition += 4;
+		} else {
+			fillCarry(4);
+			length = BamUtil.toInt(carry, 0);
+		}
+		if (length < 0 || length > maxRecordLength) {
+			throw new MappingFileFormatException("Invalid record length: " + length);
+		}
+
+		if (block != null && block.getData().length - blockPosition >= length) {
+			recordData = block.getData();
+			recordOffset = blockPosition;
+			blockPosition += length;
+		} else {
+			fillCarry(length);
+			recordData = carry;
+			recordOffset = 0;
+		}
+		recordLength = length;
+
+		return true;
+	}
+
+	/**
+	 * Moves the cursor to the given virtual file offset. The current block is
+	 * reused if the offset points into it, otherwise the block at the offset
+	 * is requested from the source.
+	 *
+	 * @param virtualOffset
+	 *            virtual file offset of the next record
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws MappingFileFormatException
+	 *             if the block cannot be decompressed
+	 */
+	public void seek(long virtualOffset) throws IOException, MappingFileFormatException {
+		recordData = null;
+		long blockOffset = virtualOffset >>> 16;
+		if (block == null || block.getOffset() != blockOffset) {
+			block = source.inflateBlock(blockOffset);
+		}
+		blockPosition = (int) (virtualOffset & 0xFFFF);
+	}
+
+	/**
+	 * Returns the virtual file offset of the next record without reading it.
+	 *
+	 * @return virtual file offset of the next record, or -1 at the end of the
+	 *         file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws MappingFileFormatException
+	 *             if a block cannot be decompressed
+	 */
+	public long peekVirtualOffset() throws IOException, MappingFileFormatException {
+		return ensureBlock() ? getVirtualOffset() : -1;
+	}
+
+	/**
+	 * Limits the length of the records read by {@link #next()}, so an invalid
+	 * length field is detected before the record is assembled. There is no
+	 * limit by default.
+	 *
+	 * @param maxRecordLength
+	 *            the largest accepted record length, without the length field
+	 */
+	public void setMaxRecordLength(int maxRecordLength) {
+		this.maxRecordLength = maxRecordLength;
+	}
+
+	/**
+	 * @return array which contains the current record
+	 */
+	public byte[] getRecordData() {
+		return recordData;
+	}
+
+	/**
+	 * @return index of the first byte of the current record in
+	 *         {@link #getRecordData()}
+	 */
+	public int getRecordOffset() {
+		return recordOffset;
+	}
+
+	/**
+	 * @return length of the current record, without the length field
+	 */
+	public int getRecordLength() {
+		return recordLength;
+	}
+
+	/**
+	 * @return virtual file offset of the current record, including its length
+	 *         field
+	 */
+	public long getRecordVirtualOffset() {
+		return recordVirtualOffset;
+	}
+
+	/**
+	 * Returns the virtual file offset after the current record. The end of a
+	 * block is given as the beginning of the next block, the same way as BAM
+	 * writers report it, without reading the next block.
+	 *
+	 * @return virtual file offset after the current record, or -1 at the end
+	 *         of the file
+	 */
+	public long getRecordEndVirtualOffset() {
+		if (block == null) {
+			return -1;
+		}
+		if (blockPosition >= block.getData().length) {
+			return block.getNextOffset() << 16;
+		}
+		return getVirtualOffset();
+	}
+
+	/**
+	 * @return virtual file offset of the first unread byte, or -1 at the end
+	 *         of the file
+	 */
+	public long getVirtualOffset() {
+		if (block == null) {
+			return -1;
+		}
+		return block.getOffset() << 16 | blockPosition;
+	}
+
+	/**
+	 * Steps to the following non-empty block if the current one is consumed.
+	 */
+	private boolean ensureBlock() throws IOException, MappingFileFormatException {
+		while (block != null && blockPosition >= block.getData().length) {
+			block = source.inflateBlock(block.getNextOffset());
+			blockPosition = 0;
+		}
+		return block != null;
+	}
+
+	/**
+	 * Copies the given number of bytes into the carry buffer, stepping over
+	 * block boundaries.
+	 */
+	private void fillCarry(int length) throws IOException, MappingFileFormatException {
+		if (carry.length < length) {
+			carry = new byte[Math.max(length, carry.length * 2)];
+		}
+		int filled = 0;
+		while (filled < length) {
+			if (!ensureBlock()) {
+				throw new MappingFileFormatException("Unexpected end of BAM file inside an alignment record");
+			}
+			int count = Math.min(length - filled, block.getData().length - blockPosition);
+			System.arraycopy(block.getData(), blockPosition, carry, filled, count);
+			blockPosition += count;
+			filled += count;
+		}
+	}
+}
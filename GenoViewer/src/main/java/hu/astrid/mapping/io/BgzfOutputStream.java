@@ -0,0 +1,453 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.util.ConcurrencyUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream which writes BGZF-compressed data: the content is split into
+ * blocks of at most {@link #BLOCK_DATA_SIZE} bytes, each compressed into its
+ * own gzip member with the BC extra subfield, and the stream is terminated by
+ * the standard empty EOF marker block. The blocks can be compressed on several
+ * threads, they are written in order.
+ * <p>
+ * Since the compressed size of the blocks is not known while they are being
+ * compressed, {@link #getFilePointer()} returns a provisional pointer (the
+ * ordinal of the block and the offset in it). It can be converted to a real
+ * virtual file offset by {@link #resolveFilePointer(long)} once its block was
+ * written, e.g. after {@link #flush()} or {@link #close()}. The sizes and
+ * offsets of the blocks are kept from the oldest pointer which may still be
+ * resolved, see {@link #releaseFilePointers(long)}.
+ */
+public class BgzfOutputStream extends OutputStream {
+
+	/**
+	 * Maximum number of uncompressed bytes in a block. Chosen so that a block
+	 * compressed without compression still fits into 64 KB.
+	 */
+	public static final int BLOCK_DATA_SIZE = 0xff00;
+
+	/**
+	 * Maximum size of a compressed block.
+	 */
+	private static final int MAX_BLOCK_SIZE = 0x10000;
+
+	/**
+	 * Size of the block header and footer.
+	 */
+	private static final int BLOCK_OVERHEAD = 26;
+
+	/**
+	 * Header of the blocks, without the BSIZE field.
+	 */
+	private static final byte[] BLOCK_HEADER = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0};
+
+	/**
+	 * The empty block which marks the end of the BGZF file.
+	 */
+	private static final byte[] EOF_MARKER_BLOCK = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0,
+		0, 0, 0, 0, 0, 0, 0, 0};
+
+	/**
+	 * Deflaters of the compressing threads, a {@link Deflater} cannot be
+	 * shared between threads.
+	 */
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private final OutputStream out;
+
+	private final int compressionLevel;
+
+	/**
+	 * Compressing threads, {@code null} if the blocks are compressed on the
+	 * calling thread.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Maximum number of blocks being compressed at the same time.
+	 */
+	private final int maxPending;
+
+	/**
+	 * Blocks being compressed, in file order.
+	 */
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	/**
+	 * Uncompressed content of the current block.
+	 */
+	private byte[] buffer = new byte[BLOCK_DATA_SIZE];
+
+	/**
+	 * Number of bytes in the current block.
+	 */
+	private int position;
+
+	/**
+	 * Ordinal of the current block.
+	 */
+	private int blockCount;
+
+	/**
+	 * Uncompressed sizes of the finished blocks, indexed by block ordinal from
+	 * {@link #windowStart}.
+	 */
+	private int[] blockDataSizes = new int[1024];
+
+	/**
+	 * File offsets of the written blocks, indexed by block ordinal from
+	 * {@link #windowStart}.
+	 */
+	private long[] blockOffsets = new long[1024];
+
+	/**
+	 * Ordinal of the first block in the block arrays.
+	 */
+	private int windowStart;
+
+	/**
+	 * Ordinal of the first block whose pointers can still be resolved.
+	 */
+	private int firstRetainedBlock;
+
+	/**
+	 * Number of written blocks.
+	 */
+	private int writtenBlockCount;
+
+	/**
+	 * Number of compressed bytes written.
+	 */
+	private long writtenBytes;
+
+	private boolean closed;
+
+	/**
+	 * Creates a stream which compresses on the calling thread with the default
+	 * compression level.
+	 *
+	 * @param out
+	 *            the underlying output stream
+	 */
+	public BgzfOutputStream(OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION, 1);
+	}
+
+	/**
+	 * Creates a stream with the given compression level and number of
+	 * compressing threads.
+	 *
+	 * @param out
+	 *            the underlying output stream
+	 * @param compressionLevel
+	 *            the compression level (0-9) or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}
+	 * @param threadCount
+	 *            number of compressing threads, if it is less than 2 the
+	 *            blocks are compressed on the calling thread
+	 */
+	public BgzfOutputStream(OutputStream out, int compressionLevel, int threadCount) {
+		if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+		}
+		this.out = out;
+		this.compressionLevel = compressionLevel;
+		if (threadCount > 1) {
+			this.executor = Executors.newFixedThreadPool(threadCount, ConcurrencyUtil.daemonThreadFactory("bgzf-deflater"));
+			this.maxPending = 2 * threadCount;
+		} else {
+			this.executor = null;
+			this.maxPending = 0;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		buffer[position++] = (byte) b;
+		if (position == BLOCK_DATA_SIZE) {
+			finishBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int count = Math.min(len, BLOCK_DATA_SIZE - position);
+			System.arraycopy(b, off, buffer, position, count);
+			position += count;
+			off += count;
+			len -= count;
+			if (position == BLOCK_DATA_SIZE) {
+				finishBlock();
+			}
+		}
+	}
+
+	/**
+	 * @return number of bytes which can still be written into the current
+	 *         block
+	 */
+	public int getBlockRemaining() {
+		return BLOCK_DATA_SIZE - position;
+	}
+
+	/**
+	 * Closes the current block, the following bytes will start a new one. Does
+	 * nothing if the current block is empty.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void finishBlock() throws IOException {
+		ensureOpen();
+		if (position == 0) {
+			return;
+		}
+
+		final byte[] data = buffer;
+		final int length = position;
+		buffer = new byte[BLOCK_DATA_SIZE];
+		position = 0;
+		ensureCapacity(blockCount);
+		blockDataSizes[blockCount++ - windowStart] = length;
+
+		if (executor == null) {
+			writeBlock(compress(data, length, compressionLevel));
+			return;
+		}
+
+		pending.add(executor.submit(new Callable<byte[]>() {
+
+			@Override
+			public byte[] call() {
+				return compress(data, length, compressionLevel);
+			}
+		}));
+		while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone())) {
+			writeBlock(ConcurrencyUtil.await(pending.poll(), IOException.class, "BGZF compression"));
+		}
+	}
+
+	/**
+	 * Returns the provisional pointer of the next byte to be written.
+	 *
+	 * @return the block ordinal in the upper 48 bits, the offset in the block
+	 *         in the lower 16 bits
+	 * @see #resolveFilePointer(long)
+	 */
+	public long getFilePointer() {
+		return (long) blockCount << 16 | position;
+	}
+
+	/**
+	 * Converts a provisional pointer returned by {@link #getFilePointer()} to
+	 * a virtual file offset. A pointer at the end of a finished block is
+	 * converted to the beginning of the next block.
+	 *
+	 * @param pointer
+	 *            the provisional pointer
+	 * @return the virtual file offset
+	 * @throws IllegalStateException
+	 *             if the block of the pointer was not written yet, or it was
+	 *             released
+	 */
+	public long resolveFilePointer(long pointer) {
+		int ordinal = (int) (pointer >>> 16);
+		int offset = (int) (pointer & 0xFFFF);
+		if (ordinal < firstRetainedBlock) {
+			throw new IllegalStateException("Block " + ordinal + " is released");
+		}
+		if (offset > 0 && ordinal < blockCount && offset == blockDataSizes[ordinal - windowStart]) {
+			// the end of a block is given as the beginning of the next one
+			++ordinal;
+			offset = 0;
+		}
+		if (ordinal == writtenBlockCount && offset == 0) {
+			return writtenBytes << 16;
+		}
+		if (ordinal >= writtenBlockCount) {
+			throw new IllegalStateException("Block " + ordinal + " is not written yet");
+		}
+		return blockOffsets[ordinal - windowStart] << 16 | offset;
+	}
+
+	/**
+	 * Returns the largest provisional pointer which can be resolved now. The
+	 * pointers up to it stay resolvable until they are released.
+	 *
+	 * @return the beginning of the first block not written yet
+	 */
+	public long getResolvableLimit() {
+		return (long) writtenBlockCount << 16;
+	}
+
+	/**
+	 * Tells the stream that the pointers before the given one will not be
+	 * resolved any more, so the sizes and offsets of their blocks can be
+	 * dropped. Without releasing, one entry is kept for every block.
+	 *
+	 * @param pointer
+	 *            the oldest provisional pointer which may still be resolved
+	 */
+	public void releaseFilePointers(long pointer) {
+		int ordinal = (int) Math.min(pointer >>> 16, blockCount);
+		firstRetainedBlock = Math.max(firstRetainedBlock, ordinal);
+	}
+
+	/**
+	 * Writes the current and all pending blocks, then flushes the underlying
+	 * stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		finishBlock();
+		while (!pending.isEmpty()) {
+			writeBlock(ConcurrencyUtil.await(pending.poll(), IOException.class, "BGZF compression"));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the remaining blocks and the EOF marker block, then closes the
+	 * underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+			writeBlock(EOF_MARKER_BLOCK);
+		} finally {
+			closed = true;
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			out.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/**
+	 * Makes room in the block arrays for the block of the given ordinal. The
+	 * released blocks are dropped first, the arrays grow only if they are
+	 * still more than half full.
+	 */
+	private void ensureCapacity(int ordinal) {
+		if (ordinal - windowStart < blockDataSizes.length) {
+			return;
+		}
+		int released = firstRetainedBlock - windowStart;
+		if (released > 0) {
+			System.arraycopy(blockDataSizes, released, blockDataSizes, 0, blockDataSizes.length - released);
+			System.arraycopy(blockOffsets, released, blockOffsets, 0, blockOffsets.length - released);
+			windowStart = firstRetainedBlock;
+		}
+		if (2 * (ordinal - windowStart) >= blockDataSizes.length) {
+			blockDataSizes = Arrays.copyOf(blockDataSizes, 2 * blockDataSizes.length);
+			blockOffsets = Arrays.copyOf(blockOffsets, 2 * blockOffsets.length);
+		}
+	}
+
+	private void writeBlock(byte[] block) throws IOException {
+		ensureCapacity(writtenBlockCount);
+		blockOffsets[writtenBlockCount++ - windowStart] = writtenBytes;
+		out.write(block);
+		writtenBytes += block.length;
+	}
+
+	/**
+	 * Compresses data into a complete BGZF block. Incompressible data is
+	 * stored without compression, so the block always fits into 64 KB.
+	 */
+	private static byte[] compress(byte[] data, int length, int compressionLevel) {
+		Deflater deflater = DEFLATERS.get();
+		byte[] block = new byte[MAX_BLOCK_SIZE];
+		int compressedLength = deflate(deflater, compressionLevel, data, length, block);
+		if (compressedLength < 0) {
+			compressedLength = deflate(deflater, Deflater.NO_COMPRESSION, data, length, block);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		int blockLength = compressedLength + BLOCK_OVERHEAD;
+		System.arraycopy(BLOCK_HEADER, 0, block, 0, BLOCK_HEADER.length);
+		putShort(block, 16, blockLength - 1);
+		putInt(block, blockLength - 8, (int) crc.getValue());
+		putInt(block, blockLength - 4, length);
+		return Arrays.copyOf(block, blockLength);
+	}
+
+	/**
+	 * Deflates the data after the block header.
+	 *
+	 * @return the length of the compressed data or -1 if it does not fit
+	 */
+	private static int deflate(Deflater deflater, int level, byte[] data, int length, byte[] block) {
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int capacity = MAX_BLOCK_SIZE - BLOCK_OVERHEAD;
+		int compressedLength = 0;
+		while (!deflater.finished() && compressedLength < capacity) {
+			compressedLength += deflater.deflate(block, 18 + compressedLength, capacity - compressedLength);
+		}
+		return deflater.finished() ? compressedLength : -1;
+	}
+
+	private static void putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >>> 8);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >>> 8);
+		bytes[offset + 2] = (byte) (value >>> 16);
+		bytes[offset + 3] = (byte) (value >>> 24);
+	}
+}
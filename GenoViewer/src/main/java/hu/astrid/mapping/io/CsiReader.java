@@ -0,0 +1,166 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.exception.IndexFileFormatException;
+import hu.astrid.mapping.model.BinningScheme;
+import hu.astrid.mapping.model.CsiIndex;
+import hu.astrid.mapping.model.PackedReferenceIndex;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Reader implementation for CSI index files. The file is BGZF-compressed, so
+ * it is inflated and parsed into packed reference indices at once.
+ */
+public class CsiReader {
+
+	/**
+	 * Creates a new reader instance.
+	 */
+	public CsiReader() {
+	}
+
+	/**
+	 * Loads a CSI file's content.
+	 * 
+	 * @param csiFile
+	 *            the CSI file to be loaded
+	 * @return the index structure
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IndexFileFormatException
+	 *             if the magic string or the structure of the file is
+	 *             incorrect
+	 */
+	public CsiIndex load(File csiFile) throws IOException, IndexFileFormatException {
+		ByteBuffer reader = ByteBuffer.wrap(readFile(csiFile));
+		reader.order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+			byte[] magic = new byte[4];
+			reader.get(magic);
+			if (!Arrays.equals(magic, BamUtil.CSI_MAGIC_BYTES)) {
+				throw new IndexFileFormatException("Invalid Magic String!");
+			}
+
+			BinningScheme scheme;
+			try {
+				scheme = new BinningScheme(reader.getInt(), reader.getInt());
+			} catch (IllegalArgumentException e) {
+				throw new IndexFileFormatException(e.getMessage());
+			}
+			byte[] auxiliaryData = new byte[checkCount(reader.getInt())];
+			reader.get(auxiliaryData);
+
+			PackedReferenceIndex[] referenceIndices = new PackedReferenceIndex[checkCount(reader.getInt())];
+			for (int i = 0; i < referenceIndices.length; ++i) {
+				referenceIndices[i] = loadReference(reader, scheme);
+			}
+			return new CsiIndex(scheme, auxiliaryData, referenceIndices);
+		} catch (BufferUnderflowException e) {
+			throw new IndexFileFormatException("Unexpected end of index file");
+		}
+	}
+
+	/**
+	 * Loads a CSI file's content.
+	 * 
+	 * @param csiFile
+	 *            CSI file name or path
+	 * @return the index structure
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IndexFileFormatException
+	 *             if the magic string or the structure of the file is
+	 *             incorrect
+	 */
+	public CsiIndex load(String csiFile) throws IOException, IndexFileFormatException {
+		return this.load(new File(csiFile));
+	}
+
+	/**
+	 * Parses the section of a reference sequence. The bins are sorted by their
+	 * IDs if they are not in order in the file.
+	 */
+	private static PackedReferenceIndex loadReference(ByteBuffer reader, BinningScheme scheme)
+		throws IndexFileFormatException {
+		int binCount = checkCount(reader.getInt());
+		int[] binIds = new int[binCount];
+		long[] binOffsets = new long[binCount];
+		int[] binChunks = new int[binCount + 1];
+		long[] chunkStarts = new long[16];
+		long[] chunkEnds = new long[16];
+		int chunkIndex = 0;
+		for (int i = 0; i < binCount; ++i) {
+			binIds[i] = reader.getInt();
+			binOffsets[i] = reader.getLong();
+			binChunks[i] = chunkIndex;
+			int chunkCount = checkCount(reader.getInt());
+			if (chunkIndex + chunkCount > chunkStarts.length) {
+				int length = Math.max(chunkIndex + chunkCount, 2 * chunkStarts.length);
+				chunkStarts = Arrays.copyOf(chunkStarts, length);
+				chunkEnds = Arrays.copyOf(chunkEnds, length);
+			}
+			for (int j = 0; j < chunkCount; ++j) {
+				chunkStarts[chunkIndex] = reader.getLong();
+				chunkEnds[chunkIndex] = reader.getLong();
+				++chunkIndex;
+			}
+		}
+		binChunks[binCount] = chunkIndex;
+		chunkStarts = Arrays.copyOf(chunkStarts, chunkIndex);
+		chunkEnds = Arrays.copyOf(chunkEnds, chunkIndex);
+
+		return PackedReferenceIndex.fromFileOrder(scheme, binIds, binOffsets, binChunks, chunkStarts, chunkEnds, null);
+	}
+
+	private static int checkCount(int count) throws IndexFileFormatException {
+		if (count < 0) {
+			throw new IndexFileFormatException("Invalid count in index file: " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads and inflates the whole index file.
+	 */
+	private static byte[] readFile(File csiFile) throws IOException {
+		InputStream in = new MultiMemberGZIPInputStream(new FileInputStream(csiFile));
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				content.write(buffer, 0, count);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
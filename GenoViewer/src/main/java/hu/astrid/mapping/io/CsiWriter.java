@@ -0,0 +1,104 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.exception.IndexFileFormatException;
+import hu.astrid.mapping.model.BinningScheme;
+import hu.astrid.mapping.model.CsiIndex;
+import hu.astrid.mapping.model.PackedReferenceIndex;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * CSI index file writer implementation. The index is written BGZF-compressed.
+ */
+public class CsiWriter {
+
+	/**
+	 * Flag which indicates whether an index structure where written or not.
+	 */
+	private boolean written;
+
+	/**
+	 * The compressing stream in which the index structure is written.
+	 */
+	private OutputStream outputStream;
+
+	/**
+	 * Creates a new writer instance using the given output stream.
+	 * 
+	 * @param outputStream
+	 *            the stream in which the compressed index structure shall be
+	 *            written
+	 */
+	public CsiWriter(OutputStream outputStream) {
+		this.outputStream = new BgzfOutputStream(outputStream);
+		this.written = false;
+	}
+
+	/**
+	 * Writes an index structure to the output stream and closes the stream.
+	 * Calling this method multiple times is not allowed.
+	 * 
+	 * @param csiIndex
+	 *            the index structure to be written to the output stream
+	 * @throws IndexFileFormatException
+	 *             if an index structure was already written to the stream
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(CsiIndex csiIndex) throws IndexFileFormatException, IOException {
+		if (this.written) {
+			throw new IndexFileFormatException("Cannot write multiple indices to the same stream.");
+		}
+
+		try {
+			BinningScheme scheme = csiIndex.getScheme();
+			this.outputStream.write(BamUtil.CSI_MAGIC_BYTES);
+			this.outputStream.write(BamUtil.toByteArray(scheme.getMinShift()));
+			this.outputStream.write(BamUtil.toByteArray(scheme.getDepth()));
+			this.outputStream.write(BamUtil.toByteArray(csiIndex.getAuxiliaryData().length));
+			this.outputStream.write(csiIndex.getAuxiliaryData());
+			this.outputStream.write(BamUtil.toByteArray(csiIndex.getReferenceCount()));
+			for (int i = 0; i < csiIndex.getReferenceCount(); ++i) {
+				PackedReferenceIndex referenceIndex = csiIndex.getPackedIndex(i);
+				this.outputStream.write(BamUtil.toByteArray(referenceIndex.getBinCount()));
+				for (int bin = 0; bin < referenceIndex.getBinCount(); ++bin) {
+					long[] chunks = referenceIndex.getChunks(bin);
+					int chunkCount = chunks.length / 2;
+					this.outputStream.write(BamUtil.toByteArray(referenceIndex.getBinId(bin)));
+					this.outputStream.write(BamUtil.toByteArray(referenceIndex.getBinOffset(bin)));
+					this.outputStream.write(BamUtil.toByteArray(chunkCount));
+					for (int j = 0; j < chunkCount; ++j) {
+						this.outputStream.write(BamUtil.toByteArray(chunks[j]));
+						this.outputStream.write(BamUtil.toByteArray(chunks[chunkCount + j]));
+					}
+				}
+			}
+
+			this.outputStream.flush();
+		} finally {
+			this.outputStream.close();
+		}
+
+		this.written = true;
+	}
+
+}
@@ -21,67 +21,86 @@ import hu.astrid.mapping.exception.IndexFileFormatException;
 import hu.astrid.mapping.exception.MappingFileFormatException;
 import hu.astrid.mapping.model.AlignmentPosition;
 import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.AlignmentIndex;
 import hu.astrid.mapping.model.BamHeader;
-import hu.astrid.mapping.model.BamIndex;
-import hu.astrid.mapping.model.Chunk;
 import hu.astrid.mapping.model.VirtualFileOffset;
 import hu.astrid.mapping.util.BamUtil;
-import java.io.FileNotFoundException;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.logging.Level;
+import java.util.NoSuchElementException;
 import java.util.zip.DataFormatException;
 import org.apache.log4j.Logger;
 
 /**
  * Reader implementation which purpose is to load alignment records from a BAM
- * mapping file using indices from the appropriate BAI file.
+ * mapping file using indices from the appropriate BAI or CSI file.
  */
 public class IndexedBamReader implements IndexedMappingFileReader {
 
 	private static Logger logger = Logger.getLogger(IndexedBamReader.class);
+	/**
+	 * Length of the BGZF block header up to and including the BSIZE field.
+	 */
+	private static final int BGZF_HEADER_LENGTH = 18;
 	/**
 	 * The header of the BAM file containing the appropriate SAM header and the
 	 * names and lengths of the reference sequences.
 	 */
 	private BamHeader header;
 	/**
-	 * The index built from the appropriate BAI file in order to load alignment
-	 * records efficiently.
+	 * The index built from the appropriate BAI or CSI file in order to load
+	 * alignment records efficiently.
 	 */
-	private BamIndex bamIndex;
+	private AlignmentIndex bamIndex;
 	/**
-	 * The BGZF-compressed BAM file which contains the alignment records.
+	 * The BGZF-compressed BAM file which contains the alignment records. It is
+	 * kept open for the whole lifetime of the reader.
 	 */
 	private RandomAccessFile bamFile;
 	/**
-	 * File channel for the random file.
+	 * Read-only channel of the BAM file. Blocks are read with positional reads,
+	 * so the channel position is never modified.
 	 */
 	private FileChannel bamFileChannel;
 	/**
-	 * Mapped buffer for the random file.
+	 * Reusable buffer for the fixed-length part of the BGZF block headers.
 	 */
-	private MappedByteBuffer mappedBuffer;
+	private final ByteBuffer blockHeaderBuffer = ByteBuffer.allocate(BGZF_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
 	/**
 	 * Decompressor to decompress BAM content.
 	 */
 	private BgzfDecompressor decompressor;
+	/**
+	 * Cache of the uncompressed blocks, shared by the queries of this reader.
+	 */
+	private final BgzfBlockCache blockCache;
+	/**
+	 * Supplies the uncompressed blocks for the record cursors.
+	 */
+	private final BgzfBlockCursor.BlockSource blockSource = new BgzfBlockCursor.BlockSource() {
+
+		@Override
+		public InflatedBgzfBlock inflateBlock(long offset) throws IOException, MappingFileFormatException {
+			return IndexedBamReader.this.inflateBlock(offset);
+		}
+	};
 	private AlignmentRecordCodec alignmentRecordCodec;
-	private long channelSize;
-	private String bamFileName;
-	private String baiFileName;
 
 	/**
 	 * Creates a new reader instance for the given BAM file. Looks for the BAI
 	 * file next to the BAM: for a filename.bam it looks for the
-	 * filename.bam.bai index file.
+	 * filename.bam.bai index file, or the filename.bam.csi one if there is no
+	 * BAI file.
 	 *
 	 * @param pathName
 	 *            the path of the BAM file
@@ -89,26 +108,44 @@ public class IndexedBamReader implements IndexedMappingFileReader {
 	 *             if an I/O error occurs
 	 * @throws IndexFileFormatException
 	 *             if the format of the index file is incorrect
-	 * @throws MappingHeaderException
+	 * @throws MappingFileFormatException
 	 *             if the header of the BAM file is incorrect
 	 */
 	public IndexedBamReader(String pathName)
 		throws IOException, IndexFileFormatException, MappingFileFormatException {
-		this.bamFileName = pathName;
-		this.baiFileName = pathName + ".bai";
+		this(pathName, indexFileName(pathName));
+	}
 
-		decompressor = new BgzfDecompressor();
-		this.loadHeader();
-//		this(pathName, pathName + ".bai");
+	/**
+	 * Creates a new reader instance for the given BAM file using the given
+	 * block cache. Looks for the BAI or CSI file next to the BAM. The cache
+	 * must not be shared by readers of different files.
+	 *
+	 * @param pathName
+	 *            the path of the BAM file
+	 * @param blockCache
+	 *            cache of the uncompressed BGZF blocks
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IndexFileFormatException
+	 *             if the format of the index file is incorrect
+	 * @throws MappingFileFormatException
+	 *             if the header of the BAM file is incorrect
+	 */
+	public IndexedBamReader(String pathName, BgzfBlockCache blockCache)
+		throws IOException, IndexFileFormatException, MappingFileFormatException {
+		this(pathName, indexFileName(pathName), blockCache);
 	}
 
 	/**
-	 * Creates a new reader instance for the given BAM and BAI files.
+	 * Creates a new reader instance for the given BAM and BAI files. The index
+	 * is loaded and the BAM file is opened only once, both are kept until
+	 * {@link #close()} is called.
 	 * 
 	 * @param bamFileName
 	 *            the path of the BAM file
 	 * @param baiFileName
-	 *            the path of the BAI file
+	 *            the path of the BAI or CSI file
 	 * @throws IOException
 	 *             if an I/O error occurs
 	 * @throws IndexFileFormatException
@@ -117,43 +154,73 @@ public class IndexedBamReader implements IndexedMappingFileReader {
 	 *             if the header of the BAM file is incorrect
 	 */
 	public IndexedBamReader(String bamFileName, String baiFileName) throws IOException, IndexFileFormatException, MappingFileFormatException {
+		this(bamFileName, baiFileName, new BgzfBlockCache());
+	}
 
+	/**
+	 * Creates a new reader instance for the given BAM and BAI files using the
+	 * given block cache. The cache is keyed by file offsets, so it must not be
+	 * shared by readers of different files.
+	 *
+	 * @param bamFileName
+	 *            the path of the BAM file
+	 * @param baiFileName
+	 *            the path of the BAI or CSI file
+	 * @param blockCache
+	 *            cache of the uncompressed BGZF blocks
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IndexFileFormatException
+	 *             if the format of the index file is incorrect
+	 * @throws MappingFileFormatException
+	 *             if the header of the BAM file is incorrect
+	 */
+	public IndexedBamReader(String bamFileName, String baiFileName, BgzfBlockCache blockCache)
+		throws IOException, IndexFileFormatException, MappingFileFormatException {
+		this.blockCache = blockCache;
+		bamIndex = loadIndex(baiFileName);
 		bamFile = new RandomAccessFile(bamFileName, "r");
-		bamIndex = new BaiReader().load(baiFileName);
-
-//		this.bamFileName = bamFileName;
-//		this.baiFileName = baiFileName;
-
-		bamFileChannel = bamFile.getChannel();
-		channelSize = bamFileChannel.size();
-		logger.debug("bamFileChannelSize: " + channelSize + " " + Integer.MAX_VALUE + " " + Long.MAX_VALUE);
-		mappedBuffer = null; // bamFileChannel.map(MapMode.READ_ONLY, 0L, bamFileChannel.size());
-		decompressor = new BgzfDecompressor();
-
-		this.loadHeader();
+		try {
+			bamFileChannel = bamFile.getChannel();
+			logger.debug("bamFileChannelSize: " + bamFileChannel.size());
+			decompressor = new BgzfDecompressor();
+
+			this.loadHeader();
+		} catch (IOException e) {
+			this.close();
+			throw e;
+		} catch (MappingFileFormatException e) {
+			this.close();
+			throw e;
+		}
 	}
 
-	private synchronized FileChannel loadBamFileChannel() {
-		try {
-			RandomAccessFile randomAccessFile = new RandomAccessFile(bamFileName, "r");
-			return randomAccessFile.getChannel();
-		} catch (FileNotFoundException ex) {
-			java.util.logging.Logger.getLogger(IndexedBamReader.class.getName()).log(Level.SEVERE, null, ex);
-		} catch (IOException ex) {
-			java.util.logging.Logger.getLogger(IndexedBamReader.class.getName()).log(Level.SEVERE, null, ex);
+	/**
+	 * @return the path of the BAI file next to the BAM file, or the path of
+	 *         the CSI file if only that exists
+	 */
+	private static String indexFileName(String pathName) {
+		String baiFileName = pathName + ".bai";
+		String csiFileName = pathName + ".csi";
+		if (!new File(baiFileName).exists() && new File(csiFileName).exists()) {
+			return csiFileName;
 		}
-		return null;
+		return baiFileName;
 	}
 
-	private synchronized BamIndex loadBamIndex() {
+	/**
+	 * Loads a BAI or a CSI index file. A CSI file is BGZF-compressed, so the
+	 * format is told by the gzip magic bytes at the start of the file.
+	 */
+	private static AlignmentIndex loadIndex(String indexFileName) throws IOException, IndexFileFormatException {
+		InputStream in = new FileInputStream(indexFileName);
+		boolean compressed;
 		try {
-			return new BaiReader().load(baiFileName);
-		} catch (IOException ex) {
-			java.util.logging.Logger.getLogger(IndexedBamReader.class.getName()).log(Level.SEVERE, null, ex);
-		} catch (IndexFileFormatException ex) {
-			java.util.logging.Logger.getLogger(IndexedBamReader.class.getName()).log(Level.SEVERE, null, ex);
+			compressed = in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
 		}
-		return null;
+		return compressed ? new CsiReader().load(indexFileName) : new BaiReader().load(indexFileName);
 	}
 
 	@Override
@@ -161,201 +228,206 @@ public class IndexedBamReader implements IndexedMappingFileReader {
 		return header;
 	}
 
+	/**
+	 * @return the cache of the uncompressed BGZF blocks used by this reader
+	 */
+	public BgzfBlockCache getBlockCache() {
+		return blockCache;
+	}
+
 	@Override
 	public synchronized List<AlignmentRecord> loadRecords(String referenceName, int start, int end)//
 		throws IOException, MappingFileFormatException {
 
-		if (start >= end) {
-			return new ArrayList<AlignmentRecord>();
+		List<AlignmentRecord> records = new ArrayList<AlignmentRecord>();
+		BamRegionIterator iterator = iterateRecords(referenceName, start, end);
+		try {
+			AlignmentRecord record;
+			while ((record = iterator.readNext()) != null) {
+				records.add(record);
+			}
+		} finally {
+			iterator.close();
 		}
 
+		return records;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The query is planned on the packed index: the overlapping chunks are
+	 * merged and the parts before the linear index of the region start are
+	 * dropped, so the records are streamed from one section of the file to
+	 * the next without seeking back, and every block is read at most once.
+	 */
+	@Override
+	public synchronized BamRegionIterator iterateRecords(String referenceName, int start, int end)//
+		throws IOException, MappingFileFormatException {
+
+		ensureOpen();
 		int referenceIndex = header.indexOf(referenceName);
 		if (referenceIndex == -1) {
 			throw new IllegalArgumentException("Unknown reference: " + referenceName);
 		}
 
-//		List<Chunk> chunks = bamIndex.getChunks(referenceIndex, start, end);
-//		VirtualFileOffset linearIndex = bamIndex.linearIndexOf(referenceIndex, start);
-
-		List<Chunk> chunks = loadBamIndex().getChunks(referenceIndex, start, end);
-		VirtualFileOffset linearIndex = loadBamIndex().linearIndexOf(referenceIndex, start);
-
-		for (Chunk chunk : chunks) {
-			if (linearIndex != null
-				&& chunk.getEndOffset().compareTo(linearIndex) < 0) {
-				continue;
-			}
+		return new BamRegionIterator(referenceIndex, start, end, bamIndex.planQuery(referenceIndex, start, end));
+	}
 
-			List<byte[]> binaryRecords = this.readFrom(chunk.getStartOffset(), start, end);
+	/**
+	 * Returns an iterator over the last records of a reference sequence,
+	 * located by the index without reading the rest of the reference. The
+	 * last record of the reference is the last one of the iteration, and
+	 * with a BAI index the iteration contains every record overlapping the
+	 * last 16 kbp window with records.
+	 *
+	 * @param referenceName
+	 *            the name of the reference sequence
+	 * @return iterator over the records, empty if the reference has no records
+	 * @throws IOException
+	 *             if the reader is closed
+	 * @see hu.astrid.mapping.model.PackedReferenceIndex#planLastRecords()
+	 */
+	public synchronized BamRegionIterator iterateLastRecords(String referenceName) throws IOException {
+		ensureOpen();
+		int referenceIndex = referenceIndexOf(referenceName);
+		return new BamRegionIterator(referenceIndex, Integer.MIN_VALUE, Integer.MAX_VALUE,
+			bamIndex.getPackedIndex(referenceIndex).planLastRecords());
+	}
 
-			if (binaryRecords != null) {
-				return alignmentRecordCodec.decode(binaryRecords);
+	/**
+	 * Returns the end of the region covered by the mapped records of a
+	 * reference sequence, reading only its last records located by the index.
+	 * The covered length of a record is computed from its CIGAR operations,
+	 * the records are not decoded.
+	 *
+	 * @param referenceName
+	 *            the name of the reference sequence
+	 * @return the 1-based position following the last aligned base, 0 if the
+	 *         reference has no mapped records
+	 * @throws IOException
+	 *             if an I/O error occurs or the reader is closed
+	 * @throws MappingFileFormatException
+	 *             if a block or a record is invalid
+	 */
+	public synchronized int getLastRecordEnd(String referenceName) throws IOException, MappingFileFormatException {
+		BamRegionIterator iterator = iterateLastRecords(referenceName);
+		int lastEnd = 0;
+		while (iterator.advance()) {
+			byte[] data = iterator.cursor.getRecordData();
+			int offset = iterator.cursor.getRecordOffset();
+			if (!alignmentRecordCodec.isUnmapped(data, offset)) {
+				lastEnd = Math.max(lastEnd, alignmentRecordCodec.getPosition(data, offset)
+					+ alignmentRecordCodec.getReferenceLength(data, offset));
 			}
-			break;
 		}
-
-		return new ArrayList<AlignmentRecord>();
+		return lastEnd;
 	}
 
-	@Override
-	public synchronized List<AlignmentPosition> loadPositions(String referenceName,
-		int start, int end) throws IOException, MappingFileFormatException {
+	/**
+	 * @param referenceName
+	 *            the name of the reference sequence
+	 * @return the number of mapped records of the reference stored in the
+	 *         index, or -1 if the index has no metadata
+	 */
+	public synchronized long getMappedRecordCount(String referenceName) {
+		return bamIndex.getPackedIndex(referenceIndexOf(referenceName)).getMappedCount();
+	}
 
-		if (start >= end) {
-			return new ArrayList<AlignmentPosition>();
-		}
+	/**
+	 * @param referenceName
+	 *            the name of the reference sequence
+	 * @return the number of unmapped records placed on the reference stored in
+	 *         the index, or -1 if the index has no metadata
+	 */
+	public synchronized long getUnmappedRecordCount(String referenceName) {
+		return bamIndex.getPackedIndex(referenceIndexOf(referenceName)).getUnmappedCount();
+	}
 
+	private int referenceIndexOf(String referenceName) {
 		int referenceIndex = header.indexOf(referenceName);
 		if (referenceIndex == -1) {
 			throw new IllegalArgumentException("Unknown reference: " + referenceName);
 		}
+		return referenceIndex;
+	}
 
-//		List<Chunk> chunks = bamIndex.getChunks(referenceIndex, start, end);
-//		VirtualFileOffset linearIndex = bamIndex.linearIndexOf(referenceIndex, start);
-
-		List<Chunk> chunks = loadBamIndex().getChunks(referenceIndex, start, end);
-		VirtualFileOffset linearIndex = loadBamIndex().linearIndexOf(referenceIndex, start);
-
-		for (Chunk chunk : chunks) {
-			if (linearIndex != null
-				&& chunk.getEndOffset().compareTo(linearIndex) < 0) {
-				continue;
-			}
-
-			List<byte[]> binaryRecords = this.readFrom(chunk.getStartOffset(), start, end);
+	@Override
+	public synchronized List<AlignmentPosition> loadPositions(String referenceName,
+		int start, int end) throws IOException, MappingFileFormatException {
 
-			if (binaryRecords != null) {
-				return alignmentRecordCodec.decodePositions(binaryRecords);
+		List<AlignmentPosition> positions = new ArrayList<AlignmentPosition>();
+		BamRegionIterator iterator = iterateRecords(referenceName, start, end);
+		try {
+			while (iterator.advance()) {
+				BgzfBlockCursor cursor = iterator.cursor;
+				positions.add(alignmentRecordCodec.decodePosition(cursor.getRecordData(), cursor.getRecordOffset()));
 			}
-			break;
+		} finally {
+			iterator.close();
 		}
 
-		return new ArrayList<AlignmentPosition>();
+		return positions;
 	}
 
 	@Override
 	public synchronized AlignmentRecord loadRecord(String referenceName, String queryName,
 		int position, int length) throws IOException, MappingFileFormatException {
 
+		ensureOpen();
 		int referenceIndex = header.indexOf(referenceName);
 		if (referenceIndex == -1) {
 			throw new IllegalArgumentException("Unknown reference: " + referenceName);
 		}
 
-//		List<Chunk> chunks = bamIndex.getChunks(referenceIndex, BamUtil.regToBin(position, position + length));
-//		VirtualFileOffset linearIndex = bamIndex.linearIndexOf(referenceIndex, position);
-
-		List<Chunk> chunks = loadBamIndex().getChunks(referenceIndex, BamUtil.regToBin(position, position + length));
-		VirtualFileOffset linearIndex = loadBamIndex().linearIndexOf(referenceIndex, position);
-
-		for (Chunk chunk : chunks) {
-			if (linearIndex != null
-				&& chunk.getEndOffset().compareTo(linearIndex) < 0) {
-				continue;
-			}
-
-			List<byte[]> binaryRecords = this.readFrom(chunk.getStartOffset(), position, position + 1);
-
-			if (binaryRecords != null) {
-				for (byte[] binaryRecord : binaryRecords) {
-					String name = alignmentRecordCodec.decodeQueryName(binaryRecord);
-					if (queryName.equals(name)) {
-						return alignmentRecordCodec.decode(binaryRecord);
-					}
+		BamRegionIterator iterator = new BamRegionIterator(referenceIndex, position, position + 1,
+			bamIndex.planQuery(referenceIndex, position, position + 1));
+		try {
+			while (iterator.advance()) {
+				BgzfBlockCursor cursor = iterator.cursor;
+				if (queryName.equals(alignmentRecordCodec.decodeQueryName(cursor.getRecordData(), cursor.getRecordOffset()))) {
+					return alignmentRecordCodec.decode(cursor.getRecordData(), cursor.getRecordOffset(),
+						cursor.getRecordLength());
 				}
 			}
+		} finally {
+			iterator.close();
 		}
 
 		return null;
 	}
 
 	/**
-	 * Reads binary alignment records in a given interval. The reading starts at a given file offset.
-	 * 
-	 * @param from
-	 *            the virtual file offset from which to start the reading
-	 * @param start
-	 *            the beginning of the interval, inclusive
-	 * @param end
-	 *            the end of the interval, exclusive
-	 * @return the binary alignment records in the given interval
+	 * Returns the uncompressed content of the block starting at the given
+	 * position. The block is taken from the cache if possible, otherwise it is
+	 * read, decompressed and put into the cache.
+	 *
+	 * @param position
+	 *            the start position of the compressed block
+	 * @return the uncompressed block or {@code null} at the end of the file
 	 * @throws IOException
 	 *             if an I/O error occurs
 	 * @throws MappingFileFormatException
-	 *             if the format of the alignment records is incorrect
+	 *             if the block cannot be decompressed
 	 */
-	private List<byte[]> readFrom(VirtualFileOffset from, int start, int end)
-		throws IOException, MappingFileFormatException {
-
-		List<byte[]> records = new ArrayList<byte[]>();
-
-		boolean firstBlock = true;
-		long blockOffset = from.getBlockOffset();
-		byte[] uncompressedData = null;
-
-		while (true) {
-			BgzfBlock block = this.readBlock((int) blockOffset);
-			if (block == null) {
-				break;
-			}
-
-			blockOffset += block.getDeflatedSize() + 26;
-			if (firstBlock) {
-				try {
-					uncompressedData = decompressor.decompress(block);
-				} catch (DataFormatException e) {
-					throw new MappingFileFormatException(e.getMessage());
-				}
-				uncompressedData = Arrays.copyOfRange(uncompressedData,
-					from.getDataOffset(), uncompressedData.length);
-
-				firstBlock = false;
-			} else {
-				byte[] uncompressedBlock = null;
-				try {
-					uncompressedBlock = decompressor.decompress(block);
-				} catch (DataFormatException e) {
-					throw new MappingFileFormatException(e.getMessage());
-				}
-				byte[] tmp = new byte[uncompressedData.length + uncompressedBlock.length];
-				System.arraycopy(uncompressedData, 0, tmp, 0, uncompressedData.length);
-				System.arraycopy(uncompressedBlock, 0, tmp, uncompressedData.length, uncompressedBlock.length);
-				uncompressedData = tmp;
-			}
-
-			int offset = 0;
-			for (; offset < uncompressedData.length;) {
-				if (offset + 4 > uncompressedData.length) {
-					uncompressedData = Arrays.copyOfRange(uncompressedData, offset, uncompressedData.length);
-					break;
-				}
-				int recordSize = BamUtil.toInt(Arrays.copyOfRange(
-					uncompressedData, offset, offset + 4));
-				if (offset + 4 + recordSize > uncompressedData.length) {
-					uncompressedData = Arrays.copyOfRange(uncompressedData, offset, uncompressedData.length);
-					break;
-				}
-
-				offset += 4;
-				byte[] binaryRecord = Arrays.copyOfRange(uncompressedData, offset,
-					offset + recordSize);
-				offset += recordSize;
-
-				int position = alignmentRecordCodec.getPosition(binaryRecord);
-				if (position >= start && position < end) {
-					records.add(binaryRecord);
-				} else if (position >= end) {
-					return records;
-				}
-			}
-
-			if (offset == uncompressedData.length) {
-				uncompressedData = new byte[0];
-			}
+	private InflatedBgzfBlock inflateBlock(long position) throws IOException, MappingFileFormatException {
+		InflatedBgzfBlock inflated = blockCache.get(position);
+		if (inflated != null) {
+			return inflated;
+		}
 
+		BgzfBlock block = this.readBlock(position);
+		if (block == null) {
+			return null;
+		}
+		try {
+			inflated = new InflatedBgzfBlock(position, block.getDeflatedSize() + 26, decompressor.decompress(block));
+		} catch (DataFormatException e) {
+			throw new MappingFileFormatException(e.getMessage());
 		}
+		blockCache.put(inflated);
 
-		return records;
+		return inflated;
 	}
 
 	/**
@@ -367,34 +439,55 @@ public class IndexedBamReader implements IndexedMappingFileReader {
 	 * @throws IOException
 	 *             if an I/O error occurs
 	 */
-	private BgzfBlock readBlock(int position) throws IOException {
-		FileChannel bamFileChannel = loadBamFileChannel();
-
-//		bamFileChannel=bamFile.getChannel();
-
+	private BgzfBlock readBlock(long position) throws IOException {
 		if (position < 0 || position >= bamFileChannel.size()) {
 			return null;
 		}
-		MappedByteBuffer mappedBuffer = bamFileChannel.map(MapMode.READ_ONLY, position, 18);
-		mappedBuffer = bamFileChannel.map(MapMode.READ_ONLY, position, 18);
-		mappedBuffer.position(0);
-		byte[] byteArray = new byte[18];
-		mappedBuffer.get(byteArray, 0, 18);
-
-		int length = BamUtil.toShort(Arrays.copyOfRange(byteArray, 16,
-			18)) + 1;
+
+		blockHeaderBuffer.clear();
+		readFully(blockHeaderBuffer, position);
+		int length = (blockHeaderBuffer.getShort(BGZF_HEADER_LENGTH - 2) & 0xFFFF) + 1;
+
 		byte[] block = new byte[length];
+		readFully(ByteBuffer.wrap(block), position);
 
-		mappedBuffer = bamFileChannel.map(MapMode.READ_ONLY, position, length);
-		mappedBuffer.get(block, 0, length);
+		int inputSize = BamUtil.toInt(block, block.length - 4);
 
-		int inputSize = BamUtil.toInt(Arrays.copyOfRange(block,
-			block.length - 4, block.length));
+		return new BgzfBlock(block, length - 26, inputSize);
+	}
 
-		BgzfBlock bgzfBlock = new BgzfBlock(block, length - 26, inputSize);
+	/**
+	 * Fills the given buffer from the BAM file starting at a given file
+	 * position, without changing the position of the channel.
+	 *
+	 * @param buffer
+	 *            the buffer to be filled
+	 * @param position
+	 *            the file position to read from
+	 * @throws IOException
+	 *             if an I/O error occurs or the end of file is reached
+	 */
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int count = bamFileChannel.read(buffer, position);
+			if (count < 0) {
+				throw new EOFException("Unexpected end of BAM file at " + position);
+			}
+			position += count;
+		}
+		buffer.flip();
+	}
 
-		bamFileChannel.close();
-		return bgzfBlock;
+	/**
+	 * Checks that the reader was not closed yet.
+	 *
+	 * @throws IOException
+	 *             if the reader was already closed
+	 */
+	private void ensureOpen() throws IOException {
+		if (bamFileChannel == null) {
+			throw new IOException("BAM reader is closed");
+		}
 	}
 
 	/**
@@ -404,7 +497,7 @@ public class IndexedBamReader implements IndexedMappingFileReader {
 	 */
 	private void loadHeader() throws IOException, MappingFileFormatException {
 		byte[] bamHeader = null;
-		int offset = 0;
+		long offset = 0;
 
 		BgzfBlock block = readBlock(offset);
 		try {
@@ -434,10 +527,164 @@ public class IndexedBamReader implements IndexedMappingFileReader {
 		alignmentRecordCodec = new AlignmentRecordCodec(this.header.getReferenceNames());
 	}
 
+	/**
+	 * Releases the BAM file and the loaded index. The reader cannot be used
+	 * after closing.
+	 */
 	@Override
-	public void close() throws IOException {
+	public synchronized void close() throws IOException {
+		logger.debug(blockCache);
+		blockCache.clear();
+		bamIndex = null;
+		bamFileChannel = null;
 		if (bamFile != null) {
-			bamFile.close();
+			try {
+				bamFile.close();
+			} finally {
+				bamFile = null;
+			}
+		}
+	}
+
+	/**
+	 * Streams the records of a region through the planned sections of the
+	 * file. Only one cursor is kept: when a record is read beyond the end of
+	 * the current section, the cursor is moved to the start of the next one.
+	 * The records are read under the lock of the reader, as the decompressor
+	 * and the block cache are shared by all queries.
+	 */
+	public class BamRegionIterator implements RegionIterator {
+
+		private final int referenceIndex;
+		private final int start;
+		private final int end;
+		/**
+		 * Start and end offsets of the sections to be read.
+		 */
+		private final long[] plan;
+		/**
+		 * Index of the start offset of the current section in the plan.
+		 */
+		private int section;
+		private BgzfBlockCursor cursor;
+		private AlignmentRecord nextRecord;
+		private boolean finished;
+
+		private BamRegionIterator(int referenceIndex, int start, int end, long[] plan) {
+			this.referenceIndex = referenceIndex;
+			this.start = start;
+			this.end = end;
+			this.plan = plan;
+			this.finished = plan.length == 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (nextRecord == null && !finished) {
+				try {
+					nextRecord = readNext();
+				} catch (IOException e) {
+					throw new IllegalStateException("Cannot read alignment record", e);
+				} catch (MappingFileFormatException e) {
+					throw new IllegalStateException("Cannot read alignment record", e);
+				}
+			}
+			return nextRecord != null;
+		}
+
+		@Override
+		public AlignmentRecord next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			AlignmentRecord record = nextRecord;
+			nextRecord = null;
+			return record;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			finished = true;
+			nextRecord = null;
+			cursor = null;
+		}
+
+		/**
+		 * Reads the next record of the region.
+		 *
+		 * @return the next record or {@code null} at the end of the region
+		 * @throws IOException
+		 *             if an I/O error occurs or the reader is closed
+		 * @throws MappingFileFormatException
+		 *             if a block or a record is invalid
+		 */
+		AlignmentRecord readNext() throws IOException, MappingFileFormatException {
+			synchronized (IndexedBamReader.this) {
+				if (!advance()) {
+					return null;
+				}
+				// most views use only a few fields of the records of a region
+				return alignmentRecordCodec.decodeLazy(cursor.getRecordData(), cursor.getRecordOffset(),
+					cursor.getRecordLength());
+			}
+		}
+
+		/**
+		 * Moves the cursor to the next record of the region. Must be called
+		 * under the lock of the reader.
+		 *
+		 * @return {@code true} if the cursor is at a record of the region,
+		 *         {@code false} at the end of the region
+		 * @throws IOException
+		 *             if an I/O error occurs or the reader is closed
+		 * @throws MappingFileFormatException
+		 *             if a block or a record is invalid
+		 */
+		boolean advance() throws IOException, MappingFileFormatException {
+			while (!finished) {
+				ensureOpen();
+				if (cursor == null) {
+					cursor = new BgzfBlockCursor(blockSource, new VirtualFileOffset(plan[section]));
+				}
+				if (!cursor.next()) {
+					close();
+					break;
+				}
+				long recordOffset = cursor.getRecordVirtualOffset();
+				if (recordOffset >= plan[section + 1]) {
+					do {
+						section += 2;
+					} while (section < plan.length && recordOffset >= plan[section + 1]);
+					if (section == plan.length) {
+						close();
+						break;
+					}
+					if (recordOffset < plan[section]) {
+						cursor.seek(plan[section]);
+						continue;
+					}
+				}
+
+				byte[] data = cursor.getRecordData();
+				int offset = cursor.getRecordOffset();
+				if (BamUtil.toInt(data, offset) != referenceIndex) {
+					continue;
+				}
+				int position = alignmentRecordCodec.getPosition(data, offset);
+				if (position >= end) {
+					close();
+					break;
+				}
+				if (position >= start) {
+					return true;
+				}
+			}
+			return false;
 		}
 	}
 }
@@ -65,6 +65,33 @@ public interface IndexedMappingFileReader {
 	List<AlignmentRecord> loadRecords(String referenceName, int start, int end)
 			throws IOException, DataFormatException, MappingFileException;
 
+	/**
+	 * Returns a lazy iterator over the alignment records in a given interval
+	 * for a given reference sequence. The records are the same as the ones
+	 * returned by {@link #loadRecords(String, int, int)}, but they are read
+	 * only while iterating.
+	 *
+	 * @param referenceName
+	 *            the name of the reference sequence on which the alignment
+	 *            records are
+	 * @param start
+	 *            the beginning of the interval in which the start of the
+	 *            alignment records are, inclusive
+	 * @param end
+	 *            the end of the interval in which the start of the alignment
+	 *            records are, exclusive
+	 * @return iterator over the alignment records in position order, it must
+	 *         be closed after use
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws DataFormatException
+	 *             if the binary data format is incorrect
+	 * @throws MappingFileException
+	 *             if the file format is incorrect
+	 */
+	RegionIterator iterateRecords(String referenceName, int start, int end)
+			throws IOException, DataFormatException, MappingFileException;
+
 	/**
 	 * Loads alignment record positions in a given interval for a given
 	 * reference sequence.
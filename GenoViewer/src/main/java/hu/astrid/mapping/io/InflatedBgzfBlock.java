@@ -0,0 +1,85 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+/**
+ * Represents an uncompressed BGZF block together with its location in the
+ * compressed file.
+ */
+public class InflatedBgzfBlock {
+
+	/**
+	 * Offset of the compressed block in the BGZF file.
+	 */
+	private final long offset;
+
+	/**
+	 * Size of the whole compressed block, including header and footer.
+	 */
+	private final int compressedSize;
+
+	/**
+	 * The uncompressed content of the block.
+	 */
+	private final byte[] data;
+
+	/**
+	 * Creates a new uncompressed block instance.
+	 *
+	 * @param offset
+	 *            offset of the compressed block in the file
+	 * @param compressedSize
+	 *            size of the whole compressed block
+	 * @param data
+	 *            the uncompressed content of the block
+	 */
+	public InflatedBgzfBlock(long offset, int compressedSize, byte[] data) {
+		this.offset = offset;
+		this.compressedSize = compressedSize;
+		this.data = data;
+	}
+
+	/**
+	 * @return offset of the compressed block in the file
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return size of the whole compressed block, including header and footer
+	 */
+	public int getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * @return offset of the following compressed block in the file
+	 */
+	public long getNextOffset() {
+		return offset + compressedSize;
+	}
+
+	/**
+	 * @return the uncompressed content of the block, must not be modified
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.OptionalTag;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.util.List;
+
+/**
+ * Alignment record which is backed by its binary BAM representation. The
+ * fixed-size fields are decoded when the record is created, the query name,
+ * the CIGAR string, the sequence, the quality string and the optional tags are
+ * decoded by the {@link AlignmentRecordCodec} only when they are first
+ * accessed. A single optional tag can be looked up without decoding the
+ * others.
+ * <p>
+ * As the getters can not throw checked exceptions, a malformed binary record
+ * is reported by an {@link IllegalStateException} which wraps the
+ * {@link MappingFileFormatException} of the codec. Like other alignment
+ * records, instances are not thread-safe, even the first reads of the lazy
+ * fields modify the record.
+ */
+public class LazyAlignmentRecord extends AlignmentRecord {
+
+	private static final int QUERY_NAME = 1;
+
+	private static final int CIGAR = 2;
+
+	private static final int SEQUENCE = 4;
+
+	private static final int QUALITY = 8;
+
+	private static final int OPTIONAL_TAGS = 16;
+
+	/**
+	 * The codec which decodes the fields of the binary record.
+	 */
+	private final AlignmentRecordCodec codec;
+
+	/**
+	 * The binary record, released when every field has been decoded.
+	 */
+	private byte[] data;
+
+	/**
+	 * Bits of the fields which have been decoded or set.
+	 */
+	private int decodedFields;
+
+	/**
+	 * Creates a record backed by the given binary data.
+	 *
+	 * @param codec
+	 *            the codec which decodes the fields
+	 * @param data
+	 *            the binary record, which must not be modified later
+	 */
+	LazyAlignmentRecord(AlignmentRecordCodec codec, byte[] data) {
+		this.codec = codec;
+		this.data = data;
+	}
+
+	@Override
+	public String getQueryName() {
+		if (!isDecoded(QUERY_NAME)) {
+			setQueryName(codec.decodeQueryName(data, 0));
+		}
+		return super.getQueryName();
+	}
+
+	@Override
+	public void setQueryName(String queryName) {
+		super.setQueryName(queryName);
+		setDecoded(QUERY_NAME);
+	}
+
+	@Override
+	public String getCigar() {
+		if (!isDecoded(CIGAR)) {
+			try {
+				setCigar(codec.parseCigarData(data, getCigarOffset(), getCigarLength()));
+			} catch (MappingFileFormatException e) {
+				throw invalidRecord(e);
+			}
+		}
+		return super.getCigar();
+	}
+
+	@Override
+	public void setCigar(String cigar) {
+		super.setCigar(cigar);
+		setDecoded(CIGAR);
+	}
+
+	@Override
+	public String getSequence() {
+		if (!isDecoded(SEQUENCE)) {
+			try {
+				setSequence(codec.parseByteAlignmentSequence(data, getSequenceOffset(), getBinaryReadLength()));
+			} catch (MappingFileFormatException e) {
+				throw invalidRecord(e);
+			}
+		}
+		return super.getSequence();
+	}
+
+	@Override
+	public void setSequence(String sequence) {
+		super.setSequence(sequence);
+		setDecoded(SEQUENCE);
+	}
+
+	@Override
+	public String getQuality() {
+		if (!isDecoded(QUALITY)) {
+			setQuality(codec.parseSequenceQuality(data, getQualityOffset(), getBinaryReadLength()));
+		}
+		return super.getQuality();
+	}
+
+	@Override
+	public void setQuality(String quality) {
+		super.setQuality(quality);
+		setDecoded(QUALITY);
+	}
+
+	@Override
+	public int getReadLength() {
+		return readLength;
+	}
+
+	@Override
+	public void addOptionalTag(OptionalTag optionalTag) {
+		decodeOptionalTags();
+		super.addOptionalTag(optionalTag);
+	}
+
+	@Override
+	public OptionalTag getOptionalTag(String tagName) {
+		if (isDecoded(OPTIONAL_TAGS)) {
+			return super.getOptionalTag(tagName);
+		}
+		try {
+			return codec.findOptionalTag(data, getOptionalTagsOffset(), data.length, tagName);
+		} catch (MappingFileFormatException e) {
+			throw invalidRecord(e);
+		}
+	}
+
+	@Override
+	public List<OptionalTag> listOptionalTags() {
+		decodeOptionalTags();
+		return super.listOptionalTags();
+	}
+
+	private void decodeOptionalTags() {
+		if (!isDecoded(OPTIONAL_TAGS)) {
+			byte[] tagData = data;
+			int offset = getOptionalTagsOffset();
+			// set first, the codec adds the tags through addOptionalTag
+			setDecoded(OPTIONAL_TAGS);
+			try {
+				codec.parseOptionalTags(tagData, offset, tagData.length, this);
+			} catch (MappingFileFormatException e) {
+				throw invalidRecord(e);
+			}
+		}
+	}
+
+	private boolean isDecoded(int field) {
+		return (decodedFields & field) != 0;
+	}
+
+	private void setDecoded(int field) {
+		decodedFields |= field;
+		if (decodedFields == (QUERY_NAME | CIGAR | SEQUENCE | QUALITY | OPTIONAL_TAGS)) {
+			data = null;
+		}
+	}
+
+	private int getBinaryReadLength() {
+		return BamUtil.toInt(data, 16);
+	}
+
+	private int getCigarLength() {
+		return BamUtil.toShort(data, 12) & 0xFFFF;
+	}
+
+	private int getCigarOffset() {
+		return 32 + (data[8] & 0xFF);
+	}
+
+	private int getSequenceOffset() {
+		return getCigarOffset() + 4 * getCigarLength();
+	}
+
+	private int getQualityOffset() {
+		return getSequenceOffset() + (getBinaryReadLength() + 1) / 2;
+	}
+
+	private int getOptionalTagsOffset() {
+		return getQualityOffset() + getBinaryReadLength();
+	}
+
+	private static IllegalStateException invalidRecord(MappingFileFormatException cause) {
+		IllegalStateException exception = new IllegalStateException("Invalid binary alignment record: "
+			+ cause.getMessage());
+		exception.initCause(cause);
+		return exception;
+	}
+}
@@ -121,6 +121,25 @@ public class MappingFileParser {
 		throws MappingFileFormatException {
 
 		AlignmentRecord result = new AlignmentRecord();
+		parseAlignmentRecord(record, result);
+		return result;
+	}
+
+	/**
+	 * Parses an alignment record of the mapping file into the given instance.
+	 * Every field and the optional tags of the instance are replaced.
+	 *
+	 * @param record
+	 *            the string representation of the record to be parsed
+	 * @param result
+	 *            the alignment record to be filled
+	 * @throws AlignmentRecordFormatException
+	 *             if the format of the alignment record is incorrect
+	 * @throws OptionalTagFormatException
+	 *             if the format of an optional record is incorrect
+	 */
+	public static void parseAlignmentRecord(String record, AlignmentRecord result)
+		throws MappingFileFormatException {
 
 		String[] bodyFields = BamUtil.getTokens(record, MappingFile.FIELD_SEPARATOR);
 
@@ -147,6 +166,7 @@ public class MappingFileParser {
 
 		}
 
+		result.listOptionalTags().clear();
 		if (bodyFields.length > 11) {
 
 			for (int i = 11; i < bodyFields.length; i++) {
@@ -169,9 +189,6 @@ public class MappingFileParser {
 			}
 
 		}
-
-		return result;
-
 	}
 
 	public static boolean isValidBamHeader(byte[] header) {
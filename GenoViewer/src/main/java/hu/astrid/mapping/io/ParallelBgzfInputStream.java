@@ -0,0 +1,283 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.util.ConcurrencyUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+
+/**
+ * Input stream of the uncompressed content of a BGZF file. The compressed
+ * blocks are read sequentially, but they are inflated ahead on worker threads
+ * while the consumer processes the previous ones. The order of the blocks is
+ * kept.
+ * <p>
+ * Besides the byte stream, the uncompressed blocks can also be consumed one
+ * by one with {@link #nextBlock()}, which also tells the file offset of each
+ * block. The two ways of reading must not be mixed.
+ */
+public class ParallelBgzfInputStream extends InputStream {
+
+	/**
+	 * Default number of inflater threads.
+	 */
+	public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Length of the BGZF block header up to and including the BSIZE field.
+	 */
+	private static final int BGZF_HEADER_LENGTH = 18;
+
+	/**
+	 * Decompressors of the worker threads, an {@link java.util.zip.Inflater}
+	 * cannot be shared between threads.
+	 */
+	private static final ThreadLocal<BgzfDecompressor> DECOMPRESSORS = new ThreadLocal<BgzfDecompressor>() {
+
+		@Override
+		protected BgzfDecompressor initialValue() {
+			return new BgzfDecompressor();
+		}
+	};
+
+	private final DataInputStream in;
+
+	/**
+	 * Inflater threads, {@code null} if the blocks are inflated on the
+	 * calling thread.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Maximum number of blocks inflated ahead.
+	 */
+	private final int readAhead;
+
+	/**
+	 * Blocks being inflated, in file order.
+	 */
+	private final LinkedList<Future<InflatedBgzfBlock>> pending = new LinkedList<Future<InflatedBgzfBlock>>();
+
+	/**
+	 * File offset of the next compressed block to be read.
+	 */
+	private long nextBlockOffset;
+
+	private boolean endOfFile;
+
+	/**
+	 * The block which is currently read as a byte stream.
+	 */
+	private InflatedBgzfBlock currentBlock;
+
+	/**
+	 * Index of the next unread byte in the current block.
+	 */
+	private int currentPosition;
+
+	private final byte[] singleByte = new byte[1];
+
+	/**
+	 * Creates a stream which uses {@link #DEFAULT_THREAD_COUNT} inflater
+	 * threads.
+	 *
+	 * @param in
+	 *            the BGZF-compressed input stream
+	 */
+	public ParallelBgzfInputStream(InputStream in) {
+		this(in, DEFAULT_THREAD_COUNT, 2 * DEFAULT_THREAD_COUNT);
+	}
+
+	/**
+	 * Creates a stream with the given number of inflater threads.
+	 *
+	 * @param in
+	 *            the BGZF-compressed input stream
+	 * @param threadCount
+	 *            number of inflater threads, if it is less than 2 the blocks
+	 *            are inflated on the calling thread
+	 * @param readAhead
+	 *            maximum number of blocks inflated ahead of the consumer
+	 */
+	public ParallelBgzfInputStream(InputStream in, int threadCount, int readAhead) {
+		this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		this.readAhead = Math.max(1, readAhead);
+		if (threadCount > 1) {
+			this.executor = Executors.newFixedThreadPool(threadCount, ConcurrencyUtil.daemonThreadFactory("bgzf-inflater"));
+		} else {
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Returns the next uncompressed block, including empty ones like the EOF
+	 * marker block.
+	 *
+	 * @return the next block or {@code null} at the end of the file
+	 * @throws IOException
+	 *             if an I/O error occurs or a block cannot be decompressed
+	 */
+	public InflatedBgzfBlock nextBlock() throws IOException {
+		if (executor == null) {
+			BgzfBlock block = readBlock();
+			if (block == null) {
+				return null;
+			}
+			return inflate(DECOMPRESSORS.get(), nextBlockOffset - block.getCompressedData().length, block);
+		}
+
+		while (!endOfFile && pending.size() < readAhead) {
+			final BgzfBlock block = readBlock();
+			if (block == null) {
+				break;
+			}
+			final long offset = nextBlockOffset - block.getCompressedData().length;
+			pending.add(executor.submit(new Callable<InflatedBgzfBlock>() {
+
+				@Override
+				public InflatedBgzfBlock call() throws IOException {
+					return inflate(DECOMPRESSORS.get(), offset, block);
+				}
+			}));
+		}
+
+		Future<InflatedBgzfBlock> future = pending.poll();
+		if (future == null) {
+			return null;
+		}
+		return ConcurrencyUtil.await(future, IOException.class, "BGZF inflation");
+	}
+
+	/**
+	 * @return the virtual file offset of the next unread byte of the stream
+	 */
+	public long getVirtualOffset() {
+		if (currentBlock == null) {
+			return 0;
+		}
+		return currentBlock.getOffset() << 16 | currentPosition;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (currentBlock == null || currentPosition >= currentBlock.getData().length) {
+			currentBlock = nextBlock();
+			currentPosition = 0;
+			if (currentBlock == null) {
+				return -1;
+			}
+		}
+		int count = Math.min(len, currentBlock.getData().length - currentPosition);
+		System.arraycopy(currentBlock.getData(), currentPosition, b, off, count);
+		currentPosition += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return currentBlock == null ? 0 : currentBlock.getData().length - currentPosition;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		pending.clear();
+		in.close();
+	}
+
+	/**
+	 * Reads the next compressed block.
+	 *
+	 * @return the next block or {@code null} at the end of the file
+	 * @throws IOException
+	 *             if an I/O error occurs or the block is not a BGZF block
+	 */
+	private BgzfBlock readBlock() throws IOException {
+		if (endOfFile) {
+			return null;
+		}
+
+		byte[] header = new byte[BGZF_HEADER_LENGTH];
+		int first = in.read();
+		if (first == -1) {
+			endOfFile = true;
+			return null;
+		}
+		header[0] = (byte) first;
+		in.readFully(header, 1, BGZF_HEADER_LENGTH - 1);
+		if (!isBgzfHeader(header)) {
+			throw new IOException("Not a BGZF block at file offset " + nextBlockOffset);
+		}
+
+		int length = (header[16] & 0xFF | (header[17] & 0xFF) << 8) + 1;
+		byte[] block = Arrays.copyOf(header, length);
+		try {
+			in.readFully(block, BGZF_HEADER_LENGTH, length - BGZF_HEADER_LENGTH);
+		} catch (EOFException e) {
+			throw new EOFException("Truncated BGZF block at file offset " + nextBlockOffset);
+		}
+		nextBlockOffset += length;
+
+		int inputSize = block[length - 4] & 0xFF | (block[length - 3] & 0xFF) << 8 | (block[length - 2] & 0xFF) << 16
+			| (block[length - 1] & 0xFF) << 24;
+		return new BgzfBlock(block, length - 26, inputSize);
+	}
+
+	/**
+	 * Checks whether the given bytes are the beginning of a BGZF block: a gzip
+	 * member header with the BC extra subfield.
+	 *
+	 * @param header
+	 *            the first 18 bytes of the block
+	 * @return {@code true} if the bytes start a BGZF block
+	 */
+	public static boolean isBgzfHeader(byte[] header) {
+		return header.length >= BGZF_HEADER_LENGTH && header[0] == 31 && header[1] == (byte) 139 && header[2] == 8
+			&& (header[3] & 4) != 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+	private static InflatedBgzfBlock inflate(BgzfDecompressor decompressor, long offset, BgzfBlock block)
+		throws IOException {
+		try {
+			return new InflatedBgzfBlock(offset, block.getCompressedData().length, decompressor.decompress(block));
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid BGZF block at file offset " + offset + ": " + e.getMessage(), e);
+		}
+	}
+}
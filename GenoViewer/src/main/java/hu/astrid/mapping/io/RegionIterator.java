@@ -0,0 +1,44 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Lazy iterator over the alignment records of a reference region. The records
+ * are read from the file while iterating, so a region of any size is walked
+ * in constant memory. Iteration can be stopped at any point; the iterator must
+ * be closed in order to release its resources.
+ * <p>
+ * Reading errors are reported as {@link IllegalStateException}s wrapping the
+ * original exception, as {@link Iterator} methods cannot throw checked
+ * exceptions. Records cannot be removed.
+ */
+public interface RegionIterator extends Iterator<AlignmentRecord>, Closeable {
+
+	/**
+	 * Stops the iteration and releases the resources of the iterator.
+	 * {@link #hasNext()} returns {@code false} afterwards. Closing an already
+	 * closed iterator has no effect.
+	 */
+	@Override
+	void close();
+}
@@ -24,15 +24,23 @@ import hu.astrid.mapping.model.MappingHeader;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
  * Reader implementation which purpose is to sequentially load alignment records
  * from mapping files.
+ * <p>
+ * Readers created from a file or an input stream parse the bytes of the file
+ * with a {@link SamRecordParser}, readers created from a character stream
+ * parse its lines with {@link MappingFileParser}.
  */
 public class SamReader implements MappingFileReader {
 
@@ -48,6 +56,15 @@ public class SamReader implements MappingFileReader {
      * The buffered next line of the mapping file.
      */
     private String nextLine;
+    /**
+     * Byte-level parser of the mapping file, <code>null</code> if the file
+     * is read through a character stream.
+     */
+    private SamRecordParser parser;
+    /**
+     * The input of the parser.
+     */
+    private ReadableByteChannel channel;
 
     /**
      * Creates a new reader which is able to load alignment records from the
@@ -59,7 +76,23 @@ public class SamReader implements MappingFileReader {
      *             if the file does not exists
      */
     public SamReader(File file) throws FileNotFoundException {
-        this(new FileReader(file));
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Creates a new reader which is able to load alignment records from the
+     * given input stream. The stream is closed when the reader is closed.
+     *
+     * @param inputStream
+     *            the stream of the mapping file
+     */
+    public SamReader(InputStream inputStream) {
+        if (inputStream instanceof FileInputStream) {
+            channel = ((FileInputStream) inputStream).getChannel();
+        } else {
+            channel = Channels.newChannel(inputStream);
+        }
+        parser = new SamRecordParser(channel);
     }
 
     /**
@@ -91,6 +124,10 @@ public class SamReader implements MappingFileReader {
     public MappingHeader readHeader()
             throws MappingFileFormatException, IOException {
 
+        if (parser != null) {
+            return readParserHeader();
+        }
+
         MappingHeader result = null;
         HeaderRecord samHRecord = null;
         String record = null;
@@ -118,30 +155,134 @@ public class SamReader implements MappingFileReader {
         return result;
     }
 
+    private MappingHeader readParserHeader()
+            throws MappingFileFormatException, IOException {
+
+        if (headerLoaded || !parser.nextLine()) {
+            throw new IllegalStateException("Illegal header access!");
+        }
+
+        MappingHeader result = null;
+
+        do {
+            if (!parser.isHeaderLine()) {
+                parser.unreadLine();
+                break;
+            }
+            if (result == null) {
+                result = new MappingHeader();
+            }
+            result.addRecord(MappingFileParser.parseHeaderRecord(parser.getLine()));
+        } while (parser.nextLine());
+        headerLoaded = true;
+
+        return result;
+    }
+
     @Override
     public AlignmentRecord nextRecord()
             throws MappingFileFormatException, IOException {
 
+        return nextRecord(new AlignmentRecord());
+    }
+
+    /**
+     * Loads the next alignment record into the given instance, so the same
+     * record can be reused for every line of the file.
+     *
+     * @param record
+     *            the record to be filled
+     * @return the given record, or <code>null</code> at the end of the file
+     * @throws MappingFileFormatException
+     *             if the format of the alignment record is incorrect
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public AlignmentRecord nextRecord(AlignmentRecord record)
+            throws MappingFileFormatException, IOException {
+
         AlignmentRecord result = null;
 
         if (!headerLoaded) {
             readHeader();
         }
 
+        if (parser != null) {
+            if (parser.nextLine()) {
+                if (parser.isEmptyLine()) {
+                    // an empty line ends the records
+                    parser.unreadLine();
+                } else {
+                    parser.parseAlignmentRecord(record);
+                    result = record;
+                }
+            }
+            return result;
+        }
+
         if ((nextLine == null) && (buffIterator.hasNext())) {
             nextLine = buffIterator.next();
         }
 
         if ((nextLine != null) && (nextLine.length() > 0)) {
-            result = MappingFileParser.parseAlignmentRecord(nextLine);
+            MappingFileParser.parseAlignmentRecord(nextLine, record);
+            result = record;
             nextLine = null;
         }
 
         return result;
     }
 
+    /**
+     * Loads the following alignment record lines as a batch of bytes, each
+     * line terminated by a newline. Lines are added while the batch is
+     * shorter than the given size, so a batch holds at least one line. The
+     * batches can be parsed by {@link SamRecordParser#SamRecordParser(byte[], int, int)}.
+     * Only readers created from a file or an input stream support batches.
+     *
+     * @param size
+     *            the approximate size of the batch in bytes
+     * @return the batch, or <code>null</code> at the end of the file
+     * @throws MappingFileFormatException
+     *             if the header is incorrect
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public byte[] nextLines(int size)
+            throws MappingFileFormatException, IOException {
+
+        if (parser == null) {
+            throw new IllegalStateException("Line batches are only read from byte streams");
+        }
+        if (!headerLoaded) {
+            readHeader();
+        }
+
+        byte[] batch = new byte[size + 256];
+        int length = 0;
+        while (length < size && parser.nextLine()) {
+            if (parser.isEmptyLine()) {
+                parser.unreadLine();
+                break;
+            }
+            int lineLength = parser.getLineLength();
+            if (batch.length < length + lineLength + 1) {
+                batch = Arrays.copyOf(batch, Math.max(2 * batch.length, length + lineLength + 1));
+            }
+            parser.copyLine(batch, length);
+            length += lineLength;
+            batch[length++] = '\n';
+        }
+
+        return length == 0 ? null : Arrays.copyOf(batch, length);
+    }
+
     @Override
     public void close() throws IOException {
         buffIterator = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
     }
 }
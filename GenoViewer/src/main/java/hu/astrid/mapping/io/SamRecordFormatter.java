@@ -0,0 +1,206 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.OptionalTag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Formats alignment records as SAM lines directly into a reusable byte
+ * buffer. Numbers are written digit by digit and strings character by
+ * character, without building intermediate strings. The lines are the same
+ * as {@link AlignmentRecord#toString()} followed by a newline. Characters
+ * outside ASCII are written as {@code '?'}.
+ */
+public class SamRecordFormatter {
+
+	private byte[] data;
+
+	private int size;
+
+	/**
+	 * Creates a formatter.
+	 *
+	 * @param capacity
+	 *            the initial size of the buffer, it is enlarged when needed
+	 */
+	public SamRecordFormatter(int capacity) {
+		data = new byte[Math.max(capacity, 256)];
+	}
+
+	/**
+	 * Appends an alignment record as a SAM line, terminated by a newline.
+	 *
+	 * @param record
+	 *            the record to be formatted
+	 */
+	public void format(AlignmentRecord record) {
+		append(record.getQueryName());
+		appendTab();
+		append(record.getFlag());
+		appendTab();
+		append(record.getReferenceName());
+		appendTab();
+		append(record.getPosition());
+		appendTab();
+		append(record.getMappingQuality() & 0xFF);
+		appendTab();
+		append(record.getCigar());
+		appendTab();
+		append(record.getMateReferenceName());
+		appendTab();
+		append(record.getMatePosition());
+		appendTab();
+		append(record.getInsertSize());
+		appendTab();
+		append(record.getSequence());
+		appendTab();
+		append(record.getQuality());
+
+		List<OptionalTag> optionalTags = record.listOptionalTags();
+		for (int i = 0, count = optionalTags.size(); i < count; ++i) {
+			OptionalTag optionalTag = optionalTags.get(i);
+			appendTab();
+			append(optionalTag.getTagName());
+			ensureCapacity(3);
+			data[size++] = ':';
+			data[size++] = toByte(optionalTag.getValueType());
+			data[size++] = ':';
+			append(optionalTag.getValue());
+		}
+
+		ensureCapacity(1);
+		data[size++] = '\n';
+	}
+
+	/**
+	 * Appends a text, for example the header of the file, as it is.
+	 *
+	 * @param text
+	 *            the text to be appended
+	 */
+	public void append(CharSequence text) {
+		if (text == null) {
+			append("null");
+			return;
+		}
+		int length = text.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; ++i) {
+			data[size + i] = toByte(text.charAt(i));
+		}
+		size += length;
+	}
+
+	/**
+	 * Appends an integer in decimal form.
+	 *
+	 * @param value
+	 *            the number to be appended
+	 */
+	public void append(int value) {
+		ensureCapacity(11);
+		long number = value;
+		if (number < 0) {
+			data[size++] = '-';
+			number = -number;
+		}
+		int end = size + digitCount(number);
+		for (int i = end - 1; i >= size; --i) {
+			data[i] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+		size = end;
+	}
+
+	private void appendTab() {
+		ensureCapacity(1);
+		data[size++] = '\t';
+	}
+
+	private static int digitCount(long number) {
+		int count = 1;
+		while (number >= 10) {
+			number /= 10;
+			++count;
+		}
+		return count;
+	}
+
+	private static byte toByte(char c) {
+		return c < 128 ? (byte) c : (byte) '?';
+	}
+
+	private void ensureCapacity(int length) {
+		if (data.length - size < length) {
+			data = Arrays.copyOf(data, Math.max(2 * data.length, size + length));
+		}
+	}
+
+	/**
+	 * @return number of formatted bytes in the buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the buffer, its first {@link #size()} bytes are the formatted
+	 *         lines
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Empties the buffer, keeping its capacity.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Writes the formatted bytes to a channel and empties the buffer.
+	 *
+	 * @param channel
+	 *            the channel to be written
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		size = 0;
+	}
+
+	/**
+	 * @return the formatted lines as a string
+	 */
+	@Override
+	public String toString() {
+		return new String(data, 0, size, MappingFileParser.ASCII_CHARSET);
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.OptionalTag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Byte-level parser of the lines of SAM files. The input is read in large
+ * chunks into a buffer, the fields of the alignment records are located by
+ * scanning for tabs, and numbers are parsed directly from the bytes without
+ * creating strings. Alignment records can be parsed into caller-supplied
+ * instances, so a reader can reuse one record for the whole file.
+ * <p>
+ * SAM files are ASCII text, other bytes are decoded as the replacement
+ * character.
+ */
+public class SamRecordParser {
+
+	/**
+	 * Default size of the buffer of the parser. The buffer is enlarged if a
+	 * line is longer than this.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Number of mandatory fields of alignment records.
+	 */
+	private static final int MANDATORY_FIELD_COUNT = 11;
+
+	private final ReadableByteChannel channel;
+
+	private ByteBuffer buffer;
+
+	/**
+	 * The backing array of the buffer.
+	 */
+	private byte[] data;
+
+	/**
+	 * Index of the first byte which has not been returned as a line.
+	 */
+	private int position;
+
+	/**
+	 * Index after the last valid byte of the buffer.
+	 */
+	private int limit;
+
+	/**
+	 * Index from which the search for the next line terminator continues.
+	 */
+	private int scanPosition;
+
+	private boolean endOfInput;
+
+	private int lineStart;
+
+	private int lineEnd;
+
+	/**
+	 * Start indices of the tab separated fields of the current line.
+	 */
+	private int[] fieldStarts = new int[32];
+
+	/**
+	 * End indices of the tab separated fields of the current line.
+	 */
+	private int[] fieldEnds = new int[32];
+
+	private int fieldCount;
+
+	/**
+	 * The last parsed reference name, reused while the records are on the
+	 * same reference sequence.
+	 */
+	private String referenceName;
+
+	/**
+	 * Creates a parser which reads the given channel with a buffer of
+	 * {@link #DEFAULT_BUFFER_SIZE} bytes.
+	 *
+	 * @param channel
+	 *            the channel of the SAM data
+	 */
+	public SamRecordParser(ReadableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a parser which reads the given channel.
+	 *
+	 * @param channel
+	 *            the channel of the SAM data
+	 * @param bufferSize
+	 *            the initial size of the buffer
+	 */
+	public SamRecordParser(ReadableByteChannel channel, int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+		}
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.data = buffer.array();
+	}
+
+	/**
+	 * Creates a parser of lines already in memory.
+	 *
+	 * @param data
+	 *            array holding the lines
+	 * @param offset
+	 *            offset of the first line in the array
+	 * @param length
+	 *            number of bytes of the lines
+	 */
+	public SamRecordParser(byte[] data, int offset, int length) {
+		this.channel = null;
+		this.buffer = ByteBuffer.wrap(data);
+		this.data = data;
+		this.position = offset;
+		this.scanPosition = offset;
+		this.limit = offset + length;
+		this.endOfInput = true;
+	}
+
+	/**
+	 * Steps to the next line of the input.
+	 *
+	 * @return {@code false} at the end of the input
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public boolean nextLine() throws IOException {
+		fieldCount = 0;
+		while (true) {
+			for (int i = scanPosition; i < limit; ++i) {
+				if (data[i] == '\n') {
+					setLine(position, i);
+					position = i + 1;
+					scanPosition = position;
+					return true;
+				}
+			}
+			scanPosition = limit;
+
+			if (endOfInput) {
+				if (position < limit) {
+					setLine(position, limit);
+					position = limit;
+					return true;
+				}
+				return false;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * Steps back before the current line, so it is returned again by the next
+	 * call of {@link #nextLine()}.
+	 */
+	public void unreadLine() {
+		position = lineStart;
+		scanPosition = lineStart;
+		fieldCount = 0;
+	}
+
+	private void setLine(int start, int end) {
+		lineStart = start;
+		lineEnd = (end > start && data[end - 1] == '\r') ? end - 1 : end;
+	}
+
+	/**
+	 * Reads more data into the buffer. The unprocessed bytes are moved to the
+	 * beginning of the buffer first, and the buffer is enlarged if it is full.
+	 */
+	private void fill() throws IOException {
+		if (position > 0) {
+			System.arraycopy(data, position, data, 0, limit - position);
+			limit -= position;
+			scanPosition -= position;
+			position = 0;
+		}
+		if (limit == data.length) {
+			ByteBuffer enlarged = ByteBuffer.allocate(2 * data.length);
+			System.arraycopy(data, 0, enlarged.array(), 0, limit);
+			buffer = enlarged;
+			data = enlarged.array();
+		}
+
+		buffer.clear();
+		buffer.position(limit);
+		int read = channel.read(buffer);
+		if (read < 0) {
+			endOfInput = true;
+		} else {
+			limit += read;
+		}
+	}
+
+	/**
+	 * @return whether the current line is empty
+	 */
+	public boolean isEmptyLine() {
+		return lineStart == lineEnd;
+	}
+
+	/**
+	 * @return whether the current line is a header record
+	 */
+	public boolean isHeaderLine() {
+		return lineStart < lineEnd && data[lineStart] == '@';
+	}
+
+	/**
+	 * @return length of the current line without the line terminator
+	 */
+	public int getLineLength() {
+		return lineEnd - lineStart;
+	}
+
+	/**
+	 * Copies the current line without the line terminator into an array.
+	 *
+	 * @param target
+	 *            the array the line is copied into
+	 * @param offset
+	 *            offset of the line in the array
+	 */
+	public void copyLine(byte[] target, int offset) {
+		System.arraycopy(data, lineStart, target, offset, lineEnd - lineStart);
+	}
+
+	/**
+	 * @return the current line as a string
+	 */
+	public String getLine() {
+		return toString(lineStart, lineEnd);
+	}
+
+	/**
+	 * Parses the current line as an alignment record.
+	 *
+	 * @return the parsed alignment record
+	 * @throws MappingFileFormatException
+	 *             if the format of the alignment record is incorrect
+	 */
+	public AlignmentRecord parseAlignmentRecord() throws MappingFileFormatException {
+		AlignmentRecord result = new AlignmentRecord();
+		parseAlignmentRecord(result);
+		return result;
+	}
+
+	/**
+	 * Parses the current line into the given alignment record. Every field and
+	 * the optional tags of the record are replaced.
+	 *
+	 * @param result
+	 *            the record to be filled
+	 * @throws MappingFileFormatException
+	 *             if the format of the alignment record is incorrect
+	 */
+	public void parseAlignmentRecord(AlignmentRecord result) throws MappingFileFormatException {
+		splitFields();
+		if (fieldCount < MANDATORY_FIELD_COUNT) {
+			throw new MappingFileFormatException("Missing alignment record field! record:[" + getLine() + "]");
+		}
+
+		result.setQueryName(field(0));
+		result.setFlag((short) parseInt(1));
+		result.setReferenceName(parseReferenceName(2));
+		result.setPosition(parseInt(3));
+		result.setMappingQuality((byte) parseInt(4));
+		result.setCigar(field(5));
+		result.setMateReferenceName(parseMateReferenceName(6));
+		result.setMatePosition(parseInt(7));
+		result.setInsertSize(parseInt(8));
+		result.setSequence(field(9));
+		result.setQuality(field(10));
+
+		List<OptionalTag> optionalTags = result.listOptionalTags();
+		optionalTags.clear();
+		for (int i = MANDATORY_FIELD_COUNT; i < fieldCount; ++i) {
+			int start = fieldStarts[i];
+			int end = fieldEnds[i];
+			int typeStart = indexOf(':', start, end) + 1;
+			int valueStart = indexOf(':', typeStart, end) + 1;
+			if (typeStart == 0 || valueStart == 0 || valueStart == typeStart + 1) {
+				throw new MappingFileFormatException("Illegal optional tag fomat:" + toString(start, end));
+			}
+
+			OptionalTag optionalTag = new OptionalTag();
+			optionalTag.setTagName(toString(start, typeStart - 1));
+			optionalTag.setValueType((char) data[typeStart]);
+			optionalTag.setValue(toString(valueStart, end));
+			optionalTags.add(optionalTag);
+		}
+	}
+
+	private void splitFields() {
+		fieldCount = 0;
+		int start = lineStart;
+		for (int i = lineStart; i <= lineEnd; ++i) {
+			if (i == lineEnd || data[i] == '\t') {
+				if (fieldCount == fieldStarts.length) {
+					int[] starts = new int[2 * fieldCount];
+					int[] ends = new int[2 * fieldCount];
+					System.arraycopy(fieldStarts, 0, starts, 0, fieldCount);
+					System.arraycopy(fieldEnds, 0, ends, 0, fieldCount);
+					fieldStarts = starts;
+					fieldEnds = ends;
+				}
+				fieldStarts[fieldCount] = start;
+				fieldEnds[fieldCount] = i;
+				++fieldCount;
+				start = i + 1;
+			}
+		}
+	}
+
+	private int indexOf(char c, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (data[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String field(int index) {
+		return toString(fieldStarts[index], fieldEnds[index]);
+	}
+
+	private String toString(int start, int end) {
+		return new String(data, start, end - start, MappingFileParser.ASCII_CHARSET);
+	}
+
+	private boolean fieldEquals(int index, String value) {
+		int start = fieldStarts[index];
+		if (fieldEnds[index] - start != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); ++i) {
+			if (data[start + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String parseReferenceName(int index) {
+		if (referenceName == null || !fieldEquals(index, referenceName)) {
+			referenceName = field(index);
+		}
+		return referenceName;
+	}
+
+	private String parseMateReferenceName(int index) {
+		if (fieldEquals(index, "=")) {
+			return "=";
+		}
+		if (fieldEquals(index, "*")) {
+			return "*";
+		}
+		return parseReferenceName(index);
+	}
+
+	/**
+	 * Parses a decimal integer field.
+	 */
+	private int parseInt(int index) throws MappingFileFormatException {
+		int i = fieldStarts[index];
+		int end = fieldEnds[index];
+		boolean negative = false;
+		if (i < end && (data[i] == '-' || data[i] == '+')) {
+			negative = data[i] == '-';
+			++i;
+		}
+		if (i == end) {
+			throw new MappingFileFormatException("Alignment record number format exception!");
+		}
+
+		long value = 0;
+		for (; i < end; ++i) {
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+				throw new MappingFileFormatException("Alignment record number format exception!");
+			}
+			value = 10 * value + digit;
+		}
+		if (negative) {
+			value = -value;
+		}
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new MappingFileFormatException("Alignment record number format exception!");
+		}
+		return (int) value;
+	}
+}
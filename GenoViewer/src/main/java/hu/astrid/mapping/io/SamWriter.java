@@ -23,21 +23,49 @@ import hu.astrid.mapping.model.MappingHeader;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
 
 /**
  * Writer implementation which purpose is to sequentially write alignment
  * records to mapping files.
+ * <p>
+ * Writers created from a file or an output stream format the records into a
+ * byte buffer with a {@link SamRecordFormatter} and write it through a
+ * channel in chunks of {@link #FLUSH_SIZE} bytes. Writers created from a
+ * character stream write the text of the records into it. The records are
+ * not flushed one by one, call {@link #flush()} or {@link #close()} to
+ * write out the buffered records.
  */
 public class SamWriter implements MappingFileWriter {
 
     /**
-     * The buffered writer which is used to write to the mapping file.
+     * Number of buffered bytes which are written at once to the channel.
+     */
+    public static final int FLUSH_SIZE = 1 << 20;
+
+    /**
+     * The buffered writer which is used to write to the mapping file, or
+     * <code>null</code> if the records are formatted into bytes.
      */
     private BufferedWriter bufferedWriter;
+    /**
+     * The stream of the mapping file if the records are formatted into bytes.
+     */
+    private OutputStream outputStream;
+    /**
+     * The channel of the output stream.
+     */
+    private WritableByteChannel channel;
+    /**
+     * The buffer of the formatted records.
+     */
+    private SamRecordFormatter formatter;
     /**
      * Flag which indicates whether the header was already written or not.
      */
@@ -68,7 +96,25 @@ public class SamWriter implements MappingFileWriter {
      *             if an I/O error occurs
      */
     public SamWriter(File file) throws IOException {
-        this(new FileWriter(file));
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a new writer which formats the alignment records into bytes and
+     * writes them to the given stream. The stream is closed when the writer
+     * is closed.
+     *
+     * @param outputStream
+     *            the stream of the mapping file
+     */
+    public SamWriter(OutputStream outputStream) {
+        this.outputStream = outputStream;
+        if (outputStream instanceof FileOutputStream) {
+            this.channel = ((FileOutputStream) outputStream).getChannel();
+        } else {
+            this.channel = Channels.newChannel(outputStream);
+        }
+        this.formatter = new SamRecordFormatter(FLUSH_SIZE + (FLUSH_SIZE >> 3));
     }
 
     @Override
@@ -78,15 +124,27 @@ public class SamWriter implements MappingFileWriter {
         if (headerWritten) {
             throw new IllegalStateException("Illegal header access!");
         }
-        this.bufferedWriter.write(samFileHeader.toString() + "\n");
-        this.bufferedWriter.flush();
+        if (formatter != null) {
+            formatter.append(samFileHeader.toString());
+            formatter.append("\n");
+        } else {
+            this.bufferedWriter.write(samFileHeader.toString() + "\n");
+        }
+        flush();
         headerWritten = true;
     }
 
     @Override
     public void writeRecord(AlignmentRecord samBodyRecord) throws IOException {
-        this.bufferedWriter.write(samBodyRecord.toString() + "\n");
-        this.bufferedWriter.flush();
+        if (formatter != null) {
+            formatter.format(samBodyRecord);
+            if (formatter.size() >= FLUSH_SIZE) {
+                formatter.writeTo(channel);
+            }
+        } else {
+            this.bufferedWriter.write(samBodyRecord.toString());
+            this.bufferedWriter.write('\n');
+        }
     }
 
     /**
@@ -105,8 +163,53 @@ public class SamWriter implements MappingFileWriter {
         }
     }
 
+    /**
+     * Writes alignment records already formatted as SAM lines, for example by
+     * another thread. The formatter is emptied.
+     *
+     * @param lines
+     *            the formatted records
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void writeLines(SamRecordFormatter lines) throws IOException {
+        if (formatter != null) {
+            if (formatter.size() > 0) {
+                formatter.writeTo(channel);
+            }
+            lines.writeTo(channel);
+        } else {
+            this.bufferedWriter.write(lines.toString());
+            lines.clear();
+        }
+    }
+
+    /**
+     * Writes the buffered records to the mapping file.
+     *
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        if (formatter != null) {
+            formatter.writeTo(channel);
+            outputStream.flush();
+        } else {
+            this.bufferedWriter.flush();
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        this.bufferedWriter.close();
+        if (formatter != null) {
+            try {
+                formatter.writeTo(channel);
+            } finally {
+                channel.close();
+                outputStream.close();
+            }
+        } else {
+            this.bufferedWriter.close();
+        }
     }
 }
@@ -20,67 +20,46 @@ package hu.astrid.mapping.io;
 
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.OptionalTag;
-import java.nio.BufferOverflowException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
- * Conversions for serialization
+ * Conversions for serialization. Strings are stored by their length as a
+ * variable length integer, followed by their characters narrowed to bytes, so
+ * there is no limit on their length.
  * @author Szuni
  */
 public class SerializationUtil {
-	/**Size of the buffer used to serialize a record*/
-	public static final int BUFFER_SIZE = 1536;
+
+	/**Charset which maps bytes to characters one to one*/
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
 
 	/**
 	 * Write an {@link AlignmentRecord} to a {@link ByteBuffer} for serialization
 	 * @param r alignment record
-	 * @return bytebuffer able to serialize
-	 * @throws BufferOverflowException when the buffers size too small
+	 * @return bytebuffer able to serialize, its {@code position} points to the end of the record
 	 */
 	public static ByteBuffer toByteBuffer(AlignmentRecord r) {
-		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-
-		buffer.put((byte) r.getQueryName().length());
-		buffer.put(getBytes(r.getQueryName()));
-		buffer.putShort(r.getFlag());
-		buffer.put((byte) r.getReferenceName().length());
-		buffer.put(getBytes(r.getReferenceName()));
-		buffer.putInt(r.getPosition());
-		buffer.put(r.getMappingQuality());
-		buffer.put((byte) r.getCigar().length());
-		buffer.put(getBytes(r.getCigar()));
-		buffer.put((byte) r.getMateReferenceName().length());
-		buffer.put(getBytes(r.getMateReferenceName()));
-		buffer.putInt(r.getMatePosition());
-		buffer.putInt(r.getInsertSize());
-		buffer.put((byte) r.getSequence().length());
-		buffer.put(getBytes(r.getSequence()));
-		buffer.put((byte) r.getQuality().length());
-		buffer.put(getBytes(r.getQuality()));
-
-		buffer.putInt(r.listOptionalTags().size());
-		for(OptionalTag tag : r.listOptionalTags()) {
-			appendToByteBuffer(tag, buffer);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(r, new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
 		}
-
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		buffer.position(buffer.limit());
 		return buffer;
 	}
 
-	/**
-	 * Append an {@link OptionalTag} to a {@link ByteBuffer} for serialization
-	 * @param o optional tag
-	 * @param buffer bytebuffer
-	 * @throws BufferOverflowException when the buffers size too small
-	 */
-	private static void appendToByteBuffer(OptionalTag o, ByteBuffer buffer) {
-		buffer.put((byte) o.getTagName().length());
-		buffer.put(getBytes(o.getTagName()));
-		buffer.put((byte)o.getValueType());
-		buffer.put((byte) o.getValue().length());
-		buffer.put(getBytes(o.getValue()));
-	}
-
 	/**
 	 * Reads an {@link AlignmentRecord} from a {@link ByteBuffer}. After the load
 	 * the buffers {@code position} points to the end of loaded alignment record.
@@ -89,91 +68,112 @@ public class SerializationUtil {
 	 * @throws BufferUnderflowException when whole record isnt loaded
 	 */
 	public static AlignmentRecord fromByteBuffer(ByteBuffer buffer) {
-		AlignmentRecord record = new AlignmentRecord();
-		byte array[];
-
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		record.setQueryName(makeString(array));
-		record.setFlag(buffer.getShort());
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		record.setReferenceName(makeString(array));
-		record.setPosition(buffer.getInt());
-		record.setMappingQuality(buffer.get());
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		record.setCigar(makeString(array));
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		record.setMateReferenceName(makeString(array));
-		record.setMatePosition(buffer.getInt());
-		record.setInsertSize(buffer.getInt());
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		record.setSequence(makeString(array));
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		record.setQuality(makeString(array));
-
-
-		int count = buffer.getInt();
+		ByteArrayInputStream bytes = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+				buffer.remaining());
+		AlignmentRecord record;
+		try {
+			record = read(new DataInputStream(bytes));
+		} catch (IOException e) {
+			throw new BufferUnderflowException();
+		}
+		buffer.position(buffer.limit() - bytes.available());
+		return record;
+	}
+
+	/**
+	 * Write an {@link AlignmentRecord} to a {@link DataOutput}
+	 * @param r alignment record
+	 * @param out output
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void write(AlignmentRecord r, DataOutput out) throws IOException {
+		writeString(r.getQueryName(), out);
+		out.writeShort(r.getFlag());
+		writeString(r.getReferenceName(), out);
+		out.writeInt(r.getPosition());
+		out.writeByte(r.getMappingQuality());
+		writeString(r.getCigar(), out);
+		writeString(r.getMateReferenceName(), out);
+		out.writeInt(r.getMatePosition());
+		out.writeInt(r.getInsertSize());
+		writeString(r.getSequence(), out);
+		writeString(r.getQuality(), out);
+
+		writeLength(r.listOptionalTags().size(), out);
+		for(OptionalTag tag : r.listOptionalTags()) {
+			writeString(tag.getTagName(), out);
+			out.writeByte(tag.getValueType());
+			writeString(tag.getValue(), out);
+		}
+	}
 
+	/**
+	 * Reads an {@link AlignmentRecord} from a {@link DataInput}
+	 * @param in input
+	 * @return loaded alignment record
+	 * @throws IOException if an I/O error occurs or the input ends before the record
+	 */
+	public static AlignmentRecord read(DataInput in) throws IOException {
+		AlignmentRecord record = new AlignmentRecord();
+		record.setQueryName(readString(in));
+		record.setFlag(in.readShort());
+		record.setReferenceName(readString(in));
+		record.setPosition(in.readInt());
+		record.setMappingQuality(in.readByte());
+		record.setCigar(readString(in));
+		record.setMateReferenceName(readString(in));
+		record.setMatePosition(in.readInt());
+		record.setInsertSize(in.readInt());
+		record.setSequence(readString(in));
+		record.setQuality(readString(in));
+
+		int count = readLength(in);
 		for(int i=0; i<count; ++i) {
-			record.addOptionalTag(tagFromByteBuffer(buffer));
+			OptionalTag tag = new OptionalTag();
+			tag.setTagName(readString(in));
+			tag.setValueType((char) (in.readByte() & 0xFF));
+			tag.setValue(readString(in));
+			record.addOptionalTag(tag);
 		}
 
 		return record;
 	}
 
 	/**
-	 * Reads an {@link OptionalTag} from a {@link ByteBuffer}. After the load
-	 * the buffers {@code position} points to the end of loaded tag.
-	 * @param buffer bytebuffer loaded from serilized file
-	 * @return loaded optional tag
-	 * @throws BufferUnderflowException when whole tag isnt loaded
+	 * Writes a string with its length. Uses only size narrowing from character to byte
 	 */
-	private static OptionalTag tagFromByteBuffer(ByteBuffer buffer) {
-		OptionalTag tag = new OptionalTag();
-		byte array[];
-
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		tag.setTagName(makeString(array));
-		tag.setValueType((char)buffer.get());
-		array = new byte[buffer.get()];
-		buffer.get(array);
-		tag.setValue(makeString(array));
-
-		return tag;
+	private static void writeString(String string, DataOutput out) throws IOException {
+		writeLength(string.length(), out);
+		out.write(string.getBytes(LATIN1));
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte array[] = new byte[readLength(in)];
+		in.readFully(array);
+		return new String(array, LATIN1);
 	}
 
 	/**
-	 * Convert a {@link String} to array of {@code byte}s. Uses only size narrowing
-	 * from character[] to byte[]
-	 * @param string string to convert
-	 * @return characters of string in array of bytes
+	 * Writes a non-negative integer in 7 bit groups, the highest bit of a byte
+	 * is set if further bytes follow.
 	 */
-	private static byte[] getBytes(String string) {
-		byte array[] = new byte[string.length()];
-		for(int i=0; i<string.length(); ++i) {
-			array[i] = (byte) string.charAt(i);
+	private static void writeLength(int length, DataOutput out) throws IOException {
+		while ((length & ~0x7F) != 0) {
+			out.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
 		}
-		return array;
+		out.writeByte(length);
 	}
 
-	/**
-	 * Construct a {@link String} from array of bytes. Make char[] from byte[] and
-	 * construct a String. Charset conversion doesnt occurs, not like constructing from
-	 * byte[]
-	 * @param bytes array of bytes
-	 * @return constructed string
-	 */
-	private static String makeString(byte[] bytes) {
-		char chars[] = new char[bytes.length];
-		for(int i=0; i<bytes.length; ++i) {
-			chars[i]=(char) bytes[i];
+	private static int readLength(DataInput in) throws IOException {
+		int length = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return length;
+			}
 		}
-		return new String(chars);
+		throw new IOException("Invalid length");
 	}
 }
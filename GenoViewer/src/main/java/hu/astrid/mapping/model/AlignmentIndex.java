@@ -0,0 +1,52 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.model;
+
+/**
+ * Common interface of the BAM index formats used for region queries.
+ */
+public interface AlignmentIndex {
+
+	/**
+	 * @return the number of reference sequences in the index
+	 */
+	int getReferenceCount();
+
+	/**
+	 * Plans the reading of the records which start in a region of a reference
+	 * sequence.
+	 *
+	 * @param referenceIndex
+	 *            the index of the reference sequence
+	 * @param start
+	 *            1-based start of the region, inclusive
+	 * @param end
+	 *            1-based end of the region, exclusive
+	 * @return the start and end virtual file offsets of the disjoint file
+	 *         sections to be read, in file order
+	 * @see PackedReferenceIndex#planQuery(int, int)
+	 */
+	long[] planQuery(int referenceIndex, int start, int end);
+
+	/**
+	 * @param referenceIndex
+	 *            the index of the reference sequence
+	 * @return the packed index of the reference sequence
+	 */
+	PackedReferenceIndex getPackedIndex(int referenceIndex);
+}
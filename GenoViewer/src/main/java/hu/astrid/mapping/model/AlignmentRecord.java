@@ -218,7 +218,7 @@ public class AlignmentRecord extends AlignmentPosition {
 	public OptionalTag getOptionalTag(String tagName) {
 		OptionalTag optionalTag = null;
 
-		for (OptionalTag tag : this.optionalTags) {
+		for (OptionalTag tag : listOptionalTags()) {
 			if (tag.getTagName().equals(tagName)) {
 				optionalTag = tag;
 				break;
@@ -244,7 +244,7 @@ public class AlignmentRecord extends AlignmentPosition {
 	
 	@Override
 	public int getReadLength() {
-		return this.sequence.length();
+		return getSequence().length();
 	}
 
 	/**
@@ -254,19 +254,20 @@ public class AlignmentRecord extends AlignmentPosition {
 	 * @return covered sequence length
 	 */
 	public int getCoveredLength(boolean instertionExcluded) {
+		String cigar = getCigar();
 		int length = getReadLength();
 		for(int i=0; i<cigar.length(); ++i) {
 			switch(cigar.charAt(i)) {
 				case 'I':
 					if(instertionExcluded) {
-						length-=getCigarNumberBeforePosition(i);
+						length-=getCigarNumberBeforePosition(cigar, i);
 					}
 					break;
 				case 'S':
-					length-=getCigarNumberBeforePosition(i);
+					length-=getCigarNumberBeforePosition(cigar, i);
 					break;
 				case 'D':
-					length+=getCigarNumberBeforePosition(i);
+					length+=getCigarNumberBeforePosition(cigar, i);
 					break;
 			}
 		}
@@ -275,10 +276,11 @@ public class AlignmentRecord extends AlignmentPosition {
 
 	/**
 	 * Get number of nucleotides covered by cigar operator
+	 * @param cigar cigar string
 	 * @param position position of operator in cigar string
 	 * @return number befor specified operator
 	 */
-	private int getCigarNumberBeforePosition(int position) {
+	private static int getCigarNumberBeforePosition(String cigar, int position) {
 		for(int i=position-1; i>=-1; --i) {
 			if(i==-1 || !Character.isDigit(cigar.charAt(i))) {
 				return Integer.parseInt(cigar.substring(i+1, position));
@@ -291,14 +293,14 @@ public class AlignmentRecord extends AlignmentPosition {
 	public String toString() {
 		StringBuilder result = new StringBuilder();
 
-		result.append(queryName).append('\t').append(flag).append('\t').append(
-				referenceName).append('\t').append(position).append('\t')
-				.append(mappingQuality & 0xFF).append('\t').append(cigar)
-				.append('\t').append(mateReferenceName).append('\t').append(
-						matePosition).append('\t').append(insertSize).append(
-						'\t').append(sequence).append('\t').append(quality);
+		result.append(getQueryName()).append('\t').append(getFlag()).append('\t').append(
+				getReferenceName()).append('\t').append(getPosition()).append('\t')
+				.append(getMappingQuality() & 0xFF).append('\t').append(getCigar())
+				.append('\t').append(getMateReferenceName()).append('\t').append(
+						getMatePosition()).append('\t').append(getInsertSize()).append(
+						'\t').append(getSequence()).append('\t').append(getQuality());
 
-		for (OptionalTag optionalTag : this.optionalTags) {
+		for (OptionalTag optionalTag : listOptionalTags()) {
 			result.append('\t').append(optionalTag.toString());
 		}
 
@@ -309,11 +311,16 @@ public class AlignmentRecord extends AlignmentPosition {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		String cigar = getCigar();
+		String mateReferenceName = getMateReferenceName();
+		List<OptionalTag> optionalTags = listOptionalTags();
+		String quality = getQuality();
+		String sequence = getSequence();
 		result = prime * result + ((cigar == null) ? 0 : cigar.hashCode());
-		result = prime * result + flag;
-		result = prime * result + insertSize;
-		result = prime * result + mappingQuality;
-		result = prime * result + matePosition;
+		result = prime * result + getFlag();
+		result = prime * result + getInsertSize();
+		result = prime * result + getMappingQuality();
+		result = prime * result + getMatePosition();
 		result = prime
 				* result
 				+ ((mateReferenceName == null) ? 0 : mateReferenceName
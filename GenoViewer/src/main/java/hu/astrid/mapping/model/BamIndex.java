@@ -20,24 +20,80 @@ package hu.astrid.mapping.model;
 import hu.astrid.mapping.util.BamUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 /**
- * Instances of this class represent indices built for a BAM file.
+ * Instances of this class represent indices built for a BAM file. Queries use
+ * the packed form of the reference indices. An index read from a file keeps
+ * only this packed form, and loads it for a reference sequence when it is
+ * first queried.
  */
-public class BamIndex {
+public class BamIndex implements AlignmentIndex {
 
 	/**
-	 * The list of indices built for specific reference sequences.
+	 * Supplies the packed indices of the reference sequences of an index file.
 	 */
-	private List<ReferenceIndex> referenceIndices = new ArrayList<ReferenceIndex>();
+	public interface ReferenceIndexSource {
+
+		/**
+		 * @return the number of reference sequences in the index
+		 */
+		int getReferenceCount();
+
+		/**
+		 * Loads the index of a reference sequence.
+		 *
+		 * @param referenceIndex
+		 *            the index of the reference sequence
+		 * @return the packed reference index
+		 */
+		PackedReferenceIndex load(int referenceIndex);
+	}
+
+	/**
+	 * The list of indices built for specific reference sequences, {@code null}
+	 * until it is requested for an index loaded from a source.
+	 */
+	private List<ReferenceIndex> referenceIndices;
+
+	/**
+	 * The packed form of the reference indices, created on their first query.
+	 */
+	private PackedReferenceIndex[] packedIndices;
+
+	/**
+	 * Supplies the packed reference indices, {@code null} if the index was
+	 * built in memory.
+	 */
+	private final ReferenceIndexSource source;
 
 	/**
 	 * Creates an empty instance.
 	 */
 	public BamIndex() {
+		this.referenceIndices = new ArrayList<ReferenceIndex>();
+		this.packedIndices = new PackedReferenceIndex[0];
+		this.source = null;
+	}
 
+	/**
+	 * Creates an index whose reference indices are loaded from the given
+	 * source on their first use.
+	 *
+	 * @param source
+	 *            supplies the packed reference indices
+	 */
+	public BamIndex(ReferenceIndexSource source) {
+		this.referenceIndices = null;
+		this.packedIndices = new PackedReferenceIndex[source.getReferenceCount()];
+		this.source = source;
+	}
+
+	@Override
+	public synchronized int getReferenceCount() {
+		return referenceIndices != null ? referenceIndices.size() : packedIndices.length;
 	}
 	
 	public List<Chunk> getChunks(int referenceIndex, int start, int end) {
@@ -55,6 +111,33 @@ public class BamIndex {
         return chunks;
     }
 
+	@Override
+	public long[] planQuery(int referenceIndex, int start, int end) {
+		return getPackedIndex(referenceIndex).planQuery(start, end);
+	}
+
+	/**
+	 * Returns the packed form of the index of a reference sequence. It is
+	 * loaded or created on the first call, so the reference index must not be
+	 * modified afterwards.
+	 *
+	 * @param referenceIndex
+	 *            the index of the reference sequence
+	 * @return the packed reference index
+	 */
+	@Override
+	public synchronized PackedReferenceIndex getPackedIndex(int referenceIndex) {
+		if (referenceIndices != null && packedIndices.length != referenceIndices.size()) {
+			packedIndices = Arrays.copyOf(packedIndices, referenceIndices.size());
+		}
+		if (packedIndices[referenceIndex] == null) {
+			packedIndices[referenceIndex] = source != null && referenceIndices == null
+				? source.load(referenceIndex)
+				: PackedReferenceIndex.pack(referenceIndices.get(referenceIndex));
+		}
+		return packedIndices[referenceIndex];
+	}
+
 	/**
 	 * Returns the chunks of a given reference sequence, for given bins.
 	 * 
@@ -65,7 +148,7 @@ public class BamIndex {
 	 * @return the list of chunks which belong to any of the bins
 	 */
 	public List<Chunk> getChunks(int index, List<Integer> binIds) {
-		return referenceIndices.get(index).getChunks(binIds);
+		return getReferenceIndices().get(index).getChunks(binIds);
 	}
 
 	/**
@@ -78,7 +161,7 @@ public class BamIndex {
 	 * @return the list of chunks which belong the bin
 	 */
 	public List<Chunk> getChunks(int index, int binId) {
-		return referenceIndices.get(index).getChunks(binId);
+		return getReferenceIndices().get(index).getChunks(binId);
 	}
 
 	/**
@@ -92,22 +175,31 @@ public class BamIndex {
 	 * @return the linear offset
 	 */
 	public VirtualFileOffset linearIndexOf(int index, int position) {
-		if (referenceIndices.get(index).getLinearIndices() == null
-				|| referenceIndices.get(index).getLinearIndices().isEmpty()) {
+		List<VirtualFileOffset> linearIndices = getReferenceIndices().get(index).getLinearIndices();
+		if (linearIndices == null || linearIndices.isEmpty()) {
 			return null;
 		}
 		try {
-			return referenceIndices.get(index).getLinearIndices().get(
-				position >>> 14);
+			return linearIndices.get(position >>> 14);
 		} catch (IndexOutOfBoundsException e) {
 			return null;
 		}
 	}
 
 	/**
+	 * Returns the object form of the reference indices. For an index loaded
+	 * from a source, it loads every reference index on the first call.
+	 *
 	 * @return reference indexes
 	 */
-	public List<ReferenceIndex> getReferenceIndices() {
+	public synchronized List<ReferenceIndex> getReferenceIndices() {
+		if (referenceIndices == null) {
+			List<ReferenceIndex> unpacked = new ArrayList<ReferenceIndex>(packedIndices.length);
+			for (int i = 0; i < packedIndices.length; ++i) {
+				unpacked.add(getPackedIndex(i).unpack());
+			}
+			referenceIndices = unpacked;
+		}
 		return this.referenceIndices;
 	}
 
@@ -115,8 +207,8 @@ public class BamIndex {
 	 * @param referenceIndex
 	 *            a reference index
 	 */
-	public void addReferenceIndex(ReferenceIndex referenceIndex) {
-		this.referenceIndices.add(referenceIndex);
+	public synchronized void addReferenceIndex(ReferenceIndex referenceIndex) {
+		getReferenceIndices().add(referenceIndex);
 	}
 	
 	@Override
@@ -134,13 +226,13 @@ public class BamIndex {
 	
 	@Override
 	public int hashCode() {
-		return referenceIndices.hashCode();
+		return getReferenceIndices().hashCode();
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder result = new StringBuilder(BamUtil.BAI_MAGIC_STRING);
-		for (ReferenceIndex refI : referenceIndices) {
+		for (ReferenceIndex refI : getReferenceIndices()) {
 			result.append("\n");
 			result.append(refI);
 		}
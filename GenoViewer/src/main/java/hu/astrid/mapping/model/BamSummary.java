@@ -0,0 +1,248 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.model;
+
+import java.io.File;
+
+/**
+ * Statistics of a BAM file collected in a single pass over its records: the
+ * read counts, the longest read and the covered region of each reference
+ * sequence.
+ * <p>
+ * The summary is saved next to the BAM file, so the viewer knows these values
+ * without reading the records when the file is opened again.
+ */
+public class BamSummary {
+
+	/**
+	 * Suffix of the summary file, appended to the name of the BAM file.
+	 */
+	public static final String FILE_SUFFIX = ".summary";
+
+	/**
+	 * Length of the summarized BAM file.
+	 */
+	private final long bamLength;
+
+	/**
+	 * Last modification time of the summarized BAM file.
+	 */
+	private final long bamModified;
+
+	/**
+	 * Number of records without reference sequence.
+	 */
+	private final long unplacedCount;
+
+	/**
+	 * Number of mapped records of each reference sequence.
+	 */
+	private final long[] readCounts;
+
+	/**
+	 * Number of unmapped records placed on each reference sequence.
+	 */
+	private final long[] unmappedCounts;
+
+	/**
+	 * Length of the longest read of each reference sequence.
+	 */
+	private final int[] maxReadLengths;
+
+	/**
+	 * 1-based position of the first mapped read of each reference sequence,
+	 * 0 if there is none.
+	 */
+	private final int[] firstPositions;
+
+	/**
+	 * 1-based position following the last aligned base of each reference
+	 * sequence, 0 if there is no mapped read.
+	 */
+	private final int[] endPositions;
+
+	/**
+	 * Creates a summary.
+	 * 
+	 * @param bamLength
+	 *            length of the summarized BAM file
+	 * @param bamModified
+	 *            last modification time of the summarized BAM file
+	 * @param unplacedCount
+	 *            number of records without reference sequence
+	 * @param readCounts
+	 *            number of mapped records of each reference sequence
+	 * @param unmappedCounts
+	 *            number of unmapped records placed on each reference sequence
+	 * @param maxReadLengths
+	 *            length of the longest read of each reference sequence
+	 * @param firstPositions
+	 *            position of the first mapped read of each reference sequence
+	 * @param endPositions
+	 *            position following the last aligned base of each reference
+	 *            sequence
+	 */
+	public BamSummary(long bamLength, long bamModified, long unplacedCount, long[] readCounts,
+		long[] unmappedCounts, int[] maxReadLengths, int[] firstPositions, int[] endPositions) {
+		this.bamLength = bamLength;
+		this.bamModified = bamModified;
+		this.unplacedCount = unplacedCount;
+		this.readCounts = readCounts;
+		this.unmappedCounts = unmappedCounts;
+		this.maxReadLengths = maxReadLengths;
+		this.firstPositions = firstPositions;
+		this.endPositions = endPositions;
+	}
+
+	/**
+	 * Returns the summary file of a BAM file.
+	 * 
+	 * @param bamFile
+	 *            the BAM file
+	 * @return the file next to the BAM file, where its summary is saved
+	 */
+	public static File fileOf(File bamFile) {
+		return new File(bamFile.getPath() + FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns the summary file of a BAM file in a cache directory, used when
+	 * the summary cannot be saved next to the BAM file. The name is made of
+	 * the path, the length and the modification time of the BAM file, so a
+	 * changed file gets a new entry.
+	 * 
+	 * @param bamFile
+	 *            the BAM file
+	 * @param cacheDirectory
+	 *            directory of cached summaries
+	 * @return the file in the cache directory, where its summary is saved
+	 */
+	public static File cacheFileOf(File bamFile, File cacheDirectory) {
+		return new File(cacheDirectory, cachePrefixOf(bamFile) + Long.toHexString(bamFile.length()) + '.'
+			+ Long.toHexString(bamFile.lastModified()) + FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns the common prefix of the cached summary file names of a BAM
+	 * file, which identifies its path.
+	 * 
+	 * @param bamFile
+	 *            the BAM file
+	 * @return prefix of the names of its cached summaries
+	 */
+	public static String cachePrefixOf(File bamFile) {
+		return bamFile.getName() + '.' + Integer.toHexString(bamFile.getAbsolutePath().hashCode()) + '.';
+	}
+
+	/**
+	 * Checks whether the summary was made of the actual content of a BAM file,
+	 * by its length and modification time.
+	 * 
+	 * @param bamFile
+	 *            the BAM file
+	 * @return true, if the file was not changed since it was summarized
+	 */
+	public boolean isUpToDate(File bamFile) {
+		return bamFile.length() == bamLength && bamFile.lastModified() == bamModified;
+	}
+
+	/**
+	 * @return length of the summarized BAM file
+	 */
+	public long getBamLength() {
+		return bamLength;
+	}
+
+	/**
+	 * @return last modification time of the summarized BAM file
+	 */
+	public long getBamModified() {
+		return bamModified;
+	}
+
+	/**
+	 * @return the number of reference sequences
+	 */
+	public int getReferenceCount() {
+		return readCounts.length;
+	}
+
+	/**
+	 * @return the number of records without reference sequence
+	 */
+	public long getUnplacedCount() {
+		return unplacedCount;
+	}
+
+	/**
+	 * @param referenceIndex
+	 *            index of the reference sequence
+	 * @return the number of mapped records of the reference sequence
+	 */
+	public long getReadCount(int referenceIndex) {
+		return readCounts[referenceIndex];
+	}
+
+	/**
+	 * @param referenceIndex
+	 *            index of the reference sequence
+	 * @return the number of unmapped records placed on the reference sequence
+	 */
+	public long getUnmappedCount(int referenceIndex) {
+		return unmappedCounts[referenceIndex];
+	}
+
+	/**
+	 * @param referenceIndex
+	 *            index of the reference sequence
+	 * @return the length of the longest read of the reference sequence
+	 */
+	public int getMaxReadLength(int referenceIndex) {
+		return maxReadLengths[referenceIndex];
+	}
+
+	/**
+	 * @return the length of the longest read of the file
+	 */
+	public int getMaxReadLength() {
+		int maxReadLength = 0;
+		for (int length : maxReadLengths) {
+			maxReadLength = Math.max(maxReadLength, length);
+		}
+		return maxReadLength;
+	}
+
+	/**
+	 * @param referenceIndex
+	 *            index of the reference sequence
+	 * @return 1-based position of the first mapped read, 0 if there is none
+	 */
+	public int getFirstPosition(int referenceIndex) {
+		return firstPositions[referenceIndex];
+	}
+
+	/**
+	 * @param referenceIndex
+	 *            index of the reference sequence
+	 * @return 1-based position following the last aligned base, 0 if there is
+	 *         no mapped read
+	 */
+	public int getEndPosition(int referenceIndex) {
+		return endPositions[referenceIndex];
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.model;
+
+/**
+ * Hierarchical binning scheme of BAM indices. The bins of the deepest level
+ * are {@code 2^minShift} bases long, and each level above has 8 times longer
+ * bins. The bins are numbered level by level from the single bin of level 0,
+ * so the classic BAI scheme with a minimum shift of 14 and a depth of 5
+ * covers positions below 2^29 with bins 0 to 37448.
+ */
+public class BinningScheme {
+
+	/**
+	 * The binning scheme of BAI files.
+	 */
+	public static final BinningScheme BAI = new BinningScheme(14, 5);
+
+	/**
+	 * Base 2 logarithm of the bin size on the deepest level.
+	 */
+	private final int minShift;
+
+	/**
+	 * Number of levels below level 0.
+	 */
+	private final int depth;
+
+	/**
+	 * Creates a binning scheme.
+	 *
+	 * @param minShift
+	 *            base 2 logarithm of the bin size on the deepest level
+	 * @param depth
+	 *            number of levels below level 0
+	 * @throws IllegalArgumentException
+	 *             if the parameters are not positive, or the bin IDs of the
+	 *             scheme do not fit in an int
+	 */
+	public BinningScheme(int minShift, int depth) {
+		if (minShift <= 0 || depth <= 0 || depth > 9) {
+			throw new IllegalArgumentException("Invalid binning scheme: min shift " + minShift + ", depth " + depth);
+		}
+		this.minShift = minShift;
+		this.depth = depth;
+	}
+
+	/**
+	 * Creates the scheme with the given minimum shift and the smallest depth
+	 * which covers a reference sequence of the given length.
+	 *
+	 * @param minShift
+	 *            base 2 logarithm of the bin size on the deepest level
+	 * @param maxLength
+	 *            length of the longest reference sequence
+	 * @return the binning scheme
+	 */
+	public static BinningScheme forLength(int minShift, long maxLength) {
+		int depth = 1;
+		while (minShift + 3 * depth < 63 && 1L << (minShift + 3 * depth) < maxLength) {
+			++depth;
+		}
+		return new BinningScheme(minShift, depth);
+	}
+
+	/**
+	 * @return base 2 logarithm of the bin size on the deepest level
+	 */
+	public int getMinShift() {
+		return minShift;
+	}
+
+	/**
+	 * @return number of levels below level 0
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @param level
+	 *            a level of the scheme, 0 to depth
+	 * @return the ID of the first bin on the level
+	 */
+	public int getFirstBin(int level) {
+		return ((1 << 3 * level) - 1) / 7;
+	}
+
+	/**
+	 * @param level
+	 *            a level of the scheme, 0 to depth
+	 * @return base 2 logarithm of the bin size on the level
+	 */
+	public int getShift(int level) {
+		return minShift + 3 * (depth - level);
+	}
+
+	/**
+	 * Returns the bin on a level which contains a position.
+	 *
+	 * @param level
+	 *            a level of the scheme, 0 to depth
+	 * @param position
+	 *            0-based position on the reference sequence
+	 * @return the ID of the bin
+	 */
+	public int binOf(int level, int position) {
+		int shift = getShift(level);
+		// positions are non-negative ints, so they are all in the first bin
+		// of levels with longer bins
+		return getFirstBin(level) + (shift >= 31 ? 0 : position >>> shift);
+	}
+
+	/**
+	 * Returns the smallest bin which contains a region.
+	 *
+	 * @param begin
+	 *            0-based start of the region, inclusive
+	 * @param last
+	 *            0-based end of the region, inclusive
+	 * @return the ID of the bin
+	 */
+	public int regionToBin(int begin, int last) {
+		for (int level = depth; level > 0; --level) {
+			int bin = binOf(level, begin);
+			if (bin == binOf(level, last)) {
+				return bin;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param binId
+	 *            ID of a bin on a level below level 0
+	 * @return the ID of the bin which contains the given one on the level
+	 *         above
+	 */
+	public int getParent(int binId) {
+		return (binId - 1) >> 3;
+	}
+
+	/**
+	 * @return the ID of the pseudo-bin following the bins of the scheme, which
+	 *         holds the statistics of a reference sequence in index files
+	 */
+	public int getPseudoBin() {
+		return getFirstBin(depth + 1) + 1;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof BinningScheme)) {
+			return false;
+		}
+		BinningScheme other = (BinningScheme) obj;
+		return minShift == other.minShift && depth == other.depth;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * minShift + depth;
+	}
+
+	@Override
+	public String toString() {
+		return "min shift " + minShift + ", depth " + depth;
+	}
+}
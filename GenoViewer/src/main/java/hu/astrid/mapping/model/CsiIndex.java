@@ -0,0 +1,118 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.model;
+
+import java.util.Arrays;
+
+/**
+ * Instances of this class represent CSI indices built for a BAM file. Unlike
+ * a {@link BamIndex}, the binning scheme is configurable, so the index covers
+ * reference sequences longer than 2^29 bases. The reference indices have no
+ * linear index, their bins store the smallest offset of the records
+ * overlapping the start of the bin instead.
+ */
+public class CsiIndex implements AlignmentIndex {
+
+	/**
+	 * The binning scheme of the index.
+	 */
+	private final BinningScheme scheme;
+
+	/**
+	 * Format specific auxiliary data stored in the index file.
+	 */
+	private final byte[] auxiliaryData;
+
+	/**
+	 * The indices of the reference sequences.
+	 */
+	private final PackedReferenceIndex[] referenceIndices;
+
+	/**
+	 * Creates an index.
+	 *
+	 * @param scheme
+	 *            the binning scheme of the reference indices
+	 * @param auxiliaryData
+	 *            auxiliary data of the index file, not copied
+	 * @param referenceIndices
+	 *            the indices of the reference sequences, not copied
+	 * @throws IllegalArgumentException
+	 *             if a reference index uses a different binning scheme
+	 */
+	public CsiIndex(BinningScheme scheme, byte[] auxiliaryData, PackedReferenceIndex[] referenceIndices) {
+		for (PackedReferenceIndex referenceIndex : referenceIndices) {
+			if (!scheme.equals(referenceIndex.getScheme())) {
+				throw new IllegalArgumentException("Reference index with binning scheme " + referenceIndex.getScheme()
+					+ " in an index with " + scheme);
+			}
+		}
+		this.scheme = scheme;
+		this.auxiliaryData = auxiliaryData;
+		this.referenceIndices = referenceIndices;
+	}
+
+	/**
+	 * @return the binning scheme of the index
+	 */
+	public BinningScheme getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * @return the auxiliary data of the index file
+	 */
+	public byte[] getAuxiliaryData() {
+		return auxiliaryData;
+	}
+
+	@Override
+	public int getReferenceCount() {
+		return referenceIndices.length;
+	}
+
+	@Override
+	public PackedReferenceIndex getPackedIndex(int referenceIndex) {
+		return referenceIndices[referenceIndex];
+	}
+
+	@Override
+	public long[] planQuery(int referenceIndex, int start, int end) {
+		return referenceIndices[referenceIndex].planQuery(start, end);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CsiIndex)) {
+			return false;
+		}
+		CsiIndex other = (CsiIndex) obj;
+		return scheme.equals(other.scheme) && Arrays.equals(auxiliaryData, other.auxiliaryData)
+			&& Arrays.equals(referenceIndices, other.referenceIndices);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * scheme.hashCode() + Arrays.hashCode(referenceIndices);
+	}
+
+	@Override
+	public String toString() {
+		return "CSI index, " + scheme + ", " + referenceIndices.length + " references";
+	}
+}
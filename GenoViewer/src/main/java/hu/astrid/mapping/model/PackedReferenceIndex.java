@@ -0,0 +1,523 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of a reference sequence stored in primitive arrays, used to plan the
+ * region queries of a BAM file. The bins are sorted by their IDs and their
+ * chunks are stored in consecutive ranges of the chunk arrays, so the chunks
+ * of a bin range are found with a binary search and no objects are created
+ * while planning a query.
+ * <p>
+ * A BAI index has a linear index of 16 kbp windows, a CSI index stores the
+ * smallest offset of the records overlapping the start of each bin instead.
+ * <p>
+ * Index files written by samtools and by BamIndexBuilder also have a metadata
+ * pseudo-bin, whose first chunk holds the offsets of the first and the last
+ * record of the reference sequence, and whose second chunk holds the number
+ * of mapped and unmapped records. It is not used for region queries.
+ */
+public class PackedReferenceIndex {
+
+	/**
+	 * Base 2 logarithm of the linear index interval length.
+	 */
+	private static final int LINEAR_INDEX_SHIFT = 14;
+
+	/**
+	 * The binning scheme of the bin IDs.
+	 */
+	private final BinningScheme scheme;
+
+	/**
+	 * IDs of the bins in ascending order.
+	 */
+	private final int[] binIds;
+
+	/**
+	 * The chunks of the i-th bin are at indices from {@code binChunks[i]}
+	 * (inclusive) to {@code binChunks[i + 1]} (exclusive) of the chunk arrays.
+	 */
+	private final int[] binChunks;
+
+	/**
+	 * Start offsets of the chunks.
+	 */
+	private final long[] chunkStarts;
+
+	/**
+	 * End offsets of the chunks.
+	 */
+	private final long[] chunkEnds;
+
+	/**
+	 * Virtual file offsets of the 16 kbp windows of the linear index.
+	 */
+	private final long[] linearIndex;
+
+	/**
+	 * Smallest virtual file offset of the records overlapping the start of
+	 * each bin, {@code null} if the index has a linear index.
+	 */
+	private final long[] binOffsets;
+
+	/**
+	 * Creates an instance from arrays in the described layout. The arrays are
+	 * not copied.
+	 *
+	 * @param binIds
+	 *            IDs of the bins in ascending order
+	 * @param binChunks
+	 *            start index of the chunks of each bin, followed by the number
+	 *            of chunks
+	 * @param chunkStarts
+	 *            start offsets of the chunks
+	 * @param chunkEnds
+	 *            end offsets of the chunks
+	 * @param linearIndex
+	 *            offsets of the linear index
+	 */
+	public PackedReferenceIndex(int[] binIds, int[] binChunks, long[] chunkStarts, long[] chunkEnds, long[] linearIndex) {
+		this.scheme = BinningScheme.BAI;
+		this.binIds = binIds;
+		this.binChunks = binChunks;
+		this.chunkStarts = chunkStarts;
+		this.chunkEnds = chunkEnds;
+		this.linearIndex = linearIndex;
+		this.binOffsets = null;
+	}
+
+	/**
+	 * Creates an instance of a CSI index from arrays in the described layout.
+	 * The arrays are not copied.
+	 *
+	 * @param scheme
+	 *            the binning scheme of the bin IDs
+	 * @param binIds
+	 *            IDs of the bins in ascending order
+	 * @param binOffsets
+	 *            smallest offset of the records overlapping the start of each
+	 *            bin
+	 * @param binChunks
+	 *            start index of the chunks of each bin, followed by the number
+	 *            of chunks
+	 * @param chunkStarts
+	 *            start offsets of the chunks
+	 * @param chunkEnds
+	 *            end offsets of the chunks
+	 */
+	public PackedReferenceIndex(BinningScheme scheme, int[] binIds, long[] binOffsets, int[] binChunks,
+		long[] chunkStarts, long[] chunkEnds) {
+		this.scheme = scheme;
+		this.binIds = binIds;
+		this.binChunks = binChunks;
+		this.chunkStarts = chunkStarts;
+		this.chunkEnds = chunkEnds;
+		this.linearIndex = new long[0];
+		this.binOffsets = binOffsets;
+	}
+
+	/**
+	 * Creates an instance from arrays with the bins in file order. The bins
+	 * are sorted by their IDs if they are not in order, otherwise the arrays
+	 * are used as they are.
+	 *
+	 * @param scheme
+	 *            the binning scheme of the bin IDs
+	 * @param binIds
+	 *            IDs of the bins in file order
+	 * @param binOffsets
+	 *            smallest offset of the records overlapping the start of each
+	 *            bin of a CSI index, {@code null} if the index has a linear
+	 *            index
+	 * @param binChunks
+	 *            start index of the chunks of each bin, followed by the number
+	 *            of chunks
+	 * @param chunkStarts
+	 *            start offsets of the chunks
+	 * @param chunkEnds
+	 *            end offsets of the chunks
+	 * @param linearIndex
+	 *            offsets of the linear index, ignored if there are bin offsets
+	 * @return the packed index
+	 */
+	public static PackedReferenceIndex fromFileOrder(BinningScheme scheme, int[] binIds, long[] binOffsets,
+		int[] binChunks, long[] chunkStarts, long[] chunkEnds, long[] linearIndex) {
+		boolean sorted = true;
+		for (int i = 1; i < binIds.length && sorted; ++i) {
+			sorted = binIds[i - 1] < binIds[i];
+		}
+		if (!sorted) {
+			// bin ID in the upper, file order in the lower half
+			long[] order = new long[binIds.length];
+			for (int i = 0; i < binIds.length; ++i) {
+				order[i] = (long) binIds[i] << 32 | i;
+			}
+			Arrays.sort(order);
+
+			int[] sortedIds = new int[binIds.length];
+			long[] sortedOffsets = binOffsets != null ? new long[binIds.length] : null;
+			int[] sortedChunks = new int[binIds.length + 1];
+			long[] sortedStarts = new long[binChunks[binIds.length]];
+			long[] sortedEnds = new long[binChunks[binIds.length]];
+			int chunkIndex = 0;
+			for (int i = 0; i < order.length; ++i) {
+				int bin = (int) order[i];
+				int count = binChunks[bin + 1] - binChunks[bin];
+				sortedIds[i] = binIds[bin];
+				if (sortedOffsets != null) {
+					sortedOffsets[i] = binOffsets[bin];
+				}
+				sortedChunks[i] = chunkIndex;
+				System.arraycopy(chunkStarts, binChunks[bin], sortedStarts, chunkIndex, count);
+				System.arraycopy(chunkEnds, binChunks[bin], sortedEnds, chunkIndex, count);
+				chunkIndex += count;
+			}
+			sortedChunks[order.length] = chunkIndex;
+
+			binIds = sortedIds;
+			binOffsets = sortedOffsets;
+			binChunks = sortedChunks;
+			chunkStarts = sortedStarts;
+			chunkEnds = sortedEnds;
+		}
+		if (binOffsets != null) {
+			return new PackedReferenceIndex(scheme, binIds, binOffsets, binChunks, chunkStarts, chunkEnds);
+		}
+		return new PackedReferenceIndex(binIds, binChunks, chunkStarts, chunkEnds, linearIndex);
+	}
+
+	/**
+	 * Creates the packed form of a reference index.
+	 *
+	 * @param referenceIndex
+	 *            the index of a reference sequence
+	 * @return the packed index
+	 */
+	public static PackedReferenceIndex pack(ReferenceIndex referenceIndex) {
+		Bin[] bins = referenceIndex.getBins().toArray(new Bin[referenceIndex.getBins().size()]);
+		Arrays.sort(bins);
+
+		int chunkCount = 0;
+		for (Bin bin : bins) {
+			chunkCount += bin.getChunks().size();
+		}
+		int[] binIds = new int[bins.length];
+		int[] binChunks = new int[bins.length + 1];
+		long[] chunkStarts = new long[chunkCount];
+		long[] chunkEnds = new long[chunkCount];
+		int chunkIndex = 0;
+		for (int i = 0; i < bins.length; ++i) {
+			binIds[i] = bins[i].getId();
+			binChunks[i] = chunkIndex;
+			for (Chunk chunk : bins[i].getChunks()) {
+				chunkStarts[chunkIndex] = chunk.getStartOffset().longRepresentation();
+				chunkEnds[chunkIndex] = chunk.getEndOffset().longRepresentation();
+				++chunkIndex;
+			}
+		}
+		binChunks[bins.length] = chunkIndex;
+
+		List<VirtualFileOffset> offsets = referenceIndex.getLinearIndices();
+		long[] linearIndex = new long[offsets.size()];
+		for (int i = 0; i < linearIndex.length; ++i) {
+			linearIndex[i] = offsets.get(i).longRepresentation();
+		}
+
+		return new PackedReferenceIndex(binIds, binChunks, chunkStarts, chunkEnds, linearIndex);
+	}
+
+	/**
+	 * @return the binning scheme of the bin IDs
+	 */
+	public BinningScheme getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * @return number of bins
+	 */
+	public int getBinCount() {
+		return binIds.length;
+	}
+
+	/**
+	 * @param bin
+	 *            index of a bin, in ascending order of the IDs
+	 * @return the ID of the bin
+	 */
+	public int getBinId(int bin) {
+		return binIds[bin];
+	}
+
+	/**
+	 * @param bin
+	 *            index of a bin, in ascending order of the IDs
+	 * @return the smallest offset of the records overlapping the start of the
+	 *         bin, -1 if the index has a linear index instead
+	 */
+	public long getBinOffset(int bin) {
+		return binOffsets != null ? binOffsets[bin] : -1L;
+	}
+
+	/**
+	 * @param bin
+	 *            index of a bin, in ascending order of the IDs
+	 * @return the start offsets of the chunks of the bin, followed by their
+	 *         end offsets
+	 */
+	public long[] getChunks(int bin) {
+		int count = binChunks[bin + 1] - binChunks[bin];
+		long[] chunks = new long[2 * count];
+		System.arraycopy(chunkStarts, binChunks[bin], chunks, 0, count);
+		System.arraycopy(chunkEnds, binChunks[bin], chunks, count, count);
+		return chunks;
+	}
+
+	/**
+	 * Creates the object form of this index. The bins are in ascending order
+	 * of their IDs, the chunks of a bin and the linear index keep their order.
+	 *
+	 * @return a new reference index
+	 */
+	public ReferenceIndex unpack() {
+		ReferenceIndex referenceIndex = new ReferenceIndex();
+		for (int i = 0; i < binIds.length; ++i) {
+			Bin bin = new Bin(binIds[i]);
+			for (int j = binChunks[i]; j < binChunks[i + 1]; ++j) {
+				bin.addChunk(new Chunk(new VirtualFileOffset(chunkStarts[j]), new VirtualFileOffset(chunkEnds[j])));
+			}
+			referenceIndex.addBin(bin);
+		}
+		for (long offset : linearIndex) {
+			referenceIndex.addLinearIndex(new VirtualFileOffset(offset));
+		}
+		return referenceIndex;
+	}
+
+	/**
+	 * Returns the linear index offset of the window which contains the given
+	 * position.
+	 *
+	 * @param position
+	 *            1-based position on the reference sequence
+	 * @return the smallest offset of the records overlapping the window, or -1
+	 *         if the window is not in the linear index
+	 */
+	public long linearIndexOf(int position) {
+		int window = Math.max(0, position - 1) >>> LINEAR_INDEX_SHIFT;
+		return window < linearIndex.length ? linearIndex[window] : -1L;
+	}
+
+	/**
+	 * Returns the smallest offset of the records overlapping a position of a
+	 * CSI index: the offset of the deepest bin which contains the position
+	 * and has records. It is not larger than the linear index offset of the
+	 * position would be.
+	 *
+	 * @param position
+	 *            1-based position on the reference sequence
+	 * @return the offset, or -1 if no bin contains the position
+	 */
+	private long binOffsetOf(int position) {
+		int bin = scheme.binOf(scheme.getDepth(), Math.max(0, position - 1));
+		while (true) {
+			int i = lowerBound(bin);
+			if (i < binIds.length && binIds[i] == bin) {
+				return binOffsets[i];
+			}
+			if (bin == 0) {
+				return -1L;
+			}
+			bin = scheme.getParent(bin);
+		}
+	}
+
+	/**
+	 * Plans the reading of the records which start in a region. The chunks of
+	 * every bin overlapping the region are collected, the ones which end
+	 * before the linear index offset of the region start are dropped, and the
+	 * others are merged into disjoint sections of the file. The sections start
+	 * no earlier than the linear index offset, as the records before it end
+	 * before the region. A CSI index uses the offset of the deepest bin with
+	 * records which contains the region start instead.
+	 *
+	 * @param start
+	 *            1-based start of the region, inclusive
+	 * @param end
+	 *            1-based end of the region, exclusive
+	 * @return the start and end virtual file offsets of the sections in file
+	 *         order, at even and odd indices respectively
+	 */
+	public long[] planQuery(int start, int end) {
+		if (start >= end || binIds.length == 0) {
+			return new long[0];
+		}
+		int first = Math.max(0, start - 1);
+		int last = Math.max(first, end - 1);
+		long minOffset = Math.max(0L, binOffsets != null ? binOffsetOf(start) : linearIndexOf(start));
+
+		long[] starts = new long[16];
+		long[] ends = new long[16];
+		int count = 0;
+		for (int level = 0; level <= scheme.getDepth(); ++level) {
+			int fromBin = scheme.binOf(level, first);
+			int toBin = scheme.binOf(level, last);
+			int i = lowerBound(fromBin);
+			for (; i < binIds.length && binIds[i] <= toBin; ++i) {
+				for (int j = binChunks[i]; j < binChunks[i + 1]; ++j) {
+					if (chunkEnds[j] <= minOffset) {
+						continue;
+					}
+					if (count == starts.length) {
+						starts = Arrays.copyOf(starts, 2 * count);
+						ends = Arrays.copyOf(ends, 2 * count);
+					}
+					starts[count] = Math.max(chunkStarts[j], minOffset);
+					ends[count] = chunkEnds[j];
+					++count;
+				}
+			}
+		}
+
+		// the union of intervals does not depend on the pairing of the sorted
+		// starts and ends
+		Arrays.sort(starts, 0, count);
+		Arrays.sort(ends, 0, count);
+		long[] plan = new long[2 * count];
+		int size = 0;
+		for (int i = 0; i < count; ++i) {
+			plan[size] = starts[i];
+			while (i + 1 < count && starts[i + 1] <= ends[i]) {
+				++i;
+			}
+			plan[size + 1] = ends[i];
+			size += 2;
+		}
+
+		return size == plan.length ? plan : Arrays.copyOf(plan, size);
+	}
+
+	/**
+	 * Plans the reading of the last records of the reference sequence. The
+	 * section ends at the end of the last chunk, which is the end of the last
+	 * record. It starts at the largest offset of the linear index or of the
+	 * bins before that, all of them are offsets of records not after the last
+	 * one. With a linear index, the section contains every record overlapping
+	 * the last window with records, and it is usually within one or two BGZF
+	 * blocks.
+	 *
+	 * @return the start and end virtual file offsets of the section, or an
+	 *         empty array if the reference sequence has no records
+	 */
+	public long[] planLastRecords() {
+		int binCount = lowerBound(scheme.getPseudoBin());
+		long start = -1L;
+		long end = -1L;
+		for (int j = 0; j < binChunks[binCount]; ++j) {
+			if (chunkEnds[j] > end) {
+				start = chunkStarts[j];
+				end = chunkEnds[j];
+			}
+		}
+		if (end < 0) {
+			return new long[0];
+		}
+		for (long offset : linearIndex) {
+			if (offset < end) {
+				start = Math.max(start, offset);
+			}
+		}
+		if (binOffsets != null) {
+			for (int i = 0; i < binCount; ++i) {
+				if (binOffsets[i] < end) {
+					start = Math.max(start, binOffsets[i]);
+				}
+			}
+		}
+		return new long[] { start, end };
+	}
+
+	/**
+	 * @return the number of mapped records of the reference sequence stored in
+	 *         the metadata pseudo-bin, or -1 if the index has no metadata
+	 */
+	public long getMappedCount() {
+		return metadata(1, false);
+	}
+
+	/**
+	 * @return the number of unmapped records placed on the reference sequence
+	 *         stored in the metadata pseudo-bin, or -1 if the index has no
+	 *         metadata
+	 */
+	public long getUnmappedCount() {
+		return metadata(1, true);
+	}
+
+	/**
+	 * @return an offset of a chunk of the metadata pseudo-bin, or -1 if the
+	 *         index has no metadata
+	 */
+	private long metadata(int chunk, boolean end) {
+		int i = lowerBound(scheme.getPseudoBin());
+		if (i == binIds.length || binIds[i] != scheme.getPseudoBin() || binChunks[i + 1] - binChunks[i] <= chunk) {
+			return -1L;
+		}
+		int j = binChunks[i] + chunk;
+		return end ? chunkEnds[j] : chunkStarts[j];
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PackedReferenceIndex)) {
+			return false;
+		}
+		PackedReferenceIndex other = (PackedReferenceIndex) obj;
+		return scheme.equals(other.scheme) && Arrays.equals(binIds, other.binIds)
+			&& Arrays.equals(binChunks, other.binChunks) && Arrays.equals(chunkStarts, other.chunkStarts)
+			&& Arrays.equals(chunkEnds, other.chunkEnds) && Arrays.equals(linearIndex, other.linearIndex)
+			&& Arrays.equals(binOffsets, other.binOffsets);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(binIds) + Arrays.hashCode(chunkStarts);
+	}
+
+	/**
+	 * @return the index of the first bin whose ID is not less than the given
+	 *         one
+	 */
+	private int lowerBound(int binId) {
+		int low = 0;
+		int high = binIds.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (binIds[middle] < binId) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
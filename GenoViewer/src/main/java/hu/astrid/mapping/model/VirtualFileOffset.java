@@ -95,7 +95,7 @@ public class VirtualFileOffset implements Comparable<VirtualFileOffset> {
 	
 	@Override
 	public int hashCode() {
-	    int hash = 31 + (int) blockOffset;
+	    int hash = 31 + (int) (blockOffset ^ (blockOffset >>> 32));
 	    hash = hash * 31 + dataOffset;
 	    return hash;
 	}
@@ -113,10 +113,10 @@ public class VirtualFileOffset implements Comparable<VirtualFileOffset> {
 		if (this.blockOffset > o.getBlockOffset()) {
 			return 1;
 		}
-		if (o.dataOffset < o.getDataOffset()) {
+		if (this.dataOffset < o.getDataOffset()) {
 			return -1;
 		}
-		if (o.dataOffset > o.getDataOffset()) {
+		if (this.dataOffset > o.getDataOffset()) {
 			return 1;
 		}
 		return 0;
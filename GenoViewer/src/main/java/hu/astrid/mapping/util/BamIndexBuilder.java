@@ -0,0 +1,584 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.model.BamIndex;
+import hu.astrid.mapping.model.Bin;
+import hu.astrid.mapping.model.BinningScheme;
+import hu.astrid.mapping.model.Chunk;
+import hu.astrid.mapping.model.CsiIndex;
+import hu.astrid.mapping.model.PackedReferenceIndex;
+import hu.astrid.mapping.model.ReferenceIndex;
+import hu.astrid.mapping.model.VirtualFileOffset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds a {@link BamIndex} incrementally from the coordinate sorted alignment
+ * records of a BAM file: bins with their chunks and the 16 kbp linear index of
+ * every reference sequence. The records of a reference sequence must be
+ * adjacent and sorted by position. The records are given by their position, the
+ * length of the reference region they cover and their location in the file.
+ * <p>
+ * A builder with a binning scheme other than the BAI one builds a
+ * {@link CsiIndex}, its linear index has windows of the smallest bin size.
+ * <p>
+ * Every reference sequence with records gets the metadata pseudo-bin of the
+ * scheme: its first chunk spans the records of the reference, the second one
+ * holds the number of mapped and unmapped records.
+ */
+public class BamIndexBuilder {
+
+	/**
+	 * Converts the record locations given to the builder to virtual file
+	 * offsets, e.g. when the locations are provisional pointers of a writer.
+	 */
+	public interface OffsetResolver {
+
+		/**
+		 * @param offset
+		 *            a record location given to the builder
+		 * @return the virtual file offset of the location
+		 */
+		long resolve(long offset);
+	}
+
+	/**
+	 * The identical resolver.
+	 */
+	private static final OffsetResolver IDENTITY = new OffsetResolver() {
+
+		@Override
+		public long resolve(long offset) {
+			return offset;
+		}
+	};
+
+	/**
+	 * The binning scheme of the index.
+	 */
+	private final BinningScheme scheme;
+
+	private final ReferenceBuilder[] references;
+
+	private int firstReferenceIndex = -1;
+
+	private int firstPosition;
+
+	private int lastReferenceIndex = -1;
+
+	private int lastPosition;
+
+	/**
+	 * Records added by {@link #addPendingRecord}, which are not resolved yet:
+	 * the reference index and position, the reference length and the
+	 * unmapped flag, then the start and end locations of each record.
+	 */
+	private long[] pending = new long[4 * 256];
+
+	/**
+	 * Index of the first pending record.
+	 */
+	private int pendingStart;
+
+	/**
+	 * Index after the last pending record.
+	 */
+	private int pendingEnd;
+
+	/**
+	 * Creates a new builder.
+	 *
+	 * @param referenceCount
+	 *            number of reference sequences in the header of the BAM file
+	 */
+	public BamIndexBuilder(int referenceCount) {
+		this(referenceCount, BinningScheme.BAI);
+	}
+
+	/**
+	 * Creates a new builder with the given binning scheme.
+	 *
+	 * @param referenceCount
+	 *            number of reference sequences in the header of the BAM file
+	 * @param scheme
+	 *            the binning scheme of the index
+	 */
+	public BamIndexBuilder(int referenceCount, BinningScheme scheme) {
+		this.scheme = scheme;
+		references = new ReferenceBuilder[referenceCount];
+		for (int i = 0; i < referenceCount; ++i) {
+			references[i] = new ReferenceBuilder();
+		}
+	}
+
+	/**
+	 * Adds the next alignment record. Records without reference sequence are
+	 * ignored.
+	 *
+	 * @param referenceIndex
+	 *            index of the reference sequence of the record, -1 if it has
+	 *            none
+	 * @param position
+	 *            1-based position of the record
+	 * @param referenceLength
+	 *            length of the reference region covered by the record
+	 * @param unmapped
+	 *            whether the record is unmapped, placed at the position of
+	 *            its mate
+	 * @param startOffset
+	 *            location of the beginning of the record
+	 * @param endOffset
+	 *            location after the end of the record
+	 * @throws IllegalStateException
+	 *             if the records are not sorted by position within their
+	 *             reference sequence, or the records of a reference sequence
+	 *             are not adjacent
+	 */
+	public void addRecord(int referenceIndex, int position, int referenceLength, boolean unmapped, long startOffset,
+		long endOffset) {
+		if (referenceIndex < 0) {
+			return;
+		}
+		checkOrder(referenceIndex, position);
+		addResolvedRecord(referenceIndex, position, referenceLength, unmapped, startOffset, endOffset);
+	}
+
+	/**
+	 * Adds the next alignment record, whose locations cannot be resolved yet.
+	 * The order of the records is checked immediately, the record is added to
+	 * the index by {@link #resolvePending(OffsetResolver, long)}. Records
+	 * without reference sequence are ignored.
+	 *
+	 * @param referenceIndex
+	 *            index of the reference sequence of the record, -1 if it has
+	 *            none
+	 * @param position
+	 *            1-based position of the record
+	 * @param referenceLength
+	 *            length of the reference region covered by the record
+	 * @param unmapped
+	 *            whether the record is unmapped, placed at the position of
+	 *            its mate
+	 * @param startOffset
+	 *            location of the beginning of the record
+	 * @param endOffset
+	 *            location after the end of the record
+	 * @throws IllegalStateException
+	 *             if the records are not sorted by position within their
+	 *             reference sequence, or the records of a reference sequence
+	 *             are not adjacent
+	 */
+	public void addPendingRecord(int referenceIndex, int position, int referenceLength, boolean unmapped,
+		long startOffset, long endOffset) {
+		if (referenceIndex < 0) {
+			return;
+		}
+		checkOrder(referenceIndex, position);
+		if (4 * pendingEnd == pending.length) {
+			System.arraycopy(pending, 4 * pendingStart, pending, 0, 4 * (pendingEnd - pendingStart));
+			pendingEnd -= pendingStart;
+			pendingStart = 0;
+			if (8 * pendingEnd >= pending.length) {
+				pending = Arrays.copyOf(pending, 2 * pending.length);
+			}
+		}
+		int i = 4 * pendingEnd++;
+		pending[i] = (long) referenceIndex << 32 | position & 0xFFFFFFFFL;
+		pending[i + 1] = (long) referenceLength << 1 | (unmapped ? 1 : 0);
+		pending[i + 2] = startOffset;
+		pending[i + 3] = endOffset;
+	}
+
+	/**
+	 * Adds the pending records to the index whose locations are not after the
+	 * given limit, converting their locations with the given resolver.
+	 *
+	 * @param resolver
+	 *            converts the record locations to virtual file offsets
+	 * @param limit
+	 *            the largest location the resolver can convert
+	 * @return the start location of the first record still pending, or -1 if
+	 *         there is none
+	 */
+	public long resolvePending(OffsetResolver resolver, long limit) {
+		while (pendingStart < pendingEnd && pending[4 * pendingStart + 3] <= limit) {
+			int i = 4 * pendingStart++;
+			addResolvedRecord((int) (pending[i] >> 32), (int) pending[i], (int) (pending[i + 1] >> 1),
+				(pending[i + 1] & 1) != 0, resolver.resolve(pending[i + 2]), resolver.resolve(pending[i + 3]));
+		}
+		if (pendingStart == pendingEnd) {
+			pendingStart = pendingEnd = 0;
+			return -1L;
+		}
+		return pending[4 * pendingStart + 2];
+	}
+
+	/**
+	 * Checks that a record follows the previous one, and records its
+	 * reference and position as the last ones.
+	 */
+	private void checkOrder(int referenceIndex, int position) {
+		ReferenceBuilder reference = references[referenceIndex];
+		if (referenceIndex != lastReferenceIndex) {
+			if (reference.started) {
+				throw new IllegalStateException("Alignment records are not grouped by reference sequence");
+			}
+			reference.started = true;
+		} else if (position < lastPosition) {
+			throw new IllegalStateException("Alignment records are not sorted by coordinate");
+		}
+		if (firstReferenceIndex == -1) {
+			firstReferenceIndex = referenceIndex;
+			firstPosition = position;
+		}
+		lastReferenceIndex = referenceIndex;
+		lastPosition = position;
+	}
+
+	private void addResolvedRecord(int referenceIndex, int position, int referenceLength, boolean unmapped,
+		long startOffset, long endOffset) {
+		ReferenceBuilder reference = references[referenceIndex];
+		int begin = Math.max(0, position - 1);
+		int last = begin + Math.max(1, referenceLength) - 1;
+		reference.addChunk(scheme.regionToBin(begin, last), startOffset, endOffset);
+		reference.updateLinearIndex(begin >>> scheme.getMinShift(), last >>> scheme.getMinShift(), startOffset);
+		reference.addMetadata(unmapped, startOffset, endOffset);
+	}
+
+	/**
+	 * Adds the records of another builder, which were collected from the
+	 * following part of the same BAM file. The other builder must not be used
+	 * afterwards.
+	 *
+	 * @param following
+	 *            builder of the records after the ones added to this builder
+	 * @throws IllegalStateException
+	 *             if the records of the two builders are not sorted or not
+	 *             grouped by reference sequence together, or the builders
+	 *             have different binning schemes
+	 */
+	public void append(BamIndexBuilder following) {
+		if (!scheme.equals(following.scheme)) {
+			throw new IllegalStateException("Binning schemes differ: " + scheme + ", " + following.scheme);
+		}
+		if (following.firstReferenceIndex == -1) {
+			return;
+		}
+		if (following.firstReferenceIndex == lastReferenceIndex) {
+			if (following.firstPosition < lastPosition) {
+				throw new IllegalStateException("Alignment records are not sorted by coordinate");
+			}
+		} else if (references[following.firstReferenceIndex].started) {
+			throw new IllegalStateException("Alignment records are not grouped by reference sequence");
+		}
+		for (int i = 0; i < references.length; ++i) {
+			if (following.references[i].started) {
+				if (references[i].started && i != following.firstReferenceIndex) {
+					throw new IllegalStateException("Alignment records are not grouped by reference sequence");
+				}
+				references[i].append(following.references[i]);
+			}
+		}
+		if (firstReferenceIndex == -1) {
+			firstReferenceIndex = following.firstReferenceIndex;
+			firstPosition = following.firstPosition;
+		}
+		lastReferenceIndex = following.lastReferenceIndex;
+		lastPosition = following.lastPosition;
+	}
+
+	/**
+	 * Creates the index from the records added so far.
+	 *
+	 * @return the index structure
+	 */
+	public BamIndex build() {
+		return build(IDENTITY);
+	}
+
+	/**
+	 * Creates the index from the records added so far, converting the record
+	 * locations with the given resolver.
+	 *
+	 * @param resolver
+	 *            converts the record locations to virtual file offsets
+	 * @return the index structure
+	 * @throws IllegalStateException
+	 *             if the builder does not use the BAI binning scheme
+	 */
+	public BamIndex build(OffsetResolver resolver) {
+		if (!scheme.equals(BinningScheme.BAI)) {
+			throw new IllegalStateException("A BAI index cannot be built with binning scheme " + scheme);
+		}
+		BamIndex bamIndex = new BamIndex();
+		for (ReferenceBuilder reference : references) {
+			bamIndex.addReferenceIndex(reference.build(resolver, scheme));
+		}
+		return bamIndex;
+	}
+
+	/**
+	 * Creates a CSI index from the records added so far.
+	 *
+	 * @return the index structure
+	 */
+	public CsiIndex buildCsi() {
+		return buildCsi(IDENTITY);
+	}
+
+	/**
+	 * Creates a CSI index from the records added so far, converting the record
+	 * locations with the given resolver.
+	 *
+	 * @param resolver
+	 *            converts the record locations to virtual file offsets
+	 * @return the index structure
+	 */
+	public CsiIndex buildCsi(OffsetResolver resolver) {
+		PackedReferenceIndex[] referenceIndices = new PackedReferenceIndex[references.length];
+		for (int i = 0; i < references.length; ++i) {
+			referenceIndices[i] = references[i].buildCsi(resolver, scheme);
+		}
+		return new CsiIndex(scheme, new byte[0], referenceIndices);
+	}
+
+	/**
+	 * Collects the bins and the linear index of one reference sequence.
+	 */
+	private static class ReferenceBuilder {
+
+		/**
+		 * Chunks of the bins, ordered by bin ID.
+		 */
+		private final Map<Integer, ChunkList> chunks = new TreeMap<Integer, ChunkList>();
+
+		private long[] linearIndex = new long[0];
+
+		/**
+		 * Whether a record of the reference was added.
+		 */
+		private boolean started;
+
+		/**
+		 * Location of the beginning of the first record.
+		 */
+		private long firstOffset = -1L;
+
+		/**
+		 * Location after the end of the last record.
+		 */
+		private long lastEndOffset;
+
+		private long mappedCount;
+
+		private long unmappedCount;
+
+		void addChunk(int binId, long startOffset, long endOffset) {
+			ChunkList binChunks = chunks.get(binId);
+			if (binChunks == null) {
+				binChunks = new ChunkList();
+				chunks.put(binId, binChunks);
+			}
+			binChunks.add(startOffset, endOffset);
+		}
+
+		void addMetadata(boolean unmapped, long startOffset, long endOffset) {
+			if (firstOffset == -1L) {
+				firstOffset = startOffset;
+			}
+			lastEndOffset = endOffset;
+			if (unmapped) {
+				++unmappedCount;
+			} else {
+				++mappedCount;
+			}
+		}
+
+		void updateLinearIndex(int firstWindow, int lastWindow, long offset) {
+			if (linearIndex.length <= lastWindow) {
+				int oldLength = linearIndex.length;
+				linearIndex = Arrays.copyOf(linearIndex, Math.max(lastWindow + 1, 2 * oldLength));
+				Arrays.fill(linearIndex, oldLength, linearIndex.length, -1L);
+			}
+			for (int window = firstWindow; window <= lastWindow; ++window) {
+				if (linearIndex[window] == -1L) {
+					linearIndex[window] = offset;
+				}
+			}
+		}
+
+		/**
+		 * Adds the chunks and the linear index of the following records of
+		 * the same reference sequence.
+		 */
+		void append(ReferenceBuilder following) {
+			for (Map.Entry<Integer, ChunkList> entry : following.chunks.entrySet()) {
+				ChunkList binChunks = entry.getValue();
+				for (int i = 0; i < binChunks.count; ++i) {
+					addChunk(entry.getKey(), binChunks.offsets[2 * i], binChunks.offsets[2 * i + 1]);
+				}
+			}
+			for (int window = following.linearIndex.length - 1; window >= 0; --window) {
+				if (following.linearIndex[window] != -1L) {
+					updateLinearIndex(window, window, following.linearIndex[window]);
+				}
+			}
+			if (firstOffset == -1L) {
+				firstOffset = following.firstOffset;
+			}
+			lastEndOffset = following.lastEndOffset;
+			mappedCount += following.mappedCount;
+			unmappedCount += following.unmappedCount;
+			started = true;
+		}
+
+		ReferenceIndex build(OffsetResolver resolver, BinningScheme scheme) {
+			ReferenceIndex referenceIndex = new ReferenceIndex();
+			for (Map.Entry<Integer, ChunkList> entry : chunks.entrySet()) {
+				ChunkList binChunks = entry.getValue();
+				Bin bin = new Bin(entry.getKey());
+				Chunk last = null;
+				for (int i = 0; i < binChunks.count; ++i) {
+					VirtualFileOffset start = new VirtualFileOffset(resolver.resolve(binChunks.offsets[2 * i]));
+					VirtualFileOffset end = new VirtualFileOffset(resolver.resolve(binChunks.offsets[2 * i + 1]));
+					if (last != null && start.getBlockOffset() <= last.getEndOffset().getBlockOffset()) {
+						last.setEndOffset(end);
+					} else {
+						last = new Chunk(start, end);
+						bin.addChunk(last);
+					}
+				}
+				referenceIndex.addBin(bin);
+			}
+			if (started) {
+				// the pseudo-bin follows every real bin
+				Bin metadata = new Bin(scheme.getPseudoBin());
+				metadata.addChunk(new Chunk(new VirtualFileOffset(resolver.resolve(firstOffset)),
+					new VirtualFileOffset(resolver.resolve(lastEndOffset))));
+				metadata.addChunk(new Chunk(new VirtualFileOffset(mappedCount), new VirtualFileOffset(unmappedCount)));
+				referenceIndex.addBin(metadata);
+			}
+
+			int windowCount = linearIndex.length;
+			while (windowCount > 0 && linearIndex[windowCount - 1] == -1L) {
+				--windowCount;
+			}
+			List<VirtualFileOffset> offsets = new ArrayList<VirtualFileOffset>(windowCount);
+			VirtualFileOffset previous = null;
+			for (int window = 0; window < windowCount; ++window) {
+				if (linearIndex[window] != -1L) {
+					previous = new VirtualFileOffset(resolver.resolve(linearIndex[window]));
+					if (offsets.isEmpty()) {
+						// windows before the first record start at the first record
+						for (int i = 0; i < window; ++i) {
+							offsets.add(previous);
+						}
+					}
+				}
+				if (previous != null) {
+					offsets.add(previous);
+				}
+			}
+			for (VirtualFileOffset offset : offsets) {
+				referenceIndex.addLinearIndex(offset);
+			}
+			return referenceIndex;
+		}
+
+		/**
+		 * Builds the reference index of a CSI index: the offset of a bin is
+		 * the linear index offset of the window at its start.
+		 */
+		PackedReferenceIndex buildCsi(OffsetResolver resolver, BinningScheme scheme) {
+			ReferenceIndex referenceIndex = build(resolver, scheme);
+			List<Bin> bins = referenceIndex.getBins();
+			List<VirtualFileOffset> windows = referenceIndex.getLinearIndices();
+
+			int chunkCount = 0;
+			for (Bin bin : bins) {
+				chunkCount += bin.getChunks().size();
+			}
+			int[] binIds = new int[bins.size()];
+			long[] binOffsets = new long[bins.size()];
+			int[] binChunks = new int[bins.size() + 1];
+			long[] chunkStarts = new long[chunkCount];
+			long[] chunkEnds = new long[chunkCount];
+			int chunkIndex = 0;
+			for (int i = 0; i < binIds.length; ++i) {
+				Bin bin = bins.get(i);
+				binIds[i] = bin.getId();
+				binOffsets[i] = bin.getId() == scheme.getPseudoBin() ? 0L
+					: windows.get(firstWindow(scheme, bin.getId())).longRepresentation();
+				binChunks[i] = chunkIndex;
+				for (Chunk chunk : bin.getChunks()) {
+					chunkStarts[chunkIndex] = chunk.getStartOffset().longRepresentation();
+					chunkEnds[chunkIndex] = chunk.getEndOffset().longRepresentation();
+					++chunkIndex;
+				}
+			}
+			binChunks[binIds.length] = chunkIndex;
+
+			return new PackedReferenceIndex(scheme, binIds, binOffsets, binChunks, chunkStarts, chunkEnds);
+		}
+
+		/**
+		 * @return the index of the linear index window at the start of a bin
+		 */
+		private static int firstWindow(BinningScheme scheme, int binId) {
+			int level = scheme.getDepth();
+			while (binId < scheme.getFirstBin(level)) {
+				--level;
+			}
+			int shift = scheme.getShift(level) - scheme.getMinShift();
+			long window = (long) (binId - scheme.getFirstBin(level)) << shift;
+			return (int) Math.min(window, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Chunk boundaries of a bin as start and end pairs.
+	 */
+	private static class ChunkList {
+
+		private long[] offsets = new long[8];
+
+		private int count;
+
+		/**
+		 * Adds a chunk, or extends the last one if the new chunk starts where
+		 * it ends.
+		 */
+		void add(long startOffset, long endOffset) {
+			if (count > 0 && offsets[2 * count - 1] == startOffset) {
+				offsets[2 * count - 1] = endOffset;
+				return;
+			}
+			if (2 * count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			}
+			offsets[2 * count] = startOffset;
+			offsets[2 * count + 1] = endOffset;
+			++count;
+		}
+	}
+}
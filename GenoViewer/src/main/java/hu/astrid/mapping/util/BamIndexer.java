@@ -20,85 +20,134 @@ package hu.astrid.mapping.util;
 import hu.astrid.mapping.exception.MappingFileFormatException;
 import hu.astrid.mapping.io.AlignmentRecordCodec;
 import hu.astrid.mapping.io.BgzfBlock;
+import hu.astrid.mapping.io.BgzfBlockCursor;
 import hu.astrid.mapping.io.BgzfDecompressor;
+import hu.astrid.mapping.io.InflatedBgzfBlock;
 import hu.astrid.mapping.io.MappingFileParser;
-import hu.astrid.mapping.model.AlignmentPosition;
+import hu.astrid.mapping.io.ParallelBgzfInputStream;
 import hu.astrid.mapping.model.BamHeader;
 import hu.astrid.mapping.model.BamIndex;
-import hu.astrid.mapping.model.Bin;
-import hu.astrid.mapping.model.Chunk;
-import hu.astrid.mapping.model.ReferenceIndex;
+import hu.astrid.mapping.model.BinningScheme;
+import hu.astrid.mapping.model.CsiIndex;
 import hu.astrid.mapping.model.VirtualFileOffset;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.DataFormatException;
 
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the index of a coordinate sorted BAM file. The BGZF blocks of the
+ * file are located first by reading only their headers. Then the file is split
+ * into ranges of blocks, which are inflated and scanned on worker threads, and
+ * the partial indices of the ranges are appended in file order.
+ * <p>
+ * The record boundaries are not known in advance, so the worker of a range
+ * guesses where the first record of the range starts from the structure of the
+ * records. When the results are appended, the guess is checked against the
+ * offset where the previous range ended. A range with a wrong guess is scanned
+ * again from that offset, so the index is always exact.
+ */
 public class BamIndexer {
 
+	private static final Logger logger = Logger.getLogger(BamIndexer.class);
+
 	/**
-	 * Interval length for linear indices.
+	 * Length of the BGZF block header up to and including the BSIZE field.
 	 */
-	private static int LINEAR_INDEX_INTERVAL_LENGTH = 1 << 14;
-	
+	private static final int BGZF_HEADER_LENGTH = 18;
+
 	/**
-	 * The input stream from which the BAM file content is read.
+	 * Maximum length of the uncompressed data of a BGZF block.
 	 */
-	private DataInputStream inputStream;
-	
+	private static final int MAX_BLOCK_DATA_LENGTH = 0x10000;
+
 	/**
-	 * Decompressor instance to decompress BGZF blocks.
+	 * Maximum number of blocks in a range scanned by a worker.
 	 */
-	private BgzfDecompressor decompressor;
-	
+	private static final int MAX_RANGE_BLOCKS = 1024;
+
 	/**
-	 * The header of the BAM file.
+	 * Number of ranges per worker thread, if the file is small enough to
+	 * split it into shorter ranges than the maximum.
 	 */
-	private BamHeader header;
-	
+	private static final int RANGES_PER_THREAD = 4;
+
 	/**
-	 * Codec instance to decode binary alignment records.
+	 * Number of consecutive records checked when the start of a range is
+	 * guessed.
 	 */
-	private AlignmentRecordCodec alignmentRecordCodec;
-	
+	private static final int GUESSED_RECORD_COUNT = 4;
+
 	/**
-	 * The size of the BAM file.
+	 * Decompressors of the worker threads, an {@link java.util.zip.Inflater}
+	 * cannot be shared between threads.
 	 */
-	private long fileSize;
-	
+	private static final ThreadLocal<BgzfDecompressor> DECOMPRESSORS = new ThreadLocal<BgzfDecompressor>() {
+
+		@Override
+		protected BgzfDecompressor initialValue() {
+			return new BgzfDecompressor();
+		}
+	};
+
 	/**
-	 * The length of the BGZF block read last.
+	 * The BAM file to be indexed.
 	 */
-	private int lastBlockLength;
-	
+	private final RandomAccessFile file;
+
 	/**
-	 * Uncompressed binary content of the current BGZF block.
+	 * Channel of the BAM file, read only with positional reads, so it is
+	 * shared by the workers.
 	 */
-	private byte[] currentBlock;
-	
+	private final FileChannel channel;
+
 	/**
-	 * The block offset of the current BGZF block.
+	 * Number of worker threads.
 	 */
-	private long currentBlockOffset;
+	private final int threadCount;
 	
 	/**
-	 * The data offset of the next alignment record.
+	 * The binning scheme of the index being created.
 	 */
-	private int currentDataOffset;
+	private BinningScheme scheme;
+
+	/**
+	 * The header of the BAM file.
+	 */
+	private BamHeader header;
 	
 	/**
-	 * The location of the alignment record read last.
+	 * Codec instance to decode binary alignment records.
 	 */
-	private VirtualFileOffset lastRecordLocation;
+	private AlignmentRecordCodec alignmentRecordCodec;
+
+	/**
+	 * Virtual file offset of the first alignment record.
+	 */
+	private long firstRecordOffset;
+
+	/**
+	 * File offsets of the BGZF blocks from the one containing the first
+	 * alignment record.
+	 */
+	private long[] blockOffsets;
+
+	/**
+	 * Number of the located BGZF blocks.
+	 */
+	private int blockCount;
 	
 	/**
 	 * Creates a new indexer instance for the BAM file given by its path.
@@ -109,17 +158,31 @@ public class BamIndexer {
 	 *             if the BAM file was not found
 	 */
 	public BamIndexer(String fileName) throws FileNotFoundException {
-		File file = new File(fileName);
-		this.fileSize = file.length();
-		this.inputStream = new DataInputStream(new FileInputStream(file));
-		this.decompressor = new BgzfDecompressor();
-		this.lastBlockLength = -1;
+		this(fileName, ParallelBgzfInputStream.DEFAULT_THREAD_COUNT);
+	}
+	
+	/**
+	 * Creates a new indexer instance for the BAM file given by its path, which
+	 * scans the file on the given number of threads.
+	 * 
+	 * @param fileName
+	 *            the path of the BAM file to be indexed
+	 * @param threadCount
+	 *            number of threads inflating and scanning BGZF blocks
+	 * @throws FileNotFoundException
+	 *             if the BAM file was not found
+	 */
+	public BamIndexer(String fileName, int threadCount) throws FileNotFoundException {
+		this.file = new RandomAccessFile(fileName, "r");
+		this.channel = file.getChannel();
+		this.threadCount = Math.max(1, threadCount);
 	}
 	
 	/**
 	 * Indexes the BAM file and returns the index structure.
 	 * 
-	 * @return the index structure for the BAM file
+	 * @return the index structure for the BAM file, {@code null} if the file
+	 *         has no alignment records
 	 * @throws IOException
 	 *             if an I/O error occurs
 	 * @throws MappingFileFormatException
@@ -128,275 +191,421 @@ public class BamIndexer {
 	 *             if the data format in the BAM file is incorrect
 	 */
 	public BamIndex index() throws IOException, MappingFileFormatException, DataFormatException {
-		this.currentBlockOffset = 0L;
-		this.currentDataOffset = 0;
-		this.loadHeader();
-		
-		AlignmentPosition record = this.getNextAlignmentPosition();
-		if (record == null) {
-			return null;
+		try {
+			BamIndexBuilder builder = this.createIndex(BinningScheme.BAI);
+			return builder == null ? null : builder.build();
+		} finally {
+			file.close();
 		}
-		String lastReferenceName = record.getReferenceName();
-		int lastBinId = BamUtil.regToBin(record.getPosition(), record.getPosition() + record.getReadLength());
-		VirtualFileOffset chunkStart = this.lastRecordLocation;
-		BamIndex bamIndex = new BamIndex();
-		Map<Integer, Bin> bins = new HashMap<Integer, Bin>();
-		
-		List<VirtualFileOffset> linearIndices = new ArrayList<VirtualFileOffset>();
-		for (int i = 0; i < record.getPosition() / LINEAR_INDEX_INTERVAL_LENGTH; ++i) {
-			linearIndices.add(null);
+	}
+
+	/**
+	 * Creates a CSI index of the BAM file with the given binning scheme.
+	 * 
+	 * @param minShift
+	 *            base 2 logarithm of the smallest bin size
+	 * @param depth
+	 *            number of levels of the binning scheme below the top level
+	 * @return the CSI index for the BAM file, {@code null} if the file has no
+	 *         alignment records
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws MappingFileFormatException
+	 *             if the format of the BAM file is incorrect
+	 */
+	public CsiIndex indexCsi(int minShift, int depth) throws IOException, MappingFileFormatException {
+		try {
+			BamIndexBuilder builder = this.createIndex(new BinningScheme(minShift, depth));
+			return builder == null ? null : builder.buildCsi();
+		} finally {
+			file.close();
 		}
-		linearIndices.add(lastRecordLocation);
-		
-		while ((record = this.getNextAlignmentPosition()) != null) {
-			int lastWindow = linearIndices.size() - 1;
-			int currentWindow = record.getPosition() / LINEAR_INDEX_INTERVAL_LENGTH;
-			if (lastWindow != currentWindow) {
-				for (int i = lastWindow; i < currentWindow - 1; ++i) {
-					linearIndices.add(null);
-				}
-				linearIndices.add(lastRecordLocation);
-			}
-			
-			int binId = BamUtil.regToBin(record.getPosition(), record.getPosition() + record.getReadLength());
-			if (!lastReferenceName.equals(record.getReferenceName())) {
-				Chunk chunk = new Chunk(chunkStart, lastRecordLocation);
-				Bin bin = bins.get(lastBinId);
-				if (bin == null) {
-					bin = new Bin(lastBinId);
-					bins.put(lastBinId, bin);
-				}
-				bin.addChunk(chunk);
-				lastBinId = binId;
-				chunkStart = lastRecordLocation;
-				
-				ReferenceIndex referenceIndex = new ReferenceIndex();
-				List<Bin> referenceBins = new ArrayList<Bin>(bins.values());
-				Collections.sort(referenceBins);
-				for (Bin b : referenceBins) {
-					referenceIndex.addBin(b);
+	}
+	
+	private BamIndexBuilder createIndex(BinningScheme scheme) throws IOException, MappingFileFormatException {
+		this.scheme = scheme;
+		BlockReader blockReader = new BlockReader();
+		this.loadHeader(blockReader);
+		this.locateBlocks(blockReader);
+
+		int rangeLength = Math.max(1, Math.min(MAX_RANGE_BLOCKS,
+			(blockCount + RANGES_PER_THREAD * threadCount - 1) / (RANGES_PER_THREAD * threadCount)));
+		int referenceCount = header.getReferenceNames().size();
+		BamIndexBuilder builder = new BamIndexBuilder(referenceCount, scheme);
+		int recordCount = 0;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, ConcurrencyUtil.daemonThreadFactory("indexer"));
+		try {
+			LinkedList<Future<RangeResult>> pending = new LinkedList<Future<RangeResult>>();
+			int nextRange = 0;
+			long expectedStart = firstRecordOffset;
+			while (nextRange < blockCount || !pending.isEmpty()) {
+				// the ranges are submitted ahead only a bit, as their results
+				// are kept until they are appended
+				while (nextRange < blockCount && pending.size() < 2 * threadCount) {
+					int endBlock = Math.min(blockCount, nextRange + rangeLength);
+					long start = nextRange == 0 ? firstRecordOffset : -1L;
+					pending.add(executor.submit(new RangeScanner(nextRange, endBlock, start)));
+					nextRange = endBlock;
 				}
-				
-				for (VirtualFileOffset vfo : linearIndices) {
-					referenceIndex.addLinearIndex(vfo);
+
+				Future<RangeResult> future = pending.removeFirst();
+				RangeResult result = ConcurrencyUtil.await(future, MappingFileFormatException.class, "Indexing");
+				if (expectedStart == -1L) {
+					// the previous ranges were scanned to the end of the file
+					continue;
 				}
-				bamIndex.addReferenceIndex(referenceIndex);
-			}
-			
-			if (binId != lastBinId) {
-				Chunk chunk = new Chunk(chunkStart, lastRecordLocation);
-				Bin bin = bins.get(lastBinId);
-				if (bin == null) {
-					bin = new Bin(lastBinId);
-					bins.put(lastBinId, bin);
+				if (result.start != expectedStart) {
+					result = new RangeScanner(result.firstBlock, result.endBlock, expectedStart).call();
 				}
-				bin.addChunk(chunk);
-				lastBinId = binId;
-				chunkStart = lastRecordLocation;
+				builder.append(result.builder);
+				recordCount += result.recordCount;
+				expectedStart = result.next;
 			}
+		} finally {
+			executor.shutdownNow();
 		}
-		
-		Chunk chunk = new Chunk(chunkStart, new VirtualFileOffset(fileSize << 16));
-		Bin bin = bins.get(lastBinId);
-		if (bin == null) {
-			bin = new Bin(lastBinId);
-			bins.put(lastBinId, bin);
-		}
-		bin.addChunk(chunk);
-		
-		ReferenceIndex referenceIndex = new ReferenceIndex();
-		List<Bin> referenceBins = new ArrayList<Bin>(bins.values());
-		Collections.sort(referenceBins);
-		for (Bin b : referenceBins) {
-			referenceIndex.addBin(b);
-		}
-		
-		for (VirtualFileOffset vfo : linearIndices) {
-			referenceIndex.addLinearIndex(vfo);
-		}
-		bamIndex.addReferenceIndex(referenceIndex);
-		
-		BamIndexer.reduceSmallChunks(bamIndex);
-		return bamIndex;
+
+		return recordCount == 0 ? null : builder;
 	}
-	
+
 	/**
-	 * Contracts small chunks of an index structure and hence reduces their
-	 * number.
+	 * Locates the BGZF blocks from the one containing the first alignment
+	 * record to the end of the file by reading their headers only.
 	 * 
-	 * @param bamIndex
-	 *            the index structure to be simplified
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws MappingFileFormatException
+	 *             if a block header is invalid
 	 */
-	private static void reduceSmallChunks(BamIndex bamIndex) {
-		for (ReferenceIndex referenceIndex : bamIndex.getReferenceIndices()) {
-			for (Bin bin : referenceIndex.getBins()) {
-				for (int i = 0; i < bin.getChunks().size() - 1; ++i) {
-					Chunk chunk1 = bin.getChunks().get(i);
-					Chunk chunk2 = bin.getChunks().get(i + 1);
-					if (chunk2.getStartOffset().getBlockOffset() <= chunk1.getEndOffset().getBlockOffset()) {
-						chunk1.setEndOffset(chunk2.getEndOffset());
-						bin.getChunks().remove(i + 1);
-						--i;
-					}
-				}
+	private void locateBlocks(BlockReader blockReader) throws IOException, MappingFileFormatException {
+		blockOffsets = new long[1024];
+		blockCount = 0;
+		long size = channel.size();
+		long offset = firstRecordOffset >>> 16;
+		while (offset < size) {
+			if (blockCount == blockOffsets.length) {
+				blockOffsets = Arrays.copyOf(blockOffsets, 2 * blockCount);
 			}
+			blockOffsets[blockCount++] = offset;
+			offset += blockReader.readBlockLength(offset);
 		}
 	}
 	
 	/**
-	 * Reads the next alignment record's position.
+	 * Loads the header of the BAM file and determines the location of the
+	 * first alignment record.
 	 * 
-	 * @return the next alignment position
-	 * @throws DataFormatException
-	 *             if the data format in the BAM file is incorrect
 	 * @throws IOException
-	 *             if an I/O error occurs during reading
+	 *             if an I/O error occurs
 	 * @throws MappingFileFormatException
 	 *             if the format of the BAM file is incorrect
 	 */
-	private AlignmentPosition getNextAlignmentPosition() throws DataFormatException, IOException, MappingFileFormatException {
-		lastRecordLocation = new VirtualFileOffset(currentBlockOffset << 16 | currentDataOffset);
-		int recordLength;
-		if (this.currentBlock.length < this.currentDataOffset + 4) {
-			byte[] lengthArray = new byte[4];
-			int count = currentBlock.length - currentDataOffset;
-			System.arraycopy(currentBlock, currentDataOffset, lengthArray, 0, count);
-			
-			this.nextBlockData();
-			if (this.currentBlock == null || this.currentBlock.length < 4 - count) {
-				return null;
-			}
-			
-            System.arraycopy(currentBlock, 0, lengthArray, count, 4 - count);
-            recordLength = BamUtil.toInt(lengthArray);
-            currentDataOffset = 4 - count;
-		} else {
-			recordLength = BamUtil.toInt(Arrays.copyOfRange(currentBlock, currentDataOffset, currentDataOffset + 4));
-			currentDataOffset += 4;
+	private void loadHeader(BlockReader blockReader) throws IOException, MappingFileFormatException {
+		InflatedBgzfBlock block = blockReader.inflateBlock(0L);
+		if (block == null) {
+			throw new MappingFileFormatException("Missing BAM header");
 		}
-		
-		AlignmentPosition record;
-		if (this.currentBlock.length < this.currentDataOffset + recordLength) {
-			byte[] recordArray = new byte[recordLength];
-			int count = currentBlock.length - currentDataOffset;
-			System.arraycopy(currentBlock, currentDataOffset, recordArray, 0, count);
-			
-			this.nextBlockData();
-			if (this.currentBlock == null || this.currentBlock.length < recordLength - count) {
-				return null;
+		byte[] bamHeader = block.getData();
+
+		while (!MappingFileParser.isValidBamHeader(bamHeader)) {
+			block = blockReader.inflateBlock(block.getNextOffset());
+			if (block == null) {
+				throw new MappingFileFormatException("Truncated BAM header");
 			}
-            System.arraycopy(currentBlock, 0, recordArray, count, recordLength - count);
-            record = alignmentRecordCodec.decodePosition(recordArray);
-            currentDataOffset = recordLength - count;
-		} else {
-			record = alignmentRecordCodec.decodePosition(
-					Arrays.copyOfRange(currentBlock, currentDataOffset, currentDataOffset + recordLength));
-			currentDataOffset += recordLength;
+			byte[] data = block.getData();
+
+			byte[] temp = new byte[bamHeader.length + data.length];
+			System.arraycopy(bamHeader, 0, temp, 0, bamHeader.length);
+			System.arraycopy(data, 0, temp, bamHeader.length, data.length);
+			bamHeader = temp;
+		}
+
+		int offset = 8 + BamUtil.toInt(bamHeader, 4);
+		int referenceCount = BamUtil.toInt(bamHeader, offset);
+		offset += 4;
+		for (int i = 0; i < referenceCount; ++i) {
+			offset += 4 + BamUtil.toInt(bamHeader, offset) + 4;
 		}
-			
-		return record;
+
+		this.header = MappingFileParser.parseBamHeader(Arrays.copyOf(bamHeader, offset));
+		this.alignmentRecordCodec = new AlignmentRecordCodec(this.header.getReferenceNames());
+		int dataOffset = offset - bamHeader.length + block.getData().length;
+		this.firstRecordOffset = dataOffset == block.getData().length
+			? block.getNextOffset() << 16
+			: block.getOffset() << 16 | dataOffset;
 	}
-	
+
 	/**
-	 * Reads and decompresses the next BGZF block.
+	 * Checks whether the structure of the alignment records starting at the
+	 * given position of an uncompressed block is valid. At most
+	 * {@link #GUESSED_RECORD_COUNT} consecutive records are checked, as far as
+	 * their fixed-length fields are in the block. A record longer than the
+	 * data left in the range is rejected, a false match must not make the
+	 * scan read far beyond the range.
 	 * 
-	 * @throws DataFormatException
-	 *             if the data format in the BAM file is incorrect
-	 * @throws IOException
-	 *             if an I/O error occurs
+	 * @param data
+	 *            the uncompressed block
+	 * @param position
+	 *            the position of the first record length field
+	 * @param remaining
+	 *            upper bound of the uncompressed bytes left in the range from
+	 *            the start of the block
+	 * @return {@code true} if the records are valid
 	 */
-	private void nextBlockData() throws DataFormatException, IOException {
-		BgzfBlock block = readBlock();
-		if (block == null) {
-			this.currentBlock = null;
-			return;
+	private boolean isRecordStart(byte[] data, int position, long remaining) {
+		remaining -= position;
+		int checked = 0;
+		while (checked < GUESSED_RECORD_COUNT && position + 36 <= data.length) {
+			int length = BamUtil.toInt(data, position);
+			if (4L + length > remaining || !isValidRecord(data, position + 4, length, data.length)) {
+				return false;
+			}
+			++checked;
+			position += 4 + length;
+			remaining -= 4L + length;
 		}
-
-		this.currentBlock = decompressor.decompress(block);
+		return checked > 0;
 	}
-	
+
 	/**
-	 * Reads the next BGZF block from the input stream.
+	 * Checks the fixed-length fields and the read name of an alignment record.
 	 * 
-	 * @return the next compression block
-	 * @throws IOException
-	 *             if an I/O error occurs
+	 * @param data
+	 *            the array which contains the record
+	 * @param offset
+	 *            the position of the record after its length field
+	 * @param length
+	 *            the value of the length field
+	 * @param end
+	 *            the end of the record data in the array, the read name is
+	 *            checked as far as it is available
+	 * @return {@code true} if the record is valid
 	 */
-	private BgzfBlock readBlock() throws IOException {
-		if (this.lastBlockLength > 0) {
-			this.currentBlockOffset += this.lastBlockLength;
+	private boolean isValidRecord(byte[] data, int offset, int length, int end) {
+		if (length < 32) {
+			return false;
 		}
-		
-        byte[] byteArray = new byte[18];
-        if (inputStream.read(byteArray) == -1) {
-        	return null;
-        }
-
-        int length = BamUtil.toShort(Arrays.copyOfRange(byteArray, 16, 18)) + 1;
-        byte[] block = Arrays.copyOf(byteArray, length);
-
-        int bytesRead = inputStream.read(block, 18, length - 18);
-        if (bytesRead == -1) {
-        	return null;
-        }
-        int inputSize = BamUtil.toInt(Arrays.copyOfRange(block, block.length - 4, block.length));
-
-        BgzfBlock bgzfBlock = new BgzfBlock(block, length - 26, inputSize);
-        this.lastBlockLength = length;
-
-        return bgzfBlock;
-    }
-	
+		int referenceCount = header.getReferenceNames().size();
+		int referenceIndex = BamUtil.toInt(data, offset);
+		int alignmentPosition = BamUtil.toInt(data, offset + 4);
+		int nameLength = data[offset + 8] & 0xFF;
+		int cigarLength = BamUtil.toShort(data, offset + 12) & 0xFFFF;
+		int sequenceLength = BamUtil.toInt(data, offset + 16);
+		int mateReferenceIndex = BamUtil.toInt(data, offset + 20);
+		int matePosition = BamUtil.toInt(data, offset + 24);
+		if (referenceIndex < -1 || referenceIndex >= referenceCount || alignmentPosition < -1 || nameLength < 1
+			|| sequenceLength < 0 || mateReferenceIndex < -1 || mateReferenceIndex >= referenceCount
+			|| matePosition < -1) {
+			return false;
+		}
+		if (32L + nameLength + 4L * cigarLength + (sequenceLength + 1L) / 2 + sequenceLength > length) {
+			return false;
+		}
+		int nameEnd = offset + 32 + nameLength - 1;
+		for (int i = offset + 32; i < nameEnd && i < end; ++i) {
+			if (data[i] < '!' || data[i] > '~') {
+				return false;
+			}
+		}
+		return nameEnd >= end || data[nameEnd] == 0;
+	}
+
 	/**
-	 * Loads the header of the BM file.
-	 * 
-	 * @throws IOException
-	 *             if an I/O error occurs
-	 * @throws MappingFileFormatException
-	 *             if the format of the BAM file is incorrect
+	 * Partial index of a range of blocks.
 	 */
-	private void loadHeader() throws IOException, MappingFileFormatException {
-        byte[] bamHeader = null;
-        int offset = 0;
-
-        BgzfBlock block = readBlock();
-        try {
-			bamHeader = decompressor.decompress(block);
-			this.currentBlock = bamHeader;
-		} catch (DataFormatException e) {
-			throw new MappingFileFormatException(e.getMessage());
+	private static class RangeResult {
+
+		final int firstBlock;
+
+		final int endBlock;
+
+		/**
+		 * Virtual file offset of the first record of the range, -1 if it
+		 * could not be determined.
+		 */
+		final long start;
+
+		/**
+		 * Virtual file offset of the first record after the range, -1 at the
+		 * end of the file.
+		 */
+		final long next;
+
+		final BamIndexBuilder builder;
+
+		final int recordCount;
+
+		RangeResult(int firstBlock, int endBlock, long start, long next, BamIndexBuilder builder, int recordCount) {
+			this.firstBlock = firstBlock;
+			this.endBlock = endBlock;
+			this.start = start;
+			this.next = next;
+			this.builder = builder;
+			this.recordCount = recordCount;
 		}
-        offset += block.getDeflatedSize() + 26;
-        
-        while (!MappingFileParser.isValidBamHeader(bamHeader)) {
-            block = readBlock();
-            byte[] data = null;
+	}
+
+	/**
+	 * Indexes the records which start in a range of blocks. The records
+	 * spanning the end of the range are read from the following blocks.
+	 */
+	private class RangeScanner implements Callable<RangeResult> {
+
+		private final int firstBlock;
+
+		private final int endBlock;
+
+		/**
+		 * Virtual file offset of the first record, -1 if it has to be guessed.
+		 */
+		private final long start;
+
+		RangeScanner(int firstBlock, int endBlock, long start) {
+			this.firstBlock = firstBlock;
+			this.endBlock = endBlock;
+			this.start = start;
+		}
+
+		@Override
+		public RangeResult call() throws IOException, MappingFileFormatException {
+			BlockReader blockReader = new BlockReader();
+			if (start != -1L) {
+				return scan(blockReader, start, false);
+			}
+			// after a wrong guess the range is scanned again from the right offset
 			try {
-				data = decompressor.decompress(block);
+				long guessedStart = guessStart(blockReader);
+				if (guessedStart != -1L) {
+					return scan(blockReader, guessedStart, true);
+				}
+			} catch (IOException e) {
+				logger.debug("Wrong record start guessed in block " + firstBlock + ": " + e.getMessage());
+			} catch (MappingFileFormatException e) {
+				logger.debug("Wrong record start guessed in block " + firstBlock + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				logger.debug("Wrong record start guessed in block " + firstBlock + ": " + e.getMessage());
+			}
+			return new RangeResult(firstBlock, endBlock, -1L, -1L, null, 0);
+		}
+
+		/**
+		 * @return the virtual file offset of the first position of the first
+		 *         block, where valid records start, or -1 if there is none
+		 */
+		private long guessStart(BlockReader blockReader) throws IOException, MappingFileFormatException {
+			InflatedBgzfBlock block = blockReader.inflateBlock(blockOffsets[firstBlock]);
+			byte[] data = block.getData();
+			long remaining = (long) (endBlock - firstBlock) * MAX_BLOCK_DATA_LENGTH;
+			for (int position = 0; position + 36 <= data.length; ++position) {
+				if (isRecordStart(data, position, remaining)) {
+					return block.getOffset() << 16 | position;
+				}
+			}
+			return -1L;
+		}
+
+		/**
+		 * Indexes the records from the given offset to the end of the range.
+		 * The records read from a guessed offset are checked like the guessed
+		 * ones, and they must fit in the range and one more block, so a false
+		 * record chain fails the scan before a huge record is assembled.
+		 */
+		private RangeResult scan(BlockReader blockReader, long from, boolean guessed) throws IOException,
+			MappingFileFormatException {
+			long endOffset = endBlock < blockCount ? blockOffsets[endBlock] : Long.MAX_VALUE;
+			BamIndexBuilder builder = new BamIndexBuilder(header.getReferenceNames().size(), scheme);
+			BgzfBlockCursor cursor = new BgzfBlockCursor(blockReader, new VirtualFileOffset(from));
+			long remaining = (long) (endBlock - firstBlock + 1) * MAX_BLOCK_DATA_LENGTH - (from & 0xFFFF);
+			int recordCount = 0;
+			long next = -1L;
+			long recordOffset;
+			while ((recordOffset = cursor.peekVirtualOffset()) != -1L) {
+				if (recordOffset >>> 16 >= endOffset) {
+					next = recordOffset;
+					break;
+				}
+				if (guessed) {
+					cursor.setMaxRecordLength((int) Math.max(0, Math.min(remaining - 4, Integer.MAX_VALUE)));
+				}
+				cursor.next();
+				byte[] data = cursor.getRecordData();
+				int offset = cursor.getRecordOffset();
+				if (guessed) {
+					int length = cursor.getRecordLength();
+					if (!isValidRecord(data, offset, length, offset + length)) {
+						throw new MappingFileFormatException("Invalid alignment record at virtual file offset "
+							+ recordOffset);
+					}
+					remaining -= 4L + length;
+				}
+				builder.addRecord(BamUtil.toInt(data, offset), alignmentRecordCodec.getPosition(data, offset),
+					alignmentRecordCodec.getReferenceLength(data, offset), alignmentRecordCodec.isUnmapped(data, offset),
+					recordOffset,
+					cursor.getRecordEndVirtualOffset());
+				++recordCount;
+			}
+			return new RangeResult(firstBlock, endBlock, from, next, builder, recordCount);
+		}
+	}
+
+	/**
+	 * Reads and inflates the blocks of the BAM file with positional reads. The
+	 * last inflated block is kept, as it is requested again when a range is
+	 * scanned after guessing its start.
+	 */
+	private class BlockReader implements BgzfBlockCursor.BlockSource {
+
+		private final ByteBuffer headerBuffer = ByteBuffer.allocate(BGZF_HEADER_LENGTH);
+
+		private InflatedBgzfBlock lastBlock;
+
+		@Override
+		public InflatedBgzfBlock inflateBlock(long offset) throws IOException, MappingFileFormatException {
+			if (lastBlock != null && lastBlock.getOffset() == offset) {
+				return lastBlock;
+			}
+			if (offset >= channel.size()) {
+				return null;
+			}
+			int length = readBlockLength(offset);
+			byte[] block = Arrays.copyOf(headerBuffer.array(), length);
+			readFully(ByteBuffer.wrap(block, BGZF_HEADER_LENGTH, length - BGZF_HEADER_LENGTH),
+				offset + BGZF_HEADER_LENGTH);
+			int inputSize = BamUtil.toInt(block, length - 4);
+			try {
+				byte[] data = DECOMPRESSORS.get().decompress(new BgzfBlock(block, length - 26, inputSize));
+				lastBlock = new InflatedBgzfBlock(offset, length, data);
 			} catch (DataFormatException e) {
-				throw new MappingFileFormatException(e.getMessage());
+				throw new MappingFileFormatException("Invalid BGZF block at file offset " + offset + ": "
+					+ e.getMessage());
+			}
+			return lastBlock;
+		}
+
+		/**
+		 * Reads the header of a block into the header buffer.
+		 * 
+		 * @return the length of the compressed block
+		 */
+		int readBlockLength(long offset) throws IOException, MappingFileFormatException {
+			headerBuffer.clear();
+			readFully(headerBuffer, offset);
+			byte[] header = headerBuffer.array();
+			if (!ParallelBgzfInputStream.isBgzfHeader(header)) {
+				throw new MappingFileFormatException("Not a BGZF block at file offset " + offset);
 			}
-            offset += block.getDeflatedSize() + 26;
-
-            byte[] temp = new byte[bamHeader.length + data.length];
-            System.arraycopy(bamHeader, 0, temp, 0, bamHeader.length);
-            System.arraycopy(data, 0, temp, bamHeader.length, data.length);
-            bamHeader = temp;
-            this.currentBlock = data;
-        }
-        
-        int headerLength = BamUtil.toInt(Arrays.copyOfRange(bamHeader, 4, 8));
-        offset = 8 + headerLength;
-        int referenceCount = BamUtil.toInt(Arrays.copyOfRange(bamHeader, offset, offset + 4));
-        offset += 4;
-        for (int i = 0; i < referenceCount; ++i) {
-        	int referenceLength = BamUtil.toInt(Arrays.copyOfRange(bamHeader, offset, offset + 4));
-        	offset += 4 + referenceLength + 4;
-        }
-        
-        this.header = MappingFileParser.parseBamHeader(Arrays.copyOfRange(bamHeader, 0, offset));
-        this.alignmentRecordCodec = new AlignmentRecordCodec(this.header.getReferenceNames());
-        this.currentDataOffset = offset - bamHeader.length + currentBlock.length;
-    }
+			return (header[16] & 0xFF | (header[17] & 0xFF) << 8) + 1;
+		}
 
+		private void readFully(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				int count = channel.read(buffer, position);
+				if (count < 0) {
+					throw new EOFException("Truncated BGZF block at file offset " + position);
+				}
+				position += count;
+			}
+		}
+	}
 }
@@ -0,0 +1,293 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.BamReader;
+import hu.astrid.mapping.io.BamWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A run of binary BAM records for the key-only sort of {@link BamSorter}, also
+ * used as a batch of records by the conversion pipelines. The records are
+ * stored one after the other in a byte array, each with its length; the sort
+ * key and the offset of every record are held in primitive arrays, and only
+ * these are sorted. The records are never decoded.
+ * <p>
+ * The sort key orders the records by reference index and position, records
+ * without reference sequence come last. The sort is stable, so records with
+ * equal keys keep their input order.
+ */
+class BamRecordRun {
+
+	/**
+	 * Runs shorter than this are sorted with insertion sort.
+	 */
+	private static final int INSERTION_SORT_THRESHOLD = 32;
+
+	/**
+	 * Heap size taken by a record besides its bytes: its key and offset, and
+	 * their copies while sorting.
+	 */
+	static final int RECORD_OVERHEAD = 2 * (8 + 4);
+
+	private final long capacity;
+
+	private byte[] data = new byte[1 << 16];
+
+	private int size;
+
+	private long[] keys = new long[1024];
+
+	private int[] offsets = new int[1024];
+
+	private int count;
+
+	/**
+	 * Creates an empty run.
+	 *
+	 * @param capacity
+	 *            approximate number of heap bytes the run may take
+	 */
+	BamRecordRun(long capacity) {
+		this.capacity = Math.min(capacity, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Returns the sort key of a binary record: the reference index as an
+	 * unsigned number in the upper half, so that -1 is the largest, and the
+	 * position in the lower half, with the sign bit flipped so the keys can
+	 * be compared as signed numbers.
+	 *
+	 * @param data
+	 *            array holding the record
+	 * @param offset
+	 *            offset of the record in the array
+	 * @return the sort key
+	 */
+	static long key(byte[] data, int offset) {
+		long referenceIndex = BamUtil.toInt(data, offset) & 0xFFFFFFFFL;
+		long position = (BamUtil.toInt(data, offset + 4) + 1) & 0xFFFFFFFFL;
+		return (referenceIndex << 32 | position) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param length
+	 *            length of a record
+	 * @return whether the record can be added without exceeding the capacity;
+	 *         an empty run accepts any record
+	 */
+	boolean fits(int length) {
+		return count == 0 || size + 4L + length + (long) (count + 1) * RECORD_OVERHEAD <= capacity;
+	}
+
+	/**
+	 * Reads the next record from the reader into the run.
+	 *
+	 * @param reader
+	 *            the reader, positioned after the length of the record
+	 * @param length
+	 *            length of the record
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void add(BamReader reader, int length) throws IOException {
+		reserve(length);
+		reader.readRawRecord(data, size + 4, length);
+		append(length);
+	}
+
+	/**
+	 * Copies a record into the run.
+	 *
+	 * @param record
+	 *            array holding the record
+	 * @param offset
+	 *            offset of the record in the array
+	 * @param length
+	 *            length of the record
+	 * @throws IOException
+	 *             if the run would be too large
+	 */
+	void add(byte[] record, int offset, int length) throws IOException {
+		reserve(length);
+		System.arraycopy(record, offset, data, size + 4, length);
+		append(length);
+	}
+
+	/**
+	 * Makes room for a record of the given length at the end of the run.
+	 */
+	private void reserve(int length) throws IOException {
+		if (data.length - size < 4 + length) {
+			long newLength = Math.max((long) size + 4 + length, Math.min(2L * data.length, capacity));
+			if (newLength > Integer.MAX_VALUE - 8) {
+				throw new IOException("Alignment record run too large");
+			}
+			data = Arrays.copyOf(data, (int) newLength);
+		}
+		if (count == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * count);
+			offsets = Arrays.copyOf(offsets, 2 * count);
+		}
+	}
+
+	/**
+	 * Registers the record copied after the last one.
+	 */
+	private void append(int length) {
+		data[size] = (byte) length;
+		data[size + 1] = (byte) (length >>> 8);
+		data[size + 2] = (byte) (length >>> 16);
+		data[size + 3] = (byte) (length >>> 24);
+		keys[count] = key(data, size + 4);
+		offsets[count] = size;
+		size += 4 + length;
+		++count;
+	}
+
+	/**
+	 * @return number of records in the run
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the array holding the records, see {@link #getOffset(int)}
+	 */
+	byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @param index
+	 *            index of a record in the current order
+	 * @return offset of the record, after its length, in {@link #getData()}
+	 */
+	int getOffset(int index) {
+		return offsets[index] + 4;
+	}
+
+	/**
+	 * @param index
+	 *            index of a record in the current order
+	 * @return length of the record
+	 */
+	int getLength(int index) {
+		return BamUtil.toInt(data, offsets[index]);
+	}
+
+	/**
+	 * Sorts the records by their keys, stably.
+	 */
+	void sort() {
+		if (isSorted()) {
+			return;
+		}
+		for (int from = 0; from < count; from += INSERTION_SORT_THRESHOLD) {
+			insertionSort(from, Math.min(from + INSERTION_SORT_THRESHOLD, count));
+		}
+		long[] keyBuffer = new long[count];
+		int[] offsetBuffer = new int[count];
+		for (int width = INSERTION_SORT_THRESHOLD; width < count; width *= 2) {
+			for (int from = 0; from < count; from += 2 * width) {
+				int middle = Math.min(from + width, count);
+				int to = Math.min(from + 2 * width, count);
+				merge(keys, offsets, keyBuffer, offsetBuffer, from, middle, to);
+			}
+			long[] k = keys;
+			keys = keyBuffer;
+			keyBuffer = k;
+			int[] o = offsets;
+			offsets = offsetBuffer;
+			offsetBuffer = o;
+		}
+	}
+
+	/**
+	 * Writes the records in their current order.
+	 *
+	 * @param writer
+	 *            the BAM writer
+	 * @throws MappingFileFormatException
+	 *             if the writer rejects a record
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void writeTo(BamWriter writer) throws MappingFileFormatException, IOException {
+		for (int i = 0; i < count; ++i) {
+			writer.writeRawRecord(data, offsets[i] + 4, BamUtil.toInt(data, offsets[i]));
+		}
+	}
+
+	/**
+	 * Writes the records in their current order into a run file.
+	 *
+	 * @param writer
+	 *            the run file writer
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void writeTo(SortRunWriter writer) throws IOException {
+		for (int i = 0; i < count; ++i) {
+			writer.writeRawRecord(data, offsets[i] + 4, BamUtil.toInt(data, offsets[i]));
+		}
+	}
+
+	private boolean isSorted() {
+		for (int i = 1; i < count; ++i) {
+			if (keys[i - 1] > keys[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void insertionSort(int from, int to) {
+		for (int i = from + 1; i < to; ++i) {
+			long key = keys[i];
+			int offset = offsets[i];
+			int j = i - 1;
+			while (j >= from && keys[j] > key) {
+				keys[j + 1] = keys[j];
+				offsets[j + 1] = offsets[j];
+				--j;
+			}
+			keys[j + 1] = key;
+			offsets[j + 1] = offset;
+		}
+	}
+
+	private static void merge(long[] keys, int[] offsets, long[] keyTarget, int[] offsetTarget, int from, int middle,
+			int to) {
+		int i = from;
+		int j = middle;
+		for (int k = from; k < to; ++k) {
+			if (j >= to || (i < middle && keys[i] <= keys[j])) {
+				keyTarget[k] = keys[i];
+				offsetTarget[k] = offsets[i++];
+			} else {
+				keyTarget[k] = keys[j];
+				offsetTarget[k] = offsets[j++];
+			}
+		}
+	}
+}
@@ -19,6 +19,7 @@
 package hu.astrid.mapping.util;
 
 import hu.astrid.mapping.exception.MappingFileException;
+import hu.astrid.mapping.exception.MappingFileFormatException;
 import hu.astrid.mapping.io.BamReader;
 import hu.astrid.mapping.io.BamWriter;
 
@@ -26,14 +27,42 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Sorter for BAM file
+ * <p>
+ * In key-only mode the records are not decoded: only the reference index and
+ * the position are read from the binary records, and the records are copied
+ * to the output as they are. The reference sequences are ordered as in the
+ * header then, like other BAM tools do, instead of by name, and records with
+ * the same position keep their input order.
  * @see MappingFileSorter
+ * @see BamRecordRun
  * @author Szuni
  */
 public class BamSorter extends MappingFileSorter {
 
+	/**Orders the raw runs by their current key, equal keys by run index*/
+	private static final Comparator<SortRunReader> RAW_RUN_ORDER = new Comparator<SortRunReader>() {
+
+		@Override
+		public int compare(SortRunReader run1, SortRunReader run2) {
+			if (run1.getKey() != run2.getKey()) {
+				return run1.getKey() < run2.getKey() ? -1 : 1;
+			}
+			return run1.getIndex() - run2.getIndex();
+		}
+	};
+
+	private boolean keyOnly;
+
 	/**
 	 *
 	 * @param unsortedFile
@@ -42,7 +71,184 @@ public class BamSorter extends MappingFileSorter {
 	 * @throws IOException
 	 */
 	public BamSorter(File unsortedFile, File sortedFile) throws MappingFileException, IOException {
-		super(new BamReader(new FileInputStream(unsortedFile)), new BamWriter(new FileOutputStream(sortedFile)));
+		this(unsortedFile, sortedFile, false);
+	}
+
+	/**
+	 * @param unsortedFile
+	 * @param sortedFile
+	 * @param createIndex
+	 *            if <code>true</code>, the index of the sorted file is built
+	 *            while it is written and saved next to it with <i>.bai</i>
+	 *            extension
+	 * @throws MappingFileException
+	 * @throws IOException
+	 */
+	public BamSorter(File unsortedFile, File sortedFile, boolean createIndex) throws MappingFileException, IOException {
+		super(new BamReader(new FileInputStream(unsortedFile)), createWriter(sortedFile, createIndex));
+	}
+
+	/**
+	 * @return whether the records are sorted by their binary keys without decoding
+	 */
+	public boolean isKeyOnly() {
+		return keyOnly;
+	}
+
+	/**
+	 * Sets whether the records are sorted by their binary keys without
+	 * decoding them. This mode orders the reference sequences as the header.
+	 * @param keyOnly whether the records are sorted without decoding
+	 */
+	public void setKeyOnly(boolean keyOnly) {
+		this.keyOnly = keyOnly;
+	}
+
+	@Override
+	public void sort() throws MappingFileException, IOException {
+		if (keyOnly) {
+			sortKeys();
+		} else {
+			super.sort();
+		}
+	}
+
+	@Override
+	Callable<File> createRunMerger(List<File> runFiles) {
+		if (!keyOnly) {
+			return super.createRunMerger(runFiles);
+		}
+		final List<File> files = runFiles;
+		return new Callable<File>() {
+
+			@Override
+			public File call() throws Exception {
+				File runFile = createTempFile();
+				SortRunWriter runWriter = new SortRunWriter(runFile, isCompressTempFiles());
+				try {
+					mergeRaw(files, null, runWriter);
+				} finally {
+					runWriter.close();
+				}
+				return runFile;
+			}
+		};
+	}
+
+	/**
+	 * Sorts the binary records by their keys.
+	 */
+	private void sortKeys() throws MappingFileException, IOException {
+		BamReader bamReader = (BamReader) reader;
+		BamWriter bamWriter = (BamWriter) writer;
+		ExecutorService executor = createExecutor();
+		try {
+			long runSize = getRunSize();
+			List<Future<File>> pendingRuns = new ArrayList<Future<File>>();
+			List<File> runFiles = new ArrayList<File>();
+			BamRecordRun run = new BamRecordRun(runSize);
+			int length;
+			while ((length = bamReader.nextRawRecordLength()) >= 0) {
+				if (!run.fits(length)) {
+					pendingRuns.add(executor.submit(new RawRunSorter(run)));
+					run = new BamRecordRun(runSize);
+					while (pendingRuns.size() > getThreadCount()) {
+						runFiles.add(ConcurrencyUtil.await(pendingRuns.remove(0), MappingFileException.class, "Sort"));
+					}
+				}
+				run.add(bamReader, length);
+			}
+
+			writer.writeHeader(header);
+			if (pendingRuns.isEmpty()) {
+				run.sort();
+				run.writeTo(bamWriter);
+			} else {
+				if (run.getCount() > 0) {
+					pendingRuns.add(executor.submit(new RawRunSorter(run)));
+				}
+				run = null;
+				for (Future<File> pendingRun : pendingRuns) {
+					runFiles.add(ConcurrencyUtil.await(pendingRun, MappingFileException.class, "Sort"));
+				}
+				runFiles = reduceRuns(executor, runFiles);
+				mergeRaw(runFiles, bamWriter, null);
+			}
+			writer.close();
+		} finally {
+			executor.shutdownNow();
+			reader.close();
+			deleteTempFiles();
+		}
+	}
+
+	/**
+	 * Merges raw runs into the BAM writer or into a run writer, which is not
+	 * closed.
+	 */
+	private void mergeRaw(List<File> runFiles, BamWriter bamWriter, SortRunWriter runWriter)
+			throws MappingFileFormatException, IOException {
+		PriorityQueue<SortRunReader> queue = new PriorityQueue<SortRunReader>(runFiles.size(), RAW_RUN_ORDER);
+		try {
+			for (int i = 0; i < runFiles.size(); ++i) {
+				SortRunReader runReader = new SortRunReader(runFiles.get(i), i, isCompressTempFiles(), true);
+				if (runReader.hasCurrent()) {
+					queue.add(runReader);
+				} else {
+					runReader.close();
+				}
+			}
+			while (!queue.isEmpty()) {
+				SortRunReader runReader = queue.poll();
+				if (bamWriter != null) {
+					bamWriter.writeRawRecord(runReader.getRawData(), 0, runReader.getRawLength());
+				} else {
+					runWriter.writeRawRecord(runReader.getRawData(), 0, runReader.getRawLength());
+				}
+				if (runReader.next()) {
+					queue.add(runReader);
+				} else {
+					runReader.close();
+				}
+			}
+		} finally {
+			for (SortRunReader runReader : queue) {
+				runReader.close();
+			}
+		}
+	}
+
+	/**
+	 * Sorts a raw run and writes it into a temp file.
+	 */
+	private class RawRunSorter implements Callable<File> {
+
+		private final BamRecordRun run;
+
+		RawRunSorter(BamRecordRun run) {
+			this.run = run;
+		}
+
+		@Override
+		public File call() throws Exception {
+			run.sort();
+			File runFile = createTempFile();
+			SortRunWriter runWriter = new SortRunWriter(runFile, isCompressTempFiles());
+			try {
+				run.writeTo(runWriter);
+			} finally {
+				runWriter.close();
+			}
+			return runFile;
+		}
+	}
+
+	private static BamWriter createWriter(File sortedFile, boolean createIndex) throws IOException {
+		BamWriter writer = new BamWriter(new FileOutputStream(sortedFile));
+		if (createIndex) {
+			writer.setIndexOutput(new FileOutputStream(sortedFile.getPath() + ".bai"));
+		}
+		return writer;
 	}
 
 }
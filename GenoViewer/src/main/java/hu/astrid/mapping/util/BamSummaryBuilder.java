@@ -0,0 +1,149 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.AlignmentRecordCodec;
+import hu.astrid.mapping.io.BamReader;
+import hu.astrid.mapping.model.AlignmentFlag;
+import hu.astrid.mapping.model.BamHeader;
+import hu.astrid.mapping.model.BamSummary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Builds a {@link BamSummary} from the alignment records of a BAM file. The
+ * records are given by their position, the length of the reference region
+ * they cover, their read length and flag, in any order.
+ */
+public class BamSummaryBuilder {
+
+	private long unplacedCount;
+
+	private final long[] readCounts;
+
+	private final long[] unmappedCounts;
+
+	private final int[] maxReadLengths;
+
+	private final int[] firstPositions;
+
+	private final int[] endPositions;
+
+	/**
+	 * Creates a new builder.
+	 * 
+	 * @param referenceCount
+	 *            number of reference sequences in the header of the BAM file
+	 */
+	public BamSummaryBuilder(int referenceCount) {
+		readCounts = new long[referenceCount];
+		unmappedCounts = new long[referenceCount];
+		maxReadLengths = new int[referenceCount];
+		firstPositions = new int[referenceCount];
+		endPositions = new int[referenceCount];
+	}
+
+	/**
+	 * Adds an alignment record.
+	 * 
+	 * @param referenceIndex
+	 *            index of the reference sequence of the record, -1 if it has
+	 *            none
+	 * @param position
+	 *            1-based position of the record
+	 * @param referenceLength
+	 *            length of the reference region covered by the record
+	 * @param readLength
+	 *            length of the read sequence
+	 * @param flag
+	 *            bitwise flag of the record
+	 */
+	public void addRecord(int referenceIndex, int position, int referenceLength, int readLength, int flag) {
+		if (referenceIndex < 0) {
+			++unplacedCount;
+			return;
+		}
+		if ((flag & AlignmentFlag.UNMAPPED.getValue()) != 0 || position < 1) {
+			++unmappedCounts[referenceIndex];
+			return;
+		}
+		++readCounts[referenceIndex];
+		maxReadLengths[referenceIndex] = Math.max(maxReadLengths[referenceIndex], readLength);
+		if (firstPositions[referenceIndex] == 0 || position < firstPositions[referenceIndex]) {
+			firstPositions[referenceIndex] = position;
+		}
+		endPositions[referenceIndex] = Math.max(endPositions[referenceIndex], position + referenceLength);
+	}
+
+	/**
+	 * Creates the summary of the added records.
+	 * 
+	 * @param bamLength
+	 *            length of the summarized BAM file
+	 * @param bamModified
+	 *            last modification time of the summarized BAM file
+	 * @return the summary
+	 */
+	public BamSummary build(long bamLength, long bamModified) {
+		return new BamSummary(bamLength, bamModified, unplacedCount, readCounts, unmappedCounts, maxReadLengths,
+			firstPositions, endPositions);
+	}
+
+	/**
+	 * Summarizes a BAM file reading its records once. The records are not
+	 * decoded, only the fields of the summary are read.
+	 * 
+	 * @param bamFile
+	 *            the BAM file
+	 * @return the summary of the file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws MappingFileFormatException
+	 *             if the header or a record of the file is invalid
+	 */
+	public static BamSummary summarize(File bamFile) throws IOException, MappingFileFormatException {
+		// taken before reading, a file modified meanwhile is summarized again
+		long bamLength = bamFile.length();
+		long bamModified = bamFile.lastModified();
+		BamReader reader = new BamReader(new FileInputStream(bamFile));
+		try {
+			BamHeader header = reader.readHeader();
+			if (header == null) {
+				throw new MappingFileFormatException("Missing header!");
+			}
+			AlignmentRecordCodec codec = new AlignmentRecordCodec(header.getReferenceNames());
+			BamSummaryBuilder builder = new BamSummaryBuilder(header.getReferenceLengths().size());
+			byte[] data = new byte[1024];
+			int length;
+			while ((length = reader.nextRawRecordLength()) != -1) {
+				if (data.length < length) {
+					data = new byte[Math.max(length, 2 * data.length)];
+				}
+				reader.readRawRecord(data, 0, length);
+				builder.addRecord(BamUtil.toInt(data, 0), codec.getPosition(data, 0), codec.getReferenceLength(data, 0),
+					BamUtil.toInt(data, 16), BamUtil.toShort(data, 14) & 0xFFFF);
+			}
+			return builder.build(bamLength, bamModified);
+		} finally {
+			reader.close();
+		}
+	}
+}
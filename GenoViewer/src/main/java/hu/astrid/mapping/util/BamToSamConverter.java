@@ -18,13 +18,18 @@
 package hu.astrid.mapping.util;
 
 import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.AlignmentRecordCodec;
 import hu.astrid.mapping.io.BamReader;
+import hu.astrid.mapping.io.SamRecordFormatter;
 import hu.astrid.mapping.io.SamWriter;
+import hu.astrid.mapping.model.BamHeader;
 import hu.astrid.mapping.model.MappingHeader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.util.List;
 
 /**
  * Type of BAM file converts to type of SAM file.
@@ -36,6 +41,11 @@ public class BamToSamConverter extends MappingFileConverter {
      */
     private boolean writeHeader;
 
+    /**
+     * The header of the BAM file.
+     */
+    private BamHeader bamHeader;
+
     /**
      * Creates an new BAM to SAM file converter.
      *
@@ -49,22 +59,128 @@ public class BamToSamConverter extends MappingFileConverter {
     public BamToSamConverter(InputStream inBam, Writer outSam, boolean writeHeader )
             throws IOException {
 
+        this(inBam, outSam, writeHeader, 1);
+
+    }
+
+    /**
+     * Creates an new BAM to SAM file converter which decodes and formats the
+     * records on several threads. The order of the records is kept.
+     *
+     * @param inBam the BAM file is input stream
+     * @param outSam the SAM file is writer
+     * @param writeHeader if ture, then converter writes header to SAM file.
+     * @param threadCount number of threads converting the records
+     *
+     * @throws IOException
+     *              If an I/O error has occurred.
+     */
+    public BamToSamConverter(InputStream inBam, Writer outSam, boolean writeHeader, int threadCount)
+            throws IOException {
+
+        this(inBam, new SamWriter(outSam), writeHeader, threadCount);
+
+    }
+
+    /**
+     * Creates an new BAM to SAM file converter which formats the records into
+     * bytes on several threads and writes them to the stream in large
+     * chunks. The order of the records is kept.
+     *
+     * @param inBam the BAM file is input stream
+     * @param outSam the SAM file is output stream
+     * @param writeHeader if ture, then converter writes header to SAM file.
+     * @param threadCount number of threads converting the records
+     *
+     * @throws IOException
+     *              If an I/O error has occurred.
+     */
+    public BamToSamConverter(InputStream inBam, OutputStream outSam, boolean writeHeader, int threadCount)
+            throws IOException {
+
+        this(inBam, new SamWriter(outSam), writeHeader, threadCount);
+
+    }
+
+    private BamToSamConverter(InputStream inBam, SamWriter samWriter, boolean writeHeader, int threadCount)
+            throws IOException {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+        }
+
         mappingFileReader = new BamReader(inBam);
 
-        mappingFileWriter = new SamWriter(outSam);
+        mappingFileWriter = samWriter;
 
         this.writeHeader = writeHeader;
 
+        this.threadCount = threadCount;
+
     }
 
     @Override
     protected void convertHeader() throws IOException, MappingFileFormatException {
 
         MappingHeader samHeader = mappingFileReader.readHeader();
+        bamHeader = (BamHeader) samHeader;
 
         if ((samHeader != null) && writeHeader) {
             mappingFileWriter.writeHeader(samHeader);
         }
     }
-    
+
+    /**
+     * Converts the records by a {@link ConversionPipeline} if more than one
+     * thread is used: the binary records are read in batches, decoded and
+     * formatted by the workers and written in their original order.
+     */
+    @Override
+    protected void convertRecord() throws MappingFileFormatException, IOException {
+
+        if (threadCount == 1 || bamHeader == null) {
+            super.convertRecord();
+            return;
+        }
+
+        final BamReader bamReader = (BamReader) mappingFileReader;
+        final SamWriter samWriter = (SamWriter) mappingFileWriter;
+        final List<String> referenceNames = bamHeader.getReferenceNames();
+
+        new ConversionPipeline<BamRecordRun, SamRecordFormatter>(threadCount) {
+
+            /**
+             * Length of the next record, 0 before the first one is read.
+             */
+            private int nextLength;
+
+            @Override
+            protected BamRecordRun readBatch() throws MappingFileFormatException, IOException {
+                BamRecordRun batch = new BamRecordRun(BATCH_SIZE);
+                if (nextLength == 0) {
+                    nextLength = bamReader.nextRawRecordLength();
+                }
+                while (nextLength >= 0 && batch.fits(nextLength)) {
+                    batch.add(bamReader, nextLength);
+                    nextLength = bamReader.nextRawRecordLength();
+                }
+                return batch.getCount() == 0 ? null : batch;
+            }
+
+            @Override
+            protected SamRecordFormatter processBatch(BamRecordRun batch) throws MappingFileFormatException {
+                AlignmentRecordCodec codec = new AlignmentRecordCodec(referenceNames);
+                SamRecordFormatter lines = new SamRecordFormatter(2 * BATCH_SIZE);
+                for (int i = 0; i < batch.getCount(); ++i) {
+                    lines.format(codec.decode(batch.getData(), batch.getOffset(i), batch.getLength(i)));
+                }
+                return lines;
+            }
+
+            @Override
+            protected void writeBatch(SamRecordFormatter lines) throws IOException {
+                samWriter.writeLines(lines);
+            }
+        }.run();
+    }
 }
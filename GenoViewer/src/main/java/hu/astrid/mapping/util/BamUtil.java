@@ -41,6 +41,16 @@ public class BamUtil {
      */
     public static final byte[] BAI_MAGIC_BYTES = BAI_MAGIC_STRING.getBytes(ASCII_CHARSET);
     
+    /**
+     * Magic string of CSI files.
+     */
+    public static final String CSI_MAGIC_STRING = "CSI\u0001";
+    
+    /**
+     * Byte representation of the CSI magic string.
+     */
+    public static final byte[] CSI_MAGIC_BYTES = CSI_MAGIC_STRING.getBytes(ASCII_CHARSET);
+    
     /**
      * Magic string of BAM files.
      */
@@ -50,6 +60,16 @@ public class BamUtil {
      * Byte representation of the BAM magic string.
      */
     public static final byte[] BAM_MAGIC_BYTES = BAM_MAGIC_STRING.getBytes(ASCII_CHARSET);
+    
+    /**
+     * Magic string of BAM summary files.
+     */
+    public static final String SUMMARY_MAGIC_STRING = "BSM\u0001";
+    
+    /**
+     * Byte representation of the BAM summary magic string.
+     */
+    public static final byte[] SUMMARY_MAGIC_BYTES = SUMMARY_MAGIC_STRING.getBytes(ASCII_CHARSET);
 
     /**
      * 8-bit mask for performing operations byte by byte.
@@ -153,6 +173,26 @@ public class BamUtil {
     	return (short) (bytes[0] & OP_PATTERN | (bytes[1] & OP_PATTERN) << 8);
     }
 
+    /**
+     * This method converts four little-endian represented bytes of an array to integer.
+     *
+     * @param bytes bytes contain array
+     * @param offset index of the first byte
+     */
+    public static int toInt(byte[] bytes, int offset) {
+    	return bytes[offset] & OP_PATTERN | (bytes[offset + 1] & OP_PATTERN) << 8 | (bytes[offset + 2] & OP_PATTERN) << 16 | (bytes[offset + 3] & OP_PATTERN) << 24;
+    }
+
+    /**
+     * This method converts two little-endian represented bytes of an array to short.
+     *
+     * @param bytes bytes contain array
+     * @param offset index of the first byte
+     */
+    public static short toShort(byte[] bytes, int offset) {
+    	return (short) (bytes[offset] & OP_PATTERN | (bytes[offset + 1] & OP_PATTERN) << 8);
+    }
+
     /**
      * This method converts one integer number to little-endian byte array.
      *
@@ -0,0 +1,108 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers shared by the readers, writers and tools which process a file on
+ * worker threads.
+ */
+public class ConcurrencyUtil {
+
+	/**
+	 * Sequence number of the created worker threads.
+	 */
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private ConcurrencyUtil() {
+	}
+
+	/**
+	 * Creates a factory of daemon threads, so the workers never keep the
+	 * application running.
+	 * 
+	 * @param namePrefix
+	 *            prefix of the thread names, followed by a sequence number
+	 * @return the thread factory
+	 */
+	public static ThreadFactory daemonThreadFactory(final String namePrefix) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Waits for the result of a task and rethrows its failure. Exceptions of
+	 * the given type, I/O exceptions, runtime exceptions and errors are
+	 * rethrown as they are, other exceptions are wrapped into an
+	 * {@link IOException}.
+	 * 
+	 * @param <T>
+	 *            the result type of the task
+	 * @param <E>
+	 *            type of the checked exceptions thrown by the task
+	 * @param future
+	 *            the pending result of the task
+	 * @param exceptionType
+	 *            type of the checked exceptions thrown by the task
+	 * @param operation
+	 *            name of the operation for the message of an interruption
+	 * @return the result of the task
+	 * @throws E
+	 *             if the task failed with an exception of the given type
+	 * @throws IOException
+	 *             if the task failed with an I/O exception or an unexpected
+	 *             checked exception, or the waiting thread was interrupted
+	 */
+	public static <T, E extends Exception> T await(Future<T> future, Class<E> exceptionType, String operation)
+		throws E, IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(operation + " interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (exceptionType.isInstance(cause)) {
+				throw exceptionType.cast(cause);
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staged pipeline of the multi-threaded file conversions. The calling thread
+ * reads the input in batches, a pool of workers processes the batches, and a
+ * writer thread writes the results in the order of the batches. The queue
+ * between the reader and the writer is bounded, so at most a few batches per
+ * worker are held in memory at a time.
+ *
+ * @param <B>
+ *            type of the input batches
+ * @param <R>
+ *            type of the processed batches
+ */
+abstract class ConversionPipeline<B, R> {
+
+	/**
+	 * Interval of checking whether the writer failed while the reader waits
+	 * for space in the queue.
+	 */
+	private static final long POLL_MILLIS = 100;
+
+	private final int workerCount;
+
+	/**
+	 * Marks the end of the batches in the queue of the writer.
+	 */
+	private final Future<R> endOfBatches = new FutureTask<R>(new Callable<R>() {
+
+		@Override
+		public R call() {
+			return null;
+		}
+	});
+
+	/**
+	 * Creates a pipeline.
+	 *
+	 * @param workerCount
+	 *            number of threads processing the batches
+	 */
+	ConversionPipeline(int workerCount) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("Invalid worker count: " + workerCount);
+		}
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * Reads the next batch, called on the calling thread.
+	 *
+	 * @return the next batch or {@code null} at the end of the input
+	 */
+	protected abstract B readBatch() throws MappingFileFormatException, IOException;
+
+	/**
+	 * Processes a batch, called on the worker threads concurrently.
+	 */
+	protected abstract R processBatch(B batch) throws MappingFileFormatException, IOException;
+
+	/**
+	 * Writes a processed batch, called on the writer thread in the order the
+	 * batches were read.
+	 */
+	protected abstract void writeBatch(R result) throws MappingFileFormatException, IOException;
+
+	/**
+	 * Runs the pipeline until every batch has been written.
+	 *
+	 * @throws MappingFileFormatException
+	 *             if a stage reports a format error
+	 * @throws IOException
+	 *             if an I/O error occurs in a stage
+	 */
+	void run() throws MappingFileFormatException, IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(workerCount, ConcurrencyUtil.daemonThreadFactory("converter"));
+		ExecutorService writerExecutor = Executors.newSingleThreadExecutor(ConcurrencyUtil.daemonThreadFactory("converter"));
+		final BlockingQueue<Future<R>> queue = new ArrayBlockingQueue<Future<R>>(2 * workerCount);
+
+		try {
+			Future<R> writer = writerExecutor.submit(new Callable<R>() {
+
+				@Override
+				public R call() throws Exception {
+					Future<R> batch;
+					while ((batch = queue.take()) != endOfBatches) {
+						writeBatch(ConcurrencyUtil.await(batch, MappingFileFormatException.class, "Conversion"));
+					}
+					return null;
+				}
+			});
+
+			B batch;
+			while (!writer.isDone() && (batch = readBatch()) != null) {
+				final B input = batch;
+				Future<R> result = workers.submit(new Callable<R>() {
+
+					@Override
+					public R call() throws Exception {
+						return processBatch(input);
+					}
+				});
+				put(queue, result, writer);
+			}
+			put(queue, endOfBatches, writer);
+			ConcurrencyUtil.await(writer, MappingFileFormatException.class, "Conversion");
+		} finally {
+			workers.shutdownNow();
+			writerExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Puts a batch into the queue of the writer, waiting for space while the
+	 * writer is running. If the writer has stopped, its failure is thrown.
+	 */
+	private void put(BlockingQueue<Future<R>> queue, Future<R> batch, Future<R> writer)
+		throws MappingFileFormatException, IOException {
+
+		try {
+			while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (writer.isDone()) {
+					ConcurrencyUtil.await(writer, MappingFileFormatException.class, "Conversion");
+					throw new IllegalStateException("Writer stopped before the end of the batches");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Conversion interrupted");
+		}
+	}
+}
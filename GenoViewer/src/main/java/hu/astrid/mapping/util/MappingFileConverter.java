@@ -28,9 +28,20 @@ import java.io.IOException;
  */
 public abstract class MappingFileConverter {
 
+    /**
+     * Size of the batches of the multi-threaded conversion in bytes.
+     */
+    protected static final int BATCH_SIZE = 1 << 20;
+
     protected MappingFileReader mappingFileReader;
     protected MappingFileWriter mappingFileWriter;
 
+    /**
+     * Number of threads converting the records. If it is greater than 1, the
+     * records are converted by a {@link ConversionPipeline}.
+     */
+    protected int threadCount = 1;
+
     /**
      * Creates a new converter.
      */
@@ -1,4 +1,3 @@
-
 /*
  * This file is part of GenoViewer.
  *
@@ -22,7 +21,6 @@ import hu.astrid.mapping.exception.MappingFileException;
 import hu.astrid.mapping.exception.MappingFileFormatException;
 import hu.astrid.mapping.io.MappingFileReader;
 import hu.astrid.mapping.io.MappingFileWriter;
-import hu.astrid.mapping.io.SerializationUtil;
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.AlignmentRecordComparatorExtended;
 import hu.astrid.mapping.model.HeaderRecord;
@@ -30,48 +28,86 @@ import hu.astrid.mapping.model.HeaderRecordType;
 import hu.astrid.mapping.model.HeaderTag;
 import hu.astrid.mapping.model.HeaderTagType;
 import hu.astrid.mapping.model.MappingHeader;
+import hu.astrid.mapping.model.OptionalTag;
 import hu.astrid.mapping.model.SortOrder;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
 
 /**
  * Abstract class for sort records in a mapping file. The sorted records will be writed
- * to another file and headers SO tag set to {@code COORDINATE}. If the memory is full,
- * the previously sorted records serialized to a temp file.
+ * to another file and headers SO tag set to {@code COORDINATE}.
+ * <p>
+ * The sort is an external merge sort with an explicit memory budget. The
+ * records are collected into runs of a size that a share of the budget is
+ * enough for; full runs are sorted and written into temp files on worker
+ * threads while the next run is being read. If the whole input fits into one
+ * run, it is sorted in memory and no temp file is written. Otherwise the runs
+ * are merged with a priority queue; if there are more runs than the merge
+ * width, groups of them are merged into longer runs first, in parallel.
  * @author Szuni
  */
 public abstract class MappingFileSorter {
 
-	/**Data structure for store the records*/
-	protected MappingFileShorterStructure shorter;
+	private static final Logger logger = Logger.getLogger(MappingFileSorter.class);
+
+	/**Default memory budget of the sort: quarter of the maximum heap size*/
+	public static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+	/**Default number of threads sorting and merging runs*/
+	public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+	/**Default maximum number of runs merged at once*/
+	public static final int DEFAULT_MERGE_WIDTH = 64;
+
+	/**Minimum size of a run*/
+	static final long MIN_RUN_SIZE = 1 << 20;
+
+	/**Estimated heap size of an alignment record without its strings and tags*/
+	private static final int RECORD_OVERHEAD = 160;
+
+	/**Estimated heap size of a string without its characters*/
+	private static final int STRING_OVERHEAD = 48;
+
+	/**Estimated heap size of an optional tag*/
+	private static final int TAG_OVERHEAD = 160;
+
 	/**Header of the original file*/
 	protected MappingHeader header;
-//	protected SamReader[] readers;
-	/**File channels for reading from temp files*/
-	protected FileChannel[] readers;
-	/**First unsaved record of temp files*/
-	protected AlignmentRecord[] records;
-	/**Read positions if temp files file channels*/
-	protected long pos[];
-	/**Buffer for reading from temp files*/
-	private ByteBuffer buffer = ByteBuffer.allocate(SerializationUtil.BUFFER_SIZE);
 
 	/**Reader for original alignment file*/
 	protected MappingFileReader reader;
 	/**Writer for sorted alignment file*/
 	protected MappingFileWriter writer;
 
-	/**Memory size need to be free*/
-	protected static final int MEMORY_TRESHOLD = 10*1024*1024;
-
 	/**Comparator for sorting the records*/
 	protected static final AlignmentRecordComparatorExtended comparator = new AlignmentRecordComparatorExtended();
 
+	private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	private int threadCount = DEFAULT_THREAD_COUNT;
+
+	private int mergeWidth = DEFAULT_MERGE_WIDTH;
+
+	private File tempDirectory;
+
+	private boolean compressTempFiles;
+
+	/**Temp files not deleted yet*/
+	private final List<File> tempFiles = new ArrayList<File>();
+
 	/**
 	 * Create a sorter for the unordered {@code reader} object with output of {@code writer} object.
 	 * @param reader reader for unordered alignment file
@@ -80,7 +116,6 @@ public abstract class MappingFileSorter {
 	 * @throws IOException
 	 */
 	public MappingFileSorter(MappingFileReader reader, MappingFileWriter writer) throws MappingFileException, IOException {
-		this.shorter = new MappingFileShorterStructure();
 		this.reader = reader;
 		this.writer = writer;
 		header = reader.readHeader();
@@ -101,103 +136,404 @@ public abstract class MappingFileSorter {
 	}
 
 	/**
-	 * Sort the original file and write result to the output file. The records are
-	 * loaded into an ordered structure while there are free memory, then serialized
-	 * to a temp file. At the end the temp files are merged.
+	 * @return the memory budget of the sort in bytes
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the approximate heap size the records being sorted may occupy.
+	 * @param memoryBudget memory budget in bytes
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget <= 0) {
+			throw new IllegalArgumentException("Invalid memory budget: " + memoryBudget);
+		}
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return number of threads sorting and merging runs
+	 */
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * @param threadCount number of threads sorting and merging runs
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+		}
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * @return maximum number of runs merged at once
+	 */
+	public int getMergeWidth() {
+		return mergeWidth;
+	}
+
+	/**
+	 * @param mergeWidth maximum number of runs merged at once, at least 2
+	 */
+	public void setMergeWidth(int mergeWidth) {
+		if (mergeWidth < 2) {
+			throw new IllegalArgumentException("Invalid merge width: " + mergeWidth);
+		}
+		this.mergeWidth = mergeWidth;
+	}
+
+	/**
+	 * @return directory of the temp files, {@code null} for the default temp directory
+	 */
+	public File getTempDirectory() {
+		return tempDirectory;
+	}
+
+	/**
+	 * @param tempDirectory directory of the temp files, {@code null} for the default temp directory
+	 */
+	public void setTempDirectory(File tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * @return whether the temp files are compressed
+	 */
+	public boolean isCompressTempFiles() {
+		return compressTempFiles;
+	}
+
+	/**
+	 * Sets whether the temp files are compressed. Compression saves disk space
+	 * and I/O at the cost of CPU time.
+	 * @param compressTempFiles whether the temp files are compressed
+	 */
+	public void setCompressTempFiles(boolean compressTempFiles) {
+		this.compressTempFiles = compressTempFiles;
+	}
+
+	/**
+	 * Sort the original file and write result to the output file, then close
+	 * both files.
 	 * @throws MappingFileException
 	 * @throws IOException
 	 */
 	public void sort() throws MappingFileException, IOException {
-		ArrayList<String> tempFiles = new ArrayList<String>();
-		AlignmentRecord record = reader.nextRecord();
-		while(record!=null){
-			if(Runtime.getRuntime().freeMemory()<MEMORY_TRESHOLD) {
-				tempFiles.add( shorter.write() );
+		long begin = System.currentTimeMillis();
+		ExecutorService executor = createExecutor();
+		try {
+			long runSize = getRunSize();
+			List<Future<File>> pendingRuns = new ArrayList<Future<File>>();
+			List<File> runFiles = new ArrayList<File>();
+			List<AlignmentRecord> run = new ArrayList<AlignmentRecord>();
+			long size = 0;
+			long recordCount = 0;
+			AlignmentRecord record;
+			while ((record = reader.nextRecord()) != null) {
+				run.add(record);
+				size += estimateSize(record);
+				++recordCount;
+				if (size >= runSize) {
+					pendingRuns.add(executor.submit(new RunSorter(run)));
+					run = new ArrayList<AlignmentRecord>();
+					size = 0;
+					// at most one run per thread may be held besides the one being read
+					while (pendingRuns.size() > threadCount) {
+						runFiles.add(ConcurrencyUtil.await(pendingRuns.remove(0), MappingFileException.class, "Sort"));
+					}
+				}
+			}
+
+			writer.writeHeader(header);
+			if (pendingRuns.isEmpty()) {
+				Collections.sort(run, comparator);
+				for (AlignmentRecord sortedRecord : run) {
+					writer.writeRecord(sortedRecord);
+				}
+			} else {
+				if (!run.isEmpty()) {
+					pendingRuns.add(executor.submit(new RunSorter(run)));
+				}
+				run = null;
+				for (Future<File> pendingRun : pendingRuns) {
+					runFiles.add(ConcurrencyUtil.await(pendingRun, MappingFileException.class, "Sort"));
+				}
+				int runCount = runFiles.size();
+				runFiles = reduceRuns(executor, runFiles);
+				merge(runFiles, writer);
+				logger.debug("Merged " + runCount + " runs");
 			}
-			shorter.add(record);
-			record = reader.nextRecord();
+			writer.close();
+			logger.debug("Sorted " + recordCount + " records in " + (System.currentTimeMillis() - begin) + " ms");
+		} finally {
+			executor.shutdownNow();
+			reader.close();
+			deleteTempFiles();
 		}
+	}
+
+	/**
+	 * @return executor of the run sorting and merging tasks
+	 */
+	ExecutorService createExecutor() {
+		return Executors.newFixedThreadPool(threadCount, ConcurrencyUtil.daemonThreadFactory("sorter"));
+	}
 
-		tempFiles.add( shorter.write() );
+	/**
+	 * @return size of a run, so that a run for every thread and the run being
+	 *         read fit into the memory budget
+	 */
+	long getRunSize() {
+		return Math.max(MIN_RUN_SIZE, memoryBudget / (threadCount + 1));
+	}
+
+	/**
+	 * Creates a task which merges runs into a new run file.
+	 * @param runFiles the runs to be merged
+	 * @return the task, its result is the new run file
+	 */
+	Callable<File> createRunMerger(List<File> runFiles) {
+		return new RunMerger(runFiles);
+	}
 
-//		readers = new SamReader[tempFiles.size()];
-//		records = new AlignmentRecord[tempFiles.size()];
-//		for(int i=0; i<tempFiles.size(); ++i) {
-//			readers[i] = new SamReader(new File(tempFiles.get(i)));
-//			records[i] = readers[i].nextRecord();
-//		}
+	/**
+	 * Merges groups of runs until at most {@link #getMergeWidth()} runs remain.
+	 */
+	List<File> reduceRuns(ExecutorService executor, List<File> runFiles) throws MappingFileException, IOException {
+		while (runFiles.size() > mergeWidth) {
+			int groupCount = (runFiles.size() + mergeWidth - 1) / mergeWidth;
+			int groupSize = (runFiles.size() + groupCount - 1) / groupCount;
+			List<Future<File>> mergedRuns = new ArrayList<Future<File>>(groupCount);
+			for (int i = 0; i < runFiles.size(); i += groupSize) {
+				mergedRuns.add(executor.submit(createRunMerger(runFiles.subList(i, Math.min(i + groupSize, runFiles.size())))));
+			}
+			List<File> merged = new ArrayList<File>(groupCount);
+			for (Future<File> mergedRun : mergedRuns) {
+				merged.add(ConcurrencyUtil.await(mergedRun, MappingFileException.class, "Sort"));
+			}
+			for (File runFile : runFiles) {
+				deleteTempFile(runFile);
+			}
+			runFiles = merged;
+		}
+		return runFiles;
+	}
 
+	/**
+	 * Merges sorted runs into the given writer, which is not closed.
+	 */
+	private void merge(List<File> runFiles, MappingFileWriter out) throws MappingFileFormatException, IOException {
+		PriorityQueue<SortRunReader> queue = new PriorityQueue<SortRunReader>(runFiles.size(), RUN_ORDER);
+		try {
+			for (int i = 0; i < runFiles.size(); ++i) {
+				SortRunReader runReader = new SortRunReader(runFiles.get(i), i, compressTempFiles, false);
+				if (runReader.hasCurrent()) {
+					queue.add(runReader);
+				} else {
+					runReader.close();
+				}
+			}
+			while (!queue.isEmpty()) {
+				SortRunReader runReader = queue.poll();
+				out.writeRecord(runReader.current());
+				if (runReader.next()) {
+					queue.add(runReader);
+				} else {
+					runReader.close();
+				}
+			}
+		} finally {
+			for (SortRunReader runReader : queue) {
+				runReader.close();
+			}
+		}
+	}
 
-		readers = new FileChannel[tempFiles.size()];
-		records = new AlignmentRecord[tempFiles.size()];
-		pos = new long[tempFiles.size()];
-		for(int i=0; i<tempFiles.size(); ++i) {
-			readers[i] = new RandomAccessFile(tempFiles.get(i), "r").getChannel();
+	/**
+	 * Orders the runs by their current record, equal records by run index to
+	 * keep the merge stable.
+	 */
+	private static final Comparator<SortRunReader> RUN_ORDER = new Comparator<SortRunReader>() {
 
-			buffer.clear();
-			readers[i].read(buffer);
-			buffer.flip();
-			records[i] = SerializationUtil.fromByteBuffer(buffer);
-			pos[i] = buffer.position();
+		@Override
+		public int compare(SortRunReader run1, SortRunReader run2) {
+			int ret = comparator.compare(run1.current(), run2.current());
+			if (ret != 0) {
+				return ret;
+			}
+			return run1.getIndex() - run2.getIndex();
 		}
+	};
+
+	/**
+	 * Sorts a run and writes it into a temp file.
+	 */
+	private class RunSorter implements Callable<File> {
 
-		writer.writeHeader(header);
+		private final List<AlignmentRecord> run;
 
-		while(hasRecordsToWrite()) {
-			writeNextRecord();
+		RunSorter(List<AlignmentRecord> run) {
+			this.run = run;
 		}
 
-		writer.close();
+		@Override
+		public File call() throws Exception {
+			Collections.sort(run, comparator);
+			File runFile = createTempFile();
+			SortRunWriter runWriter = new SortRunWriter(runFile, compressTempFiles);
+			try {
+				for (AlignmentRecord record : run) {
+					runWriter.writeRecord(record);
+				}
+			} finally {
+				runWriter.close();
+			}
+			run.clear();
+			return runFile;
+		}
 	}
 
 	/**
-	 * Is there any unsaved record
-	 * @return true - if any of temp files contains unsaved record
-	 *		<br>false - every records saved to the new sorted file
+	 * Merges runs into a longer run.
 	 */
-	protected boolean hasRecordsToWrite() {
-		for(AlignmentRecord record : records) {
-			if(record != null)
-				return true;
+	private class RunMerger implements Callable<File> {
+
+		private final List<File> runFiles;
+
+		RunMerger(List<File> runFiles) {
+			this.runFiles = runFiles;
+		}
+
+		@Override
+		public File call() throws Exception {
+			File runFile = createTempFile();
+			SortRunWriter runWriter = new SortRunWriter(runFile, compressTempFiles);
+			try {
+				merge(runFiles, runWriter);
+			} finally {
+				runWriter.close();
+			}
+			return runFile;
 		}
-		return false;
 	}
 
 	/**
-	 * Write the first unsaved record. Every temp files first records will be compared,
-	 * and the first is saved. After the save, the next record of the temp file
-	 * is loaded. If no further record available in a file, the file is closed.
-	 * @throws IOException
-         * @throws MappingFileFormatException
+	 * Estimates the heap size of a record.
+	 * @param record alignment record
+	 * @return estimated size in bytes
 	 */
-	protected void writeNextRecord() throws IOException, MappingFileFormatException {
-		int firstIndex=-1;
-		int i=0;
-		while(records[i]==null) {
-			++i;
-		}
-		firstIndex = i;
-		for(; i<records.length; ++i) {
-			if( records[i]!=null && comparator.compare(records[firstIndex], records[i]) > 0)
-				firstIndex = i;
+	static long estimateSize(AlignmentRecord record) {
+		long size = RECORD_OVERHEAD + 6 * STRING_OVERHEAD;
+		size += 2 * (length(record.getQueryName()) + length(record.getReferenceName()) + length(record.getCigar())
+				+ length(record.getMateReferenceName()) + length(record.getSequence()) + length(record.getQuality()));
+		for (OptionalTag tag : record.listOptionalTags()) {
+			size += TAG_OVERHEAD + 2 * length(tag.getValue());
 		}
+		return size;
+	}
 
-		writer.writeRecord(records[firstIndex]);
+	private static int length(String string) {
+		return string == null ? 0 : string.length();
+	}
 
-//		records[firstIndex]  = readers[firstIndex].nextRecord();
+	File createTempFile() throws IOException {
+		File file = File.createTempFile("sortrun", ".tmp", tempDirectory);
+		file.deleteOnExit();
+		synchronized (tempFiles) {
+			tempFiles.add(file);
+		}
+		return file;
+	}
 
-		buffer.clear();
-		if (readers[firstIndex].read(buffer, pos[firstIndex]) <0){
-			records[firstIndex] = null;
-			readers[firstIndex].close();
+	private void deleteTempFile(File file) {
+		synchronized (tempFiles) {
+			tempFiles.remove(file);
 		}
-		else {
-			buffer.flip();
-			records[firstIndex] = SerializationUtil.fromByteBuffer(buffer);
-			pos[firstIndex] += buffer.position();
+		file.delete();
+	}
+
+	void deleteTempFiles() {
+		synchronized (tempFiles) {
+			for (File file : tempFiles) {
+				file.delete();
+			}
+			tempFiles.clear();
 		}
+	}
 
+	/**
+	 * Sorts a SAM or BAM file by coordinate. The type of the file is chosen by
+	 * its extension, the output has the same type as the input.
+	 * <p>
+	 * Usage: {@code MappingFileSorter [-m <memory MB>] [-t <threads>] [-w <merge width>] [-T <temp dir>] [-z] [-k] [-i] <input> <output>}
+	 * where {@code -z} compresses the temp files, {@code -k} sorts a BAM file by the binary keys of the
+	 * records without decoding them and {@code -i} writes the index of a sorted BAM file.
+	 * @param args command line arguments
+	 */
+	public static void main(String[] args) {
+		long memoryBudget = DEFAULT_MEMORY_BUDGET;
+		int threadCount = DEFAULT_THREAD_COUNT;
+		int mergeWidth = DEFAULT_MERGE_WIDTH;
+		File tempDirectory = null;
+		boolean createIndex = false;
+		boolean compressTempFiles = false;
+		boolean keyOnly = false;
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				if ("-m".equals(args[i])) {
+					memoryBudget = Long.parseLong(args[++i]) << 20;
+				} else if ("-t".equals(args[i])) {
+					threadCount = Integer.parseInt(args[++i]);
+				} else if ("-w".equals(args[i])) {
+					mergeWidth = Integer.parseInt(args[++i]);
+				} else if ("-T".equals(args[i])) {
+					tempDirectory = new File(args[++i]);
+				} else if ("-i".equals(args[i])) {
+					createIndex = true;
+				} else if ("-z".equals(args[i])) {
+					compressTempFiles = true;
+				} else if ("-k".equals(args[i])) {
+					keyOnly = true;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			files.clear();
+		}
+		if (files.size() != 2) {
+			System.err.println("Usage: MappingFileSorter [-m <memory MB>] [-t <threads>] [-w <merge width>] "
+					+ "[-T <temp dir>] [-z] [-k] [-i] <input.sam|input.bam> <output>");
+			System.exit(1);
+		}
 
+		try {
+			File input = new File(files.get(0));
+			File output = new File(files.get(1));
+			MappingFileSorter sorter;
+			if (input.getName().toLowerCase().endsWith(".bam")) {
+				BamSorter bamSorter = new BamSorter(input, output, createIndex);
+				bamSorter.setKeyOnly(keyOnly);
+				sorter = bamSorter;
+			} else {
+				sorter = new SamSorter(input, output);
+			}
+			sorter.setMemoryBudget(memoryBudget);
+			sorter.setThreadCount(threadCount);
+			sorter.setMergeWidth(mergeWidth);
+			sorter.setTempDirectory(tempDirectory);
+			sorter.setCompressTempFiles(compressTempFiles);
+			sorter.sort();
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
 	}
-
 }
@@ -18,17 +18,22 @@
 package hu.astrid.mapping.util;
 
 import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.AlignmentRecordCodec;
 import hu.astrid.mapping.io.BamWriter;
 import hu.astrid.mapping.io.SamReader;
+import hu.astrid.mapping.io.SamRecordParser;
+import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.BamHeader;
 import hu.astrid.mapping.model.HeaderRecord;
 import hu.astrid.mapping.model.MappingHeader;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import static hu.astrid.mapping.model.HeaderTagType.*;
 import static hu.astrid.mapping.model.HeaderRecordType.*;
@@ -38,6 +43,11 @@ import static hu.astrid.mapping.model.HeaderRecordType.*;
  */
 public class SamToBamConverter extends MappingFileConverter {
 
+    /**
+     * Names of the reference sequences of the BAM header.
+     */
+    private List<String> referenceNames;
+
     /**
      * Creates an new SAM to BAM file converter.
      *
@@ -52,9 +62,141 @@ public class SamToBamConverter extends MappingFileConverter {
     public SamToBamConverter(Reader inSam, OutputStream outBam)
     throws FileNotFoundException, IOException {
 
-        mappingFileReader = new SamReader(inSam);
+        this(inSam, outBam, null);
+
+    }
+
+    /**
+     * Creates an new SAM to BAM file converter which also writes the index of
+     * the BAM file. The SAM file must be sorted by coordinate.
+     *
+     * @param inSam the SAM file is reader
+     * @param outBam the BAM file is output stream
+     * @param outBai the index file output stream, or <code>null</code>
+     *
+     * @throws FileNotFoundException
+     *              if the inSam is file not exists.
+     * @throws IOException
+     *              If an I/O error has occurred.
+     */
+    public SamToBamConverter(Reader inSam, OutputStream outBam, OutputStream outBai)
+    throws FileNotFoundException, IOException {
+
+        this(new SamReader(inSam), outBam, outBai, 1);
+
+    }
+
+    /**
+     * Creates an new SAM to BAM file converter which parses the bytes of the
+     * SAM file directly and optionally writes the index of the BAM file. The
+     * SAM file must be sorted by coordinate if the index is written.
+     *
+     * @param inSam the SAM file is input stream
+     * @param outBam the BAM file is output stream
+     * @param outBai the index file output stream, or <code>null</code>
+     *
+     * @throws IOException
+     *              If an I/O error has occurred.
+     */
+    public SamToBamConverter(InputStream inSam, OutputStream outBam, OutputStream outBai)
+    throws IOException {
+
+        this(new SamReader(inSam), outBam, outBai, 1);
+
+    }
+
+    /**
+     * Creates an new SAM to BAM file converter which parses and encodes the
+     * records and compresses the BGZF blocks on several threads. The order of
+     * the records is kept. The SAM file must be sorted by coordinate if the
+     * index is written.
+     *
+     * @param inSam the SAM file is input stream
+     * @param outBam the BAM file is output stream
+     * @param outBai the index file output stream, or <code>null</code>
+     * @param threadCount number of threads converting the records and number
+     *              of threads compressing the blocks
+     *
+     * @throws IOException
+     *              If an I/O error has occurred.
+     */
+    public SamToBamConverter(InputStream inSam, OutputStream outBam, OutputStream outBai, int threadCount)
+    throws IOException {
+
+        this(new SamReader(inSam), outBam, outBai, threadCount);
+
+    }
+
+    private SamToBamConverter(SamReader samReader, OutputStream outBam, OutputStream outBai, int threadCount)
+    throws IOException {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+        }
+
+        mappingFileReader = samReader;
+        this.threadCount = threadCount;
+
+        BamWriter bamWriter = new BamWriter(outBam, Deflater.DEFAULT_COMPRESSION, threadCount);
+        if (outBai != null) {
+            bamWriter.setIndexOutput(outBai);
+        }
+        mappingFileWriter = bamWriter;
+
+    }
+
+    /**
+     * Converts the alignment records through a single reused record
+     * instance, the BAM writer encodes each record before the next is read.
+     * If more than one thread is used, the records are converted by a
+     * {@link ConversionPipeline}: the lines are read in batches, parsed and
+     * encoded by the workers and written in their original order.
+     */
+    @Override
+    protected void convertRecord() throws MappingFileFormatException, IOException {
+
+        if (mappingFileReader == null || mappingFileWriter == null) {
+            throw new IOException("Something I/O error occured!");
+        }
+
+        final SamReader samReader = (SamReader) mappingFileReader;
+
+        if (threadCount > 1 && referenceNames != null) {
+            final BamWriter bamWriter = (BamWriter) mappingFileWriter;
+
+            new ConversionPipeline<byte[], BamRecordRun>(threadCount) {
+
+                @Override
+                protected byte[] readBatch() throws MappingFileFormatException, IOException {
+                    return samReader.nextLines(BATCH_SIZE);
+                }
+
+                @Override
+                protected BamRecordRun processBatch(byte[] lines) throws MappingFileFormatException, IOException {
+                    AlignmentRecordCodec codec = new AlignmentRecordCodec(referenceNames);
+                    SamRecordParser parser = new SamRecordParser(lines, 0, lines.length);
+                    AlignmentRecord alignmentRecord = new AlignmentRecord();
+                    BamRecordRun batch = new BamRecordRun(Long.MAX_VALUE);
+                    while (parser.nextLine()) {
+                        parser.parseAlignmentRecord(alignmentRecord);
+                        byte[] record = codec.code(alignmentRecord);
+                        batch.add(record, 0, record.length);
+                    }
+                    return batch;
+                }
+
+                @Override
+                protected void writeBatch(BamRecordRun batch) throws MappingFileFormatException, IOException {
+                    batch.writeTo(bamWriter);
+                }
+            }.run();
+            return;
+        }
+
+        AlignmentRecord alignmentRecord = new AlignmentRecord();
 
-        mappingFileWriter = new BamWriter(outBam);
+        while (samReader.nextRecord(alignmentRecord) != null)
+            mappingFileWriter.writeRecord(alignmentRecord);
 
     }
 
@@ -90,6 +232,7 @@ public class SamToBamConverter extends MappingFileConverter {
             }
 
             mappingFileWriter.writeHeader(bamHeader);
+            referenceNames = bamHeader.getReferenceNames();
             
         } else {
             throw new MappingFileFormatException("Missing header!");
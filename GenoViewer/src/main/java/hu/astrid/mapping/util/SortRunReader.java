@@ -0,0 +1,232 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.io.SerializationUtil;
+import hu.astrid.mapping.model.AlignmentRecord;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads back a run file written by {@link SortRunWriter}. The reader holds
+ * the record read last, which is the head of the run during the merge. A run
+ * of binary BAM records is read in raw mode, then the current record is
+ * available as bytes with its sort key instead of an {@link AlignmentRecord}.
+ */
+class SortRunReader {
+
+	/**
+	 * Size of the input buffers, smaller than the output buffer because many
+	 * runs are read at the same time.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final DataInputStream in;
+
+	private final int index;
+
+	private final Inflater inflater;
+
+	private final boolean raw;
+
+	private boolean available;
+
+	private AlignmentRecord current;
+
+	private byte[] rawData = new byte[1024];
+
+	private int rawLength;
+
+	private long key;
+
+	/**
+	 * Opens a run file and reads its first record.
+	 *
+	 * @param file
+	 *            the run file
+	 * @param index
+	 *            index of the run in the merge
+	 * @param compressed
+	 *            whether the content is compressed
+	 * @param raw
+	 *            whether the run holds binary BAM records
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	SortRunReader(File file, int index, boolean compressed, boolean raw) throws IOException {
+		this.index = index;
+		this.raw = raw;
+		InputStream stream = new FileInputStream(file);
+		if (compressed) {
+			inflater = new Inflater(true);
+			stream = new InflaterInputStream(stream, inflater, BUFFER_SIZE);
+		} else {
+			inflater = null;
+		}
+		in = new DataInputStream(new UnsynchronizedBufferedInputStream(stream));
+		next();
+	}
+
+	/**
+	 * @return index of the run in the merge
+	 */
+	int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return {@code false} at the end of the run
+	 */
+	boolean hasCurrent() {
+		return available;
+	}
+
+	/**
+	 * @return the current record, {@code null} at the end of the run or in
+	 *         raw mode
+	 */
+	AlignmentRecord current() {
+		return current;
+	}
+
+	/**
+	 * @return array holding the current binary record in raw mode
+	 */
+	byte[] getRawData() {
+		return rawData;
+	}
+
+	/**
+	 * @return length of the current binary record in raw mode
+	 */
+	int getRawLength() {
+		return rawLength;
+	}
+
+	/**
+	 * @return sort key of the current binary record in raw mode
+	 * @see BamRecordRun#key(byte[], int)
+	 */
+	long getKey() {
+		return key;
+	}
+
+	/**
+	 * Steps to the next record of the run.
+	 *
+	 * @return {@code false} at the end of the run
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	boolean next() throws IOException {
+		current = null;
+		available = in.readByte() != 0;
+		if (!available) {
+			rawLength = 0;
+			return false;
+		}
+		if (!raw) {
+			current = SerializationUtil.read(in);
+			return true;
+		}
+		rawLength = in.readInt();
+		if (rawData.length < rawLength) {
+			rawData = new byte[Math.max(rawLength, 2 * rawData.length)];
+		}
+		in.readFully(rawData, 0, rawLength);
+		key = BamRecordRun.key(rawData, 0);
+		return true;
+	}
+
+	void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Buffered stream without the locking of {@link java.io.BufferedInputStream},
+	 * which would be paid for every field read by {@link DataInputStream}.
+	 */
+	private static class UnsynchronizedBufferedInputStream extends InputStream {
+
+		private final InputStream in;
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private int position;
+
+		private int count;
+
+		UnsynchronizedBufferedInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == count && !fill()) {
+				return -1;
+			}
+			return buffer[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position == count) {
+				if (len >= buffer.length) {
+					return in.read(b, off, len);
+				}
+				if (!fill()) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, count - position);
+			System.arraycopy(buffer, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private boolean fill() throws IOException {
+			int n = in.read(buffer, 0, buffer.length);
+			if (n <= 0) {
+				return false;
+			}
+			position = 0;
+			count = n;
+			return true;
+		}
+	}
+}
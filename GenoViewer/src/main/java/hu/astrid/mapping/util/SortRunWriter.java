@@ -0,0 +1,176 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.MappingFileWriter;
+import hu.astrid.mapping.io.SerializationUtil;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.MappingHeader;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a sorted run of alignment records into a temporary file of
+ * {@link MappingFileSorter}. The header is not stored. Every record is
+ * preceded by a marker byte, the run ends with a zero byte. The records are
+ * stored in the compact form of {@link SerializationUtil}, or as binary BAM
+ * records with their length when the run is written by the key-only sort of
+ * {@link BamSorter}. The content is optionally compressed with the fastest
+ * deflate level.
+ *
+ * @see SortRunReader
+ */
+class SortRunWriter implements MappingFileWriter {
+
+	/**
+	 * Size of the output buffer.
+	 */
+	static final int BUFFER_SIZE = 1 << 18;
+
+	private final DataOutputStream out;
+
+	private final Deflater deflater;
+
+	/**
+	 * Creates a writer of the given run file.
+	 *
+	 * @param file
+	 *            the run file
+	 * @param compressed
+	 *            whether the content is compressed
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	SortRunWriter(File file, boolean compressed) throws IOException {
+		OutputStream stream = new FileOutputStream(file);
+		if (compressed) {
+			deflater = new Deflater(Deflater.BEST_SPEED, true);
+			stream = new DeflaterOutputStream(stream, deflater, BUFFER_SIZE);
+		} else {
+			deflater = null;
+		}
+		out = new DataOutputStream(new UnsynchronizedBufferedOutputStream(stream));
+	}
+
+	@Override
+	public void writeHeader(MappingHeader header) {
+	}
+
+	@Override
+	public void writeRecord(AlignmentRecord alignmentRecord) throws MappingFileFormatException, IOException {
+		out.writeByte(1);
+		SerializationUtil.write(alignmentRecord, out);
+	}
+
+	/**
+	 * Writes a binary BAM record.
+	 *
+	 * @param data
+	 *            the array holding the record
+	 * @param offset
+	 *            offset of the record in the array
+	 * @param length
+	 *            length of the record
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void writeRawRecord(byte[] data, int offset, int length) throws IOException {
+		out.writeByte(1);
+		out.writeInt(length);
+		out.write(data, offset, length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			out.writeByte(0);
+			out.close();
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Buffered stream without the locking of {@link java.io.BufferedOutputStream},
+	 * which would be paid for every field written by {@link DataOutputStream}.
+	 */
+	private static class UnsynchronizedBufferedOutputStream extends OutputStream {
+
+		private final OutputStream out;
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private int count;
+
+		UnsynchronizedBufferedOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flushBuffer();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > buffer.length - count) {
+				flushBuffer();
+				if (len > buffer.length) {
+					out.write(b, off, len);
+					return;
+				}
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flushBuffer();
+			} finally {
+				out.close();
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+	}
+}
@@ -22,6 +22,7 @@ import hu.astrid.core.Nucleotide;
 import hu.astrid.mapping.exception.GffFileFormatException;
 import hu.astrid.mapping.exception.IndexFileFormatException;
 import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.RegionIterator;
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.GffRecord;
 import hu.astrid.mvc.swing.AbstractController;
@@ -306,6 +307,10 @@ public class ViewerController extends AbstractController {
 	public void loadReads(int start, int end) throws IOException,
 			MappingFileFormatException {
 		synchronized (readsDataList) {
+			// the model can stop keeping every read in memory
+			if (isReadDataLoaded && !isWholeFileLoaded()) {
+				isReadDataLoaded = false;
+			}
 			if (readsDataList.isEmpty() || !isReadDataLoaded) {
 				for (AbstractModel modell : registeredModels) {
 					if (modell instanceof ViewerReadModel) {
@@ -403,7 +408,7 @@ public class ViewerController extends AbstractController {
 		for (AbstractModel modell : registeredModels) {
 			if (modell instanceof ViewerReadModel) {
 				ViewerReadModel viewerReadModel = (ViewerReadModel) modell;
-				int startPos = Math.max(0, displayPosition - maxReadLength);
+				int startPos = Math.max(0, displayPosition - getMaxReadLength());
 				int endPos = Math.min(displayPosition + displayWidth,
 						viewerReadModel.getActReferenceLength());
 				if (startPos > endPos) {
@@ -442,13 +447,34 @@ public class ViewerController extends AbstractController {
 		for (AbstractModel modell : registeredModels) {
 			if (modell instanceof ViewerReadModel) {
 				ViewerReadModel readModell = (ViewerReadModel) modell;
-				return (readModell.loadReadsWithoutStore(start - maxReadLength,
+				return (readModell.loadReadsWithoutStore(start - getMaxReadLength(),
 						end));
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * Streaming variant of {@link #loadReadsForInDel(int, int)}, the reads are
+	 * read only while iterating.
+	 * @param start
+	 * @param end
+	 * @return iterator of the reads, it must be closed after use, {@code null} if there is no read model
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 * @see ViewerReadModel#iterateReadsWithoutStore(int, int)
+	 */
+	public RegionIterator iterateReadsForInDel(int start, int end)
+			throws IOException, MappingFileFormatException {
+		for (AbstractModel modell : registeredModels) {
+			if (modell instanceof ViewerReadModel) {
+				ViewerReadModel readModell = (ViewerReadModel) modell;
+				return readModell.iterateReadsWithoutStore(start - getMaxReadLength(), end);
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * @return
 	 * @see ViewerReadModel#getLastReadEndPos()
@@ -530,9 +556,17 @@ public class ViewerController extends AbstractController {
 	}
 
 	/**
-	 * @return maximum length of a read
+	 * @return maximum length of a read, known from the summary of the BAM file
+	 *         before the reads are loaded
+	 * @see ViewerReadModel#getMaxReadLength()
 	 */
 	public int getMaxReadLength() {
+		for (AbstractModel modell : registeredModels) {
+			if (modell instanceof ViewerReadModel) {
+				ViewerReadModel readModell = (ViewerReadModel) modell;
+				return Math.max(maxReadLength, readModell.getMaxReadLength());
+			}
+		}
 		return maxReadLength;
 	}
 
@@ -122,6 +122,18 @@ public class AlignmentPanel extends ResizeableScrollPanel implements AbstractVie
 									}
 								}
 							}.execute();
+						} else if (isFirstLoadOccured && getHorizontalScrollBar().getValueIsAdjusting() && Viewer.getController().isReadsLoaded()) {
+							// While the scrollbar is dragged, the preloader follows
+							// the viewport to prefetch in the direction of scrolling
+							final Interval interval = new Interval(position, position + Math.max(1, getDisplayableCharacters()));
+							new SwingWorker<Object, Object>() {
+
+								@Override
+								protected Object doInBackground() throws Exception {
+									Viewer.getController().notifyPreloader(interval);
+									return null;
+								}
+							}.execute();
 						}
 					}
 				});
@@ -541,7 +553,8 @@ public class AlignmentPanel extends ResizeableScrollPanel implements AbstractVie
 					panel.repaintContent();
 				}
 			}
-		} else if (evt.getPropertyName().equals(ViewerReadModel.ACT_ALIGNMENT_REF_INDEX)) {
+		} else if (evt.getPropertyName().equals(ViewerReadModel.ACT_ALIGNMENT_REF_INDEX)
+				|| evt.getPropertyName().equals(ViewerReadModel.ALIGNMENT_RESIDENCY)) {
 			this.clear();
 			this.referenceLength = Viewer.getController().getAlignmentReferenceLength();
 			this.invokePanelResizeListeners();
@@ -18,18 +18,27 @@
 package hu.astrid.viewer.model;
 
 import hu.astrid.viewer.model.alignment.Interval;
-import hu.astrid.viewer.model.alignment.LoadedIntervalList;
+import hu.astrid.viewer.model.alignment.ReadHeapMeter;
+import hu.astrid.viewer.model.alignment.ReadStore;
+import hu.astrid.viewer.model.alignment.ResidencyPolicy;
+import hu.astrid.viewer.model.alignment.TilePrefetcher;
 import hu.astrid.mapping.exception.IndexFileFormatException;
 import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.BamSummaryReader;
+import hu.astrid.mapping.io.BamSummaryWriter;
+import hu.astrid.mapping.io.BgzfBlockCache;
 import hu.astrid.mapping.io.IndexedBamReader;
+import hu.astrid.mapping.io.RegionIterator;
 import hu.astrid.mapping.io.SamReader;
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.AlignmentRecordComparator;
+import hu.astrid.mapping.model.BamSummary;
 import hu.astrid.mapping.model.HeaderRecord;
 import hu.astrid.mapping.model.HeaderRecordType;
 import hu.astrid.mapping.model.HeaderTagType;
 import hu.astrid.mapping.model.MappingHeader;
 import hu.astrid.mapping.model.SortOrder;
+import hu.astrid.mapping.util.BamSummaryBuilder;
 import hu.astrid.mvc.swing.AbstractModel;
 import hu.astrid.viewer.Viewer;
 import hu.astrid.viewer.gui.StatusBar.ProgressValue;
@@ -42,21 +51,33 @@ import hu.astrid.viewer.util.Alignment;
 import hu.astrid.viewer.util.CSVReader;
 import hu.astrid.viewer.util.CSVWriter;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
 import org.apache.log4j.Logger;
 
 /**
@@ -70,6 +91,8 @@ public class ViewerReadModel extends AbstractModel {
 	public static final String ALIGNMENT_PRELOAD = "AlignmentPreload";
 	/** Actual reference index in read file {@link ViewerReadModel#setActAlignmentRefNameIndex(java.lang.Integer) } */
 	public static final String ACT_ALIGNMENT_REF_INDEX = "ActAlignmentRefNameIndex";
+	/** Reads of the actual reference are not kept in memory any more, they are loaded through the index */
+	public static final String ALIGNMENT_RESIDENCY = "AlignmentResidency";
 	/** Mutations table load state {@link ViewerReadModel#setMutationsLoaded(java.lang.Boolean) } */
 	public static final String MUTATIONS_LOAD = "MutationsLoaded";
 	/** Indicates wether mutations loading in progress */
@@ -79,10 +102,16 @@ public class ViewerReadModel extends AbstractModel {
 	/**Logger*/
 	private static final Logger logger = Logger.getLogger(ViewerReadModel.class);
 	private final AlignmentRecordComparator alignmentRecordComparator = new AlignmentRecordComparator();
-	/**List of reads*/
-	List<AlignmentRecord> readList = new ArrayList<AlignmentRecord>();
-	/**Stores the loaded regions from alignment file*/
-	private LoadedIntervalList loadedIntervals = null;
+	/**Resident reads of the alignment file, indexed by reference and position*/
+	private final ReadStore readStore = new ReadStore();
+	/**Reads passed to the views since the last {@link #loadReads(int, int)}, the read ids are indices in this list*/
+	private List<AlignmentRecord> displayedReads = new ArrayList<AlignmentRecord>();
+	/**Start of the interval, whose reads are in {@link #displayedReads} (inclusive)*/
+	private int displayedStart;
+	/**End of the interval, whose reads are in {@link #displayedReads} (exclusive)*/
+	private int displayedEnd;
+	/**Estimated size of the reads kept resident when they are loaded through the index, in bytes*/
+	private static final long TILE_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
 	/**Name of alignment file*/
 	private String fileName;
 	/**Absolute path of alignment*/
@@ -91,19 +120,37 @@ public class ViewerReadModel extends AbstractModel {
 	/**Index of the actual reference in the BAM file*/
 	private int actRefNameIndex = -1;
 	/**Is every reads loaded from alignment file*/
-	private boolean isWholeFileLoaded;
-	/**Indicates that whole file need to be loaded*/
-	private boolean needWholeFileLoaded;
-	/**Load intervals with this length from end of reference to find the last covered position*/
-	private final int readEndCheckBufferSize = 100;
+	private volatile boolean isWholeFileLoaded;
+	/**Decides whether the reads of a reference in BAM file are kept in memory*/
+	private ResidencyPolicy residencyPolicy;
+	/**Estimated heap size of the reads of the references examined by the residency policy*/
+	private final Map<Integer, Long> referenceSizeEstimates = new HashMap<Integer, Long>();
+	/**Switches to indexed loading when the heap is low after a garbage collection*/
+	private final NotificationListener lowMemoryListener = new NotificationListener() {
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+				switchToStreaming();
+			}
+		}
+	};
+	/**Ratio of the heap pools used after a garbage collection, above that the heap is low*/
+	private static final double LOW_MEMORY_RATIO = 0.85;
 	/**Are the records sorted in the file*/
 	private boolean sorted = false;
+	/**Number of streamed records kept for consensus generation before the examined ones are removed*/
+	private static final int CONSENSUS_RECORD_WINDOW_SIZE = 4096;
 	/**Length of reference where reads loaded from*/
 	private int actReferenceLength = 0;
 	/** variable for storing the position of the last read's last item */
 	private int lastReadEndPos;
-	/**ExecutorService to preload reads*/
-	private ExecutorService preloaderService = Executors.newSingleThreadExecutor();
+	/**Directory of the summaries of BAM files whose directory is not writable*/
+	private static final File SUMMARY_CACHE_DIRECTORY = new File(System.getProperty("user.home"), ".genoviewer" + File.separator + "summaries");
+	/**Read counts, covered region and coverage of the references in BAM file, {@code null} until it is loaded or built*/
+	private volatile BamSummary summary;
+	/**Loads tiles around the displayed interval, created for a BAM file on the first notification*/
+	private TilePrefetcher prefetcher;
 	/**ExecutorService to write files for generated data*/
 	private ExecutorService writerService = Executors.newCachedThreadPool();
 	/**List containing reference names in SAM file*/
@@ -132,7 +179,7 @@ public class ViewerReadModel extends AbstractModel {
 				if (file.length() > samFileLimit) {
 					throw new SamSizeExceededException(file.getAbsolutePath(), samFileLimit);
 				}
-				samReader = new SamReader(new BufferedReader(new FileReader(file)));
+				samReader = new SamReader(file);
 			} catch (IOException ex) {
 				logger.error(ex.getMessage());
 				throw ex;
@@ -155,11 +202,17 @@ public class ViewerReadModel extends AbstractModel {
 
 			AlignmentRecord sam = null;
 			try {
+				List<AlignmentRecord> reads = new ArrayList<AlignmentRecord>();
+				int lastPosition = 0;
 				sam = samReader.nextRecord();
 				while (sam != null) {
-					readList.add(sam);
+					reads.add(sam);
+					lastPosition = Math.max(lastPosition, sam.getPosition());
 					sam = samReader.nextRecord();
 				}
+				//SAM files are shown as a single reference
+				storeReads(0, reads, 0, readStore.tileOf(lastPosition));
+				displayedReads = readStore.queryStarts(0, 0, Integer.MAX_VALUE);
 
 				isWholeFileLoaded = true;
 				samReader.close();
@@ -174,20 +227,16 @@ public class ViewerReadModel extends AbstractModel {
 			fileName = file.getName();
 			filePath = file.getAbsolutePath();
 
-			if (!sorted) {
-				sortAlignmentRecords();
-			}
-
-			lastReadEndPos = readList.get(readList.size() - 1).getPosition() + readList.get(readList.size() - 1).getSequence().length();
+			AlignmentRecord lastRecord = readStore.getLastRead(0);
+			lastReadEndPos = lastRecord.getPosition() + lastRecord.getSequence().length();
 
 			//If header didnt contained SO tag
 			if (actReferenceLength == 0) {
-				AlignmentRecord record = readList.get(readList.size() - 1);
-				actReferenceLength = record.getPosition() - 1 + record.getReadLength();
+				actReferenceLength = lastRecord.getPosition() - 1 + lastRecord.getReadLength();
 			}
 
-			loadedIntervals = new LoadedIntervalList(actReferenceLength);
-			loadedIntervals.init(0, actReferenceLength);
+			displayedStart = 0;
+			displayedEnd = actReferenceLength;
 		}
 
 		firePropertyChange(ALIGNMENT_LOAD, null, fileName);
@@ -204,7 +253,7 @@ public class ViewerReadModel extends AbstractModel {
 		unloadReads();
 		synchronized (this) {
 			try {
-				bamReader = new IndexedBamReader(file.getPath());
+				bamReader = new IndexedBamReader(file.getPath(), new BgzfBlockCache(Viewer.getApplicationProperties().getBgzfBlockCacheSize()));
 
 				for (HeaderRecord record : bamReader.getHeader().getRecords()) {
 					if (record.getType() == HeaderRecordType.HD) {
@@ -227,12 +276,10 @@ public class ViewerReadModel extends AbstractModel {
 				throw ex;
 			}
 
-			//TODO memóriába betöltés feltételét finomítani
-			logger.debug("BamFileLimit: " + Viewer.getApplicationProperties().getBamFileLimit());
-			if (file.length() < Viewer.getApplicationProperties().getBamFileLimit()) {
-				needWholeFileLoaded = true;
-			}
-
+			residencyPolicy = new ResidencyPolicy(Viewer.getApplicationProperties().getWholeFileHeapBudget());
+			logger.debug("heap budget of references: " + residencyPolicy.getHeapBudget());
+			addLowMemoryListener();
+			loadSummary(file);
 		}
 
 		logger.trace("bam loaded");
@@ -241,14 +288,73 @@ public class ViewerReadModel extends AbstractModel {
 	}
 
 	/**
-	 * Sort alignment records stored in the model
+	 * Sort the alignment records passed to the views, the read ids change accordingly
 	 */
 	public synchronized void sortAlignmentRecords() {
-		Collections.sort(readList, alignmentRecordComparator);
+		Collections.sort(displayedReads, alignmentRecordComparator);
 	}
 
 	/**
-	 * Load reads from read file, where reads start indicies are in an interval. Records and load interval are stored.
+	 * @return index of the reference whose reads are stored, SAM files are stored as reference 0
+	 */
+	private int storedReference() {
+		return bamReader != null ? actRefNameIndex : 0;
+	}
+
+	/**
+	 * Load the tiles of an interval which are not resident through the index of the BAM file.
+	 * Consecutive missing tiles are read with a single query.
+	 * @param firstTile first tile to load
+	 * @param lastTile last tile to load (inclusive)
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 */
+	private void loadTiles(int firstTile, int lastTile) throws IOException, MappingFileFormatException {
+		int reference = storedReference();
+		String referenceName = bamReader.getHeader().getReferenceNames().get(reference);
+		int tile = firstTile;
+		while (tile <= lastTile) {
+			if (readStore.isTileLoaded(reference, tile)) {
+				++tile;
+				continue;
+			}
+			int runEnd = tile;
+			while (runEnd < lastTile && !readStore.isTileLoaded(reference, runEnd + 1)) {
+				++runEnd;
+			}
+			List<AlignmentRecord> reads = bamReader.loadRecords(referenceName, readStore.tileStart(tile), readStore.tileEnd(runEnd));
+			storeReads(reference, reads, tile, runEnd);
+			logger.trace("loaded tiles " + tile + "-" + runEnd + " with " + reads.size() + " reads");
+			tile = runEnd + 1;
+		}
+	}
+
+	/**
+	 * Store the reads of consecutive tiles. Every tile of the range is stored, even if it has no reads.
+	 * @param reference index of reference
+	 * @param reads every read starting in the tiles, in any order
+	 * @param firstTile first tile
+	 * @param lastTile last tile (inclusive)
+	 */
+	private void storeReads(int reference, List<AlignmentRecord> reads, int firstTile, int lastTile) {
+		if (!sorted) {
+			reads = new ArrayList<AlignmentRecord>(reads);
+			Collections.sort(reads, alignmentRecordComparator);
+		}
+		int from = 0;
+		for (int tile = firstTile; tile <= lastTile; ++tile) {
+			int to = from;
+			while (to < reads.size() && readStore.tileOf(reads.get(to).getPosition()) <= tile) {
+				++to;
+			}
+			readStore.putTile(reference, tile, reads.subList(from, to));
+			from = to;
+		}
+	}
+
+	/**
+	 * Load reads from read file, where reads start indicies are in an interval. The interval is extended to
+	 * tile boundaries, the tiles which are not resident are loaded into the read store.
 	 * If SAM file used, or every records loaded from BAM file, just returns the list, loading doesnt happen.
 	 * @param start itnerval start index, (inculsive) in case of SAM doesnt matter
 	 * @param end interval end index, (exclusive) in case of SAM doesnt matter
@@ -259,23 +365,23 @@ public class ViewerReadModel extends AbstractModel {
 	public List<AlignmentRecord> loadReads(int start, int end) throws IOException, MappingFileFormatException {
 		if (isWholeFileLoaded) {
 			synchronized (this) {
-				return readList;
+				return displayedReads;
 			}
 		}
 		try {
-			stopPreload();
+			cancelPrefetch();
 			final ArrayList<AlignmentRecord> list;
 			synchronized (this) {
-				readList = Collections.synchronizedList(bamReader.loadRecords(bamReader.getHeader().getReferenceNames().get(actRefNameIndex), start, end));
-
-				loadedIntervals.init(start, Math.min(end, actReferenceLength));
-
-				if (!sorted) {
-					sortAlignmentRecords();
-				}
-				list = new ArrayList<AlignmentRecord>(readList);
+				int firstTile = readStore.tileOf(start);
+				int lastTile = readStore.tileOf(Math.max(start, Math.min(end, actReferenceLength) - 1));
+				loadTiles(firstTile, lastTile);
+				displayedStart = readStore.tileStart(firstTile);
+				displayedEnd = Math.min(readStore.tileEnd(lastTile), actReferenceLength);
+				displayedReads = Collections.synchronizedList(readStore.queryStarts(actRefNameIndex, displayedStart, displayedEnd));
+				readStore.trimToSize(TILE_MEMORY_BUDGET);
+				list = new ArrayList<AlignmentRecord>(displayedReads);
 			}
-			logger.trace("loaded " + start + " " + Math.min(end, actReferenceLength));
+			logger.trace("loaded " + displayedStart + " " + displayedEnd);
 
 			return list;
 		} catch (IOException ex) {
@@ -288,11 +394,12 @@ public class ViewerReadModel extends AbstractModel {
 	}
 
 	/**
-	 * Stop every preload thread
+	 * Cancel the queued and running tile loads of the prefetcher
 	 */
-	private void stopPreload() {
-		List<Runnable> unDoneList = preloaderService.shutdownNow();
-		logger.trace("everything stopped, " + unDoneList.size() + " undone");
+	private synchronized void cancelPrefetch() {
+		if (prefetcher != null) {
+			prefetcher.cancelAll();
+		}
 	}
 
 	/**
@@ -306,9 +413,7 @@ public class ViewerReadModel extends AbstractModel {
 	 */
 	public List<AlignmentRecord> loadReadsWithoutStore(int start, int end) throws IOException, MappingFileFormatException {
 		if (isWholeFileLoaded) {
-			synchronized (this) {
-				return new ArrayList<AlignmentRecord>(readList);
-			}
+			return readStore.queryStarts(storedReference(), 0, Integer.MAX_VALUE);
 		}
 		try {
 			List<AlignmentRecord> list = bamReader.loadRecords(bamReader.getHeader().getReferenceNames().get(actRefNameIndex), start, end);
@@ -328,13 +433,80 @@ public class ViewerReadModel extends AbstractModel {
 		}
 	}
 
+	/**
+	 * Iterate reads through currently active reader without storing. The reads
+	 * of a BAM file are read only while iterating, so intervals of any length
+	 * can be walked in constant memory.
+	 *
+	 * @param start interval start index (inclusive)
+	 * @param end interval end index (exclusive)
+	 * @return iterator of the reads in position order, it must be closed after use
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 */
+	public RegionIterator iterateReadsWithoutStore(int start, int end) throws IOException, MappingFileFormatException {
+		if (isWholeFileLoaded) {
+			return new ListRegionIterator(readStore.queryStarts(storedReference(), start, end), start, end);
+		}
+		try {
+			return bamReader.iterateRecords(bamReader.getHeader().getReferenceNames().get(actRefNameIndex), start, end);
+		} catch (IOException ex) {
+			logger.error(ex.getMessage(), ex);
+			throw ex;
+		} catch (MappingFileFormatException ex) {
+			logger.error(ex.getMessage(), ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Iterator of the reads of a sorted list, which start in an interval
+	 */
+	private static class ListRegionIterator implements RegionIterator {
+
+		private final List<AlignmentRecord> list;
+		private final int end;
+		private int index;
+
+		ListRegionIterator(List<AlignmentRecord> list, int start, int end) {
+			this.list = list;
+			this.end = end;
+			while (index < list.size() && list.get(index).getPosition() < start) {
+				++index;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < list.size() && list.get(index).getPosition() < end;
+		}
+
+		@Override
+		public AlignmentRecord next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return list.get(index++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			index = list.size();
+		}
+	}
+
 	/**
 	 * @param start start position in records collection
 	 * @param end end position in records collection
 	 * @return list of alignment records
 	 */
 	public synchronized List<AlignmentRecord> getPrelodedReads(int start, int end) {
-		return new ArrayList<AlignmentRecord>(readList.subList(start, end));
+		return new ArrayList<AlignmentRecord>(displayedReads.subList(start, end));
 	}
 
 	/**
@@ -365,15 +537,18 @@ public class ViewerReadModel extends AbstractModel {
 				synchronized (this) {
 					this.actRefNameIndex = actRefNameIndex;
 					this.actReferenceLength = bamReader.getHeader().getReferenceLengths().get(actRefNameIndex);
-					loadedIntervals = new LoadedIntervalList(actReferenceLength);
-					//TODO memóriába betöltés feltételét finomítani
-					if (needWholeFileLoaded) {
-						//Set false to reload for new reference
-						isWholeFileLoaded = false;
-						loadReads(0, actReferenceLength);
-						isWholeFileLoaded = true;
+					displayedReads = new ArrayList<AlignmentRecord>();
+					displayedStart = displayedEnd = 0;
+					cancelPrefetch();
+					isWholeFileLoaded = false;
+					long estimatedSize = estimateReferenceSize();
+					if (residencyPolicy.isResident(estimatedSize, availableHeap())) {
+						loadReference(estimatedSize);
+					} else {
+						logger.info("reads of reference " + actRefNameIndex + " are loaded through the index, estimated size " + estimatedSize);
 					}
-					lastReadEndPos = calculateLastReadEndPosInBam();
+					BamSummary actSummary = summary;
+					lastReadEndPos = actSummary != null ? actSummary.getEndPosition(actRefNameIndex) : calculateLastReadEndPosInBam();
 				}
 			}
 		}
@@ -381,23 +556,156 @@ public class ViewerReadModel extends AbstractModel {
 	}
 
 	/**
-	 * Start preloading reads. If a load or occured before, boundaries set by {@code interval},
-	 * this load will be extended.
-	 * If view was scrolled, new boundaries set by {@code interval}, and extension starts if needed.
+	 * Estimate the heap used by the reads of the actual reference. The estimates are computed once for a reference.
+	 * @return estimated size in bytes
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 */
+	private long estimateReferenceSize() throws IOException, MappingFileFormatException {
+		Long estimatedSize = referenceSizeEstimates.get(actRefNameIndex);
+		if (estimatedSize == null) {
+			String referenceName = bamReader.getHeader().getReferenceNames().get(actRefNameIndex);
+			long mappedCount = bamReader.getMappedRecordCount(referenceName);
+			long unmappedCount = bamReader.getUnmappedRecordCount(referenceName);
+			long readCount = mappedCount >= 0 && unmappedCount >= 0 ? mappedCount + unmappedCount : -1;
+			BamSummary actSummary = summary;
+			if (readCount < 0 && actSummary != null) {
+				readCount = actSummary.getReadCount(actRefNameIndex) + actSummary.getUnmappedCount(actRefNameIndex);
+			}
+			estimatedSize = residencyPolicy.estimateSize(new TilePrefetchHandler(), actRefNameIndex, actReferenceLength, readCount);
+			referenceSizeEstimates.put(actRefNameIndex, estimatedSize);
+			logger.debug("estimated size of reads of reference " + actRefNameIndex + ": " + estimatedSize);
+		}
+		return estimatedSize;
+	}
+
+	/**
+	 * @return heap bytes which are free, or used by the read store
+	 */
+	private long availableHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory()) + readStore.getSize();
+	}
+
+	/**
+	 * Load every read of the actual reference into memory. Tiles of other references are evicted to make room for it,
+	 * and the tiles of the reference stay resident, when it is selected again. The heap cost of the loaded reads is
+	 * measured and calibrates the residency policy, if {@link ReadHeapMeter} is enabled.
+	 * @param estimatedSize estimated heap size of the reads
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 */
+	private void loadReference(long estimatedSize) throws IOException, MappingFileFormatException {
+		readStore.trimToSize(Math.max(0, residencyPolicy.getHeapBudget() - estimatedSize));
+		int readCount = readStore.getReadCount();
+		long storeSize = readStore.getSize();
+		ReadHeapMeter meter = new ReadHeapMeter();
+		meter.start();
+		loadTiles(0, readStore.tileOf(Math.max(0, actReferenceLength - 1)));
+		long measuredSize = meter.stop(readStore.getReadCount() - readCount, readStore.getSize() - storeSize);
+		residencyPolicy.calibrate(readStore.getSize() - storeSize, measuredSize);
+		displayedReads = readStore.queryStarts(actRefNameIndex, 0, Integer.MAX_VALUE);
+		displayedStart = 0;
+		displayedEnd = actReferenceLength;
+		isWholeFileLoaded = true;
+	}
+
+	/**
+	 * Stop keeping the reads of the actual reference in memory, they are loaded through the index from now.
+	 * The reference is not kept in memory when it is selected again either. The views are notified to reload
+	 * the displayed reads.
+	 */
+	public void switchToStreaming() {
+		synchronized (this) {
+			if (!isWholeFileLoaded || bamReader == null) {
+				return;
+			}
+			isWholeFileLoaded = false;
+			readStore.evictReference(actRefNameIndex);
+			// the reads did not fit, the estimate must not let them be loaded again
+			referenceSizeEstimates.put(actRefNameIndex, Long.MAX_VALUE);
+			displayedReads = new ArrayList<AlignmentRecord>();
+			displayedStart = displayedEnd = 0;
+		}
+		logger.warn("Heap is low, reads of reference " + actRefNameIndex + " are loaded through the index");
+		firePropertyChange(ALIGNMENT_RESIDENCY, true, false);
+	}
+
+	/**
+	 * Set the collection usage threshold of the heap pools, and listen to its notifications
+	 */
+	private void addLowMemoryListener() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+					&& pool.getCollectionUsageThreshold() == 0 && pool.getUsage().getMax() > 0) {
+				pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * LOW_MEMORY_RATIO));
+			}
+		}
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(lowMemoryListener, null, null);
+	}
+
+	private void removeLowMemoryListener() {
+		try {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(lowMemoryListener);
+		} catch (ListenerNotFoundException ignore) {
+		}
+	}
+
+	/**
+	 * Start preloading reads. If view was scrolled, new boundaries set by {@code interval}, the
+	 * prefetcher plans the tiles around it from the scroll velocity, and the tiles not needed any
+	 * more are cancelled. The displayed interval is extended with the planned tiles already loaded.
 	 * In null is passed as parameter, just extension occurs if needed.
 	 * @param interval the displayed interval after load or scroll, or null if extension needed
 	 */
-	public synchronized void notifyPreloader(Interval interval) {
-		if (interval != null) {
-			lastIntervalStart = interval.start;
-			lastIntervalEnd = interval.end;
+	public void notifyPreloader(Interval interval) {
+		int prevSize, actSize;
+		synchronized (this) {
+			if (interval != null) {
+				lastIntervalStart = interval.start;
+				lastIntervalEnd = interval.end;
+			}
+			if (isWholeFileLoaded || bamReader == null || actRefNameIndex < 0) {
+				return;
+			}
+			if (prefetcher == null) {
+				TilePrefetchHandler handler = new TilePrefetchHandler();
+				prefetcher = new TilePrefetcher(readStore, handler, handler, TILE_MEMORY_BUDGET);
+			}
+			prefetcher.viewportChanged(actRefNameIndex, actReferenceLength, lastIntervalStart, lastIntervalEnd);
+			prevSize = displayedReads.size();
+			extendDisplayedInterval();
+			actSize = displayedReads.size();
 		}
-		if (preloaderService.isShutdown()) {
-			preloaderService = Executors.newSingleThreadExecutor();
-
+		if (actSize > prevSize) {
+			firePropertyChange(ALIGNMENT_PRELOAD, prevSize, actSize);
 		}
+	}
 
-		preloaderService.execute(new AlignmentRecordPreloader());
+	/**
+	 * Extend the displayed interval with the resident tiles next to it, which are planned by the
+	 * prefetcher. The reads of the tiles are appended to the displayed reads.
+	 */
+	private void extendDisplayedInterval() {
+		if (displayedStart >= displayedEnd) {
+			return;
+		}
+		int tile = readStore.tileOf(displayedStart) - 1;
+		List<AlignmentRecord> reads;
+		while (tile >= 0 && prefetcher.isPlanned(actRefNameIndex, tile)
+				&& (reads = readStore.getTileReads(actRefNameIndex, tile)) != null) {
+			displayedReads.addAll(reads);
+			displayedStart = readStore.tileStart(tile);
+			--tile;
+		}
+		int lastTile = readStore.tileOf(actReferenceLength - 1);
+		tile = readStore.tileOf(displayedEnd - 1) + 1;
+		while (tile <= lastTile && prefetcher.isPlanned(actRefNameIndex, tile)
+				&& (reads = readStore.getTileReads(actRefNameIndex, tile)) != null) {
+			displayedReads.addAll(reads);
+			displayedEnd = Math.min(readStore.tileEnd(tile), actReferenceLength);
+			++tile;
+		}
 	}
 
 	/**
@@ -413,25 +721,29 @@ public class ViewerReadModel extends AbstractModel {
 	 * @return
 	 */
 	public synchronized boolean isReadsLoaded() {
-		return !readList.isEmpty() || bamReader != null;
+		return !readStore.isEmpty() || bamReader != null;
 	}
 
 	/**
 	 * Unload the reads, close BAM reader, notify views
 	 */
 	public void unloadReads() {
-		if (!readList.isEmpty()) {
+		if (!readStore.isEmpty() || !displayedReads.isEmpty()) {
 			Viewer.getController().unloadConsesnsus();
 			synchronized (this) {
 				if (fileName == null) {
 					return;
 				}
-				stopPreload();
-				readList = new ArrayList<AlignmentRecord>();
+				if (prefetcher != null) {
+					prefetcher.shutdown();
+					prefetcher = null;
+				}
+				readStore.clear();
+				displayedReads = new ArrayList<AlignmentRecord>();
+				displayedStart = displayedEnd = 0;
 				samReferenceNames = new ArrayList<String>();
 				fileName = null;
 				filePath = null;
-				loadedIntervals.clear();
 				if (bamReader != null) {
 					try {
 						bamReader.close();
@@ -440,11 +752,14 @@ public class ViewerReadModel extends AbstractModel {
 					}
 				}
 				bamReader = null;
+				summary = null;
 				mutationsList = null;
 				actRefNameIndex = -1;
 				actReferenceLength = 0;
 				isWholeFileLoaded = false;
-				needWholeFileLoaded = false;
+				residencyPolicy = null;
+				referenceSizeEstimates.clear();
+				removeLowMemoryListener();
 				sorted = false;
 				lastIntervalStart = 0;
 				lastIntervalEnd = 0;
@@ -460,10 +775,13 @@ public class ViewerReadModel extends AbstractModel {
 	 * @param end interval end
 	 * @return {@code true} - if every readfrom given interval is loaded
 	 */
-	public synchronized boolean isIntervalLoaded(int start, int end) {
-		lastIntervalStart = start;
-		lastIntervalEnd = end;
-		boolean containment = loadedIntervals.contains(start, end);
+	public boolean isIntervalLoaded(int start, int end) {
+		boolean containment;
+		synchronized (this) {
+			lastIntervalStart = start;
+			lastIntervalEnd = end;
+			containment = start >= displayedStart && end <= displayedEnd;
+		}
 		if (containment) {
 			notifyPreloader(new Interval(start, end));
 		}
@@ -484,7 +802,7 @@ public class ViewerReadModel extends AbstractModel {
 	 */
 	public synchronized AlignmentRecord getReadById(int id) {
 		try {
-			return readList.get(id);
+			return displayedReads.get(id);
 		} catch (IndexOutOfBoundsException ex) {
 			return null;
 		}
@@ -515,76 +833,148 @@ public class ViewerReadModel extends AbstractModel {
 	}
 
 	/**
-	 * Search for last covered position
-	 * @return position of last reads last nucleotide
-	 * @throws IOException
-	 * @throws MappingFileFormatException
+	 * Load the summary of the BAM file saved next to it, or in the {@link #SUMMARY_CACHE_DIRECTORY} if the directory of
+	 * the BAM file is not writable. If there is no summary or the file changed since it was summarized, the reads are
+	 * summarized in background and the summary is saved for the next time. When it is done, the last read end of the
+	 * actual reference is taken from it, and the reference sizes are estimated again.
+	 * @param file BAM file
 	 */
-	private int calculateLastReadEndPosInBam() throws IOException, MappingFileFormatException {
-		int i=0;
-		int start = Math.max(actReferenceLength - readEndCheckBufferSize, 0);
-
-		int end = actReferenceLength;
-		List<AlignmentRecord> tempList;
-		//TODO nagy meretu fileok eseten belathatatlan ideig fut
-		while (true) {
-			tempList = loadReadsWithoutStore(start, end);
-			logger.debug("while | tempList: "+tempList+" "+start+" "+end);
-			if (!tempList.isEmpty()) {
-				//TODO indelek esetén ez eltolódik
-				return tempList.get(tempList.size() - 1).getPosition() + tempList.get(tempList.size() - 1).getReadLength();
+	private void loadSummary(final File file) {
+		int referenceCount = bamReader.getHeader().getReferenceNames().size();
+		for (File summaryFile : new File[]{BamSummary.fileOf(file), BamSummary.cacheFileOf(file, SUMMARY_CACHE_DIRECTORY)}) {
+			if (!summaryFile.exists()) {
+				continue;
 			}
+			try {
+				BamSummary loaded = new BamSummaryReader().load(summaryFile, referenceCount);
+				if (loaded.isUpToDate(file)) {
+					summary = loaded;
+					return;
+				}
+				logger.info("summary " + summaryFile + " is out of date");
+			} catch (IOException ex) {
+				logger.warn(ex.getMessage(), ex);
+			} catch (IndexFileFormatException ex) {
+				logger.warn(summaryFile + ": " + ex.getMessage(), ex);
+			}
+		}
+		writerService.submit(new Runnable() {
 
-			start = Math.max(start - readEndCheckBufferSize, 0);
-			end -= readEndCheckBufferSize;
+			@Override
+			public void run() {
+				BamSummary built;
+				try {
+					long start = System.nanoTime();
+					built = BamSummaryBuilder.summarize(file);
+					logger.debug("summary of " + file.getName() + " built in " + (System.nanoTime() - start) / 1000000 + " ms");
+				} catch (Exception ex) {
+					logger.error(ex.getMessage(), ex);
+					return;
+				}
+				saveSummary(file, built);
+				synchronized (ViewerReadModel.this) {
+					if (!file.getAbsolutePath().equals(filePath)) {
+						return;
+					}
+					summary = built;
+					if (actRefNameIndex >= 0) {
+						lastReadEndPos = built.getEndPosition(actRefNameIndex);
+					}
+					// streamed references stay streamed, the others are estimated from the summary when selected again
+					for (Iterator<Long> it = referenceSizeEstimates.values().iterator(); it.hasNext();) {
+						if (it.next() != Long.MAX_VALUE) {
+							it.remove();
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Save the summary of a BAM file next to it, or in the {@link #SUMMARY_CACHE_DIRECTORY} if its directory is not
+	 * writable. The summaries cached for earlier versions of the file are deleted.
+	 * @param file BAM file
+	 * @param built summary of the file
+	 */
+	private static void saveSummary(File file, BamSummary built) {
+		try {
+			BamSummaryWriter.save(built, BamSummary.fileOf(file));
+			return;
+		} catch (IOException ex) {
+			logger.debug("summary of " + file.getName() + " cannot be saved next to it: " + ex.getMessage());
+		}
+		File cacheFile = BamSummary.cacheFileOf(file, SUMMARY_CACHE_DIRECTORY);
+		try {
+			if (!SUMMARY_CACHE_DIRECTORY.isDirectory() && !SUMMARY_CACHE_DIRECTORY.mkdirs()) {
+				throw new IOException("Cannot create directory " + SUMMARY_CACHE_DIRECTORY);
+			}
+			BamSummaryWriter.save(built, cacheFile);
+		} catch (IOException ex) {
+			// the summary is still used until the file is closed
+			logger.warn("summary of " + file.getName() + " cannot be saved: " + ex.getMessage());
+			return;
+		}
+		String prefix = BamSummary.cachePrefixOf(file);
+		for (File cached : SUMMARY_CACHE_DIRECTORY.listFiles()) {
+			if (cached.getName().startsWith(prefix) && cached.getName().endsWith(BamSummary.FILE_SUFFIX)
+				&& !cached.equals(cacheFile)) {
+				cached.delete();
+			}
 		}
 	}
 
 	/**
-	 * Preload an interval, refresh loaded, store alignment records in model intervals and notify views.
+	 * @return length of the longest read in the BAM file according to its summary, 0 if it is not known
 	 */
-	private class AlignmentRecordPreloader implements Runnable {
+	public int getMaxReadLength() {
+		BamSummary actSummary = summary;
+		return actSummary != null ? actSummary.getMaxReadLength() : 0;
+	}
+
+	/**
+	 * Search for last covered position. The last records of the reference are located by the index of the BAM file,
+	 * so it reads only the end of the reference. The covered length of the reads is taken from their CIGAR, like in
+	 * the summary of the file.
+	 * @return position following the last aligned nucleotide, 0 if there is no mapped read on the reference
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 */
+	private int calculateLastReadEndPosInBam() throws IOException, MappingFileFormatException {
+		return bamReader.getLastRecordEnd(bamReader.getHeader().getReferenceNames().get(actRefNameIndex));
+	}
+
+	/**
+	 * Reads the tiles for the prefetcher from the BAM file, and extends the displayed interval
+	 * with them when they are loaded.
+	 */
+	private class TilePrefetchHandler implements TilePrefetcher.TileSource, TilePrefetcher.TileListener {
 
 		@Override
-		public void run() {
-			try {
-				int prevSize, actSize;
-				synchronized (ViewerReadModel.this) {
-					final int intervalLength = lastIntervalEnd - lastIntervalStart;
-					final int intervalCenter = lastIntervalStart + (intervalLength) / 2;
-					//TODO néha nullpointer
-					final Interval actualInterval = loadedIntervals.getContainigInterval(intervalCenter);
-					if ((actualInterval.start == 0 || intervalCenter - actualInterval.start > 1000) && (actualInterval.end == actReferenceLength || actualInterval.end - intervalCenter > 1000)) {
-						return;
-					}
-					final int start, end;
-					if ((intervalCenter - actualInterval.start < actualInterval.end - intervalCenter && actualInterval.start != 0) || actualInterval.end == actReferenceLength) {
-						end = actualInterval.start;
-						start = Math.max(0, end - Viewer.getApplicationProperties().getReadDistance());
-					} else if ((intervalCenter - actualInterval.start >= actualInterval.end - intervalCenter && actualInterval.end != actReferenceLength) || actualInterval.start == 0) {
-						start = actualInterval.end;
-						end = Math.min(actReferenceLength, start + Viewer.getApplicationProperties().getReadDistance());
-					} else {
-						start = end = 0;
-						throw new AssertionError("Incorrect state, how did it get here???");
-					}
-					logger.trace("preloading interval " + start + " " + end);
-					List<AlignmentRecord> list = bamReader.loadRecords(bamReader.getHeader().getReferenceNames().get(actRefNameIndex), start, end);
-					loadedIntervals.add(start, end);
-					prevSize = readList.size();
-					if (!sorted) {
-						Collections.sort(list, alignmentRecordComparator);
-					}
-					readList.addAll(list);
-					actSize = readList.size();
+		public RegionIterator iterateReads(int reference, int start, int end) throws IOException, MappingFileFormatException {
+			IndexedBamReader reader;
+			synchronized (ViewerReadModel.this) {
+				reader = bamReader;
+			}
+			if (reader == null) {
+				throw new IOException("BAM file is closed");
+			}
+			return reader.iterateRecords(reader.getHeader().getReferenceNames().get(reference), start, end);
+		}
+
+		@Override
+		public void tileLoaded(int reference, int tile) {
+			int prevSize, actSize;
+			synchronized (ViewerReadModel.this) {
+				if (reference != actRefNameIndex || isWholeFileLoaded || prefetcher == null) {
+					return;
 				}
+				prevSize = displayedReads.size();
+				extendDisplayedInterval();
+				actSize = displayedReads.size();
+			}
+			if (actSize > prevSize) {
 				firePropertyChange(ALIGNMENT_PRELOAD, prevSize, actSize);
-			} catch (IOException ex) {
-				logger.error(ex.getMessage(), ex);
-			} catch (MappingFileFormatException ex) {
-				logger.error(ex.getMessage(), ex);
-			} catch (Exception ex) {
-				logger.error(ex.getMessage(), ex);
 			}
 		}
 	}
@@ -602,19 +992,9 @@ public class ViewerReadModel extends AbstractModel {
 	 */
 	public int getNumberOfReadsByPosition(int start, int end) throws MappingFileFormatException, IOException {
 		int numberOfReadsByPosition = 0;
-		if (isWholeFileLoaded) {
-			for (AlignmentRecord record : readList) {
-				if (record.getPosition() <= start && record.getPosition() + record.getReadLength() >= end) {
-					numberOfReadsByPosition++;
-				} else if (record.getPosition() > start) {
-					break;
-				}
-			}
-		} else {
-			for (AlignmentRecord record : bamReader.loadRecords(bamReader.getHeader().getReferenceNames().get(actRefNameIndex), start - Viewer.getController().getMaxReadLength(), end)) {
-				if (record.getPosition() <= start && record.getPosition() + record.getReadLength() >= end) {
-					numberOfReadsByPosition++;
-				}
+		for (AlignmentRecord record : readsCovering(start, end)) {
+			if (record.getPosition() <= start && record.getPosition() + record.getReadLength() >= end) {
+				numberOfReadsByPosition++;
 			}
 		}
 		return numberOfReadsByPosition;
@@ -623,23 +1003,29 @@ public class ViewerReadModel extends AbstractModel {
 	//TODO miez?
 	public String getSubSequenceByTransformationPosition(int start, int end) throws MappingFileFormatException, IOException {
 		String subSequence = null;
-		if (isWholeFileLoaded) {
-			for (AlignmentRecord record : readList) {
-				if (record.getPosition() <= start && record.getPosition() + record.getReadLength() >= end) {
-					subSequence = record.getSequence().substring(start - record.getPosition(), end - record.getPosition());
-				}
-			}
-		} else {
-			for (AlignmentRecord record : bamReader.loadRecords(bamReader.getHeader().getReferenceNames().get(actRefNameIndex), start - Viewer.getController().getMaxReadLength(), end)) {
-				if (record.getPosition() <= start && (record.getPosition() + record.getReadLength()) >= (end)) {
-					subSequence = record.getSequence().substring(start - record.getPosition(), end - record.getPosition());
-					break;
-				}
+		for (AlignmentRecord record : readsCovering(start, end)) {
+			if (record.getPosition() <= start && (record.getPosition() + record.getReadLength()) >= (end)) {
+				subSequence = record.getSequence().substring(start - record.getPosition(), end - record.getPosition());
+				break;
 			}
 		}
 		return subSequence;
 	}
 
+	/**
+	 * Candidate records for a position query: records which start at most the maximal read length
+	 * before the interval and not after its end. They are taken from the read store if its tiles
+	 * cover the interval, otherwise they are loaded from the BAM file.
+	 */
+	private List<AlignmentRecord> readsCovering(int start, int end) throws MappingFileFormatException, IOException {
+		int reference = storedReference();
+		int from = Math.max(0, start - readStore.getMaxReadLength(reference));
+		if (isWholeFileLoaded || readStore.containsInterval(reference, from, end + 1)) {
+			return readStore.queryStarts(reference, from, end + 1);
+		}
+		return bamReader.loadRecords(bamReader.getHeader().getReferenceNames().get(actRefNameIndex), start - Viewer.getController().getMaxReadLength(), end);
+	}
+
 	/**
 	 * Concatenate a sequence uppon alignments. I case of mutations the match or mutations
 	 * occurence in generated sequence isn't determined, every time the first available
@@ -672,11 +1058,17 @@ public class ViewerReadModel extends AbstractModel {
 		int progressValue = 0;
 		Viewer.setStatusbarProgresValue(new ProgressValue("ConsensusGeneration", progressValue));
 		int sequencePosition = 0;
-		int start = 0, end = isWholeFileLoaded ? actReferenceLength : Viewer.getApplicationProperties().getBufferSize();
-		while (start <= actReferenceLength) {
-			List<AlignmentRecord> recordsList = loadReadsWithoutStore(start, end);
-			for (int i = 0; i < recordsList.size(); ++i) {
-				AlignmentRecord record = recordsList.get(i);
+		//Records are streamed, only the ones which can be examined backward are kept
+		List<AlignmentRecord> recordsList = new ArrayList<AlignmentRecord>();
+		RegionIterator records = iterateReadsWithoutStore(0, actReferenceLength + 1);
+		try {
+			while (records.hasNext()) {
+				AlignmentRecord record = records.next();
+				if (recordsList.size() >= CONSENSUS_RECORD_WINDOW_SIZE) {
+					removeExaminedRecords(recordsList, sequencePosition);
+				}
+				recordsList.add(record);
+				int i = recordsList.size() - 1;
 				if (record.getPosition() < sequencePosition) {
 					continue;
 				}
@@ -701,16 +1093,13 @@ public class ViewerReadModel extends AbstractModel {
 					Viewer.setStatusbarProgresValue(new ProgressValue("ConsensusGeneration", progressValue));
 				}
 			}
-
-			//If last record is not appended yet
-			if (appendPreviousRecords(recordsList.size() - 1, recordsList, sequencePosition, result)) {
-				sequencePosition = result.length();
-			}
-
-			end += end - start;
-			start += (end - start) / 2;
+		} finally {
+			records.close();
 		}
 
+		//If last record is not appended yet
+		appendPreviousRecords(recordsList.size() - 1, recordsList, sequencePosition, result);
+
 		for (int j = result.length(); j < getActReferenceLength(); j++) {
 			result.append("N");
 		}
@@ -721,6 +1110,25 @@ public class ViewerReadModel extends AbstractModel {
 		return result.toString();
 	}
 
+	/**
+	 * Remove the records from the beginning of the list, which cannot be examined
+	 * by {@link #appendPreviousRecords(int, List, int, StringBuilder)} anymore.
+	 * The unknown positions are never before the sequence position, so the
+	 * records starting more than 50 positions before it are not needed, only
+	 * the last of them is kept, as the first record of the list is never examined.
+	 * @param recordsList records in position order
+	 * @param sequencePosition position of the first unknown nucleotide in the consensus
+	 */
+	private static void removeExaminedRecords(List<AlignmentRecord> recordsList, int sequencePosition) {
+		int count = 0;
+		while (count < recordsList.size() && recordsList.get(count).getPosition() < sequencePosition - 51) {
+			++count;
+		}
+		if (count > 1) {
+			recordsList.subList(0, count - 1).clear();
+		}
+	}
+
 	/**
 	 * Append new seqence for the consensus at given position. If new position is
 	 * larger then constructed consensus length, positions between marked with 'N'.
@@ -0,0 +1,72 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.viewer.model.alignment;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Measures the heap used by reads loaded into memory, and reports the cost of a
+ * read in the log. The used heap is compared before and after the loading,
+ * both after a garbage collection. The collections are expensive, so the
+ * measurement is done only if the logger of this class is enabled for debug
+ * level.
+ */
+public class ReadHeapMeter {
+
+	private static final Logger logger = Logger.getLogger(ReadHeapMeter.class);
+	/**Used heap before the loading, or -1 if the measurement is not done*/
+	private long usedBefore = -1;
+
+	/**
+	 * @return {@code true} - if the measurements are done
+	 */
+	public static boolean isEnabled() {
+		return logger.isDebugEnabled();
+	}
+
+	/**
+	 * Start a measurement before loading reads
+	 */
+	public void start() {
+		usedBefore = isEnabled() ? usedHeap() : -1;
+	}
+
+	/**
+	 * Finish the measurement after the reads are loaded, and report the cost of a read
+	 * @param readCount number of loaded reads
+	 * @param estimatedSize estimated size of the loaded reads
+	 * @return heap used by the loaded reads, or -1 if it was not measured
+	 */
+	public long stop(int readCount, long estimatedSize) {
+		if (usedBefore < 0 || readCount <= 0) {
+			return -1;
+		}
+		long used = Math.max(0, usedHeap() - usedBefore);
+		usedBefore = -1;
+		logger.debug(String.format("%d reads use %d bytes of heap, %.1f bytes per read (estimated %.1f)",
+				readCount, used, (double) used / readCount, (double) estimatedSize / readCount));
+		return used;
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.viewer.model.alignment;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.AlignmentRecordComparator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores alignment records in memory indexed by their position. The reference
+ * sequences are divided into fixed-size tiles, every read belongs to the tile
+ * where it starts, and the reads of a tile are kept sorted by position. A tile
+ * is always loaded and evicted as a whole, so a resident tile contains every
+ * read which starts in it. Tiles of several reference sequences can be
+ * resident at the same time.
+ * <p>
+ * A read is assumed to cover {@link AlignmentRecord#getReadLength()}
+ * positions, like in the rest of the viewer. Overlap queries binary search the
+ * reads which start at most the longest read length before the queried
+ * interval, so they take O(log n + k) time.
+ * <p>
+ * The heap used by the stored reads is estimated, so the resident tiles can be
+ * limited by a memory budget as well as by their number.
+ */
+public class ReadStore {
+
+	/**Default tile length, it is the linear index window of BAM indices*/
+	public static final int DEFAULT_TILE_SIZE = 1 << 14;
+	/**Estimated size of a record without its sequence and quality, with its references in the tile*/
+	private static final int RECORD_OVERHEAD = 256;
+	/**Length of the tiles*/
+	private final int tileSize;
+	/**Resident tiles by reference index*/
+	private final Map<Integer, ReferenceTiles> references = new HashMap<Integer, ReferenceTiles>();
+	/**Resident tiles by {@link #keyOf(int, int) key}, in access order, for choosing the least recently used tile*/
+	private final LinkedHashMap<Long, Tile> recentTiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true);
+	/**Number of stored reads*/
+	private int readCount;
+	/**Number of resident tiles*/
+	private int tileCount;
+	/**Estimated heap size of the stored reads in bytes*/
+	private long size;
+
+	/**
+	 * Creates an empty store with {@link #DEFAULT_TILE_SIZE} long tiles
+	 */
+	public ReadStore() {
+		this(DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * Creates an empty store
+	 * @param tileSize length of the tiles
+	 * @throws IllegalArgumentException - if tile size is not positive
+	 */
+	public ReadStore(int tileSize) {
+		if (tileSize <= 0) {
+			throw new IllegalArgumentException("Incorrect tile size " + tileSize);
+		}
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * @return length of the tiles
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @param position position on the reference
+	 * @return index of the tile containing the position
+	 */
+	public int tileOf(int position) {
+		return Math.max(0, position) / tileSize;
+	}
+
+	/**
+	 * @param tile index of a tile
+	 * @return first position of the tile
+	 */
+	public int tileStart(int tile) {
+		return (int) Math.min((long) tile * tileSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param tile index of a tile
+	 * @return position after the last position of the tile
+	 */
+	public int tileEnd(int tile) {
+		return tileStart(tile + 1);
+	}
+
+	/**
+	 * @param reference index of reference
+	 * @param tile index of tile
+	 * @return {@code true} - if the reads of the tile are stored
+	 */
+	public synchronized boolean isTileLoaded(int reference, int tile) {
+		ReferenceTiles tiles = references.get(reference);
+		return tiles != null && tiles.tiles.containsKey(tile);
+	}
+
+	/**
+	 * Determine whether every read starting in an interval is stored
+	 * @param reference index of reference
+	 * @param start interval start (inclusive)
+	 * @param end interval end (exclusive)
+	 * @return {@code true} - if every tile of the interval is loaded
+	 */
+	public synchronized boolean containsInterval(int reference, int start, int end) {
+		if (start >= end) {
+			return true;
+		}
+		ReferenceTiles tiles = references.get(reference);
+		if (tiles == null) {
+			return false;
+		}
+		int first = tileOf(start);
+		int last = tileOf(end - 1);
+		return tiles.tiles.subMap(first, true, last, true).size() == last - first + 1;
+	}
+
+	/**
+	 * Store the reads of a tile. Reads which do not start in the tile are
+	 * ignored, a previously stored version of the tile is replaced.
+	 * @param reference index of reference
+	 * @param tile index of tile
+	 * @param reads every read which starts in the tile, in any order
+	 */
+	public synchronized void putTile(int reference, int tile, List<AlignmentRecord> reads) {
+		int start = tileStart(tile);
+		int end = tileEnd(tile);
+		List<AlignmentRecord> tileReads = new ArrayList<AlignmentRecord>(reads.size());
+		boolean sorted = true;
+		for (AlignmentRecord read : reads) {
+			if (read.getPosition() >= start && read.getPosition() < end) {
+				sorted &= tileReads.isEmpty() || tileReads.get(tileReads.size() - 1).getPosition() <= read.getPosition();
+				tileReads.add(read);
+			}
+		}
+		if (!sorted) {
+			Collections.sort(tileReads, new AlignmentRecordComparator());
+		}
+
+		ReferenceTiles tiles = references.get(reference);
+		if (tiles == null) {
+			tiles = new ReferenceTiles();
+			references.put(reference, tiles);
+		}
+		Tile newTile = new Tile(tileReads.toArray(new AlignmentRecord[tileReads.size()]));
+		recentTiles.put(keyOf(reference, tile), newTile);
+		tiles.maxReadLength = Math.max(tiles.maxReadLength, newTile.maxReadLength);
+		Tile oldTile = tiles.tiles.put(tile, newTile);
+		if (oldTile != null) {
+			readCount -= oldTile.reads.length;
+			size -= oldTile.size;
+			--tileCount;
+		}
+		readCount += newTile.reads.length;
+		size += newTile.size;
+		++tileCount;
+	}
+
+	/**
+	 * Query reads starting in an interval. Only resident tiles are examined.
+	 * @param reference index of reference
+	 * @param start interval start (inclusive)
+	 * @param end interval end (exclusive)
+	 * @return stored reads with start position in interval, sorted by position
+	 */
+	public synchronized List<AlignmentRecord> queryStarts(int reference, int start, int end) {
+		List<AlignmentRecord> result = new ArrayList<AlignmentRecord>();
+		ReferenceTiles tiles = references.get(reference);
+		if (tiles == null || start >= end) {
+			return result;
+		}
+		for (Map.Entry<Integer, Tile> entry : tiles.tiles.subMap(tileOf(start), true, tileOf(end - 1), true).entrySet()) {
+			Tile tile = entry.getValue();
+			recentTiles.get(keyOf(reference, entry.getKey()));
+			for (int i = tile.lowerBound(start); i < tile.reads.length && tile.positions[i] < end; ++i) {
+				result.add(tile.reads[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param reference index of reference
+	 * @param tile index of tile
+	 * @return reads of the tile sorted by position, or {@code null} if the
+	 *			tile is not resident
+	 */
+	public synchronized List<AlignmentRecord> getTileReads(int reference, int tile) {
+		ReferenceTiles tiles = references.get(reference);
+		Tile stored = tiles != null ? tiles.tiles.get(tile) : null;
+		if (stored == null) {
+			return null;
+		}
+		recentTiles.get(keyOf(reference, tile));
+		return new ArrayList<AlignmentRecord>(Arrays.asList(stored.reads));
+	}
+
+	/**
+	 * Query reads overlapping an interval. Only resident tiles are examined.
+	 * @param reference index of reference
+	 * @param start interval start (inclusive)
+	 * @param end interval end (exclusive)
+	 * @return stored reads covering any position of the interval, sorted by position
+	 */
+	public synchronized List<AlignmentRecord> query(int reference, int start, int end) {
+		List<AlignmentRecord> result = new ArrayList<AlignmentRecord>();
+		ReferenceTiles tiles = references.get(reference);
+		if (tiles == null || start >= end) {
+			return result;
+		}
+		for (AlignmentRecord read : queryStarts(reference, start - tiles.maxReadLength + 1, end)) {
+			if (read.getPosition() + read.getReadLength() > start) {
+				result.add(read);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param reference index of reference
+	 * @return length of the longest read stored for the reference
+	 */
+	public synchronized int getMaxReadLength(int reference) {
+		ReferenceTiles tiles = references.get(reference);
+		return tiles != null ? tiles.maxReadLength : 0;
+	}
+
+	/**
+	 * @param reference index of reference
+	 * @return the stored read with the largest position, or {@code null} if
+	 *			there is no read for the reference
+	 */
+	public synchronized AlignmentRecord getLastRead(int reference) {
+		ReferenceTiles tiles = references.get(reference);
+		if (tiles == null) {
+			return null;
+		}
+		for (Tile tile : tiles.tiles.descendingMap().values()) {
+			if (tile.reads.length > 0) {
+				return tile.reads[tile.reads.length - 1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remove a tile from the store
+	 * @param reference index of reference
+	 * @param tile index of tile
+	 */
+	public synchronized void evictTile(int reference, int tile) {
+		ReferenceTiles tiles = references.get(reference);
+		if (tiles == null) {
+			return;
+		}
+		Tile removed = tiles.tiles.remove(tile);
+		if (removed != null) {
+			recentTiles.remove(keyOf(reference, tile));
+			readCount -= removed.reads.length;
+			size -= removed.size;
+			--tileCount;
+		}
+		if (tiles.tiles.isEmpty()) {
+			references.remove(reference);
+		}
+	}
+
+	/**
+	 * Remove every tile of a reference from the store
+	 * @param reference index of reference
+	 */
+	public synchronized void evictReference(int reference) {
+		ReferenceTiles tiles = references.remove(reference);
+		if (tiles != null) {
+			for (Map.Entry<Integer, Tile> entry : tiles.tiles.entrySet()) {
+				Tile tile = entry.getValue();
+				recentTiles.remove(keyOf(reference, entry.getKey()));
+				readCount -= tile.reads.length;
+				size -= tile.size;
+				--tileCount;
+			}
+		}
+	}
+
+	/**
+	 * Evict the least recently used tiles until at most the given number of
+	 * tiles remain resident
+	 * @param maxTileCount number of tiles allowed to remain
+	 */
+	public synchronized void trimToTileCount(int maxTileCount) {
+		while (tileCount > maxTileCount) {
+			evictLeastRecentlyUsed();
+		}
+	}
+
+	/**
+	 * Evict the least recently used tiles until the estimated size of the
+	 * stored reads fits in the given budget. The most recently used tile is
+	 * kept even if it is larger than the budget.
+	 * @param maxSize memory budget in bytes
+	 */
+	public synchronized void trimToSize(long maxSize) {
+		while (size > maxSize && tileCount > 1) {
+			evictLeastRecentlyUsed();
+		}
+	}
+
+	/**
+	 * Evict the tile which was not accessed for the longest time
+	 */
+	private void evictLeastRecentlyUsed() {
+		Iterator<Long> keys = recentTiles.keySet().iterator();
+		if (keys.hasNext()) {
+			long key = keys.next();
+			evictTile((int) (key >> 32), (int) key);
+		}
+	}
+
+	/**
+	 * @param reference index of reference
+	 * @param tile index of tile
+	 * @return key of the tile in the access ordered map
+	 */
+	private static long keyOf(int reference, int tile) {
+		return (long) reference << 32 | (tile & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Estimated heap size of a read: the record object with its fields, and
+	 * the sequence and quality strings.
+	 * @param read an alignment record
+	 * @return estimated size in bytes
+	 */
+	public static long estimateSize(AlignmentRecord read) {
+		return RECORD_OVERHEAD + 4L * read.getReadLength();
+	}
+
+	/**
+	 * @return number of stored reads
+	 */
+	public synchronized int getReadCount() {
+		return readCount;
+	}
+
+	/**
+	 * @return estimated heap size of the stored reads in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of resident tiles
+	 */
+	public synchronized int getTileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * @return {@code true} - if no read is stored
+	 */
+	public synchronized boolean isEmpty() {
+		return readCount == 0;
+	}
+
+	/**
+	 * Remove every tile from the store
+	 */
+	public synchronized void clear() {
+		references.clear();
+		recentTiles.clear();
+		readCount = 0;
+		tileCount = 0;
+		size = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReadStore{tiles=" + tileCount + ", reads=" + readCount + ", size=" + size + ", references=" + references.keySet() + '}';
+	}
+
+	/**
+	 * Resident tiles of a reference
+	 */
+	private static class ReferenceTiles {
+
+		/**Tiles by tile index*/
+		private final TreeMap<Integer, Tile> tiles = new TreeMap<Integer, Tile>();
+		/**Length of the longest read ever stored for the reference*/
+		private int maxReadLength;
+	}
+
+	/**
+	 * Reads starting in a tile
+	 */
+	private static class Tile {
+
+		/**Reads sorted by position*/
+		private final AlignmentRecord[] reads;
+		/**Positions of the reads, for binary search*/
+		private final int[] positions;
+		/**Length of the longest read*/
+		private final int maxReadLength;
+		/**Estimated heap size of the reads*/
+		private final long size;
+
+		Tile(AlignmentRecord[] reads) {
+			this.reads = reads;
+			this.positions = new int[reads.length];
+			int maxLength = 0;
+			long readsSize = 0;
+			for (int i = 0; i < reads.length; ++i) {
+				positions[i] = reads[i].getPosition();
+				maxLength = Math.max(maxLength, reads[i].getReadLength());
+				readsSize += estimateSize(reads[i]);
+			}
+			this.maxReadLength = maxLength;
+			this.size = readsSize;
+		}
+
+		/**
+		 * @return index of the first read with position not less than the given one
+		 */
+		int lowerBound(int position) {
+			int index = Arrays.binarySearch(positions, position);
+			if (index < 0) {
+				return -index - 1;
+			}
+			while (index > 0 && positions[index - 1] == position) {
+				--index;
+			}
+			return index;
+		}
+	}
+}
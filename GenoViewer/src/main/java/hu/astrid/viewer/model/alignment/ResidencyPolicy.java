@@ -0,0 +1,164 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.viewer.model.alignment;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.RegionIterator;
+
+import java.io.IOException;
+
+/**
+ * Decides whether the reads of a reference are kept in memory as a whole, or
+ * streamed through the index of the file. The heap used by the reads is
+ * estimated from samples: the reads starting in windows spread evenly over the
+ * reference are read, and their estimated size is extrapolated to the length
+ * of the reference, or to the number of reads if the index knows it. The
+ * reads are kept in memory, if the estimate fits both the
+ * heap budget and the heap currently available.
+ * <p>
+ * The per-read estimate of {@link ReadStore#estimateSize} can be calibrated
+ * with a heap measurement, see {@link ReadHeapMeter}.
+ */
+public class ResidencyPolicy {
+
+	/**Number of sampled windows*/
+	static final int SAMPLE_COUNT = 16;
+	/**Number of heap bytes the reads of a reference may use*/
+	private final long heapBudget;
+	/**Length of the sampled windows*/
+	private final int sampleWindow;
+	/**Measured heap use divided by the estimated size of the reads*/
+	private double costFactor = 1;
+
+	/**
+	 * Creates a policy sampling windows of the length of {@link ReadStore#DEFAULT_TILE_SIZE}
+	 * @param heapBudget number of heap bytes the reads of a reference may use
+	 */
+	public ResidencyPolicy(long heapBudget) {
+		this(heapBudget, ReadStore.DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * @param heapBudget number of heap bytes the reads of a reference may use
+	 * @param sampleWindow length of the sampled windows
+	 * @throws IllegalArgumentException - if the window length is not positive
+	 */
+	public ResidencyPolicy(long heapBudget, int sampleWindow) {
+		if (sampleWindow <= 0) {
+			throw new IllegalArgumentException("Incorrect sample window " + sampleWindow);
+		}
+		this.heapBudget = heapBudget;
+		this.sampleWindow = sampleWindow;
+	}
+
+	/**
+	 * Estimate the heap used by the reads of a reference. A reference not longer than the
+	 * sampled windows together is read entirely.
+	 * @param source reader of the reads
+	 * @param reference index of reference
+	 * @param referenceLength length of reference
+	 * @return estimated heap size of the reads in bytes
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 */
+	public long estimateSize(TilePrefetcher.TileSource source, int reference, int referenceLength) throws IOException, MappingFileFormatException {
+		return estimateSize(source, reference, referenceLength, -1);
+	}
+
+	/**
+	 * Estimate the heap used by the reads of a reference, whose number of reads may be known from the index.
+	 * The size of the sampled reads is multiplied by the ratio of the read counts then, instead of the
+	 * ratio of the lengths.
+	 * @param source reader of the reads
+	 * @param reference index of reference
+	 * @param referenceLength length of reference
+	 * @param readCount number of reads of the reference, or -1 if it is not known
+	 * @return estimated heap size of the reads in bytes
+	 * @throws IOException
+	 * @throws MappingFileFormatException
+	 */
+	public long estimateSize(TilePrefetcher.TileSource source, int reference, int referenceLength, long readCount) throws IOException, MappingFileFormatException {
+		if (referenceLength <= 0 || readCount == 0) {
+			return 0;
+		}
+		// size and number of the sampled reads
+		long[] sample = new long[2];
+		long sampledLength = 0;
+		if ((long) sampleWindow * SAMPLE_COUNT >= referenceLength) {
+			sample(source, reference, 0, referenceLength, sample);
+			sampledLength = referenceLength;
+		} else {
+			for (int i = 0; i < SAMPLE_COUNT; ++i) {
+				int start = (int) ((long) (referenceLength - sampleWindow) * i / (SAMPLE_COUNT - 1));
+				sample(source, reference, start, start + sampleWindow, sample);
+				sampledLength += sampleWindow;
+			}
+		}
+		double ratio = readCount > 0 && sample[1] > 0 ? (double) readCount / sample[1] : (double) referenceLength / sampledLength;
+		return (long) (sample[0] * ratio * getCostFactor());
+	}
+
+	/**
+	 * @param estimatedSize estimated heap size of the reads of a reference
+	 * @param availableHeap number of heap bytes which can be used for the reads
+	 * @return {@code true} - if the reads should be kept in memory
+	 */
+	public boolean isResident(long estimatedSize, long availableHeap) {
+		return estimatedSize <= Math.min(heapBudget, availableHeap);
+	}
+
+	/**
+	 * Correct the following estimates with a measurement of the heap used by reads
+	 * @param estimatedSize size of the reads estimated by {@link ReadStore#estimateSize}
+	 * @param measuredSize heap used by the same reads
+	 */
+	public synchronized void calibrate(long estimatedSize, long measuredSize) {
+		if (estimatedSize > 0 && measuredSize > 0) {
+			costFactor = (double) measuredSize / estimatedSize;
+		}
+	}
+
+	/**
+	 * @return measured heap use divided by the estimated size of the reads, 1 until a calibration
+	 */
+	public synchronized double getCostFactor() {
+		return costFactor;
+	}
+
+	/**
+	 * @return number of heap bytes the reads of a reference may use
+	 */
+	public long getHeapBudget() {
+		return heapBudget;
+	}
+
+	/**
+	 * Add the estimated size and the number of the reads starting in an interval to the sample
+	 */
+	private static void sample(TilePrefetcher.TileSource source, int reference, int start, int end, long[] sample) throws IOException, MappingFileFormatException {
+		RegionIterator iterator = source.iterateReads(reference, start, end);
+		try {
+			while (iterator.hasNext()) {
+				sample[0] += ReadStore.estimateSize(iterator.next());
+				++sample[1];
+			}
+		} finally {
+			iterator.close();
+		}
+	}
+}
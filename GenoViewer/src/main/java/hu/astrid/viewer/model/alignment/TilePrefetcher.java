@@ -0,0 +1,374 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.viewer.model.alignment;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.RegionIterator;
+import hu.astrid.mapping.model.AlignmentRecord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Loads the tiles of a {@link ReadStore} in the background around the displayed
+ * interval. The scroll velocity is estimated from the successive viewports, and
+ * tiles are planned on both sides of the viewport: the visible tiles first, then
+ * more tiles in the direction of scrolling than behind it, the faster the
+ * scrolling the further ahead. The planned tiles are loaded one by one in the
+ * order of their priority.
+ * <p>
+ * When the viewport changes, queued tiles which are not planned any more are
+ * dropped, and a tile being loaded is cancelled: the loading stops at the next
+ * record and its reads are not stored. After a tile is stored, the least
+ * recently used tiles of the store are evicted to keep it in the memory budget.
+ */
+public class TilePrefetcher {
+
+	/**
+	 * Reads the records of the tiles
+	 */
+	public interface TileSource {
+
+		/**
+		 * @param reference index of reference
+		 * @param start interval start (inclusive)
+		 * @param end interval end (exclusive)
+		 * @return iterator over the reads starting in the interval
+		 * @throws IOException
+		 * @throws MappingFileFormatException
+		 */
+		RegionIterator iterateReads(int reference, int start, int end) throws IOException, MappingFileFormatException;
+	}
+
+	/**
+	 * Notified on the loader thread when a tile is stored
+	 */
+	public interface TileListener {
+
+		/**
+		 * @param reference index of reference
+		 * @param tile index of the stored tile
+		 */
+		void tileLoaded(int reference, int tile);
+	}
+
+	/**Number of tiles planned on both sides of a still viewport, and behind a moving one*/
+	static final int BASE_TILES = 2;
+	/**Maximal number of tiles planned in the direction of scrolling*/
+	static final int MAX_AHEAD_TILES = 16;
+	/**The tiles reached by scrolling within this time are planned ahead*/
+	static final long LOOKAHEAD_MILLIS = 2000;
+	/**The velocity is reset, if the viewport does not change for this time*/
+	static final long IDLE_MILLIS = 1000;
+	/**Tiles behind the viewport are this many times less urgent than the ones ahead at the same distance*/
+	static final int BEHIND_WEIGHT = 3;
+	/**Weight of the last measurement in the smoothed velocity*/
+	private static final double VELOCITY_SMOOTHING = 0.5;
+	private static final Logger logger = Logger.getLogger(TilePrefetcher.class);
+	private final ReadStore store;
+	private final TileSource source;
+	private final TileListener listener;
+	/**Estimated size of the reads the store may hold, in bytes*/
+	private final long memoryBudget;
+	private final ThreadPoolExecutor executor;
+	/**Queued and running tasks by {@link #key(int, int)}*/
+	private final Map<Long, TileTask> tasks = new HashMap<Long, TileTask>();
+	/**Keys of the tiles planned for the last viewport*/
+	private final Set<Long> planned = new HashSet<Long>();
+	/**Counter of created tasks, orders tasks with the same priority*/
+	private long taskCounter;
+	private int lastReference = -1;
+	private int lastCenter;
+	private long lastTime;
+	/**Smoothed scroll velocity in positions per millisecond, negative if scrolling backward*/
+	private double velocity;
+
+	/**
+	 * Creates a prefetcher with its loader thread
+	 * @param store the store of the loaded tiles
+	 * @param source the reader of the tiles
+	 * @param listener notified after a tile is stored
+	 * @param memoryBudget estimated size of the reads the store may hold, in bytes
+	 */
+	public TilePrefetcher(ReadStore store, TileSource source, TileListener listener, long memoryBudget) {
+		this.store = store;
+		this.source = source;
+		this.listener = listener;
+		this.memoryBudget = memoryBudget;
+		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Tile prefetcher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Plan the tiles around a new viewport, cancel the ones not needed any more
+	 * and queue the ones not loaded yet
+	 * @param reference index of reference
+	 * @param referenceLength length of reference
+	 * @param start viewport start (inclusive)
+	 * @param end viewport end (exclusive)
+	 */
+	public void viewportChanged(int reference, int referenceLength, int start, int end) {
+		viewportChanged(reference, referenceLength, start, end, System.currentTimeMillis());
+	}
+
+	synchronized void viewportChanged(int reference, int referenceLength, int start, int end, long time) {
+		updateVelocity(reference, start + (end - start) / 2, time);
+		int[] tiles = plan(start, end, referenceLength);
+
+		planned.clear();
+		for (int tile : tiles) {
+			planned.add(key(reference, tile));
+		}
+		for (TileTask task : new ArrayList<TileTask>(tasks.values())) {
+			if (!planned.contains(key(task.reference, task.tile))) {
+				cancel(task);
+			}
+		}
+		for (int priority = 0; priority < tiles.length; ++priority) {
+			int tile = tiles[priority];
+			if (store.isTileLoaded(reference, tile)) {
+				continue;
+			}
+			TileTask task = tasks.get(key(reference, tile));
+			if (task != null) {
+				if (task.running || task.priority == priority) {
+					continue;
+				}
+				cancel(task);
+			}
+			task = new TileTask(reference, tile, priority, ++taskCounter);
+			tasks.put(key(reference, tile), task);
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * @param reference index of reference
+	 * @param tile index of tile
+	 * @return {@code true} - if the tile is planned for the last viewport
+	 */
+	public synchronized boolean isPlanned(int reference, int tile) {
+		return planned.contains(key(reference, tile));
+	}
+
+	/**
+	 * @return smoothed scroll velocity in positions per millisecond, negative if scrolling backward
+	 */
+	public synchronized double getVelocity() {
+		return velocity;
+	}
+
+	/**
+	 * Cancel every queued and running tile, and forget the planned tiles
+	 */
+	public synchronized void cancelAll() {
+		for (TileTask task : new ArrayList<TileTask>(tasks.values())) {
+			cancel(task);
+		}
+		planned.clear();
+	}
+
+	/**
+	 * Cancel every tile and stop the loader thread after the running tile stops
+	 */
+	public void shutdown() {
+		cancelAll();
+		executor.shutdown();
+	}
+
+	/**
+	 * Order the tiles to load for a viewport by priority, using the current velocity
+	 * @param start viewport start (inclusive)
+	 * @param end viewport end (exclusive)
+	 * @param referenceLength length of reference
+	 * @return indices of the planned tiles, the most urgent first
+	 */
+	synchronized int[] plan(int start, int end, int referenceLength) {
+		int lastTile = store.tileOf(Math.max(0, referenceLength - 1));
+		int first = Math.min(store.tileOf(start), lastTile);
+		int last = Math.min(store.tileOf(Math.max(start, end - 1)), lastTile);
+
+		int direction = velocity < 0 ? -1 : 1;
+		int ahead = BASE_TILES;
+		int behindWeight = 1;
+		if (velocity != 0) {
+			ahead += (int) Math.min(MAX_AHEAD_TILES - BASE_TILES,
+					Math.ceil(Math.abs(velocity) * LOOKAHEAD_MILLIS / store.getTileSize()));
+			behindWeight = BEHIND_WEIGHT;
+		}
+
+		List<Integer> tiles = new ArrayList<Integer>();
+		for (int tile = first; tile <= last; ++tile) {
+			tiles.add(tile);
+		}
+		int aheadDistance = 1;
+		int behindDistance = 1;
+		while (aheadDistance <= ahead || behindDistance <= BASE_TILES) {
+			if (aheadDistance <= ahead && (behindDistance > BASE_TILES || aheadDistance <= behindDistance * behindWeight)) {
+				int tile = direction > 0 ? last + aheadDistance : first - aheadDistance;
+				if (tile >= 0 && tile <= lastTile) {
+					tiles.add(tile);
+				}
+				++aheadDistance;
+			} else {
+				int tile = direction > 0 ? first - behindDistance : last + behindDistance;
+				if (tile >= 0 && tile <= lastTile) {
+					tiles.add(tile);
+				}
+				++behindDistance;
+			}
+		}
+
+		int[] result = new int[tiles.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = tiles.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Update the smoothed velocity with a new viewport center. A change of
+	 * reference, a pause or a jump further than the planned tiles stops it.
+	 */
+	private void updateVelocity(int reference, int center, long time) {
+		if (reference == lastReference && center == lastCenter) {
+			return;
+		}
+		long elapsed = time - lastTime;
+		if (reference != lastReference || elapsed > IDLE_MILLIS
+				|| Math.abs(center - lastCenter) > (long) MAX_AHEAD_TILES * store.getTileSize()) {
+			velocity = 0;
+		} else {
+			double measured = (center - lastCenter) / (double) Math.max(1, elapsed);
+			velocity = VELOCITY_SMOOTHING * measured + (1 - VELOCITY_SMOOTHING) * velocity;
+		}
+		lastReference = reference;
+		lastCenter = center;
+		lastTime = time;
+	}
+
+	/**
+	 * Remove a task from the queue, or make it stop if it is running
+	 */
+	private void cancel(TileTask task) {
+		task.cancelled = true;
+		executor.remove(task);
+		tasks.remove(key(task.reference, task.tile));
+	}
+
+	private synchronized void finished(TileTask task) {
+		if (tasks.get(key(task.reference, task.tile)) == task) {
+			tasks.remove(key(task.reference, task.tile));
+		}
+	}
+
+	private static long key(int reference, int tile) {
+		return (long) reference << 32 | tile & 0xffffffffL;
+	}
+
+	/**
+	 * Loads a tile into the store, unless it is cancelled
+	 */
+	private class TileTask implements Runnable, Comparable<TileTask> {
+
+		private final int reference;
+		private final int tile;
+		/**Rank of the tile in the plan, lower is more urgent*/
+		private final int priority;
+		private final long order;
+		private volatile boolean cancelled;
+		private volatile boolean running;
+
+		TileTask(int reference, int tile, int priority, long order) {
+			this.reference = reference;
+			this.tile = tile;
+			this.priority = priority;
+			this.order = order;
+		}
+
+		@Override
+		public void run() {
+			running = true;
+			try {
+				if (cancelled || store.isTileLoaded(reference, tile)) {
+					return;
+				}
+				List<AlignmentRecord> reads = new ArrayList<AlignmentRecord>();
+				RegionIterator iterator = source.iterateReads(reference, store.tileStart(tile), store.tileEnd(tile));
+				try {
+					while (iterator.hasNext()) {
+						if (cancelled) {
+							logger.trace("tile " + tile + " cancelled");
+							return;
+						}
+						reads.add(iterator.next());
+					}
+				} finally {
+					iterator.close();
+				}
+				if (cancelled) {
+					return;
+				}
+				store.putTile(reference, tile, reads);
+				store.trimToSize(memoryBudget);
+				logger.trace("prefetched tile " + tile + " with " + reads.size() + " reads");
+				listener.tileLoaded(reference, tile);
+			} catch (IOException ex) {
+				// the file may be closed while a cancelled tile is loaded
+				if (!cancelled) {
+					logger.error(ex.getMessage(), ex);
+				}
+			} catch (MappingFileFormatException ex) {
+				logger.error(ex.getMessage(), ex);
+			} catch (Exception ex) {
+				if (!cancelled) {
+					logger.error(ex.getMessage(), ex);
+				}
+			} finally {
+				finished(this);
+			}
+		}
+
+		@Override
+		public int compareTo(TileTask other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+}
@@ -18,13 +18,14 @@
 package hu.astrid.viewer.model.mutation;
 
 import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.RegionIterator;
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.viewer.Viewer;
 import hu.astrid.viewer.gui.StatusBar.ProgressValue;
-import hu.astrid.viewer.model.Coverage;
 import hu.astrid.viewer.util.Alignment;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -142,8 +143,10 @@ public class MutationScanner {
 	public static List<Mutation> scanForMutationsInRegion(int startPos, int endPos, MutationFilter mutationFilter) {
 
 		List<Mutation> mutations = null;
-		List<AlignmentRecord> reads = null;
-		Map<Integer, Coverage> coverageData = null;
+		RegionIterator reads = null;
+		CoverageWindow coverageWindow = new CoverageWindow();
+		//Mutations whose coverage is not known yet, because further reads can cover them
+		List<MutationRegion> pendingRegions = new ArrayList<MutationRegion>();
 		Map<MutationRegion, OccurenceData> mutationsWithInfo = new HashMap<MutationRegion, OccurenceData>();
 		OccurenceData occurenceData = null;
 		long fullRun = 0;
@@ -156,41 +159,43 @@ public class MutationScanner {
 
 		try {
 
-			int bufferSize = Viewer.getPropertyHandler().getApplicationProperties().getBufferSize();
+			//Reads are streamed once, the ones before the region are needed only for the coverage
+			reads = Viewer.getController().iterateReadsForInDel(Math.max(startPos - Viewer.getController().getMaxReadLength(), 0), endPos);
 
-			for (int i = startPos; i < endPos; i += bufferSize) {
+			while (reads.hasNext()) {
 
-				reads = Viewer.getController().loadReadsForInDel(Math.max(i - Viewer.getController().getMaxReadLength(), 0),
-						Math.min(endPos, i + bufferSize + Viewer.getController().getMaxReadLength()));
+				AlignmentRecord record = reads.next();
 
-				coverageData = MutationScanner.generateCoverageData(reads);
+				setPendingCoverages(pendingRegions, mutationsWithInfo, coverageWindow, record.getPosition());
+				coverageWindow.add(record);
 
-				for (AlignmentRecord record : reads) {
+				if (record.getPosition() >= startPos) {
 
-					if (record.getPosition() >= i && record.getPosition() < i + bufferSize) {
+					for (MutationRegion mutationRegion : MutationScanner.scanForMutationsInRecord(record, mutationFilter)) {
 
-						for (MutationRegion mutationRegion : MutationScanner.scanForMutationsInRecord(record, mutationFilter)) {
+						occurenceData = mutationsWithInfo.get(mutationRegion);
 
-							occurenceData = mutationsWithInfo.get(mutationRegion);
-
-							if (occurenceData == null) {
-								mutationsWithInfo.put(mutationRegion, new OccurenceData(1, coverageData.get(mutationRegion.getStartPos()).getCoverage()));
-							} else {
-								occurenceData.increaseOccurenceByOne();
-							}
+						if (occurenceData == null) {
+							mutationsWithInfo.put(mutationRegion, new OccurenceData(1, 0));
+							pendingRegions.add(mutationRegion);
+						} else {
+							occurenceData.increaseOccurenceByOne();
 						}
-					} else {
-						;
-					}
-					int genearationValue = (int) (((double) record.getPosition() / intervalLength * 100) * 0.95);
-					if (genearationValue > progressValue) {
-						progressValue = genearationValue;
-						Viewer.setStatusbarProgresValue(new ProgressValue("MutationSearch", progressValue));
 					}
 				}
+				int genearationValue = (int) (((double) record.getPosition() / intervalLength * 100) * 0.95);
+				if (genearationValue > progressValue) {
+					progressValue = genearationValue;
+					Viewer.setStatusbarProgresValue(new ProgressValue("MutationSearch", progressValue));
+				}
 			}
+			setPendingCoverages(pendingRegions, mutationsWithInfo, coverageWindow, Integer.MAX_VALUE);
 		} catch (Exception exc) {
 			exc.printStackTrace();
+		} finally {
+			if (reads != null) {
+				reads.close();
+			}
 		}
 
 		mutations = new ArrayList<Mutation>(mutationsWithInfo.size());
@@ -409,50 +414,85 @@ public class MutationScanner {
 		static String loadedSequence = "";
 	}
 
-	private static Map<Integer, Coverage> generateCoverageData(List<AlignmentRecord> readList) {
-
-		if (readList == null || readList.isEmpty()) {
-
-			return new HashMap<Integer, Coverage>();
-		}
-
-		int max = -1;
-
-		for (AlignmentRecord record : readList) {
+	/**
+	 * Set the coverage of the pending mutations which start before the given
+	 * position. Reads are processed in position order, so every read covering
+	 * these mutations has been counted already.
+	 * @param pendingRegions mutations without coverage, the completed ones are removed
+	 * @param mutationsWithInfo occurence data of the mutations
+	 * @param coverageWindow coverage of the processed reads
+	 * @param position start position of the next read
+	 */
+	private static void setPendingCoverages(List<MutationRegion> pendingRegions, Map<MutationRegion, OccurenceData> mutationsWithInfo,
+			CoverageWindow coverageWindow, int position) {
 
-			if (record.getPosition() + record.getSequence().length() > max) {
+		int minPendingPosition = position;
+		int kept = 0;
+		for (MutationRegion mutationRegion : pendingRegions) {
 
-				max = record.getPosition() + record.getSequence().length();
+			if (mutationRegion.getStartPos() < position) {
+				mutationsWithInfo.get(mutationRegion).coverage = coverageWindow.getCoverage(mutationRegion.getStartPos());
+			} else {
+				pendingRegions.set(kept++, mutationRegion);
+				minPendingPosition = Math.min(minPendingPosition, mutationRegion.getStartPos());
 			}
 		}
+		pendingRegions.subList(kept, pendingRegions.size()).clear();
+		coverageWindow.release(minPendingPosition);
+	}
 
-		int coveredInterval = max - readList.get(0).getPosition();
-		int absStartPos = readList.get(0).getPosition();
-
-		Map<Integer, Coverage> coverageMap = new HashMap<Integer, Coverage>(coveredInterval);
-		List<Coverage> coverageList = new ArrayList<Coverage>(coveredInterval);
-
-		for (int i = 0; i < coveredInterval; i++) {
+	/**
+	 * Coverage of a sliding interval. Reads has to be added in position order,
+	 * the positions before the interval are released when no more needed.
+	 */
+	private static class CoverageWindow {
 
-			coverageList.add(new Coverage(absStartPos + i, 0));
-		}
+		private int[] coverages = new int[1024];
+		/** position of the first element of the array */
+		private int firstPosition = -1;
 
-		for (AlignmentRecord record : readList) {
+		void add(AlignmentRecord record) {
 
 			int startPos = record.getPosition();
+			int endPos = startPos + record.getSequence().length();
+			if (firstPosition == -1) {
+				firstPosition = startPos;
+			}
+			if (endPos - firstPosition > coverages.length) {
+				coverages = Arrays.copyOf(coverages, Math.max(endPos - firstPosition, coverages.length * 2));
+			}
+			for (int i = Math.max(startPos, firstPosition); i < endPos; i++) {
+				coverages[i - firstPosition]++;
+			}
+		}
 
-			for (int i = 0; i < record.getSequence().length(); i++) {
+		int getCoverage(int position) {
 
-				coverageList.get(startPos + i - absStartPos).increaseCoverageByOne();
+			int index = position - firstPosition;
+			if (firstPosition == -1 || index < 0 || index >= coverages.length) {
+				return 0;
 			}
+			return coverages[index];
 		}
 
-		for (Coverage coverage : coverageList) {
+		/**
+		 * Release the positions before the given one. The array is shifted
+		 * only if at least its half can be released.
+		 */
+		void release(int position) {
 
-			coverageMap.put(coverage.getAbsPosition(), coverage);
+			int shift = position - firstPosition;
+			if (firstPosition == -1 || shift < coverages.length / 2) {
+				return;
+			}
+			if (shift < coverages.length) {
+				System.arraycopy(coverages, shift, coverages, 0, coverages.length - shift);
+				Arrays.fill(coverages, coverages.length - shift, coverages.length, 0);
+			} else {
+				Arrays.fill(coverages, 0);
+			}
+			firstPosition = position;
 		}
-
-		return coverageMap;
 	}
 
 	/**
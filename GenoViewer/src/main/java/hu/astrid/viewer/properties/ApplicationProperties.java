@@ -41,6 +41,10 @@ public class ApplicationProperties {
 	private static final String DEF_LOCALE = "en_US";
 	/**Maximum size of BAM file loaded into memory*/
 	private int bamFileLimit = 1024 * 1024;
+	/**Percentage of the maximum heap the reads of a BAM reference may use when kept in memory*/
+	private int wholeFileHeapPercent = 25;
+	/**Byte budget of the uncompressed BGZF block cache of indexed BAM files*/
+	private int bgzfBlockCacheSize = 32 * 1024 * 1024;
 	/**Maximum size of SAM file can be opened*/
 	private int samFileLimit = 20 * 1024 * 1024;
 	/**Distance of columns of reads in short mode */
@@ -249,7 +253,10 @@ public class ApplicationProperties {
 	/**
 	 *
 	 * @return currently set maximum size of {@link FileTypes#BAM BAM} files which stored in memory
+	 * @deprecated the compressed size does not predict the heap used by the reads,
+	 * whole references are kept in memory by {@link #getWholeFileHeapBudget()}
 	 */
+	@Deprecated
 	public int getBamFileLimit() {
 		bamFileLimit = preferences.getInt("bamFileSizeLimit", bamFileLimit);
 		return bamFileLimit;
@@ -260,7 +267,9 @@ public class ApplicationProperties {
 	 * @param newBamFileLimit uppers size limit of {@link FileTypes#BAM BAM} files stored in memory,
 	 * if parameter is lesser than 512 or greater than {@link Integer#MAX_VALUE Integer.MAX_VALUE} / 2, paramter is forced to be valid(>512 or <Integer.MAX_VALUE/2)
 	 * @return {@code true} - if new value is valid and it had been set
+	 * @deprecated see {@link #getBamFileLimit()}
 	 */
+	@Deprecated
 	public boolean setBamFileLimit(int newBamFileLimit) {
 		if (newBamFileLimit >= 512 && newBamFileLimit <= (Integer.MAX_VALUE / 2)) {
 			preferences.putInt("bamFileSizeLimit", newBamFileLimit);
@@ -269,6 +278,62 @@ public class ApplicationProperties {
 		return false;
 	}
 
+	/**
+	 *
+	 * @return percentage of the maximum heap the reads of a {@link FileTypes#BAM BAM} reference may use
+	 * when they are kept in memory
+	 */
+	public int getWholeFileHeapPercent() {
+		wholeFileHeapPercent = preferences.getInt("wholeFileHeapPercent", wholeFileHeapPercent);
+		return wholeFileHeapPercent;
+	}
+
+	/**
+	 *
+	 * @param newWholeFileHeapPercent percentage of the maximum heap the reads of a {@link FileTypes#BAM BAM}
+	 * reference may use when they are kept in memory, must be between 1 and 90
+	 * @return {@code true} - if new value is valid and it had been set
+	 */
+	public boolean setWholeFileHeapPercent(int newWholeFileHeapPercent) {
+		if (newWholeFileHeapPercent >= 1 && newWholeFileHeapPercent <= 90) {
+			preferences.putInt("wholeFileHeapPercent", newWholeFileHeapPercent);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @return number of heap bytes the reads of a {@link FileTypes#BAM BAM} reference may use
+	 * when they are kept in memory
+	 */
+	public long getWholeFileHeapBudget() {
+		return Runtime.getRuntime().maxMemory() / 100 * getWholeFileHeapPercent();
+	}
+
+	/**
+	 *
+	 * @return maximum number of uncompressed bytes kept in the block cache of indexed {@link FileTypes#BAM BAM} files
+	 */
+	public int getBgzfBlockCacheSize() {
+		bgzfBlockCacheSize = preferences.getInt("bgzfBlockCacheSize", bgzfBlockCacheSize);
+		return bgzfBlockCacheSize;
+	}
+
+	/**
+	 *
+	 * @param newBgzfBlockCacheSize maximum number of uncompressed bytes kept in the block cache of indexed {@link FileTypes#BAM BAM} files,
+	 * 0 disables the cache, must not be greater than {@link Integer#MAX_VALUE Integer.MAX_VALUE} / 2
+	 * @return {@code true} - if new value is valid and it had been set
+	 */
+	public boolean setBgzfBlockCacheSize(int newBgzfBlockCacheSize) {
+		if (newBgzfBlockCacheSize >= 0 && newBgzfBlockCacheSize <= (Integer.MAX_VALUE / 2)) {
+			preferences.putInt("bgzfBlockCacheSize", newBgzfBlockCacheSize);
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * @return distance of columns of reads in {@link ProfileProperties.ReadsShowType#SHORT short} mode
 	 */
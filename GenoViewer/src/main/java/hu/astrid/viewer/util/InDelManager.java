@@ -18,11 +18,13 @@
 package hu.astrid.viewer.util;
 
 import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.RegionIterator;
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.viewer.Viewer;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -422,7 +424,7 @@ public class InDelManager {
 		public IndelSearchResult call() throws Exception {
 			IndelSearchResult searchResult = new IndelSearchResult();
 
-			List<AlignmentRecord> reads = null;
+			RegionIterator reads = null;
 			List<InDel> indelList = new LinkedList<InDel>();
 			if (direction == Direction.BACKWARD) {
 				searchResult.searchedFrom = Math.max(position - BUFFER_SIZE, 0);
@@ -432,16 +434,19 @@ public class InDelManager {
 				searchResult.searchedTo = Math.min(position + BUFFER_SIZE, maxReadPos);
 			}
 			try {
-				reads = Viewer.getController().loadReadsForInDel(searchResult.searchedFrom, searchResult.searchedTo);
+				reads = Viewer.getController().iterateReadsForInDel(searchResult.searchedFrom, searchResult.searchedTo);
 				logger.trace("Demanded region:[" + searchResult.searchedFrom + "-" + searchResult.searchedTo + "]");
-				logger.trace("Given region:[" + (reads.size() > 0 ? reads.get(0).getPosition() + "-" + reads.get(reads.size() - 1).getPosition() : "empty") + "]");
 			} catch (MappingFileFormatException exc) {
 				logger.error("Error loading reads!", exc);
 			} catch (IOException exc) {
 				logger.error("Error loading reads!", exc);
 			}
 			if (reads != null) {
-				processAlignments(searchResult.searchedFrom, searchResult.searchedTo, indelList, reads, indelType);
+				try {
+					processAlignments(searchResult.searchedFrom, searchResult.searchedTo, indelList, reads, indelType);
+				} finally {
+					reads.close();
+				}
 				searchResult.firstIndelReached = false;
 				searchResult.lastIndelReached = false;
 				if (searchResult.searchedFrom == 0) {
@@ -481,8 +486,9 @@ public class InDelManager {
 			}
 		}
 
-		private void processAlignments(int from, int to, List<InDel> indelList, List<AlignmentRecord> AlignmentRecordList, IndelType inDelType) {
-			for (AlignmentRecord item : AlignmentRecordList) {
+		private void processAlignments(int from, int to, List<InDel> indelList, Iterator<AlignmentRecord> alignmentRecords, IndelType inDelType) {
+			while (alignmentRecords.hasNext()) {
+				AlignmentRecord item = alignmentRecords.next();
 				int deletionsLength = 0;
 				int insertionsLength = 0;
 				List<Character> operators = Alignment.parseOperators(item.getCigar());
@@ -18,12 +18,17 @@
 package hu.astrid.mapping.io;
 
 import hu.astrid.mapping.model.AlignmentPosition;
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.OptionalTag;
 
 import java.util.Arrays;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * @author user
@@ -60,4 +65,83 @@ public class AlignmentRecordCodecTest {
 				actual.toString());
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testDecodeFromOffset() throws Exception {
+		AlignmentRecordCodec codec = new AlignmentRecordCodec(Arrays.asList("ref"));
+		AlignmentRecord record = new AlignmentRecord();
+		record.setQueryName("read1");
+		record.setFlag((short) 16);
+		record.setReferenceName("ref");
+		record.setPosition(42);
+		record.setMappingQuality((byte) 60);
+		record.setCigar("3M1I2M");
+		record.setMateReferenceName("*");
+		record.setMatePosition(0);
+		record.setInsertSize(0);
+		record.setSequence("ACGTNA");
+		record.setQuality("IIH#5!");
+
+		byte[] binary = codec.code(record);
+		byte[] data = new byte[binary.length + 10];
+		System.arraycopy(binary, 0, data, 7, binary.length);
+		byte[] copy = data.clone();
+
+		AlignmentRecord decoded = codec.decode(data, 7, binary.length);
+
+		assertArrayEquals(copy, data);
+		assertEquals(codec.decode(binary).toString(), decoded.toString());
+		assertEquals("read1", decoded.getQueryName());
+		assertEquals("3M1I2M", decoded.getCigar());
+		assertEquals("ACGTNA", decoded.getSequence());
+		assertEquals("IIH#5!", decoded.getQuality());
+		assertEquals(42, codec.getPosition(data, 7));
+		assertEquals("read1", codec.decodeQueryName(data, 7));
+	}
+
+	@Test
+	public void testDecodeOddSequenceAndTags() throws Exception {
+		AlignmentRecordCodec codec = new AlignmentRecordCodec(Arrays.asList("ref"));
+		AlignmentRecord record = new AlignmentRecord();
+		record.setQueryName("read2");
+		record.setFlag((short) 0);
+		record.setReferenceName("ref");
+		record.setPosition(7);
+		record.setMappingQuality((byte) 30);
+		record.setCigar("2S3M");
+		record.setMateReferenceName("*");
+		record.setMatePosition(0);
+		record.setInsertSize(0);
+		record.setSequence("NTGCA");
+		record.setQuality("!!?I5");
+		record.addOptionalTag(createTag("NM", 'i', "-3"));
+		record.addOptionalTag(createTag("XF", 'f', "1.5"));
+		record.addOptionalTag(createTag("XA", 'A', "x"));
+		record.addOptionalTag(createTag("MD", 'Z', "3"));
+
+		byte[] binary = codec.code(record);
+		AlignmentRecord decoded = codec.decode(binary);
+
+		assertEquals("2S3M", decoded.getCigar());
+		assertEquals("NTGCA", decoded.getSequence());
+		assertEquals("!!?I5", decoded.getQuality());
+		assertEquals(record.listOptionalTags().toString(), decoded.listOptionalTags().toString());
+
+		// 3 is not a valid nucleotide code
+		binary[32 + 6 + 4 * 2] = 0x31;
+		try {
+			codec.decode(binary);
+			fail("Invalid nucleotide code was accepted");
+		} catch (MappingFileFormatException e) {
+			assertEquals("Invalid BAM nucleotide!", e.getMessage());
+		}
+	}
+
+	private static OptionalTag createTag(String name, char type, String value) {
+		OptionalTag tag = new OptionalTag();
+		tag.setTagName(name);
+		tag.setValueType(type);
+		tag.setValue(value);
+		return tag;
+	}
+
+}
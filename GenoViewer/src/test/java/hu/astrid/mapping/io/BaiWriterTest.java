@@ -17,6 +17,7 @@
 
 package hu.astrid.mapping.io;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import hu.astrid.mapping.exception.IndexFileFormatException;
 import hu.astrid.mapping.model.BamIndex;
@@ -87,6 +88,37 @@ public class BaiWriterTest {
 		assertEquals(bamIndex, actualBamIndex);
 	}
 	
+	@Test
+	public void testLoadPackedIndex() throws IndexFileFormatException, IOException {
+		BamIndex index = new BamIndex();
+		ReferenceIndex empty = new ReferenceIndex();
+		index.addReferenceIndex(empty);
+		ReferenceIndex referenceIndex = new ReferenceIndex();
+		Bin leaf = new Bin(4682);
+		leaf.addChunk(new Chunk(new VirtualFileOffset(500L), new VirtualFileOffset(600L)));
+		leaf.addChunk(new Chunk(new VirtualFileOffset(700L), new VirtualFileOffset(800L)));
+		Bin root = new Bin(0);
+		root.addChunk(new Chunk(new VirtualFileOffset(100L), new VirtualFileOffset(650L)));
+		// bins are written in this order
+		referenceIndex.addBin(leaf);
+		referenceIndex.addBin(root);
+		referenceIndex.addLinearIndex(new VirtualFileOffset(100L));
+		referenceIndex.addLinearIndex(new VirtualFileOffset(500L));
+		index.addReferenceIndex(referenceIndex);
+		baiWriter.write(index);
+
+		BamIndex actualBamIndex = new BaiReader().load(tempFile);
+		assertEquals(2, actualBamIndex.getReferenceCount());
+		assertArrayEquals(new long[0], actualBamIndex.planQuery(0, 1, 100000));
+		assertArrayEquals(new long[]{500L, 650L, 700L, 800L}, actualBamIndex.planQuery(1, 20000, 20100));
+		assertArrayEquals(new long[]{100L, 650L}, actualBamIndex.planQuery(1, 100, 200));
+
+		ReferenceIndex actualReferenceIndex = actualBamIndex.getReferenceIndices().get(1);
+		assertEquals(0, actualReferenceIndex.getBins().get(0).getId());
+		assertEquals(leaf, actualReferenceIndex.getBins().get(1));
+		assertEquals(referenceIndex.getLinearIndices(), actualReferenceIndex.getLinearIndices());
+	}
+
 	@Test(expected = IndexFileFormatException.class)
 	public void testMultipleWrite() throws IndexFileFormatException, IOException {
 		baiWriter.write(bamIndex);
@@ -0,0 +1,88 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BgzfBlockCacheTest {
+
+	private BgzfBlockCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new BgzfBlockCache(300);
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		InflatedBgzfBlock block = new InflatedBgzfBlock(0, 50, new byte[100]);
+		assertNull(cache.get(0));
+		cache.put(block);
+		assertSame(block, cache.get(0));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(100, cache.getSize());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		cache.put(new InflatedBgzfBlock(0, 50, new byte[100]));
+		cache.put(new InflatedBgzfBlock(50, 50, new byte[100]));
+		cache.put(new InflatedBgzfBlock(100, 50, new byte[100]));
+		cache.get(0);
+		cache.put(new InflatedBgzfBlock(150, 50, new byte[100]));
+
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(3, cache.getBlockCount());
+		assertEquals(300, cache.getSize());
+		assertNull(cache.get(50));
+		assertEquals(100, cache.get(0).getData().length);
+	}
+
+	@Test
+	public void testOffsetsBeyond4Gb() {
+		long offset = 5L * 1024 * 1024 * 1024;
+		InflatedBgzfBlock block = new InflatedBgzfBlock(offset, 50, new byte[100]);
+		cache.put(block);
+		// offsets with the same lower 32 bits are different blocks
+		assertNull(cache.get(offset + (1L << 32)));
+		assertNull(cache.get(offset & 0xFFFFFFFFL));
+		assertSame(block, cache.get(offset));
+		assertEquals(offset + 50, block.getNextOffset());
+	}
+
+	@Test
+	public void testCapacity() {
+		cache.put(new InflatedBgzfBlock(0, 50, new byte[400]));
+		assertEquals(0, cache.getBlockCount());
+
+		cache.put(new InflatedBgzfBlock(0, 50, new byte[100]));
+		cache.put(new InflatedBgzfBlock(50, 50, new byte[100]));
+		cache.setCapacity(150);
+		assertEquals(1, cache.getBlockCount());
+		assertEquals(100, cache.getSize());
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.model.VirtualFileOffset;
+import hu.astrid.mapping.util.BamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BgzfBlockCursorTest {
+
+	/**
+	 * Offset of the first block in {@link #testOffsetsBeyond4Gb()}, the block
+	 * offsets need more than 32 bits.
+	 */
+	private static final long HIGH_OFFSET = 5L * 1024 * 1024 * 1024;
+
+	private Map<Long, InflatedBgzfBlock> blocks;
+	private BgzfBlockCursor.BlockSource source;
+	private byte[][] records;
+
+	@Before
+	public void setUp() throws Exception {
+		records = new byte[][]{record(1, 10), record(2, 3), record(3, 30), record(4, 5)};
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (byte[] record : records) {
+			stream.write(BamUtil.toByteArray(record.length));
+			stream.write(record);
+		}
+		byte[] content = stream.toByteArray();
+
+		// The second record's length field and the third record are split between blocks
+		int[] splits = {0, 16, 20, 35, 36, content.length};
+		blocks = new HashMap<Long, InflatedBgzfBlock>();
+		for (long firstOffset : new long[]{0, HIGH_OFFSET}) {
+			long offset = firstOffset;
+			for (int i = 0; i + 1 < splits.length; ++i) {
+				blocks.put(offset, new InflatedBgzfBlock(offset, 100, Arrays.copyOfRange(content, splits[i], splits[i + 1])));
+				offset += 100;
+			}
+			blocks.put(offset, new InflatedBgzfBlock(offset, 28, new byte[0]));
+		}
+
+		source = new BgzfBlockCursor.BlockSource() {
+
+			@Override
+			public InflatedBgzfBlock inflateBlock(long offset) {
+				return blocks.get(offset);
+			}
+		};
+	}
+
+	@Test
+	public void testRecordsSpanningBlocks() throws Exception {
+		BgzfBlockCursor cursor = new BgzfBlockCursor(source, new VirtualFileOffset(0L));
+		for (byte[] record : records) {
+			assertTrue(cursor.next());
+			assertArrayEquals(record, Arrays.copyOfRange(cursor.getRecordData(), cursor.getRecordOffset(),
+				cursor.getRecordOffset() + cursor.getRecordLength()));
+		}
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testStartInsideBlock() throws Exception {
+		BgzfBlockCursor cursor = new BgzfBlockCursor(source, new VirtualFileOffset(14L));
+		assertTrue(cursor.next());
+		assertEquals(14L, cursor.getRecordVirtualOffset());
+		assertArrayEquals(records[1], Arrays.copyOfRange(cursor.getRecordData(), cursor.getRecordOffset(),
+			cursor.getRecordOffset() + cursor.getRecordLength()));
+		assertTrue(cursor.next());
+		assertEquals(200L << 16 | 1, cursor.getRecordVirtualOffset());
+	}
+
+	@Test
+	public void testOffsetsBeyond4Gb() throws Exception {
+		BgzfBlockCursor cursor = new BgzfBlockCursor(source, new VirtualFileOffset(HIGH_OFFSET << 16 | 14));
+		assertTrue(cursor.next());
+		assertEquals(HIGH_OFFSET << 16 | 14, cursor.getRecordVirtualOffset());
+		assertEquals((HIGH_OFFSET + 200) << 16 | 1, cursor.getRecordEndVirtualOffset());
+		assertArrayEquals(records[1], Arrays.copyOfRange(cursor.getRecordData(), cursor.getRecordOffset(),
+			cursor.getRecordOffset() + cursor.getRecordLength()));
+
+		cursor.seek((HIGH_OFFSET + 400) << 16 | 19);
+		assertTrue(cursor.next());
+		assertEquals((HIGH_OFFSET + 400) << 16 | 19, cursor.getRecordVirtualOffset());
+		assertArrayEquals(records[3], Arrays.copyOfRange(cursor.getRecordData(), cursor.getRecordOffset(),
+			cursor.getRecordOffset() + cursor.getRecordLength()));
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testPeekAndMaxRecordLength() throws Exception {
+		BgzfBlockCursor cursor = new BgzfBlockCursor(source, new VirtualFileOffset(0L));
+		assertEquals(0L, cursor.peekVirtualOffset());
+		assertTrue(cursor.next());
+		assertEquals(14L, cursor.peekVirtualOffset());
+		assertTrue(cursor.next());
+		assertEquals(200L << 16 | 1, cursor.peekVirtualOffset());
+		assertEquals("peeking does not move the cursor", 200L << 16 | 1, cursor.peekVirtualOffset());
+
+		cursor.setMaxRecordLength(29);
+		try {
+			cursor.next();
+			fail("record longer than the maximum is read");
+		} catch (MappingFileFormatException e) {
+		}
+
+		cursor.seek(200L << 16 | 1);
+		cursor.setMaxRecordLength(30);
+		assertTrue(cursor.next());
+		assertEquals(30, cursor.getRecordLength());
+		assertTrue(cursor.next());
+		assertEquals(-1L, cursor.peekVirtualOffset());
+	}
+
+	private static byte[] record(int id, int length) {
+		byte[] record = new byte[length];
+		Arrays.fill(record, (byte) id);
+		return record;
+	}
+}
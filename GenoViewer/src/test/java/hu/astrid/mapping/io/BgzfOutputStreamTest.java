@@ -0,0 +1,142 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class BgzfOutputStreamTest {
+
+	private static final byte[] EOF_MARKER_BLOCK = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0,
+		0, 0, 0, 0, 0, 0, 0, 0};
+
+	@Test
+	public void testSingleThreaded() throws Exception {
+		checkRoundTrip(Deflater.DEFAULT_COMPRESSION, 1);
+	}
+
+	@Test
+	public void testMultiThreaded() throws Exception {
+		checkRoundTrip(1, 3);
+	}
+
+	@Test
+	public void testIncompressibleData() throws Exception {
+		byte[] data = new byte[3 * BgzfOutputStream.BLOCK_DATA_SIZE];
+		new Random(1).nextBytes(data);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		BgzfOutputStream out = new BgzfOutputStream(compressed, 9, 1);
+		out.write(data);
+		out.close();
+
+		assertArrayEquals(data, inflate(compressed.toByteArray()));
+	}
+
+	@Test
+	public void testReleasedFilePointers() throws Exception {
+		int blockCount = 3000;
+		BgzfOutputStream released = new BgzfOutputStream(new ByteArrayOutputStream());
+		BgzfOutputStream retained = new BgzfOutputStream(new ByteArrayOutputStream());
+		long[] pointers = new long[blockCount];
+		for (int i = 0; i < blockCount; ++i) {
+			pointers[i] = released.getFilePointer();
+			assertEquals(pointers[i], retained.getFilePointer());
+			for (BgzfOutputStream out : new BgzfOutputStream[]{released, retained}) {
+				out.write(("block " + i).getBytes());
+				out.finishBlock();
+			}
+			released.releaseFilePointers(pointers[Math.max(0, i - 2)]);
+			assertEquals((long) (i + 1) << 16, released.getResolvableLimit());
+		}
+
+		for (int i = blockCount - 3; i < blockCount; ++i) {
+			assertEquals(retained.resolveFilePointer(pointers[i] | 3), released.resolveFilePointer(pointers[i] | 3));
+		}
+		assertEquals(retained.resolveFilePointer(released.getFilePointer()),
+			released.resolveFilePointer(released.getFilePointer()));
+		try {
+			released.resolveFilePointer(pointers[blockCount - 4]);
+			fail("released pointer is resolved");
+		} catch (IllegalStateException e) {
+		}
+		released.close();
+		retained.close();
+	}
+
+	private void checkRoundTrip(int compressionLevel, int threadCount) throws Exception {
+		byte[] data = new byte[200000];
+		Random random = new Random(0);
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) "ACGT".charAt(random.nextInt(4));
+		}
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		BgzfOutputStream out = new BgzfOutputStream(compressed, compressionLevel, threadCount);
+		int[] positions = {0, 100, 70000, 150001};
+		long[] pointers = new long[positions.length];
+		int written = 0;
+		for (int i = 0; i < positions.length; ++i) {
+			out.write(data, written, positions[i] - written);
+			written = positions[i];
+			pointers[i] = out.getFilePointer();
+		}
+		out.write(data, written, data.length - written);
+		out.close();
+
+		byte[] file = compressed.toByteArray();
+		assertArrayEquals(EOF_MARKER_BLOCK, Arrays.copyOfRange(file, file.length - EOF_MARKER_BLOCK.length, file.length));
+		assertArrayEquals(data, inflate(file));
+
+		for (int i = 0; i < positions.length; ++i) {
+			long virtualOffset = out.resolveFilePointer(pointers[i]);
+			ParallelBgzfInputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(file), 1, 1);
+			int skipped = 0;
+			InflatedBgzfBlock block;
+			while ((block = in.nextBlock()).getOffset() != virtualOffset >>> 16) {
+				assertTrue(block.getOffset() < virtualOffset >>> 16);
+				skipped += block.getData().length;
+			}
+			assertEquals(positions[i], skipped + (virtualOffset & 0xFFFF));
+			in.close();
+		}
+	}
+
+	private static byte[] inflate(byte[] file) throws Exception {
+		ParallelBgzfInputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(file), 1, 1);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		InflatedBgzfBlock block;
+		while ((block = in.nextBlock()) != null) {
+			assertTrue(block.getCompressedSize() <= 0x10000);
+			assertTrue(block.getData().length <= BgzfOutputStream.BLOCK_DATA_SIZE);
+			result.write(block.getData());
+		}
+		in.close();
+		return result.toByteArray();
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hu.astrid.mapping.exception.IndexFileFormatException;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.BinningScheme;
+import hu.astrid.mapping.model.CsiIndex;
+import hu.astrid.mapping.model.PackedReferenceIndex;
+import hu.astrid.mapping.util.BamIndexer;
+import hu.astrid.mapping.util.SamToBamConverter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CsiWriterTest {
+
+	private static final String TEMP_DIR = System.getProperty("java.io.tmpdir");
+
+	/**
+	 * Start of the records on the long reference, beyond the BAI binning
+	 * scheme.
+	 */
+	private static final int LONG_OFFSET = 700000000;
+
+	private static final int RECORD_COUNT = 5000;
+
+	private File tempFile;
+	private File bamFile;
+	private File csiFile;
+
+	@Before
+	public void setUp() throws Exception {
+		tempFile = File.createTempFile("csi-test-", "", new File(TEMP_DIR));
+		bamFile = File.createTempFile("csi-test-", ".bam", new File(TEMP_DIR));
+		csiFile = new File(bamFile.getPath() + ".csi");
+	}
+
+	@After
+	public void tearDown() {
+		tempFile.delete();
+		bamFile.delete();
+		csiFile.delete();
+		new File(bamFile.getPath() + ".bai").delete();
+	}
+
+	@Test
+	public void testWrite() throws IndexFileFormatException, IOException {
+		BinningScheme scheme = new BinningScheme(12, 7);
+		PackedReferenceIndex empty = new PackedReferenceIndex(scheme, new int[0], new long[0], new int[]{0},
+			new long[0], new long[0]);
+		int leaf = scheme.binOf(7, 100000);
+		PackedReferenceIndex referenceIndex = new PackedReferenceIndex(scheme, new int[]{0, leaf},
+			new long[]{100L, 500L}, new int[]{0, 1, 3}, new long[]{100L, 500L, 700L}, new long[]{650L, 600L, 800L});
+		CsiIndex index = new CsiIndex(scheme, new byte[]{1, 2, 3}, new PackedReferenceIndex[]{empty, referenceIndex});
+		new CsiWriter(new FileOutputStream(tempFile)).write(index);
+
+		CsiIndex actualIndex = new CsiReader().load(tempFile);
+		assertEquals(index, actualIndex);
+		assertArrayEquals(new long[0], actualIndex.planQuery(0, 1, 100000));
+		assertArrayEquals(new long[]{500L, 650L, 700L, 800L}, actualIndex.planQuery(1, 100001, 100100));
+		assertArrayEquals(new long[]{100L, 650L}, actualIndex.planQuery(1, 100, 200));
+	}
+
+	@Test(expected = IndexFileFormatException.class)
+	public void testMultipleWrite() throws IndexFileFormatException, IOException {
+		CsiIndex index = new CsiIndex(BinningScheme.BAI, new byte[0], new PackedReferenceIndex[0]);
+		CsiWriter csiWriter = new CsiWriter(new FileOutputStream(tempFile));
+		csiWriter.write(index);
+		csiWriter.write(index);
+	}
+
+	@Test
+	public void testLongReference() throws Exception {
+		StringBuilder sam = new StringBuilder("@HD\tVN:1.0\tSO:coordinate\n@SQ\tSN:chr1\tLN:100000\n"
+			+ "@SQ\tSN:chr2\tLN:2000000000\n");
+		sam.append("short\t0\tchr1\t100\t60\t8M\t*\t0\t0\tACGTACGT\tIIIIIIII\n");
+		for (int i = 0; i < RECORD_COUNT; ++i) {
+			sam.append("read").append(i).append("\t0\tchr2\t").append(LONG_OFFSET + i * 1000)
+				.append("\t60\t8M\t*\t0\t0\tACGTACGT\tIIIIIIII\n");
+		}
+		FileOutputStream bam = new FileOutputStream(bamFile);
+		try {
+			new SamToBamConverter(new StringReader(sam.toString()), bam).convert();
+		} finally {
+			bam.close();
+		}
+
+		CsiIndex index = new BamIndexer(bamFile.getPath(), 2).indexCsi(14, 6);
+		new CsiWriter(new FileOutputStream(csiFile)).write(index);
+
+		IndexedBamReader reader = new IndexedBamReader(bamFile.getPath());
+		try {
+			List<AlignmentRecord> records = reader.loadRecords("chr2", LONG_OFFSET + 2000000, LONG_OFFSET + 2010000);
+			assertEquals(10, records.size());
+			for (int i = 0; i < records.size(); ++i) {
+				assertEquals("read" + (2000 + i), records.get(i).getQueryName());
+			}
+			assertEquals(1, reader.loadRecords("chr1", 1, 1000).size());
+			assertTrue(reader.loadRecords("chr2", 1, LONG_OFFSET).isEmpty());
+		} finally {
+			reader.close();
+		}
+	}
+}
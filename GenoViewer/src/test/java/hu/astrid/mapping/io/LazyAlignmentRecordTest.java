@@ -0,0 +1,100 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.OptionalTag;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LazyAlignmentRecordTest {
+
+	private final AlignmentRecordCodec codec = new AlignmentRecordCodec(Arrays.asList("ref1", "ref2"));
+
+	@Test
+	public void testLazyDecodeEqualsDecode() throws Exception {
+		byte[] binary = codec.code(createRecord());
+		byte[] data = new byte[binary.length + 5];
+		System.arraycopy(binary, 0, data, 5, binary.length);
+
+		AlignmentRecord expected = codec.decode(binary);
+		LazyAlignmentRecord lazy = codec.decodeLazy(data, 5, binary.length);
+		// the lazy record keeps its own copy
+		Arrays.fill(data, (byte) 0);
+
+		assertEquals(7, lazy.getReadLength());
+		assertEquals("MD:Z:2A4", lazy.getOptionalTag("MD").toString());
+		assertEquals("NM:i:1", lazy.getOptionalTag("NM").toString());
+		assertNull(lazy.getOptionalTag("XX"));
+		assertEquals(expected.toString(), lazy.toString());
+		assertEquals(expected.hashCode(), lazy.hashCode());
+		assertTrue(lazy.equals(expected));
+		assertTrue(expected.equals(lazy));
+		assertEquals(expected.getCoveredLength(true), lazy.getCoveredLength(true));
+	}
+
+	@Test
+	public void testSettersOverrideBinaryData() throws Exception {
+		byte[] binary = codec.code(createRecord());
+		LazyAlignmentRecord lazy = codec.decodeLazy(binary, 0, binary.length);
+
+		lazy.setCigar("7M");
+		lazy.setQueryName("renamed");
+		OptionalTag tag = new OptionalTag();
+		tag.setTagName("XS");
+		tag.setValueType('A');
+		tag.setValue("+");
+		lazy.addOptionalTag(tag);
+
+		assertEquals("7M", lazy.getCigar());
+		assertEquals("renamed", lazy.getQueryName());
+		assertEquals("ACGTTGA", lazy.getSequence());
+		assertEquals("IIIIII#", lazy.getQuality());
+		assertEquals(3, lazy.listOptionalTags().size());
+		assertEquals("XS:A:+", lazy.getOptionalTag("XS").toString());
+	}
+
+	private static AlignmentRecord createRecord() {
+		AlignmentRecord record = new AlignmentRecord();
+		record.setQueryName("read1");
+		record.setFlag((short) 99);
+		record.setReferenceName("ref2");
+		record.setPosition(120);
+		record.setMappingQuality((byte) 37);
+		record.setCigar("2M1D3M2S");
+		record.setMateReferenceName("ref1");
+		record.setMatePosition(300);
+		record.setInsertSize(-50);
+		record.setSequence("ACGTTGA");
+		record.setQuality("IIIIII#");
+		OptionalTag md = new OptionalTag();
+		md.setTagName("MD");
+		md.setValueType('Z');
+		md.setValue("2A4");
+		record.addOptionalTag(md);
+		OptionalTag nm = new OptionalTag();
+		nm.setTagName("NM");
+		nm.setValueType('i');
+		nm.setValue("1");
+		record.addOptionalTag(nm);
+		return record;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.util.SamToBamConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the streaming region queries of {@link IndexedBamReader} on a BAM
+ * file whose records span many blocks and bins.
+ */
+public class RegionIteratorTest {
+
+	private static final String TEMP_DIR = System.getProperty("java.io.tmpdir");
+	private static final int RECORD_COUNT = 15000;
+
+	private File bamFile;
+	private File baiFile;
+	private IndexedBamReader reader;
+
+	@Before
+	public void setUp() throws Exception {
+		bamFile = File.createTempFile("region-", ".bam", new File(TEMP_DIR));
+		baiFile = new File(bamFile.getPath() + ".bai");
+
+		StringBuilder sam = new StringBuilder("@HD\tVN:1.0\tSO:coordinate\n@SQ\tSN:chr1\tLN:1000000\n"
+			+ "@SQ\tSN:chr2\tLN:1000000\n");
+		for (String reference : new String[]{"chr1", "chr2"}) {
+			for (int i = 0; i < RECORD_COUNT; ++i) {
+				sam.append(reference).append("_read").append(i).append("\t0\t").append(reference).append('\t')
+					.append(position(i)).append("\t60\t40M\t*\t0\t0\tACGTACGTACGTACGTACGTACGTACGTACGTACGTACGT\t")
+					.append("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII\n");
+			}
+		}
+		FileOutputStream bam = new FileOutputStream(bamFile);
+		FileOutputStream bai = new FileOutputStream(baiFile);
+		try {
+			new SamToBamConverter(new ByteArrayInputStream(sam.toString().getBytes("US-ASCII")), bam, bai).convert();
+		} finally {
+			bam.close();
+			bai.close();
+		}
+		reader = new IndexedBamReader(bamFile.getPath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		reader.close();
+		bamFile.delete();
+		baiFile.delete();
+	}
+
+	@Test
+	public void testIterateWholeReference() throws Exception {
+		RegionIterator iterator = reader.iterateRecords("chr2", 1, 1000000);
+		try {
+			for (int i = 0; i < RECORD_COUNT; ++i) {
+				assertTrue(iterator.hasNext());
+				AlignmentRecord record = iterator.next();
+				assertEquals("chr2_read" + i, record.getQueryName());
+				assertEquals(position(i), record.getPosition());
+			}
+			assertFalse(iterator.hasNext());
+		} finally {
+			iterator.close();
+		}
+	}
+
+	@Test
+	public void testIterateRegion() throws Exception {
+		List<AlignmentRecord> records = new ArrayList<AlignmentRecord>();
+		RegionIterator iterator = reader.iterateRecords("chr1", 50000, 60000);
+		try {
+			while (iterator.hasNext()) {
+				records.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+
+		int first = (50000 - 1 + 6) / 7;
+		int last = (60000 - 2) / 7;
+		assertEquals(last - first + 1, records.size());
+		for (int i = first; i <= last; ++i) {
+			assertEquals("chr1_read" + i, records.get(i - first).getQueryName());
+		}
+		assertEquals(records, reader.loadRecords("chr1", 50000, 60000));
+	}
+
+	@Test
+	public void testCloseStopsIteration() throws Exception {
+		RegionIterator iterator = reader.iterateRecords("chr1", 1, 1000000);
+		for (int i = 0; i < 10; ++i) {
+			assertEquals("chr1_read" + i, iterator.next().getQueryName());
+		}
+		iterator.close();
+		assertFalse(iterator.hasNext());
+		iterator.close();
+	}
+
+	private static int position(int index) {
+		return 1 + 7 * index;
+	}
+}
@@ -18,11 +18,13 @@
 package hu.astrid.mapping.io;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import hu.astrid.mapping.model.AlignmentRecord;
 import hu.astrid.mapping.model.MappingHeader;
 
+import java.io.ByteArrayInputStream;
 import java.io.StringReader;
 
 import org.junit.Before;
@@ -110,4 +112,35 @@ public class SamReaderTest {
 		AlignmentRecord rec3 = samReader.nextRecord();
 		assertEquals(null, rec3);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testNextRecordFromStream() throws Exception {
+		SamReader samReader = new SamReader(new ByteArrayInputStream(
+			(samFileHeader + "\n" + samFileBody).getBytes("US-ASCII")));
+
+		assertEquals(samFileHeader, samReader.readHeader().toString());
+
+		String[] bodyRecords = samFileBody.split("\n");
+		AlignmentRecord record = new AlignmentRecord();
+
+		assertSame(record, samReader.nextRecord(record));
+		assertEquals(bodyRecords[0], record.toString());
+
+		assertSame(record, samReader.nextRecord(record));
+		assertEquals(bodyRecords[1], record.toString());
+
+		assertEquals(null, samReader.nextRecord(record));
+		samReader.close();
+	}
+
+	@Test
+	public void testNextRecordFromStreamWithoutHeader() throws Exception {
+		SamReader samReader = new SamReader(new ByteArrayInputStream(samFileBody.getBytes("US-ASCII")));
+
+		String[] bodyRecords = samFileBody.split("\n");
+
+		assertEquals(bodyRecords[0], samReader.nextRecord().toString());
+		assertEquals(bodyRecords[1], samReader.nextRecord().toString());
+		assertEquals(null, samReader.nextRecord());
+	}
+}
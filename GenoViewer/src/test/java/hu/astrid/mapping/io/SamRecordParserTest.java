@@ -0,0 +1,100 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.model.AlignmentRecord;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+public class SamRecordParserTest {
+
+	private static final String RECORD = "read1\t16\tchr1\t100\t37\t5M1I4M\t=\t300\t-210\tACGTNACGTA\tIIIIIIIII#\tMD:Z:2:3\tNM:i:1";
+
+	private static SamRecordParser createParser(String content, int bufferSize) throws Exception {
+		return new SamRecordParser(Channels.newChannel(new ByteArrayInputStream(content.getBytes("US-ASCII"))),
+			bufferSize);
+	}
+
+	@Test
+	public void testLinesLongerThanBuffer() throws Exception {
+		SamRecordParser parser = createParser("@HD\tVN:1.0\r\n" + RECORD + "\r\n\n" + RECORD, 8);
+
+		assertTrue(parser.nextLine());
+		assertTrue(parser.isHeaderLine());
+		assertEquals("@HD\tVN:1.0", parser.getLine());
+
+		AlignmentRecord record = new AlignmentRecord();
+		assertTrue(parser.nextLine());
+		assertFalse(parser.isHeaderLine());
+		parser.parseAlignmentRecord(record);
+		assertEquals(RECORD, record.toString());
+		assertEquals("2:3", record.getOptionalTag("MD").getValue());
+
+		assertTrue(parser.nextLine());
+		assertTrue(parser.isEmptyLine());
+
+		// the tags are replaced when a record is reused
+		assertTrue(parser.nextLine());
+		parser.parseAlignmentRecord(record);
+		assertEquals(RECORD, record.toString());
+		assertEquals(2, record.listOptionalTags().size());
+
+		assertFalse(parser.nextLine());
+	}
+
+	@Test
+	public void testParseMatchesStringParser() throws Exception {
+		SamRecordParser parser = createParser(RECORD.replace("MD:Z:2:3", "MD:Z:23"), 1024);
+		assertTrue(parser.nextLine());
+
+		assertEquals(MappingFileParser.parseAlignmentRecord(RECORD.replace("MD:Z:2:3", "MD:Z:23")),
+			parser.parseAlignmentRecord());
+	}
+
+	@Test
+	public void testInvalidRecords() throws Exception {
+		assertInvalid("read1\t16\tchr1\t1x0\t37\t5M\t=\t300\t-210\tACGTN\tIIII#",
+			"Alignment record number format exception!");
+		assertInvalid("read1\t16\tchr1\t99999999999\t37\t5M\t=\t300\t-210\tACGTN\tIIII#",
+			"Alignment record number format exception!");
+		assertInvalid("read1\t16\tchr1\t100\t37\t5M\t=\t300\t-210\tACGTN",
+			"Missing alignment record field! record:[read1\t16\tchr1\t100\t37\t5M\t=\t300\t-210\tACGTN]");
+		assertInvalid("read1\t16\tchr1\t100\t37\t5M\t=\t300\t-210\tACGTN\tIIII#\tNM1",
+			"Illegal optional tag fomat:NM1");
+	}
+
+	private static void assertInvalid(String line, String message) throws Exception {
+		SamRecordParser parser = createParser(line, 16);
+		assertTrue(parser.nextLine());
+		try {
+			parser.parseAlignmentRecord();
+			fail("MappingFileFormatException expected");
+		} catch (MappingFileFormatException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+}
@@ -22,6 +22,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.StringWriter;
 
 import static org.junit.Assert.assertEquals;
@@ -135,6 +136,7 @@ public class SamWriterTest {
 		samBodyRecord.addOptionalTag(optionalTag);
 
 		samWriter.writeRecord(samBodyRecord);
+		samWriter.flush();
 
 		assertEquals(
 				"@HD\tVN:1.0\n" +
@@ -195,6 +197,7 @@ public class SamWriterTest {
 //		samBodyRecord.addOptionalTags(optionalTag);
 
 		samWriter.writeRecord(samBodyRecord);
+		samWriter.flush();
 
 		assertEquals(
 				"@HD\tVN:1.0\n" +
@@ -203,4 +206,46 @@ public class SamWriterTest {
 						"86 Generated genom FW - secondary genom 13\t67\tGenerated genom\t13\t255\t16M4D32M\t*\t0\t0\t1232023110232203010221202101311011013011213002313\t*\n",
 				stringWriter.toString());
 	}
+
+	@Test
+	public void testWriteToStream() throws Exception {
+		MappingHeader samFileHeader = new MappingHeader();
+		HeaderRecord headerRecordHD = new HeaderRecord(HeaderRecordType.HD);
+		headerRecordHD.addTag(new HeaderTag(HeaderTagType.VN, "1.0"));
+		samFileHeader.addRecord(headerRecordHD);
+
+		AlignmentRecord samBodyRecord = new AlignmentRecord();
+		samBodyRecord.setQueryName("read1");
+		samBodyRecord.setFlag((short) 0x8001);
+		samBodyRecord.setReferenceName("chr1");
+		samBodyRecord.setPosition(Integer.MAX_VALUE);
+		samBodyRecord.setMappingQuality((byte) 200);
+		samBodyRecord.setCigar("5M");
+		samBodyRecord.setMateReferenceName("=");
+		samBodyRecord.setMatePosition(0);
+		samBodyRecord.setInsertSize(Integer.MIN_VALUE);
+		samBodyRecord.setSequence("ACGTN");
+		samBodyRecord.setQuality("IIII#");
+		OptionalTag optionalTag = new OptionalTag();
+		optionalTag.setTagName("XF");
+		optionalTag.setValueType('f');
+		optionalTag.setValue("-1.5");
+		samBodyRecord.addOptionalTag(optionalTag);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SamWriter streamWriter = new SamWriter(out);
+		streamWriter.writeHeader(samFileHeader);
+		for (int i = 0; i < 3; ++i) {
+			streamWriter.writeRecord(samBodyRecord);
+		}
+		streamWriter.close();
+
+		samWriter.writeHeader(samFileHeader);
+		for (int i = 0; i < 3; ++i) {
+			samWriter.writeRecord(samBodyRecord);
+		}
+		samWriter.close();
+
+		assertEquals(stringWriter.toString(), out.toString("US-ASCII"));
+	}
 }
@@ -0,0 +1,159 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import hu.astrid.mapping.util.BamUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackedReferenceIndexTest {
+
+	private PackedReferenceIndex index;
+
+	@Before
+	public void setUp() {
+		ReferenceIndex referenceIndex = new ReferenceIndex();
+		// bins are added out of order, the chunks of different bins overlap
+		Bin leaf = new Bin(BamUtil.regToBin(20000, 20100));
+		leaf.addChunk(chunk(500, 600));
+		leaf.addChunk(chunk(700, 800));
+		referenceIndex.addBin(leaf);
+		Bin other = new Bin(BamUtil.regToBin(200000, 200100));
+		other.addChunk(chunk(5000, 6000));
+		referenceIndex.addBin(other);
+		Bin root = new Bin(0);
+		root.addChunk(chunk(100, 200));
+		root.addChunk(chunk(550, 650));
+		root.addChunk(chunk(800, 900));
+		referenceIndex.addBin(root);
+
+		referenceIndex.addLinearIndex(new VirtualFileOffset(100));
+		referenceIndex.addLinearIndex(new VirtualFileOffset(520));
+		index = PackedReferenceIndex.pack(referenceIndex);
+	}
+
+	@Test
+	public void testPlanQueryMergesChunks() {
+		assertArrayEquals(new long[]{100, 200, 500, 650, 700, 900}, index.planQuery(1, 20200));
+	}
+
+	@Test
+	public void testPlanQueryUsesLinearIndex() {
+		assertArrayEquals(new long[]{520, 650, 700, 900}, index.planQuery(20000, 20200));
+	}
+
+	@Test
+	public void testPlanQueryWithoutBins() {
+		assertArrayEquals(new long[]{100, 200, 550, 650, 800, 900}, index.planQuery(40000, 40100));
+		assertArrayEquals(new long[0], index.planQuery(20200, 20000));
+	}
+
+	@Test
+	public void testLinearIndexOf() {
+		assertEquals(100, index.linearIndexOf(16384));
+		assertEquals(520, index.linearIndexOf(16385));
+		assertEquals(-1, index.linearIndexOf(40000));
+	}
+
+	@Test
+	public void testBaiBinningScheme() {
+		int[][] regions = {{0, 0}, {20000, 20100}, {16383, 16384}, {100000, 200000}, {0, 1 << 26}, {0, (1 << 29) - 1}};
+		for (int[] region : regions) {
+			assertEquals(BamUtil.regToBin(region[0], region[1]), BinningScheme.BAI.regionToBin(region[0], region[1]));
+		}
+		assertEquals(37450, BinningScheme.BAI.getPseudoBin());
+		assertEquals(6, BinningScheme.forLength(14, 2000000000L).getDepth());
+	}
+
+	@Test
+	public void testPlanQueryWithBinOffsets() {
+		BinningScheme scheme = new BinningScheme(14, 6);
+		int first = scheme.binOf(6, 700000000);
+		int parent = scheme.getParent(first);
+		PackedReferenceIndex csi = new PackedReferenceIndex(scheme, new int[]{parent, first + 1},
+			new long[]{300, 600}, new int[]{0, 1, 2}, new long[]{300, 600}, new long[]{500, 900});
+		// the offset of the parent bin is used for a position without leaf bin
+		assertArrayEquals(new long[]{300, 500}, csi.planQuery(700000001, 700000010));
+		assertArrayEquals(new long[]{600, 900}, csi.planQuery(700016385, 700016390));
+	}
+
+	@Test
+	public void testFromFileOrder() {
+		PackedReferenceIndex bai = PackedReferenceIndex.fromFileOrder(BinningScheme.BAI, new int[]{4681, 0, 37450},
+			null, new int[]{0, 2, 3, 4}, new long[]{500, 700, 100, 5000}, new long[]{600, 800, 200, 6000},
+			new long[]{100});
+		assertEquals(3, bai.getBinCount());
+		assertEquals(0, bai.getBinId(0));
+		assertArrayEquals(new long[]{100, 200}, bai.getChunks(0));
+		assertEquals(4681, bai.getBinId(1));
+		assertArrayEquals(new long[]{500, 700, 600, 800}, bai.getChunks(1));
+		assertArrayEquals(new long[]{5000, 6000}, bai.getChunks(2));
+		assertEquals(100, bai.linearIndexOf(0));
+
+		BinningScheme scheme = new BinningScheme(14, 6);
+		PackedReferenceIndex csi = PackedReferenceIndex.fromFileOrder(scheme, new int[]{9, 1}, new long[]{600, 300},
+			new int[]{0, 1, 2}, new long[]{600, 300}, new long[]{900, 500}, null);
+		assertEquals(new PackedReferenceIndex(scheme, new int[]{1, 9}, new long[]{300, 600}, new int[]{0, 1, 2},
+			new long[]{300, 600}, new long[]{500, 900}), csi);
+	}
+
+	@Test
+	public void testPlanLastRecords() {
+		assertArrayEquals(new long[]{5000, 6000}, index.planLastRecords());
+		assertEquals(-1, index.getMappedCount());
+		assertEquals(-1, index.getUnmappedCount());
+		assertArrayEquals(new long[0], PackedReferenceIndex.pack(new ReferenceIndex()).planLastRecords());
+	}
+
+	@Test
+	public void testMetadataPseudoBin() {
+		ReferenceIndex referenceIndex = new ReferenceIndex();
+		Bin root = new Bin(0);
+		root.addChunk(chunk(100, 900));
+		referenceIndex.addBin(root);
+		Bin metadata = new Bin(BinningScheme.BAI.getPseudoBin());
+		metadata.addChunk(chunk(100, 900));
+		metadata.addChunk(chunk(42, 100000));
+		referenceIndex.addBin(metadata);
+		referenceIndex.addLinearIndex(new VirtualFileOffset(100));
+		referenceIndex.addLinearIndex(new VirtualFileOffset(400));
+		PackedReferenceIndex packed = PackedReferenceIndex.pack(referenceIndex);
+
+		assertEquals(42, packed.getMappedCount());
+		assertEquals(100000, packed.getUnmappedCount());
+		// the counts of the pseudo-bin are not offsets
+		assertArrayEquals(new long[]{400, 900}, packed.planLastRecords());
+		assertArrayEquals(new long[]{100, 900}, packed.planQuery(1, 100));
+	}
+
+	@Test
+	public void testPlanLastRecordsWithBinOffsets() {
+		BinningScheme scheme = new BinningScheme(14, 6);
+		int first = scheme.binOf(6, 700000000);
+		PackedReferenceIndex csi = new PackedReferenceIndex(scheme, new int[]{scheme.getParent(first), first + 1},
+			new long[]{300, 600}, new int[]{0, 1, 2}, new long[]{300, 600}, new long[]{500, 900});
+		assertArrayEquals(new long[]{600, 900}, csi.planLastRecords());
+	}
+
+	private static Chunk chunk(long start, long end) {
+		return new Chunk(new VirtualFileOffset(start), new VirtualFileOffset(end));
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hu.astrid.mapping.exception.MappingFileFormatException;
+import hu.astrid.mapping.io.BaiWriter;
+import hu.astrid.mapping.io.BamWriter;
+import hu.astrid.mapping.io.IndexedBamReader;
+import hu.astrid.mapping.io.RegionIterator;
+import hu.astrid.mapping.model.AlignmentFlag;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.BamHeader;
+import hu.astrid.mapping.model.HeaderRecord;
+import hu.astrid.mapping.model.HeaderRecordType;
+import hu.astrid.mapping.model.HeaderTag;
+import hu.astrid.mapping.model.HeaderTagType;
+import hu.astrid.mapping.model.PackedReferenceIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the index built by {@link BamWriter} while writing equals the
+ * index created by {@link BamIndexer} from the finished file.
+ */
+public class BamIndexBuilderTest {
+
+	private static final String TEMP_DIR = System.getProperty("java.io.tmpdir");
+	private static final String[] REFERENCE_NAMES = {"chr1", "chr2"};
+	private static final int REFERENCE_LENGTH = 200000;
+	private static final int RECORD_COUNT = 3000;
+	private static final int READ_LENGTH = 50;
+
+	private File bamFile;
+	private File baiFile;
+
+	@Before
+	public void setUp() throws Exception {
+		bamFile = File.createTempFile("index-builder-", ".bam", new File(TEMP_DIR));
+		baiFile = new File(bamFile.getPath() + ".bai");
+	}
+
+	@After
+	public void tearDown() {
+		bamFile.delete();
+		baiFile.delete();
+	}
+
+	@Test
+	public void testIndexWhileWriting() throws Exception {
+		BamWriter writer = new BamWriter(new FileOutputStream(bamFile));
+		writer.setIndexOutput(new FileOutputStream(baiFile));
+		writer.writeHeader(createHeader());
+		for (String referenceName : REFERENCE_NAMES) {
+			for (int i = 0; i < RECORD_COUNT; ++i) {
+				writer.writeRecord(createRecord(referenceName, 1 + i * 60, i % 3 == 0 ? "20M1000N30M" : READ_LENGTH + "M"));
+			}
+		}
+		writer.close();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new BaiWriter(expected).write(new BamIndexer(bamFile.getPath()).index());
+		assertArrayEquals(expected.toByteArray(), readFile(baiFile));
+
+		IndexedBamReader reader = new IndexedBamReader(bamFile.getPath());
+		try {
+			List<AlignmentRecord> records = reader.loadRecords("chr2", 100001, 100100);
+			assertTrue(!records.isEmpty());
+			for (AlignmentRecord record : records) {
+				assertEquals("chr2", record.getReferenceName());
+				assertTrue(record.getPosition() <= 100100);
+				assertTrue(record.getPosition() + READ_LENGTH + 1000 > 100001);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testParallelIndexing() throws Exception {
+		BamWriter writer = new BamWriter(new FileOutputStream(bamFile));
+		writer.setIndexOutput(new FileOutputStream(baiFile));
+		writer.writeHeader(createHeader());
+		for (String referenceName : REFERENCE_NAMES) {
+			for (int i = 0; i < 10 * RECORD_COUNT; ++i) {
+				writer.writeRecord(createRecord(referenceName, 1 + i * 6, i % 7 == 0 ? "20M1000N30M" : READ_LENGTH + "M"));
+			}
+		}
+		writer.close();
+
+		// small files are split into a few blocks per range, so the starts of
+		// most ranges are guessed
+		for (int threadCount : new int[]{1, 3, 8}) {
+			ByteArrayOutputStream index = new ByteArrayOutputStream();
+			new BaiWriter(index).write(new BamIndexer(bamFile.getPath(), threadCount).index());
+			assertArrayEquals(readFile(baiFile), index.toByteArray());
+		}
+	}
+
+	@Test
+	public void testAppend() {
+		BamIndexBuilder expected = new BamIndexBuilder(2);
+		BamIndexBuilder first = new BamIndexBuilder(2);
+		BamIndexBuilder second = new BamIndexBuilder(2);
+		long[][] records = {{0, 100, 1L << 16, 1L << 16 | 200}, {0, 20000, 1L << 16 | 200, 2L << 16},
+			{0, 20100, 2L << 16, 2L << 16 | 100}, {1, 300, 2L << 16 | 100, 3L << 16}};
+		for (int i = 0; i < records.length; ++i) {
+			long[] record = records[i];
+			// the third record is unmapped, placed at the position of its mate
+			expected.addRecord((int) record[0], (int) record[1], READ_LENGTH, i == 2, record[2], record[3]);
+			(i < 2 ? first : second).addRecord((int) record[0], (int) record[1], READ_LENGTH, i == 2, record[2],
+				record[3]);
+		}
+		first.append(second);
+		assertEquals(expected.build(), first.build());
+		PackedReferenceIndex referenceIndex = first.build().getPackedIndex(0);
+		assertEquals(2, referenceIndex.getMappedCount());
+		assertEquals(1, referenceIndex.getUnmappedCount());
+
+		try {
+			second.append(expected);
+			fail("IllegalStateException expected, but not thrown.");
+		} catch (IllegalStateException ise) {
+			// the appended records precede the ones already added
+		}
+	}
+
+	@Test
+	public void testUnsortedRecords() throws Exception {
+		BamWriter writer = new BamWriter(new FileOutputStream(bamFile));
+		writer.setIndexOutput(new FileOutputStream(baiFile));
+		writer.writeHeader(createHeader());
+		writer.writeRecord(createRecord("chr1", 1000, READ_LENGTH + "M"));
+		try {
+			writer.writeRecord(createRecord("chr1", 999, READ_LENGTH + "M"));
+			fail("MappingFileFormatException expected, but not thrown.");
+		} catch (MappingFileFormatException mfe) {
+			assertEquals("Alignment records are not sorted by coordinate", mfe.getMessage());
+		}
+		writer.close();
+	}
+
+	@Test
+	public void testLinearIndex() {
+		BamIndexBuilder builder = new BamIndexBuilder(1);
+		builder.addRecord(0, 20000, 100, false, 1L << 16, 2L << 16);
+		builder.addRecord(0, 50000, 100, false, 2L << 16, 3L << 16);
+
+		List<?> linearIndex = builder.build().getReferenceIndices().get(0).getLinearIndices();
+		assertEquals(4, linearIndex.size());
+		assertEquals(1L << 16, builder.build().linearIndexOf(0, 0).longRepresentation());
+		assertEquals(1L << 16, builder.build().linearIndexOf(0, 40000).longRepresentation());
+		assertEquals(2L << 16, builder.build().linearIndexOf(0, 49999).longRepresentation());
+	}
+
+	@Test
+	public void testIterateLastRecords() throws Exception {
+		BamWriter writer = new BamWriter(new FileOutputStream(bamFile));
+		writer.setIndexOutput(new FileOutputStream(baiFile));
+		writer.writeHeader(createHeader());
+		for (String referenceName : REFERENCE_NAMES) {
+			for (int i = 0; i < RECORD_COUNT; ++i) {
+				writer.writeRecord(createRecord(referenceName, 1 + i * 60, READ_LENGTH + "M"));
+			}
+		}
+		AlignmentRecord unmapped = createRecord("chr2", 1 + RECORD_COUNT * 60, READ_LENGTH + "M");
+		unmapped.setFlag(AlignmentFlag.UNMAPPED.getValue());
+		writer.writeRecord(unmapped);
+		writer.close();
+
+		IndexedBamReader reader = new IndexedBamReader(bamFile.getPath());
+		try {
+			RegionIterator iterator = reader.iterateLastRecords("chr1");
+			int count = 0;
+			AlignmentRecord last = null;
+			while (iterator.hasNext()) {
+				last = iterator.next();
+				assertEquals("chr1", last.getReferenceName());
+				++count;
+			}
+			iterator.close();
+			assertEquals(1 + (RECORD_COUNT - 1) * 60, last.getPosition());
+			// only the records overlapping the last linear index window are read
+			assertTrue(count <= (1 << 14) / 60 + 1);
+			assertEquals(1 + (RECORD_COUNT - 1) * 60 + READ_LENGTH, reader.getLastRecordEnd("chr1"));
+			assertEquals(RECORD_COUNT, reader.getMappedRecordCount("chr1"));
+			assertEquals(0, reader.getUnmappedRecordCount("chr1"));
+			assertEquals(RECORD_COUNT, reader.getMappedRecordCount("chr2"));
+			assertEquals(1, reader.getUnmappedRecordCount("chr2"));
+			// the unmapped record does not cover the reference
+			assertEquals(1 + (RECORD_COUNT - 1) * 60 + READ_LENGTH, reader.getLastRecordEnd("chr2"));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static BamHeader createHeader() {
+		BamHeader header = new BamHeader();
+		HeaderRecord hd = new HeaderRecord(HeaderRecordType.HD);
+		hd.addTag(new HeaderTag(HeaderTagType.VN, "1.0"));
+		hd.addTag(new HeaderTag(HeaderTagType.SO, "coordinate"));
+		header.addRecord(hd);
+		for (String referenceName : REFERENCE_NAMES) {
+			HeaderRecord sq = new HeaderRecord(HeaderRecordType.SQ);
+			sq.addTag(new HeaderTag(HeaderTagType.SN, referenceName));
+			sq.addTag(new HeaderTag(HeaderTagType.LN, String.valueOf(REFERENCE_LENGTH)));
+			header.addRecord(sq);
+			header.addReference(referenceName, REFERENCE_LENGTH);
+		}
+		return header;
+	}
+
+	private static AlignmentRecord createRecord(String referenceName, int position, String cigar) {
+		return RecordFixtures.createRecord(referenceName, position, READ_LENGTH, cigar);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
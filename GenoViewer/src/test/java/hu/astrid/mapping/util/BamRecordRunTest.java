@@ -0,0 +1,192 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hu.astrid.mapping.io.BaiWriter;
+import hu.astrid.mapping.io.BamReader;
+import hu.astrid.mapping.io.BamWriter;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.BamHeader;
+import hu.astrid.mapping.model.HeaderRecord;
+import hu.astrid.mapping.model.HeaderRecordType;
+import hu.astrid.mapping.model.HeaderTag;
+import hu.astrid.mapping.model.HeaderTagType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the key-only sort of {@link BamSorter}.
+ */
+public class BamRecordRunTest {
+
+	private static final String TEMP_DIR = System.getProperty("java.io.tmpdir");
+	private static final String[] REFERENCE_NAMES = {"chrB", "chrA"};
+	private static final int RECORD_COUNT = 20000;
+
+	private File unsortedFile;
+	private File sortedFile;
+	private File indexFile;
+
+	@Before
+	public void setUp() throws Exception {
+		unsortedFile = File.createTempFile("unsorted-", ".bam", new File(TEMP_DIR));
+		sortedFile = File.createTempFile("sorted-", ".bam", new File(TEMP_DIR));
+		indexFile = new File(sortedFile.getPath() + ".bai");
+
+		BamHeader header = new BamHeader();
+		HeaderRecord hd = new HeaderRecord(HeaderRecordType.HD);
+		hd.addTag(new HeaderTag(HeaderTagType.VN, "1.0"));
+		header.addRecord(hd);
+		for (String referenceName : REFERENCE_NAMES) {
+			HeaderRecord sq = new HeaderRecord(HeaderRecordType.SQ);
+			sq.addTag(new HeaderTag(HeaderTagType.SN, referenceName));
+			sq.addTag(new HeaderTag(HeaderTagType.LN, "1000000"));
+			header.addRecord(sq);
+			header.addReference(referenceName, 1000000);
+		}
+
+		Random random = new Random(5);
+		BamWriter writer = new BamWriter(new FileOutputStream(unsortedFile));
+		writer.writeHeader(header);
+		for (int i = 0; i < RECORD_COUNT; ++i) {
+			AlignmentRecord record = new AlignmentRecord();
+			record.setQueryName("read" + i);
+			record.setMappingQuality((byte) 60);
+			record.setMateReferenceName("*");
+			record.setInsertSize(0);
+			if (i % 50 == 0) {
+				record.setFlag((short) 4);
+				record.setReferenceName("*");
+				record.setPosition(0);
+				record.setCigar("");
+			} else {
+				record.setFlag((short) 0);
+				record.setReferenceName(REFERENCE_NAMES[random.nextInt(REFERENCE_NAMES.length)]);
+				// few distinct positions, so that the stability is checked
+				record.setPosition(1 + 100 * random.nextInt(5000));
+				record.setCigar("30M");
+			}
+			record.setMatePosition(0);
+			record.setSequence("ACGTACGTACGTACGTACGTACGTACGTAC");
+			record.setQuality("IIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+			writer.writeRecord(record);
+		}
+		writer.close();
+	}
+
+	@After
+	public void tearDown() {
+		unsortedFile.delete();
+		sortedFile.delete();
+		indexFile.delete();
+	}
+
+	@Test
+	public void testKey() {
+		byte[] data = new byte[8];
+		int[][] fields = { {0, -1}, {0, 0}, {0, Integer.MAX_VALUE - 1}, {1, 0}, {-1, -1}, {-1, 100}};
+		long[] keys = new long[fields.length];
+		for (int i = 0; i < fields.length; ++i) {
+			System.arraycopy(BamUtil.toByteArray(fields[i][0]), 0, data, 0, 4);
+			System.arraycopy(BamUtil.toByteArray(fields[i][1]), 0, data, 4, 4);
+			keys[i] = BamRecordRun.key(data, 0);
+			assertTrue(i == 0 || keys[i - 1] < keys[i]);
+		}
+	}
+
+	@Test
+	public void testInMemorySort() throws Exception {
+		BamSorter sorter = new BamSorter(unsortedFile, sortedFile, true);
+		sorter.setKeyOnly(true);
+		sorter.sort();
+
+		checkSorted();
+	}
+
+	@Test
+	public void testMergedSort() throws Exception {
+		BamSorter sorter = new BamSorter(unsortedFile, sortedFile, true);
+		sorter.setKeyOnly(true);
+		sorter.setMemoryBudget(2 << 20);
+		sorter.setThreadCount(2);
+		sorter.setMergeWidth(2);
+		sorter.setCompressTempFiles(true);
+		sorter.sort();
+
+		checkSorted();
+	}
+
+	private void checkSorted() throws Exception {
+		BamReader reader = new BamReader(new FileInputStream(sortedFile));
+		try {
+			BamHeader header = reader.readHeader();
+			AlignmentRecord previous = null;
+			int count = 0;
+			AlignmentRecord record;
+			while ((record = reader.nextRecord()) != null) {
+				if (previous != null) {
+					int previousIndex = referenceIndex(header, previous);
+					int index = referenceIndex(header, record);
+					assertTrue(previousIndex <= index);
+					if (previousIndex == index && !"*".equals(record.getReferenceName())) {
+						assertTrue(previous.getPosition() <= record.getPosition());
+						if (previous.getPosition() == record.getPosition()) {
+							// equal keys keep the input order
+							assertTrue(readNumber(previous) < readNumber(record));
+						}
+					}
+				}
+				previous = record;
+				++count;
+			}
+			assertEquals(RECORD_COUNT, count);
+		} finally {
+			reader.close();
+		}
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new BaiWriter(expected).write(new BamIndexer(sortedFile.getPath()).index());
+		FileInputStream in = new FileInputStream(indexFile);
+		byte[] index = new byte[(int) indexFile.length()];
+		try {
+			assertEquals(index.length, in.read(index));
+		} finally {
+			in.close();
+		}
+		assertArrayEquals(expected.toByteArray(), index);
+	}
+
+	private static int referenceIndex(BamHeader header, AlignmentRecord record) {
+		return "*".equals(record.getReferenceName()) ? Integer.MAX_VALUE : header.indexOf(record.getReferenceName());
+	}
+
+	private static int readNumber(AlignmentRecord record) {
+		return Integer.parseInt(record.getQueryName().substring(4));
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hu.astrid.mapping.exception.IndexFileFormatException;
+import hu.astrid.mapping.io.BamSummaryReader;
+import hu.astrid.mapping.io.BamSummaryWriter;
+import hu.astrid.mapping.io.BamWriter;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.BamHeader;
+import hu.astrid.mapping.model.BamSummary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BamSummaryBuilderTest {
+
+	private static final String TEMP_DIR = System.getProperty("java.io.tmpdir");
+
+	private File bamFile;
+	private File summaryFile;
+
+	@Before
+	public void setUp() throws Exception {
+		bamFile = File.createTempFile("summary-builder-", ".bam", new File(TEMP_DIR));
+		summaryFile = BamSummary.fileOf(bamFile);
+	}
+
+	@After
+	public void tearDown() {
+		bamFile.delete();
+		summaryFile.delete();
+	}
+
+	@Test
+	public void testAddRecord() {
+		BamSummaryBuilder builder = new BamSummaryBuilder(2);
+		builder.addRecord(0, 1000, 50, 50, 0);
+		builder.addRecord(0, 11, 40, 45, 0);
+		builder.addRecord(0, 500, 0, 30, 0x4);
+		builder.addRecord(-1, 0, 0, 70, 0x4);
+		// longer than the reference in the header
+		builder.addRecord(1, 90, 1000, 80, 0);
+		BamSummary summary = builder.build(1, 2);
+
+		assertEquals(2, summary.getReferenceCount());
+		assertEquals(1, summary.getUnplacedCount());
+		assertEquals(2, summary.getReadCount(0));
+		assertEquals(1, summary.getUnmappedCount(0));
+		assertEquals(50, summary.getMaxReadLength(0));
+		assertEquals(80, summary.getMaxReadLength());
+		assertEquals(11, summary.getFirstPosition(0));
+		assertEquals(1050, summary.getEndPosition(0));
+		assertEquals(90, summary.getFirstPosition(1));
+		assertEquals(1090, summary.getEndPosition(1));
+	}
+
+	@Test
+	public void testSummarizeAndReload() throws Exception {
+		BamHeader header = new BamHeader();
+		header.addReference("chr1", 5000);
+		header.addReference("chr2", 5000);
+		BamWriter writer = new BamWriter(new FileOutputStream(bamFile));
+		writer.writeHeader(header);
+		for (int i = 0; i < 100; ++i) {
+			writer.writeRecord(createRecord("chr1", 1 + 40 * i, 30 + i % 3));
+		}
+		writer.writeRecord(createRecord("chr2", 4000, 50));
+		writer.close();
+
+		BamSummary summary = BamSummaryBuilder.summarize(bamFile);
+		assertTrue(summary.isUpToDate(bamFile));
+		assertEquals(100, summary.getReadCount(0));
+		assertEquals(32, summary.getMaxReadLength(0));
+		assertEquals(1, summary.getFirstPosition(0));
+		assertEquals(1 + 40 * 99 + 30, summary.getEndPosition(0));
+		assertEquals(1, summary.getReadCount(1));
+		assertEquals(4050, summary.getEndPosition(1));
+
+		BamSummaryWriter.save(summary, summaryFile);
+		BamSummary loaded = new BamSummaryReader().load(summaryFile, 2);
+		assertTrue(loaded.isUpToDate(bamFile));
+		assertEquals(summary.getUnplacedCount(), loaded.getUnplacedCount());
+		for (int i = 0; i < summary.getReferenceCount(); ++i) {
+			assertEquals(summary.getReadCount(i), loaded.getReadCount(i));
+			assertEquals(summary.getUnmappedCount(i), loaded.getUnmappedCount(i));
+			assertEquals(summary.getMaxReadLength(i), loaded.getMaxReadLength(i));
+			assertEquals(summary.getFirstPosition(i), loaded.getFirstPosition(i));
+			assertEquals(summary.getEndPosition(i), loaded.getEndPosition(i));
+		}
+
+		try {
+			new BamSummaryReader().load(summaryFile, 3);
+			fail("summary of a different header is accepted");
+		} catch (IndexFileFormatException e) {
+		}
+
+		// saving again replaces the summary and leaves no temporary file behind
+		BamSummaryWriter.save(summary, summaryFile);
+		assertEquals(2, new BamSummaryReader().load(summaryFile, 2).getReferenceCount());
+		for (File file : summaryFile.getParentFile().listFiles()) {
+			assertFalse(file.getName(), file.getName().startsWith(summaryFile.getName()) && !file.equals(summaryFile));
+		}
+
+		File cacheDirectory = new File(TEMP_DIR);
+		File cacheFile = BamSummary.cacheFileOf(bamFile, cacheDirectory);
+		assertEquals(cacheDirectory, cacheFile.getParentFile());
+		assertTrue(cacheFile.getName().startsWith(BamSummary.cachePrefixOf(bamFile)));
+		assertTrue(cacheFile.getName().endsWith(BamSummary.FILE_SUFFIX));
+
+		bamFile.setLastModified(bamFile.lastModified() - 10000);
+		assertFalse(loaded.isUpToDate(bamFile));
+		assertFalse("modified file gets a new cache entry", cacheFile.equals(BamSummary.cacheFileOf(bamFile, cacheDirectory)));
+	}
+
+	private static AlignmentRecord createRecord(String referenceName, int position, int length) {
+		return RecordFixtures.createRecord(referenceName, position, length, length + "M");
+	}
+}
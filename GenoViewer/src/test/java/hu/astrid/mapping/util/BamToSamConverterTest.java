@@ -25,6 +25,8 @@ import hu.astrid.mapping.model.BamHeader;
 import hu.astrid.mapping.model.MappingHeader;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.StringReader;
@@ -117,4 +119,20 @@ public class BamToSamConverterTest {
 			assertEquals(bamAlignmentR.toString(), samIterator.next().toString());
 		bamIn.close();
 	}
+
+	@Test
+	public void testParallelConvertKeepsOrder() throws Exception {
+		String sam = SamToBamConverterTest.createSam(30000);
+		ByteArrayOutputStream bam = new ByteArrayOutputStream();
+		new SamToBamConverter(new ByteArrayInputStream(sam.getBytes("US-ASCII")), bam, null).convert();
+
+		StringWriter expected = new StringWriter();
+		new BamToSamConverter(new ByteArrayInputStream(bam.toByteArray()), expected, true).convert();
+
+		StringWriter actual = new StringWriter();
+		new BamToSamConverter(new ByteArrayInputStream(bam.toByteArray()), actual, true, 3).convert();
+
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(sam.substring(sam.indexOf("read0")), actual.toString().substring(actual.toString().indexOf("read0")));
+	}
 }
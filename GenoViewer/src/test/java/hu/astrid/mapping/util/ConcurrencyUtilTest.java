@@ -0,0 +1,101 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hu.astrid.mapping.exception.MappingFileException;
+import hu.astrid.mapping.exception.MappingFileFormatException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+public class ConcurrencyUtilTest {
+
+	@Test
+	public void testAwaitResult() throws Exception {
+		assertEquals("done", ConcurrencyUtil.await(run(new Callable<String>() {
+
+			@Override
+			public String call() {
+				return "done";
+			}
+		}), IOException.class, "Test"));
+	}
+
+	@Test
+	public void testAwaitRethrowsFailures() throws Exception {
+		final MappingFileFormatException formatException = new MappingFileFormatException("format");
+		try {
+			ConcurrencyUtil.await(failing(formatException), MappingFileException.class, "Test");
+			fail();
+		} catch (MappingFileException e) {
+			assertSame(formatException, e);
+		}
+		Error error = new OutOfMemoryError();
+		try {
+			ConcurrencyUtil.await(failing(error), MappingFileException.class, "Test");
+			fail();
+		} catch (OutOfMemoryError e) {
+			assertSame(error, e);
+		}
+		// a checked exception of another type is wrapped
+		try {
+			ConcurrencyUtil.await(failing(formatException), IOException.class, "Test");
+			fail();
+		} catch (IOException e) {
+			assertSame(formatException, e.getCause());
+		}
+	}
+
+	@Test
+	public void testDaemonThreadFactory() {
+		Thread thread = ConcurrencyUtil.daemonThreadFactory("worker").newThread(new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		});
+		assertTrue(thread.isDaemon());
+		assertTrue(thread.getName().startsWith("worker-"));
+	}
+
+	private static FutureTask<String> failing(final Throwable failure) {
+		return run(new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				if (failure instanceof Error) {
+					throw (Error) failure;
+				}
+				throw (Exception) failure;
+			}
+		});
+	}
+
+	private static FutureTask<String> run(Callable<String> callable) {
+		FutureTask<String> task = new FutureTask<String>(callable);
+		task.run();
+		return task;
+	}
+}
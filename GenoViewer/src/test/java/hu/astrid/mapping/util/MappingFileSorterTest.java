@@ -0,0 +1,155 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hu.astrid.mapping.io.SamReader;
+import hu.astrid.mapping.io.SamWriter;
+import hu.astrid.mapping.model.AlignmentRecord;
+import hu.astrid.mapping.model.AlignmentRecordComparatorExtended;
+import hu.astrid.mapping.model.HeaderRecord;
+import hu.astrid.mapping.model.HeaderRecordType;
+import hu.astrid.mapping.model.HeaderTag;
+import hu.astrid.mapping.model.HeaderTagType;
+import hu.astrid.mapping.model.MappingHeader;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappingFileSorterTest {
+
+	private static final String TEMP_DIR = System.getProperty("java.io.tmpdir");
+	private static final int RECORD_COUNT = 20000;
+	private static final int LONG_READ_INTERVAL = 100;
+	private static final int LONG_READ_LENGTH = 300;
+
+	private File unsortedFile;
+	private File sortedFile;
+
+	@Before
+	public void setUp() throws Exception {
+		unsortedFile = File.createTempFile("unsorted-", ".sam", new File(TEMP_DIR));
+		sortedFile = File.createTempFile("sorted-", ".sam", new File(TEMP_DIR));
+
+		MappingHeader header = new MappingHeader();
+		HeaderRecord hd = new HeaderRecord(HeaderRecordType.HD);
+		hd.addTag(new HeaderTag(HeaderTagType.VN, "1.0"));
+		hd.addTag(new HeaderTag(HeaderTagType.SO, "unsorted"));
+		header.addRecord(hd);
+		for (String referenceName : new String[] {"chr1", "chr2"}) {
+			HeaderRecord sq = new HeaderRecord(HeaderRecordType.SQ);
+			sq.addTag(new HeaderTag(HeaderTagType.SN, referenceName));
+			sq.addTag(new HeaderTag(HeaderTagType.LN, "1000000"));
+			header.addRecord(sq);
+		}
+
+		Random random = new Random(3);
+		SamWriter writer = new SamWriter(unsortedFile);
+		writer.writeHeader(header);
+		for (int i = 0; i < RECORD_COUNT; ++i) {
+			AlignmentRecord record = new AlignmentRecord();
+			record.setQueryName("read" + i);
+			record.setFlag((short) 0);
+			record.setReferenceName(random.nextBoolean() ? "chr1" : "chr2");
+			record.setPosition(1 + random.nextInt(999000));
+			record.setMappingQuality((byte) 60);
+			int readLength = i % LONG_READ_INTERVAL == 0 ? LONG_READ_LENGTH : 25;
+			StringBuilder sequence = new StringBuilder();
+			StringBuilder quality = new StringBuilder();
+			for (int j = 0; j < readLength; ++j) {
+				sequence.append("ACGT".charAt(random.nextInt(4)));
+				quality.append('I');
+			}
+			record.setCigar(readLength + "M");
+			record.setMateReferenceName("=");
+			record.setMatePosition(0);
+			record.setInsertSize(0);
+			record.setSequence(sequence.toString());
+			record.setQuality(quality.toString());
+			writer.writeRecord(record);
+		}
+		writer.close();
+	}
+
+	@After
+	public void tearDown() {
+		unsortedFile.delete();
+		sortedFile.delete();
+	}
+
+	@Test
+	public void testInMemorySort() throws Exception {
+		SamSorter sorter = new SamSorter(unsortedFile, sortedFile);
+		sorter.sort();
+
+		checkSorted();
+	}
+
+	@Test
+	public void testMultiLevelMerge() throws Exception {
+		SamSorter sorter = new SamSorter(unsortedFile, sortedFile);
+		sorter.setMemoryBudget(2 << 20);
+		sorter.setThreadCount(2);
+		sorter.setMergeWidth(2);
+		sorter.sort();
+
+		checkSorted();
+	}
+
+	@Test
+	public void testCompressedTempFiles() throws Exception {
+		SamSorter sorter = new SamSorter(unsortedFile, sortedFile);
+		sorter.setMemoryBudget(2 << 20);
+		sorter.setThreadCount(1);
+		sorter.setCompressTempFiles(true);
+		sorter.sort();
+
+		checkSorted();
+	}
+
+	private void checkSorted() throws Exception {
+		AlignmentRecordComparatorExtended comparator = new AlignmentRecordComparatorExtended();
+		SamReader reader = new SamReader(sortedFile);
+		try {
+			assertEquals("COORDINATE", reader.readHeader().getRecords().get(0).getTagValue(HeaderTagType.SO));
+			AlignmentRecord previous = null;
+			int count = 0;
+			int longReadCount = 0;
+			AlignmentRecord record;
+			while ((record = reader.nextRecord()) != null) {
+				assertTrue(previous == null || comparator.compare(previous, record) <= 0);
+				assertEquals("=", record.getMateReferenceName());
+				if (record.getSequence().length() == LONG_READ_LENGTH) {
+					assertEquals(LONG_READ_LENGTH, record.getQuality().length());
+					++longReadCount;
+				}
+				previous = record;
+				++count;
+			}
+			assertEquals(RECORD_COUNT, count);
+			assertEquals(RECORD_COUNT / LONG_READ_INTERVAL, longReadCount);
+		} finally {
+			reader.close();
+		}
+	}
+}
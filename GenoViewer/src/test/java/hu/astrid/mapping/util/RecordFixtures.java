@@ -0,0 +1,60 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.mapping.util;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+
+/**
+ * Alignment records for the tests which write BAM files
+ */
+final class RecordFixtures {
+
+	private RecordFixtures() {
+	}
+
+	/**
+	 * Mapped record with mapping quality 60 and no mate. Its sequence depends
+	 * on the position, so the records can be told apart.
+	 * @param referenceName name of reference
+	 * @param position alignment position
+	 * @param readLength length of the sequence
+	 * @param cigar CIGAR string of the alignment
+	 * @return the record, its query name is made of the reference name and position
+	 */
+	static AlignmentRecord createRecord(String referenceName, int position, int readLength, String cigar) {
+		StringBuilder bases = new StringBuilder();
+		StringBuilder qualities = new StringBuilder();
+		for (int i = 0; i < readLength; ++i) {
+			bases.append("ACGT".charAt((position + i) % 4));
+			qualities.append('I');
+		}
+		AlignmentRecord record = new AlignmentRecord();
+		record.setQueryName(referenceName + "_" + position);
+		record.setFlag((short) 0);
+		record.setReferenceName(referenceName);
+		record.setPosition(position);
+		record.setMappingQuality((byte) 60);
+		record.setCigar(cigar);
+		record.setMateReferenceName("*");
+		record.setMatePosition(0);
+		record.setInsertSize(0);
+		record.setSequence(bases.toString());
+		record.setQuality(qualities.toString());
+		return record;
+	}
+}
@@ -17,9 +17,11 @@
 
 package hu.astrid.mapping.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
@@ -46,6 +48,45 @@ public class SamToBamConverterTest {
 		inSam.close();
 	}
 
+	@Test
+	public void testParallelConvertKeepsOrder() throws Exception {
+		byte[] sam = createSam(30000).getBytes("US-ASCII");
+
+		ByteArrayOutputStream expectedBam = new ByteArrayOutputStream();
+		ByteArrayOutputStream expectedBai = new ByteArrayOutputStream();
+		new SamToBamConverter(new ByteArrayInputStream(sam), expectedBam, expectedBai).convert();
+
+		ByteArrayOutputStream actualBam = new ByteArrayOutputStream();
+		ByteArrayOutputStream actualBai = new ByteArrayOutputStream();
+		new SamToBamConverter(new ByteArrayInputStream(sam), actualBam, actualBai, 4).convert();
+
+		assertArrayEquals(expectedBam.toByteArray(), actualBam.toByteArray());
+		assertArrayEquals(expectedBai.toByteArray(), actualBai.toByteArray());
+	}
+
+	/**
+	 * Creates a coordinate sorted SAM file of reads on two references, long
+	 * enough to be converted in several batches.
+	 */
+	static String createSam(int recordCount) {
+		StringBuilder sam = new StringBuilder("@HD\tVN:1.0\tSO:coordinate\n@SQ\tSN:chr1\tLN:1000000\n"
+			+ "@SQ\tSN:chr2\tLN:1000000\n");
+		for (int i = 0; i < recordCount; ++i) {
+			String reference = i < recordCount / 2 ? "chr1" : "chr2";
+			sam.append("read").append(i).append("\t0\t").append(reference).append('\t')
+				.append(1 + 7 * (i % (recordCount / 2))).append("\t60\t10M2I28M\t*\t0\t0\t");
+			for (int j = 0; j < 40; ++j) {
+				sam.append("ACGT".charAt((i + j * j) % 4));
+			}
+			sam.append("\t");
+			for (int j = 0; j < 40; ++j) {
+				sam.append((char) ('!' + (i + j) % 40));
+			}
+			sam.append("\tNM:i:").append(i % 3).append("\tRG:Z:group").append(i % 5).append('\n');
+		}
+		return sam.toString();
+	}
+
 	private String getMd5Sum(byte[] data) throws NoSuchAlgorithmException {
 		MessageDigest algorithm = MessageDigest.getInstance("MD5");
 		algorithm.reset();
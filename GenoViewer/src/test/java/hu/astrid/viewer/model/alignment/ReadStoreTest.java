@@ -0,0 +1,161 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.viewer.model.alignment;
+
+import hu.astrid.mapping.model.AlignmentRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadStoreTest {
+
+	private static final int TILE_SIZE = 100;
+	private ReadStore store;
+
+	@Before
+	public void setUp() {
+		store = new ReadStore(TILE_SIZE);
+	}
+
+	private static AlignmentRecord read(int position, int length) {
+		AlignmentRecord read = new AlignmentRecord();
+		read.setPosition(position);
+		char[] sequence = new char[length];
+		Arrays.fill(sequence, 'A');
+		read.setSequence(new String(sequence));
+		read.setCigar(length + "M");
+		return read;
+	}
+
+	private static List<Integer> positions(List<AlignmentRecord> reads) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (AlignmentRecord read : reads) {
+			result.add(read.getPosition());
+		}
+		return result;
+	}
+
+	@Test
+	public void testTiles() {
+		assertEquals(0, store.tileOf(0));
+		assertEquals(0, store.tileOf(99));
+		assertEquals(1, store.tileOf(100));
+		assertEquals(200, store.tileStart(2));
+		assertEquals(300, store.tileEnd(2));
+	}
+
+	@Test
+	public void testPutTile() {
+		store.putTile(0, 1, Arrays.asList(read(150, 10), read(120, 10), read(99, 10), read(200, 10)));
+		assertTrue(store.isTileLoaded(0, 1));
+		assertFalse(store.isTileLoaded(0, 0));
+		assertFalse(store.isTileLoaded(1, 1));
+		assertEquals("reads outside the tile are ignored", 2, store.getReadCount());
+		assertEquals(Arrays.asList(120, 150), positions(store.queryStarts(0, 0, 1000)));
+	}
+
+	@Test
+	public void testQueryStarts() {
+		store.putTile(0, 0, Arrays.asList(read(10, 20), read(50, 20), read(90, 20)));
+		store.putTile(0, 1, Arrays.asList(read(100, 20), read(150, 20)));
+		store.putTile(0, 3, Arrays.asList(read(310, 20)));
+		assertEquals(Arrays.asList(50, 90, 100), positions(store.queryStarts(0, 50, 150)));
+		assertEquals(Arrays.asList(150, 310), positions(store.queryStarts(0, 101, 400)));
+		assertTrue(store.queryStarts(0, 60, 60).isEmpty());
+		assertTrue(store.queryStarts(1, 0, 400).isEmpty());
+	}
+
+	@Test
+	public void testQuery() {
+		store.putTile(0, 0, Arrays.asList(read(10, 20), read(60, 50), read(90, 5)));
+		store.putTile(0, 1, Arrays.asList(read(105, 20)));
+		assertEquals(50, store.getMaxReadLength(0));
+		assertEquals(Arrays.asList(60, 105), positions(store.query(0, 100, 110)));
+		assertEquals(Arrays.asList(10), positions(store.query(0, 29, 30)));
+		assertTrue(store.query(0, 30, 60).isEmpty());
+	}
+
+	@Test
+	public void testContainsInterval() {
+		store.putTile(0, 0, new ArrayList<AlignmentRecord>());
+		store.putTile(0, 1, new ArrayList<AlignmentRecord>());
+		store.putTile(0, 3, new ArrayList<AlignmentRecord>());
+		assertTrue(store.containsInterval(0, 0, 200));
+		assertTrue(store.containsInterval(0, 50, 150));
+		assertFalse(store.containsInterval(0, 150, 350));
+		assertTrue(store.containsInterval(0, 300, 400));
+		assertFalse(store.containsInterval(1, 0, 10));
+	}
+
+	@Test
+	public void testLastRead() {
+		assertNull(store.getLastRead(0));
+		store.putTile(0, 0, Arrays.asList(read(10, 20), read(50, 20)));
+		store.putTile(0, 1, new ArrayList<AlignmentRecord>());
+		assertEquals(50, store.getLastRead(0).getPosition());
+	}
+
+	@Test
+	public void testEviction() {
+		store.putTile(0, 0, Arrays.asList(read(10, 20)));
+		store.putTile(0, 1, Arrays.asList(read(110, 20)));
+		store.putTile(0, 2, Arrays.asList(read(210, 20)));
+		store.putTile(1, 0, Arrays.asList(read(20, 20)));
+		assertEquals(4, store.getTileCount());
+
+		store.queryStarts(0, 0, 100);
+		store.trimToTileCount(2);
+		assertEquals(2, store.getTileCount());
+		assertTrue("recently used tile is kept", store.isTileLoaded(0, 0));
+		assertTrue(store.isTileLoaded(1, 0));
+		assertFalse(store.isTileLoaded(0, 1));
+
+		store.evictTile(0, 0);
+		assertEquals(1, store.getReadCount());
+		store.evictReference(1);
+		assertTrue(store.isEmpty());
+	}
+
+	@Test
+	public void testEvictionOrder() {
+		store.putTile(0, 0, Arrays.asList(read(10, 20)));
+		store.putTile(1, 0, Arrays.asList(read(20, 20)));
+		store.putTile(2, 0, Arrays.asList(read(30, 20)));
+		store.putTile(0, 1, Arrays.asList(read(110, 20)));
+		store.putTile(0, 0, Arrays.asList(read(15, 20)));
+		store.getTileReads(1, 0);
+		store.evictReference(2);
+
+		store.trimToSize(2 * ReadStore.estimateSize(read(0, 20)));
+		assertEquals(2, store.getTileCount());
+		assertFalse(store.isTileLoaded(0, 1));
+		assertTrue("replaced tile counts as used", store.isTileLoaded(0, 0));
+		assertTrue(store.isTileLoaded(1, 0));
+
+		store.clear();
+		store.putTile(3, 0, Arrays.asList(read(10, 20)));
+		store.trimToTileCount(0);
+		assertTrue(store.isEmpty());
+	}
+}
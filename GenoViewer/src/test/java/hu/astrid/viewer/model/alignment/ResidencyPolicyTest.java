@@ -0,0 +1,126 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.viewer.model.alignment;
+
+import hu.astrid.mapping.io.RegionIterator;
+import hu.astrid.mapping.model.AlignmentRecord;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ResidencyPolicyTest {
+
+	private static final int WINDOW = 100;
+	/**A read starts at every tenth position*/
+	private static final int READ_DISTANCE = 10;
+
+	private static AlignmentRecord read(int position) {
+		AlignmentRecord read = new AlignmentRecord();
+		read.setPosition(position);
+		read.setSequence("ACGTACGTAC");
+		read.setCigar("10M");
+		return read;
+	}
+
+	/**
+	 * Reads at every tenth position, counts the positions examined
+	 */
+	private static class UniformSource implements TilePrefetcher.TileSource {
+
+		private long sampledLength;
+
+		@Override
+		public RegionIterator iterateReads(int reference, int start, int end) {
+			sampledLength += end - start;
+			List<AlignmentRecord> reads = new ArrayList<AlignmentRecord>();
+			for (int position = (start + READ_DISTANCE - 1) / READ_DISTANCE * READ_DISTANCE; position < end; position += READ_DISTANCE) {
+				reads.add(read(position));
+			}
+			final Iterator<AlignmentRecord> iterator = reads.iterator();
+			return new RegionIterator() {
+
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public AlignmentRecord next() {
+					return iterator.next();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	@Test
+	public void testEstimateSampled() throws Exception {
+		ResidencyPolicy policy = new ResidencyPolicy(Long.MAX_VALUE, WINDOW);
+		UniformSource source = new UniformSource();
+		long estimate = policy.estimateSize(source, 0, 1000000);
+		assertEquals(ResidencyPolicy.SAMPLE_COUNT * WINDOW, source.sampledLength);
+		assertEquals(1000000 / READ_DISTANCE * ReadStore.estimateSize(read(0)), estimate);
+	}
+
+	@Test
+	public void testEstimateShortReference() throws Exception {
+		ResidencyPolicy policy = new ResidencyPolicy(Long.MAX_VALUE, WINDOW);
+		UniformSource source = new UniformSource();
+		assertEquals(50 * ReadStore.estimateSize(read(0)), policy.estimateSize(source, 0, 500));
+		assertEquals(500, source.sampledLength);
+		assertEquals(0, policy.estimateSize(source, 0, 0));
+	}
+
+	@Test
+	public void testEstimateWithReadCount() throws Exception {
+		ResidencyPolicy policy = new ResidencyPolicy(Long.MAX_VALUE, WINDOW);
+		assertEquals(250 * ReadStore.estimateSize(read(0)), policy.estimateSize(new UniformSource(), 0, 1000000, 250));
+		assertEquals(0, policy.estimateSize(new UniformSource(), 0, 1000000, 0));
+	}
+
+	@Test
+	public void testCalibrate() throws Exception {
+		ResidencyPolicy policy = new ResidencyPolicy(Long.MAX_VALUE, WINDOW);
+		long estimate = policy.estimateSize(new UniformSource(), 0, 1000000);
+		policy.calibrate(1000, 0);
+		assertEquals(1, policy.getCostFactor(), 0);
+		policy.calibrate(1000, 1500);
+		assertEquals(1.5, policy.getCostFactor(), 0);
+		assertEquals(estimate * 3 / 2, policy.estimateSize(new UniformSource(), 0, 1000000));
+	}
+
+	@Test
+	public void testIsResident() {
+		ResidencyPolicy policy = new ResidencyPolicy(1000);
+		assertTrue(policy.isResident(1000, 2000));
+		assertFalse("over budget", policy.isResident(1001, 2000));
+		assertFalse("over available heap", policy.isResident(800, 700));
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * This file is part of GenoViewer.
+ *
+ * GenoViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenoViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenoViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package hu.astrid.viewer.model.alignment;
+
+import hu.astrid.mapping.io.RegionIterator;
+import hu.astrid.mapping.model.AlignmentRecord;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TilePrefetcherTest {
+
+	private static final int TILE_SIZE = 100;
+	private static final int REFERENCE_LENGTH = 1000000;
+	private ReadStore store;
+	private TestSource source;
+	private List<Integer> loadedTiles;
+	private TilePrefetcher prefetcher;
+
+	@Before
+	public void setUp() {
+		store = new ReadStore(TILE_SIZE);
+		source = new TestSource();
+		loadedTiles = Collections.synchronizedList(new ArrayList<Integer>());
+		prefetcher = createPrefetcher(Long.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() {
+		source.release.countDown();
+		prefetcher.shutdown();
+	}
+
+	private TilePrefetcher createPrefetcher(long memoryBudget) {
+		return new TilePrefetcher(store, source, new TilePrefetcher.TileListener() {
+
+			@Override
+			public void tileLoaded(int reference, int tile) {
+				loadedTiles.add(tile);
+			}
+		}, memoryBudget);
+	}
+
+	private void waitForTiles(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (loadedTiles.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void testPlanWithoutScrolling() {
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 500, 600, 0);
+		source.release.countDown();
+		assertEquals(0, prefetcher.getVelocity(), 0);
+		int[] expected = {5, 6, 4, 7, 3};
+		int[] plan = prefetcher.plan(500, 600, REFERENCE_LENGTH);
+		assertEquals(expected.length, plan.length);
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i], plan[i]);
+		}
+		assertTrue(prefetcher.isPlanned(0, 3));
+		assertFalse(prefetcher.isPlanned(0, 2));
+		assertFalse(prefetcher.isPlanned(1, 5));
+	}
+
+	@Test
+	public void testPlanAtReferenceStart() {
+		int[] plan = prefetcher.plan(0, 150, REFERENCE_LENGTH);
+		assertEquals(4, plan.length);
+		assertEquals(0, plan[0]);
+		assertEquals(1, plan[1]);
+		assertEquals(2, plan[2]);
+		assertEquals(3, plan[3]);
+	}
+
+	@Test
+	public void testPlanScrollingForward() {
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10000, 10100, 0);
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10200, 10300, 100);
+		assertTrue(prefetcher.getVelocity() > 0);
+		int[] plan = prefetcher.plan(10200, 10300, REFERENCE_LENGTH);
+		assertEquals(102, plan[0]);
+		assertEquals(103, plan[1]);
+		assertEquals(104, plan[2]);
+		assertEquals(105, plan[3]);
+		assertEquals(101, plan[4]);
+		int ahead = 0;
+		for (int tile : plan) {
+			if (tile > 102) {
+				++ahead;
+			}
+		}
+		assertTrue("more tiles are planned ahead than behind", ahead > TilePrefetcher.BASE_TILES);
+		assertEquals(1 + ahead + TilePrefetcher.BASE_TILES, plan.length);
+	}
+
+	@Test
+	public void testPlanScrollingBackward() {
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10200, 10300, 0);
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10000, 10100, 100);
+		assertTrue(prefetcher.getVelocity() < 0);
+		int[] plan = prefetcher.plan(10000, 10100, REFERENCE_LENGTH);
+		assertEquals(100, plan[0]);
+		assertEquals(99, plan[1]);
+		assertEquals(98, plan[2]);
+		assertEquals(97, plan[3]);
+		assertEquals(101, plan[4]);
+	}
+
+	@Test
+	public void testVelocityResetAfterPauseAndJump() {
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10000, 10100, 0);
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10200, 10300, 100);
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10400, 10500, 100 + TilePrefetcher.IDLE_MILLIS + 1);
+		assertEquals(0, prefetcher.getVelocity(), 0);
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 10600, 10700, 1200);
+		assertTrue(prefetcher.getVelocity() > 0);
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 500000, 500100, 1300);
+		assertEquals(0, prefetcher.getVelocity(), 0);
+	}
+
+	@Test
+	public void testLoadTiles() throws InterruptedException {
+		source.release.countDown();
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 500, 600);
+		waitForTiles(5);
+		assertEquals(5, loadedTiles.size());
+		assertEquals(Integer.valueOf(5), loadedTiles.get(0));
+		for (int tile = 3; tile <= 7; ++tile) {
+			assertTrue(store.isTileLoaded(0, tile));
+			assertEquals(2, store.getTileReads(0, tile).size());
+		}
+		assertFalse(store.isTileLoaded(0, 2));
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 500, 600);
+		assertTrue(source.started.await(5, TimeUnit.SECONDS));
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 50000, 50100);
+		source.release.countDown();
+		waitForTiles(5);
+		Thread.sleep(50);
+		for (int tile = 3; tile <= 7; ++tile) {
+			assertFalse("cancelled tile " + tile + " is not stored", store.isTileLoaded(0, tile));
+		}
+		for (int tile = 498; tile <= 502; ++tile) {
+			assertTrue(store.isTileLoaded(0, tile));
+		}
+		assertEquals(5, store.getTileCount());
+	}
+
+	@Test
+	public void testMemoryBudget() throws InterruptedException {
+		prefetcher.shutdown();
+		long tileSize = 2 * ReadStore.estimateSize(source.read(0));
+		prefetcher = createPrefetcher(3 * tileSize);
+		source.release.countDown();
+		prefetcher.viewportChanged(0, REFERENCE_LENGTH, 500, 600);
+		waitForTiles(5);
+		assertEquals(3, store.getTileCount());
+		assertTrue(store.getSize() <= 3 * tileSize);
+		assertFalse("least recently loaded tile is evicted", store.isTileLoaded(0, 5));
+		assertTrue(store.isTileLoaded(0, 7));
+		assertTrue(store.isTileLoaded(0, 3));
+	}
+
+	/**
+	 * Two reads in every tile. Reading blocks until the release latch is opened.
+	 */
+	private static class TestSource implements TilePrefetcher.TileSource {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		AlignmentRecord read(int position) {
+			AlignmentRecord read = new AlignmentRecord();
+			read.setPosition(position);
+			read.setSequence("ACGTACGTAC");
+			read.setCigar("10M");
+			return read;
+		}
+
+		@Override
+		public RegionIterator iterateReads(int reference, int start, int end) {
+			List<AlignmentRecord> reads = new ArrayList<AlignmentRecord>();
+			reads.add(read(start));
+			reads.add(read(start + TILE_SIZE / 2));
+			final Iterator<AlignmentRecord> iterator = reads.iterator();
+			return new RegionIterator() {
+
+				@Override
+				public boolean hasNext() {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+					return iterator.hasNext();
+				}
+
+				@Override
+				public AlignmentRecord next() {
+					return iterator.next();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+}